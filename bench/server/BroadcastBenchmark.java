@@ -0,0 +1,141 @@
+package server;
+
+import protocol.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark: Was kostet ein Broadcast an einen Raum mit 100 bzw. 1000 Mitgliedern?
+ *
+ * Verglichen werden:
+ * - "pro Mitglied": Nachricht wird für jedes Mitglied neu mit writeUTF kodiert
+ *   (so wie Room.broadcast es vor dem Frame gemacht hat)
+ * - "Frame": Nachricht wird einmal kodiert, alle Mitglieder teilen sich die Bytes
+ *
+ * Gemessen wird der Weg bis in die Ausgangs-Queues (Kodieren + Einreihen),
+ * also genau der Teil, den der sendende Thread selbst bezahlt. Das Schreiben
+ * auf die Sockets ist bei beiden Varianten gleich und wird nicht gemessen.
+ *
+ * Aufruf:
+ *   java -cp out server.BroadcastBenchmark [Broadcasts]
+ */
+public class BroadcastBenchmark {
+
+    private static final int[] ROOM_SIZES = {100, 1000};
+    private static final int DEFAULT_BROADCASTS = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+    /**
+     * Eine Variante, die eine Nachricht an alle Queues verteilt.
+     */
+    private interface Strategy {
+        void broadcast(String message, List<OutboundQueue> members) throws IOException;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BROADCASTS;
+
+        String chatLine = "[alice] Hallo zusammen, hat jemand die Folien von heute? äöü";
+        String roomList = "ROOM_LIST:" + roomNames(50);
+
+        System.out.println("Broadcasts pro Messung: " + broadcasts);
+        System.out.printf("%-10s %-8s %-14s %16s %18s%n",
+                "Nachricht", "Größe", "Variante", "CPU (µs/Bc.)", "Allokiert (KB/Bc.)");
+
+        for (int roomSize : ROOM_SIZES) {
+            List<OutboundQueue> members = new ArrayList<>();
+            for (int i = 0; i < roomSize; i++) {
+                members.add(new OutboundQueue(4, null));
+            }
+
+            for (String[] message : new String[][]{{"Chat", chatLine}, {"ROOM_LIST", roomList}}) {
+                measure(message[0], roomSize, "pro Mitglied", BroadcastBenchmark::encodePerMember,
+                        message[1], members, broadcasts);
+                measure(message[0], roomSize, "Frame", BroadcastBenchmark::encodeOnce,
+                        message[1], members, broadcasts);
+            }
+        }
+    }
+
+
+    /**
+     * Alter Weg: jedes Mitglied kodiert die Nachricht selbst.
+     */
+    private static void encodePerMember(String message, List<OutboundQueue> members) throws IOException {
+        for (OutboundQueue queue : members) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(message.length() + 2);
+            new DataOutputStream(frame).writeUTF(message);
+            queue.offer(frame.toByteArray());
+        }
+    }
+
+
+    /**
+     * Neuer Weg: einmal kodieren, dieselben Bytes an alle.
+     */
+    private static void encodeOnce(String message, List<OutboundQueue> members) throws IOException {
+        Frame frame = Frame.chat(message);
+        for (OutboundQueue queue : members) {
+            queue.offer(frame.getBytes(Protocol.VERSION_1));
+        }
+    }
+
+
+    /**
+     * Misst eine Variante und gibt eine Tabellenzeile aus.
+     */
+    private static void measure(String label, int roomSize, String variant, Strategy strategy,
+                                String message, List<OutboundQueue> members, int broadcasts)
+            throws IOException {
+        // Aufwärmen, damit der JIT beide Varianten gleich behandelt
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(strategy, message, members, broadcasts);
+        }
+
+        long thread = Thread.currentThread().threadId();
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        long allocStart = THREADS.getThreadAllocatedBytes(thread);
+
+        run(strategy, message, members, broadcasts);
+
+        long cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        long alloc = THREADS.getThreadAllocatedBytes(thread) - allocStart;
+
+        System.out.printf("%-10s %-8d %-14s %16.1f %18.1f%n",
+                label, roomSize, variant,
+                cpu / 1000.0 / broadcasts,
+                alloc / 1024.0 / broadcasts);
+    }
+
+
+    private static void run(Strategy strategy, String message, List<OutboundQueue> members,
+                            int broadcasts) throws IOException {
+        for (int i = 0; i < broadcasts; i++) {
+            strategy.broadcast(message, members);
+
+            // Queues leeren (übernimmt sonst der Writer)
+            for (OutboundQueue queue : members) {
+                queue.poll();
+            }
+        }
+    }
+
+
+    private static String roomNames(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("Raum-" + i);
+        }
+        return String.join(",", names);
+    }
+}
@@ -0,0 +1,179 @@
+package server;
+
+import protocol.Command;
+import protocol.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Benchmark: Download einer 10-MB-Datei (maximale Upload-Größe) über Loopback.
+ *
+ * Verglichen werden:
+ * - "byte[]": Datei komplett in den Heap lesen, mit Kopf in ein Array kopieren
+ *   und auf den Socket-Stream schreiben (so wie handleDownloadFile es vor
+ *   FileRegion gemacht hat)
+ * - "transferTo": Kopf schreiben, dann FileRegion.transferTo() direkt auf den
+ *   SocketChannel (sendfile)
+ *
+ * Ein zweiter Thread liest auf der Gegenseite alles weg. Gemessen werden
+ * Durchsatz sowie CPU-Zeit und Allokationen des sendenden Threads.
+ *
+ * Aufruf:
+ *   java -cp out server.DownloadBenchmark [Downloads]
+ */
+public class DownloadBenchmark {
+
+    private static final int FILE_SIZE = ClientHandler.MAX_FILE_SIZE;
+    private static final int DEFAULT_DOWNLOADS = 50;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+    /**
+     * Eine Variante, die eine Datei auf den Socket schreibt.
+     */
+    private interface Strategy {
+        void send(File file, SocketChannel socket) throws IOException;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int downloads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DOWNLOADS;
+
+        File file = File.createTempFile("download-bench", ".pdf");
+        file.deleteOnExit();
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+        content = null;
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            SocketChannel receiver = SocketChannel.open(server.getLocalAddress());
+            SocketChannel sender = server.accept();
+            startDrain(receiver);
+
+            System.out.println("Dateigröße: " + FILE_SIZE / 1024 / 1024 + " MB, Downloads pro Messung: " + downloads);
+            System.out.printf("%-12s %14s %18s %20s%n",
+                    "Variante", "MB/s", "CPU (ms/Download)", "Allokiert (KB/Dl.)");
+
+            measure("byte[]", DownloadBenchmark::sendViaHeap, file, sender, downloads);
+            measure("transferTo", DownloadBenchmark::sendViaTransferTo, file, sender, downloads);
+
+            sender.close();
+            receiver.close();
+        }
+    }
+
+
+    /**
+     * Alter Weg: ganze Datei in den Heap, Kopf + Daten in ein Array, dann schreiben.
+     */
+    private static void sendViaHeap(File file, SocketChannel socket) throws IOException {
+        byte[] fileData = new byte[(int) file.length()];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int read = 0;
+            while (read < fileData.length) {
+                read += fis.read(fileData, read, fileData.length - read);
+            }
+        }
+
+        byte[] header = Frame.of(Command.FILE_DATA, file.getName()).getBytes(Protocol.VERSION_2);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(header.length + 4 + fileData.length);
+        DataOutputStream out = new DataOutputStream(frame);
+        out.write(header);
+        out.writeInt(fileData.length);
+        out.write(fileData);
+
+        OutputStream socketOutput = socket.socket().getOutputStream();
+        socketOutput.write(frame.toByteArray());
+        socketOutput.flush();
+    }
+
+
+    /**
+     * Neuer Weg: Kopf schreiben, Datei per sendfile.
+     */
+    private static void sendViaTransferTo(File file, SocketChannel socket) throws IOException {
+        FileRegion region = FileRegion.open(file);
+        try {
+            region.setHeader(Frame.of(Command.FILE_DATA, file.getName())
+                    .withLength(Protocol.VERSION_2, (int) region.getSize()));
+
+            ByteBuffer header = ByteBuffer.wrap(region.getHeader());
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+            if (!region.transferTo(socket)) {
+                throw new IOException("Blockierender Socket hat nicht alles angenommen");
+            }
+        } finally {
+            region.close();
+        }
+    }
+
+
+    /**
+     * Misst eine Variante und gibt eine Tabellenzeile aus.
+     */
+    private static void measure(String variant, Strategy strategy, File file,
+                                SocketChannel socket, int downloads) throws IOException {
+        // Aufwärmen, damit der JIT beide Varianten gleich behandelt
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            strategy.send(file, socket);
+        }
+
+        long thread = Thread.currentThread().threadId();
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        long allocStart = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < downloads; i++) {
+            strategy.send(file, socket);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        long alloc = THREADS.getThreadAllocatedBytes(thread) - allocStart;
+
+        double megabytes = (double) FILE_SIZE * downloads / 1024 / 1024;
+        System.out.printf("%-12s %14.0f %18.2f %20.1f%n",
+                variant,
+                megabytes / (elapsed / 1e9),
+                cpu / 1e6 / downloads,
+                alloc / 1024.0 / downloads);
+    }
+
+
+    /**
+     * Liest auf der Gegenseite alles und verwirft es (wie ein schneller Client).
+     */
+    private static void startDrain(SocketChannel receiver) {
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (receiver.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // Benchmark beendet
+            }
+        }, "Download-Drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+}
@@ -0,0 +1,322 @@
+package server;
+
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stresstest: Beitreten, Broadcasts und Verlassen aus vielen Threads gleichzeitig.
+ *
+ * Verglichen werden:
+ * - "globale Sperre": dieselben Aufrufe, aber wie beim alten RoomManager
+ *   hinter einer Sperre für alle Räume, und Broadcasts halten die Sperre
+ *   ihres Raums, während sie senden (so wie Room.broadcast es vor dem
+ *   Copy-on-Write-Array gemacht hat)
+ * - "ConcurrentHashMap": RoomManager und Room wie sie sind
+ *
+ * Jeder Thread tritt in einer Schleife einem zufälligen Raum bei, sendet
+ * einige Broadcasts und verlässt ihn wieder. Die Räume haben ein festes
+ * Mitglied, damit sie dabei nicht gelöscht werden. Gemessen wird, wie viele
+ * dieser Runden alle Threads zusammen pro Sekunde schaffen. Die Clients
+ * sind nicht verbunden, sendFrame() kehrt sofort zurück - gemessen wird
+ * also nur die Synchronisation, nicht das Einreihen.
+ *
+ * Danach legen alle Threads gleichzeitig wenige Räume an, treten bei und
+ * verlassen sie (leere Räume werden gelöscht). Geprüft wird, dass kein
+ * Beitritt in einem gelöschten Raum landet und am Ende kein leerer Raum übrig
+ * ist. Bei einem Fehler endet der Test mit Exit-Code 1.
+ *
+ * Läuft in einer eigenen JVM mit eigenem Arbeitsverzeichnis (room_files).
+ *
+ * Aufruf:
+ *   java -cp out server.RoomStressBenchmark [Sekunden pro Messung]
+ */
+public class RoomStressBenchmark {
+
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final int ROOMS = 8;
+    private static final int MEMBERS_PER_ROOM = 50;
+    private static final int BROADCASTS_PER_ROUND = 4;
+    private static final int DEFAULT_SECONDS = 3;
+    private static final int CHURN_ROOMS = 3;
+    private static final int CHURN_ROUNDS = 20_000;
+
+
+    /**
+     * Server ohne Log-Ausgabe (sonst zwei Zeilen pro Runde).
+     */
+    private static class QuietServer extends Server {
+        QuietServer() {
+            super(Engine.NIO);
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    }
+
+
+    /**
+     * Eine Variante, die die Aufrufe an den RoomManager weitergibt.
+     */
+    private interface Rooms {
+        boolean join(String room, ClientHandler client);
+
+        void broadcast(String room, String message, ClientHandler sender);
+
+        void leave(String room, ClientHandler client);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+            System.exit(run(seconds) ? 0 : 1);
+        }
+
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        ProcessBuilder builder = new ProcessBuilder(javaBin,
+                "-cp", String.join(File.pathSeparator, classPath),
+                RoomStressBenchmark.class.getName(),
+                "--run", args.length > 0 ? args[0] : String.valueOf(DEFAULT_SECONDS));
+
+        // Eigenes Arbeitsverzeichnis, damit server.log/users.db/room_files nicht im Projekt landen
+        builder.directory(Files.createTempDirectory("chat-bench").toFile());
+        builder.inheritIO();
+        System.exit(builder.start().waitFor());
+    }
+
+
+    private static boolean run(int seconds) throws Exception {
+        Server server = new QuietServer();
+        RoomManager manager = server.getRoomManager();
+
+        for (int i = 0; i < ROOMS; i++) {
+            manager.createRoom("Raum-" + i, newClient(server));
+            for (int j = 1; j < MEMBERS_PER_ROOM; j++) {
+                manager.joinRoom("Raum-" + i, newClient(server));
+            }
+        }
+
+        System.out.println("Räume: " + ROOMS + " mit je " + MEMBERS_PER_ROOM + " Mitgliedern, "
+                + BROADCASTS_PER_ROUND + " Broadcasts pro Runde, " + seconds + " s pro Messung");
+        System.out.printf("%-18s %8s %18s%n", "Variante", "Threads", "Runden/s");
+
+        Rooms global = globalLock(manager);
+        Rooms concurrent = direct(manager);
+        for (int threads : THREAD_COUNTS) {
+            // Aufwärmen, damit der JIT beide Varianten gleich behandelt
+            measure(global, server, threads, 1);
+            measure(concurrent, server, threads, 1);
+
+            System.out.printf("%-18s %8d %18.0f%n", "globale Sperre", threads,
+                    measure(global, server, threads, seconds));
+            System.out.printf("%-18s %8d %18.0f%n", "ConcurrentHashMap", threads,
+                    measure(concurrent, server, threads, seconds));
+        }
+
+        boolean consistent = churn(server, THREAD_COUNTS[THREAD_COUNTS.length - 1]);
+        server.getRoomManager().close();
+        return consistent;
+    }
+
+
+    /**
+     * Lässt alle Threads für eine Weile Runden drehen.
+     *
+     * @return Runden pro Sekunde (alle Threads zusammen)
+     */
+    private static double measure(Rooms rooms, Server server, int threads, int seconds)
+            throws InterruptedException {
+        AtomicLong rounds = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        runThreads(threads, () -> {
+            ClientHandler client = newClient(server);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long done = 0;
+            while (System.nanoTime() < deadline) {
+                String room = "Raum-" + random.nextInt(ROOMS);
+                rooms.join(room, client);
+                for (int i = 0; i < BROADCASTS_PER_ROUND; i++) {
+                    rooms.broadcast(room, "[bench] Nachricht " + i, client);
+                }
+                rooms.leave(room, client);
+                done++;
+            }
+            rounds.addAndGet(done);
+        });
+
+        return rounds.get() / (double) seconds;
+    }
+
+
+    /**
+     * Anlegen, Beitreten und Löschen derselben Räume aus vielen Threads.
+     *
+     * @return true wenn keine Regel verletzt wurde
+     */
+    private static boolean churn(Server server, int threads) throws InterruptedException {
+        RoomManager manager = server.getRoomManager();
+        AtomicInteger violations = new AtomicInteger();
+        int before = manager.getRoomCount();
+
+        runThreads(threads, () -> {
+            ClientHandler client = newClient(server);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < CHURN_ROUNDS / threads; i++) {
+                String name = "Kurz-" + random.nextInt(CHURN_ROOMS);
+                if (!manager.createRoom(name, client) && !manager.joinRoom(name, client)) {
+                    // Raum wurde gerade gelöscht - nächste Runde
+                    continue;
+                }
+
+                // Solange der Client drin ist, darf der Raum nicht gelöscht werden
+                Room room = manager.getRoom(name);
+                if (room == null || !room.hasMember(client)) {
+                    violations.incrementAndGet();
+                }
+                manager.leaveRoom(name, client);
+            }
+        });
+
+        int leftOver = manager.getRoomCount() - before;
+        boolean consistent = violations.get() == 0 && leftOver == 0;
+        System.out.println();
+        System.out.println("Anlegen/Löschen (" + threads + " Threads, " + CHURN_ROUNDS + " Runden): "
+                + (consistent ? "ok" : violations.get() + " Beitritte in gelöschte Räume, "
+                + leftOver + " leere Räume übrig"));
+        return consistent;
+    }
+
+
+    private static void runThreads(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+
+    private static ClientHandler newClient(Server server) {
+        return new ClientHandler((Socket) null, null, server);
+    }
+
+
+    /**
+     * Neuer Weg: direkt auf RoomManager und Room.
+     */
+    private static Rooms direct(RoomManager manager) {
+        return new Rooms() {
+            @Override
+            public boolean join(String room, ClientHandler client) {
+                return manager.joinRoom(room, client);
+            }
+
+            @Override
+            public void broadcast(String room, String message, ClientHandler sender) {
+                Room target = manager.getRoom(room);
+                if (target != null) {
+                    target.broadcast(message, sender);
+                }
+            }
+
+            @Override
+            public void leave(String room, ClientHandler client) {
+                manager.leaveRoom(room, client);
+            }
+        };
+    }
+
+
+    /**
+     * Alter Weg: eine Sperre für alle Räume, Broadcasts senden unter der Sperre ihres Raums.
+     */
+    private static Rooms globalLock(RoomManager manager) {
+        ReentrantLock global = new ReentrantLock();
+        Map<String, ReentrantLock> roomLocks = new ConcurrentHashMap<>();
+
+        return new Rooms() {
+            @Override
+            public boolean join(String room, ClientHandler client) {
+                global.lock();
+                try {
+                    ReentrantLock roomLock = roomLocks.computeIfAbsent(room, key -> new ReentrantLock());
+                    roomLock.lock();
+                    try {
+                        return manager.joinRoom(room, client);
+                    } finally {
+                        roomLock.unlock();
+                    }
+                } finally {
+                    global.unlock();
+                }
+            }
+
+            @Override
+            public void broadcast(String room, String message, ClientHandler sender) {
+                Room target;
+                global.lock();
+                try {
+                    target = manager.getRoom(room);
+                } finally {
+                    global.unlock();
+                }
+                if (target == null) {
+                    return;
+                }
+
+                ReentrantLock roomLock = roomLocks.computeIfAbsent(room, key -> new ReentrantLock());
+                roomLock.lock();
+                try {
+                    target.broadcast(message, sender);
+                } finally {
+                    roomLock.unlock();
+                }
+            }
+
+            @Override
+            public void leave(String room, ClientHandler client) {
+                global.lock();
+                try {
+                    ReentrantLock roomLock = roomLocks.computeIfAbsent(room, key -> new ReentrantLock());
+                    roomLock.lock();
+                    try {
+                        manager.leaveRoom(room, client);
+                    } finally {
+                        roomLock.unlock();
+                    }
+                } finally {
+                    global.unlock();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark: Wie viele Threads und wie viel Speicher kosten N wartende Clients
+ * mit der Engine BLOCKING (Plattform-Threads), VIRTUAL und NIO?
+ *
+ * Jede Engine wird in einer eigenen JVM gemessen, damit sich die Messungen
+ * nicht gegenseitig beeinflussen. Die Clients verbinden sich nur und bleiben
+ * im Login stehen (typischer Fall: viele untätige Nutzer).
+ *
+ * Aufruf:
+ *   java -cp out server.ThreadModeBenchmark [Verbindungen]
+ *
+ * Hinweis: Pro Verbindung werden zwei Datei-Deskriptoren gebraucht
+ * (ggf. "ulimit -n" erhöhen).
+ */
+public class ThreadModeBenchmark {
+
+    private static final int DEFAULT_CONNECTIONS = 2000;
+    private static final int BENCHMARK_PORT = 3199;
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("--engine")) {
+            int connections = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS;
+            measure(Server.Engine.parse(args[1]), connections);
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+
+        System.out.println("Verbindungen: " + connections);
+        System.out.printf("%-10s %10s %14s %14s %14s%n",
+                "Engine", "Threads", "Heap (MB)", "RSS (MB)", "Aufbau (ms)");
+
+        for (Server.Engine engine : Server.Engine.values()) {
+            runInChildJvm(engine, connections);
+        }
+    }
+
+
+    /**
+     * Startet die Messung für eine Engine in einer neuen JVM.
+     */
+    private static void runInChildJvm(Server.Engine engine, int connections) throws Exception {
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(javaBin,
+                "-Dchat.port=" + BENCHMARK_PORT,
+                "-cp", absoluteClassPath(),
+                ThreadModeBenchmark.class.getName(),
+                "--engine", engine.name(), String.valueOf(connections));
+
+        // Eigenes Arbeitsverzeichnis, damit server.log/users.db/room_files nicht im Projekt landen
+        builder.directory(Files.createTempDirectory("chat-bench").toFile());
+        builder.inheritIO();
+
+        Process process = builder.start();
+        process.waitFor();
+    }
+
+
+    /**
+     * Klassenpfad mit absoluten Pfaden (die Kind-JVM läuft in einem anderen Verzeichnis).
+     */
+    private static String absoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(new File(entry).getAbsolutePath());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+
+    /**
+     * Misst eine Engine in der aktuellen JVM und gibt eine Tabellenzeile aus.
+     */
+    private static void measure(Server.Engine engine, int connections) throws Exception {
+        PrintStream console = System.out;
+
+        // Server-Log unterdrücken (sonst zwei Zeilen pro Verbindung)
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Server server = new Server(engine);
+        Thread serverThread = new Thread(server::start, "Server-Thread");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitUntilRunning(server);
+
+        long baselineHeap = usedHeap();
+
+        long start = System.nanoTime();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            sockets.add(new Socket(InetAddress.getLoopbackAddress(), BENCHMARK_PORT));
+        }
+        while (server.getClientCount() < connections) {
+            Thread.sleep(10);
+        }
+        long setupMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Allen Threads Zeit geben, im readUTF() anzukommen
+        Thread.sleep(1000);
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heap = usedHeap() - baselineHeap;
+        long rss = residentSetSize();
+
+        console.printf("%-10s %10d %14.1f %14s %14d%n",
+                engine, threads, heap / (1024.0 * 1024.0),
+                rss < 0 ? "n/a" : String.format("%.1f", rss / (1024.0 * 1024.0)),
+                setupMillis);
+
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignorieren
+            }
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+
+    private static void waitUntilRunning(Server server) throws InterruptedException {
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+    }
+
+
+    /**
+     * Belegter Heap nach einer Garbage Collection.
+     */
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    /**
+     * Resident Set Size des Prozesses (nur Linux, sonst -1).
+     * Enthält auch die Thread-Stacks, die im Heap nicht auftauchen.
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    String kb = line.replaceAll("[^0-9]", "");
+                    return Long.parseLong(kb) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Nicht verfügbar
+        }
+        return -1;
+    }
+}
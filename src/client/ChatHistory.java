@@ -0,0 +1,134 @@
+package client;
+
+import java.util.List;
+import java.util.function.LongConsumer;
+import javax.swing.JTextArea;
+
+/**
+ * Die Historie des aktuellen Raums ab Protokoll v6: beim Betreten kommen
+ * nur die letzten Nachrichten (HISTORY_PAGE mit "vor" = 0), ältere holt der
+ * Client seitenweise mit HISTORY_BEFORE, wenn der Nutzer nach oben scrollt.
+ *
+ * Jede Seite wird oben eingefügt - direkt unter der Raum-Überschrift, also
+ * vor allem, was schon angezeigt wird. Eine Seite beginnt vor der ältesten
+ * angezeigten Nummer (nicht bei einer Position), es fehlt also nichts und
+ * nichts kommt doppelt, auch wenn inzwischen neue Nachrichten dazukommen.
+ *
+ * Nur im Event-Dispatch-Thread benutzen.
+ */
+final class ChatHistory {
+
+    private final JTextArea area;
+
+    // Fordert die Seite vor einer Nummer an
+    private final LongConsumer requestPage;
+
+    // Hier werden Seiten eingefügt (Ende der Raum-Überschrift)
+    private int insertAt;
+
+    // Älteste angezeigte Nummer (0 = noch keine)
+    private long oldestSeq;
+    private boolean more;
+
+    // "vor" der laufenden Anfrage (-1 = keine Anfrage unterwegs, 0 = Historie beim Betreten)
+    private long pendingBefore = -1;
+
+
+    /**
+     * @param area Chat-Anzeige
+     * @param requestPage Sendet HISTORY_BEFORE mit dieser Nummer
+     */
+    ChatHistory(JTextArea area, LongConsumer requestPage) {
+        this.area = area;
+        this.requestPage = requestPage;
+    }
+
+
+    /**
+     * Beginnt einen neuen Raum (nach ROOM_JOINED) und wartet auf seine
+     * letzten Nachrichten.
+     *
+     * @param insertAt Position im Text, an der die Historie beginnt
+     */
+    void reset(int insertAt) {
+        this.insertAt = insertAt;
+        oldestSeq = 0;
+        more = false;
+        pendingBefore = 0;
+    }
+
+
+    /**
+     * Kein Raum mehr (ROOM_LEFT) - es wird nichts mehr geladen.
+     */
+    void clear() {
+        oldestSeq = 0;
+        more = false;
+        pendingBefore = -1;
+    }
+
+
+    /**
+     * Verbindung verloren: Die laufende Anfrage wird nicht mehr beantwortet.
+     * Was angezeigt wird, bleibt - nach RESUME wird dort weitergeladen.
+     */
+    void abort() {
+        pendingBefore = -1;
+    }
+
+
+    /**
+     * Fordert die Seite vor der ältesten angezeigten Nachricht an, wenn es
+     * eine gibt und keine unterwegs ist.
+     */
+    void loadMore() {
+        if (!more || pendingBefore >= 0 || oldestSeq <= 0) {
+            return;
+        }
+        pendingBefore = oldestSeq;
+        requestPage.accept(oldestSeq);
+    }
+
+
+    /**
+     * Fügt eine Seite oben ein. Antworten auf veraltete Anfragen werden ignoriert.
+     *
+     * @param before "vor" der Anfrage (0 = Historie beim Betreten)
+     * @param hasMore true wenn es davor noch Nachrichten gibt
+     * @param entries Einträge "nummer/nachricht" (älteste zuerst)
+     * @return true wenn Text eingefügt wurde
+     */
+    boolean applyPage(long before, boolean hasMore, List<String> entries) {
+        if (before != pendingBefore) {
+            return false;
+        }
+        pendingBefore = -1;
+        more = hasMore;
+
+        StringBuilder text = new StringBuilder();
+        long first = 0;
+        for (String entry : entries) {
+            int slash = entry.indexOf('/');
+            if (slash < 0) {
+                continue;
+            }
+            try {
+                long seq = Long.parseLong(entry.substring(0, slash));
+                if (first == 0) {
+                    first = seq;
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            text.append(entry, slash + 1, entry.length()).append('\n');
+        }
+
+        if (first == 0) {
+            more = false;
+            return false;
+        }
+        oldestSeq = first;
+        area.insert(text.toString(), Math.min(insertAt, area.getDocument().getLength()));
+        return true;
+    }
+}
@@ -1,13 +1,36 @@
 package client;
 
+import protocol.Command;
+import protocol.Message;
+import protocol.Protocol;
+
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.text.DefaultCaret;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
  * Chat-Client mit grafischer Oberfläche.
@@ -18,37 +41,93 @@ public class ClientGUI extends JFrame {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 3143;
 
+    // Stückgröße beim Hoch- und Runterladen (die Datei wird nie ganz eingelesen)
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+    // So viele Räume holt der Client pro Seite (ab v5)
+    private static final int ROOM_PAGE_SIZE = 50;
+
+    // So viele ältere Nachrichten holt der Client pro Seite (ab v6)
+    private static final int HISTORY_PAGE_SIZE = 50;
+
+    // Stückgröße für Uploads ab v3: so lange wartet eine eigene Chat-Nachricht höchstens
+    private static final int TRANSFER_CHUNK_SIZE = 32 * 1024;
+
+    // Wiederverbinden nach einem Abbruch: Versuche, Wartezeit wächst pro Versuch
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    // Hier liegen angefangene Downloads, bis sie gespeichert (oder fortgesetzt) werden
+    private static final File PARTIAL_DOWNLOAD_DIR =
+            new File(System.getProperty("java.io.tmpdir"), "multichat-downloads");
+
     // GUI-Komponenten
     private JLabel currentRoomLabel;
     private JTextArea chatTextArea;
+    private JScrollPane chatScrollPane;
     private JTextField messageField;
     private JButton sendButton;
 
     private JList<String> roomList;
     private DefaultListModel<String> roomListModel;
+    private JScrollPane roomScrollPane;
+    private JTextField roomFilterField;
 
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
 
+    // Ab v4: Raum- und Mitgliederliste aus Änderungen (nur auf dem Swing-Thread)
+    private PresenceList rooms;
+    private PresenceList members;
+
+    // Ab v5: Raumliste seitenweise und gefiltert (statt rooms)
+    private RoomDirectory roomDirectory;
+
+    // Ab v6: ältere Nachrichten seitenweise beim Hochscrollen
+    private ChatHistory chatHistory;
+
+    // Ab v7: Chat-Nachrichten in der Reihenfolge ihrer Nummern
+    private final MessageSequence messages = new MessageSequence(this::appendChat);
+
     private JButton createRoomButton;
     private JButton joinRoomButton;
     private JButton leaveRoomButton;
+    private JButton searchButton;
 
     private JButton uploadFileButton;
     private JButton showFilesButton;
     private JButton downloadFileButton;
 
     // Netzwerk
-    private Socket socket;
-    private DataInputStream input;
-    private DataOutputStream output;
+    private ServerConnection connection;
     private Thread listenerThread;
     private volatile boolean connected = false;
 
+    // Nachrichten vom Server: Befehl -> Methode (statt startsWith-Kette)
+    private final Map<Command, Consumer<Message>> messageHandlers = new EnumMap<>(Command.class);
+
+    // Bereits empfangene Teile langer Listen (nur auf dem Swing-Thread)
+    private final Map<Command, List<String>> listParts = new EnumMap<>(Command.class);
+
     // Benutzerdaten
     private String username;
+    private String password;
+
+    // Ab v8: Token zum Wiederanmelden ohne Passwort (gilt nur einmal)
+    private String sessionToken;
     private String currentRoom;
 
+    // Dateien, deren Upload angefragt ist - der Server antwortet in derselben
+    // Reihenfolge (READY_FOR_UPLOAD, UPLOAD_RESUME, UPLOAD_BEGIN oder UPLOAD_ERROR)
+    private final Queue<File> pendingUploads = new ConcurrentLinkedQueue<>();
+    // Laufende Uploads in Stücken (v3): Transfer-ID -> Datei
+    private final Map<String, File> activeUploads = new ConcurrentHashMap<>();
+
+    // Angeforderte Downloads: Dateiname -> Teil-Datei, in die geschrieben wird
+    private final Map<String, File> pendingDownloads = new ConcurrentHashMap<>();
+    // Laufende Downloads in Stücken (v3): Transfer-ID -> Empfänger
+    private final Map<String, FileReceiver> downloads = new ConcurrentHashMap<>();
+
 
     public ClientGUI() {
         setTitle("Chat-Client");
@@ -64,6 +143,7 @@ public class ClientGUI extends JFrame {
         });
 
         initComponents();
+        initMessageHandlers();
         setConnectedState(false);
     }
 
@@ -98,10 +178,18 @@ public class ClientGUI extends JFrame {
         chatTextArea.setFont(new Font("SansSerif", Font.PLAIN, 13));
         chatTextArea.setLineWrap(true);
         chatTextArea.setWrapStyleWord(true);
+        // Nicht bei jeder Änderung ans Ende springen - sonst würde jede oben
+        // eingefügte Seite der Historie nach unten scrollen (appendChat setzt
+        // die Position selbst)
+        ((DefaultCaret) chatTextArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
 
-        JScrollPane chatScrollPane = new JScrollPane(chatTextArea);
+        chatScrollPane = new JScrollPane(chatTextArea);
         chatScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
 
+        // Ab v6: Ältere Nachrichten laden, wenn der Nutzer nach oben scrollt
+        chatHistory = new ChatHistory(chatTextArea, this::requestHistoryPage);
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> loadHistoryIfNearTop());
+
         JPanel inputPanel = new JPanel(new BorderLayout(5, 0));
         messageField = new JTextField();
         messageField.setFont(new Font("SansSerif", Font.PLAIN, 13));
@@ -130,14 +218,53 @@ public class ClientGUI extends JFrame {
         roomList = new JList<>(roomListModel);
         roomList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
-        JScrollPane roomScrollPane = new JScrollPane(roomList);
+        roomDirectory = new RoomDirectory(roomListModel, this::requestRoomPage);
+        roomList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                // Ab v5 mit Anzahl der Mitglieder, z.B. "Lobby (12)"
+                Integer count = roomDirectory.getMemberCount((String) value);
+                Object text = count != null ? value + " (" + count + ")" : value;
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+
+        roomScrollPane = new JScrollPane(roomList);
         roomScrollPane.setBorder(new TitledBorder("Räume"));
         roomScrollPane.setPreferredSize(new Dimension(180, 120));
         roomScrollPane.setMaximumSize(new Dimension(200, 150));
 
+        // Nächste Seite laden, sobald das Ende der Liste in Sicht kommt
+        roomScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> loadRoomsIfNearEnd());
+
+        // Filter nach Namensanfang (ab v5, jede Änderung lädt die erste Seite neu)
+        roomFilterField = new JTextField();
+        roomFilterField.setBorder(new TitledBorder("Raum suchen"));
+        roomFilterField.setMaximumSize(new Dimension(200, 45));
+        roomFilterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                reloadRooms();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                reloadRooms();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                reloadRooms();
+            }
+        });
+
         // Nutzerliste
         userListModel = new DefaultListModel<>();
         userList = new JList<>(userListModel);
+
+        rooms = new PresenceList(roomListModel, () -> requestList(Command.GET_ROOMS));
+        members = new PresenceList(userListModel, () -> requestList(Command.GET_USERS));
         userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
         JScrollPane userScrollPane = new JScrollPane(userList);
@@ -145,6 +272,7 @@ public class ClientGUI extends JFrame {
         userScrollPane.setPreferredSize(new Dimension(180, 120));
         userScrollPane.setMaximumSize(new Dimension(200, 150));
 
+        panel.add(roomFilterField);
         panel.add(roomScrollPane);
         panel.add(Box.createVerticalStrut(5));
         panel.add(createRoomButtonPanel());
@@ -160,30 +288,36 @@ public class ClientGUI extends JFrame {
     private JPanel createRoomButtonPanel() {
         JPanel panel = new JPanel();
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-        panel.setMaximumSize(new Dimension(200, 100));
+        panel.setMaximumSize(new Dimension(200, 130));
 
         createRoomButton = new JButton("Raum erstellen");
         joinRoomButton = new JButton("Raum beitreten");
         leaveRoomButton = new JButton("Raum verlassen");
+        searchButton = new JButton("Verlauf durchsuchen");
 
         Dimension buttonSize = new Dimension(180, 25);
         createRoomButton.setMaximumSize(buttonSize);
         joinRoomButton.setMaximumSize(buttonSize);
         leaveRoomButton.setMaximumSize(buttonSize);
+        searchButton.setMaximumSize(buttonSize);
 
         createRoomButton.setAlignmentX(Component.CENTER_ALIGNMENT);
         joinRoomButton.setAlignmentX(Component.CENTER_ALIGNMENT);
         leaveRoomButton.setAlignmentX(Component.CENTER_ALIGNMENT);
+        searchButton.setAlignmentX(Component.CENTER_ALIGNMENT);
 
         createRoomButton.addActionListener(e -> handleCreateRoom());
         joinRoomButton.addActionListener(e -> handleJoinRoom());
         leaveRoomButton.addActionListener(e -> handleLeaveRoom());
+        searchButton.addActionListener(e -> handleSearch());
 
         panel.add(createRoomButton);
         panel.add(Box.createVerticalStrut(3));
         panel.add(joinRoomButton);
         panel.add(Box.createVerticalStrut(3));
         panel.add(leaveRoomButton);
+        panel.add(Box.createVerticalStrut(3));
+        panel.add(searchButton);
 
         return panel;
     }
@@ -227,6 +361,7 @@ public class ClientGUI extends JFrame {
         createRoomButton.setEnabled(isConnected);
         joinRoomButton.setEnabled(isConnected);
         leaveRoomButton.setEnabled(isConnected);
+        searchButton.setEnabled(isConnected);
 
         // Datei-Buttons nur aktiv wenn in einem Raum
         boolean canUseFiles = isConnected && (currentRoom != null);
@@ -238,9 +373,16 @@ public class ClientGUI extends JFrame {
         messageField.setEnabled(canChat);
         sendButton.setEnabled(canChat);
 
+        roomFilterField.setEnabled(isConnected && usesRoomDirectory());
+
         if (!isConnected) {
             currentRoom = null;
             currentRoomLabel.setText("Aktueller Raum: (keiner)");
+            // Neue Verbindung = neue Versionen (z.B. nach Server-Neustart)
+            rooms.reset();
+            members.reset();
+            // Angezeigtes und die letzte Nummer bleiben für RESUME
+            chatHistory.abort();
         }
     }
 
@@ -252,22 +394,26 @@ public class ClientGUI extends JFrame {
 
     public boolean connectAndLogin() {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
+            connection = new ServerConnection(SERVER_HOST, SERVER_PORT);
+
+            // Binär-Protokoll (v2) anfragen, ältere Server bleiben bei v1
+            connection.negotiate();
 
-            LoginDialog loginDialog = new LoginDialog(this, input, output);
+            LoginDialog loginDialog = new LoginDialog(this, connection);
             loginDialog.setVisible(true);
 
             if (loginDialog.isLoginSuccessful()) {
                 this.username = loginDialog.getUsername();
+                this.password = loginDialog.getPassword();
                 setTitle("Chat-Client - " + username);
 
                 connected = true;
                 setConnectedState(true);
 
-                output.writeUTF("READY");
-                output.flush();
+                connection.send(Command.READY);
+
+                // Ab v5 kommt die Raumliste nicht mehr von selbst
+                reloadRooms();
 
                 startMessageListener();
                 return true;
@@ -293,25 +439,39 @@ public class ClientGUI extends JFrame {
         listenerThread = new Thread(() -> {
             try {
                 while (connected) {
-                    String message = input.readUTF();
+                    Message message = connection.receive();
+                    if (message == null) {
+                        // Unbekannter Befehl (neuerer Server) - überspringen
+                        continue;
+                    }
 
                     // WICHTIG: FILE_DATA muss HIER behandelt werden (im Listener-Thread),
                     // weil die Binärdaten direkt danach kommen und sofort gelesen werden müssen.
-                    // Wenn wir das an invokeLater übergeben, liest der nächste readUTF()
-                    // die Binärdaten als Text - das geht schief!
-                    if (message.startsWith("FILE_DATA:")) {
-                        String fileName = message.substring(10);
-                        receiveFileDataNow(fileName);
-                    } else {
+                    // Wenn wir das an invokeLater übergeben, liest der nächste receive()
+                    // die Binärdaten als Nachricht - das geht schief!
+                    // Ab v3 kommen Dateien in Stücken (FILE_BEGIN/FILE_CHUNK) zwischen
+                    // den anderen Nachrichten - die werden hier nur in die Datei geschrieben.
+                    switch (message.getCommand()) {
+                        case FILE_DATA -> receiveFileDataNow(message.getField(0), 0, -1);
+                        // Fortgesetzter Download: Bytes ab "start" von "gesamtgröße"
+                        case FILE_RANGE -> receiveFileDataNow(message.getField(0),
+                                parseNumber(message.getField(1)), parseNumber(message.getField(2)));
+                        case FILE_BEGIN -> beginDownload(message);
+                        case FILE_CHUNK -> receiveDownloadChunk(message);
                         // Alle anderen Nachrichten normal auf dem Swing-Thread verarbeiten
-                        handleServerMessage(message);
+                        default -> handleServerMessage(message);
                     }
                 }
             } catch (IOException e) {
+                // Angefangene Downloads bleiben als Teil-Dateien liegen
+                downloads.values().forEach(FileReceiver::abort);
+                downloads.clear();
                 if (connected) {
                     SwingUtilities.invokeLater(() -> {
                         appendChat("Verbindung zum Server verloren.");
+                        String room = currentRoom;
                         setConnectedState(false);
+                        reconnect(room);
                     });
                 }
             }
@@ -323,133 +483,493 @@ public class ClientGUI extends JFrame {
 
 
     /**
-     * Verarbeitet eine Nachricht vom Server.
+     * Verbindet sich nach einem Abbruch im Hintergrund neu und kehrt in den
+     * Raum zurück - ab v7 mit RESUME, das die verpassten Nachrichten
+     * nachschickt.
+     *
+     * Angemeldet wird ab v8 mit dem Sitzungs-Token. Kennt der Server es
+     * nicht (z.B. nach einem Neustart), mit den Anmeldedaten von vorhin.
+     * Falsche Anmeldedaten (z.B. gebannt) beenden die Versuche sofort.
      */
-    private void handleServerMessage(String message) {
-        SwingUtilities.invokeLater(() -> {
-            // Verbindung getrennt
-            if (message.startsWith("DISCONNECT:")) {
-                appendChat("Vom Server getrennt: " + message.substring(11));
-                setConnectedState(false);
-                return;
+    private void reconnect(String room) {
+        if (password == null) {
+            return;
+        }
+        long lastSeq = messages.getLastSeq();
+        String token = sessionToken;
+        sessionToken = null;
+        appendChat("Verbinde neu...");
+
+        Thread thread = new Thread(() -> {
+            for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS * attempt);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ServerConnection next = null;
+                try {
+                    next = new ServerConnection(SERVER_HOST, SERVER_PORT);
+                    next.negotiate();
+                    Message response = null;
+                    if (token != null && next.getProtocolVersion() >= Protocol.VERSION_8) {
+                        next.send(Command.LOGIN_TOKEN, token);
+                        response = next.receive();
+                    }
+                    if (response == null || response.getCommand() != Command.SUCCESS) {
+                        next.send(Command.LOGIN, username, password);
+                        response = next.receive();
+                    }
+                    if (response == null || response.getCommand() != Command.SUCCESS) {
+                        next.close();
+                        String text = response != null ? response.getField(0) : "";
+                        SwingUtilities.invokeLater(() ->
+                                appendChat("Wiederverbinden fehlgeschlagen: " + text));
+                        return;
+                    }
+                    ServerConnection resumed = next;
+                    SwingUtilities.invokeLater(() -> resumeSession(resumed, room, lastSeq));
+                    return;
+                } catch (IOException e) {
+                    // Server (noch) nicht erreichbar - nächster Versuch
+                    if (next != null) {
+                        next.close();
+                    }
+                }
             }
+            SwingUtilities.invokeLater(() -> appendChat("Wiederverbinden aufgegeben."));
+        }, "Reconnect");
 
-            // Raumliste
-            if (message.startsWith("ROOM_LIST:")) {
-                updateRoomList(message.substring(10));
-                return;
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Übernimmt die neue Verbindung und kehrt in den Raum zurück.
+     *
+     * @param lastSeq Letzte angezeigte Nummer (-1 = unbekannt, dann normal betreten)
+     */
+    private void resumeSession(ServerConnection next, String room, long lastSeq) {
+        connection = next;
+        setConnectedState(true);
+        appendChat("Wieder verbunden.");
+
+        try {
+            connection.send(Command.READY);
+            if (room != null) {
+                if (connection.getProtocolVersion() >= Protocol.VERSION_7 && lastSeq >= 0) {
+                    // Schon jetzt, damit ROOM_MESSAGE vor ROOM_RESUMED nicht verloren geht
+                    setCurrentRoom(room);
+                    connection.send(Command.RESUME, room, String.valueOf(lastSeq));
+                } else {
+                    connection.send(Command.JOIN_ROOM, room);
+                }
             }
+        } catch (IOException e) {
+            appendChat("Fehler: " + e.getMessage());
+        }
 
-            // Nutzerliste
-            if (message.startsWith("USER_LIST:")) {
-                updateUserList(message.substring(10));
-                return;
+        reloadRooms();
+        startMessageListener();
+    }
+
+
+    /**
+     * Legt fest, welche Methode welchen Befehl vom Server verarbeitet.
+     * Alles ohne Eintrag (CHAT) wird als Chat-Nachricht angezeigt.
+     */
+    private void initMessageHandlers() {
+        // Verbindung getrennt
+        messageHandlers.put(Command.DISCONNECT, m -> {
+            appendChat("Vom Server getrennt: " + m.getField(0));
+            setConnectedState(false);
+        });
+
+        // Raum- und Nutzerliste
+        putListHandler(Command.ROOM_LIST, this::updateRoomList);
+        putListHandler(Command.USER_LIST, this::updateUserList);
+
+        // Ab v4: ganze Liste nur als Snapshot, sonst Änderungen ("version, raum[, nutzer]")
+        putListHandler(Command.ROOM_SNAPSHOT, fields ->
+                rooms.applySnapshot(Long.parseLong(fields.get(0)), fields.subList(1, fields.size())));
+        putListHandler(Command.MEMBER_SNAPSHOT, fields -> {
+            if (fields.get(1).equals(currentRoom)) {
+                members.applySnapshot(Long.parseLong(fields.get(0)), fields.subList(2, fields.size()));
             }
+        });
+        messageHandlers.put(Command.ROOM_ADDED, m -> applyRoomChange(m, true));
+        messageHandlers.put(Command.ROOM_REMOVED, m -> applyRoomChange(m, false));
+
+        // Ab v5: eine Seite des Raumverzeichnisses ("präfix, nach, weitere, name/mitglieder...")
+        putListHandler(Command.ROOM_PAGE, fields -> {
+            roomDirectory.applyPage(fields.get(0), fields.get(1), fields.get(2).equals("1"),
+                    fields.subList(3, fields.size()));
+            // Füllt die erste Seite die Liste nicht, gleich weiterladen
+            SwingUtilities.invokeLater(this::loadRoomsIfNearEnd);
+        });
+        // Ab v6: Historie mit Nummern ("raum, vor, weitere, nummer/nachricht...")
+        putListHandler(Command.HISTORY_PAGE, fields -> {
+            if (fields.get(0).equals(currentRoom)) {
+                applyHistoryPage(Long.parseLong(fields.get(1)), fields.get(2).equals("1"),
+                        fields.subList(3, fields.size()));
+            }
+        });
+        messageHandlers.put(Command.MEMBER_JOINED, m -> {
+            if (m.getField(1).equals(currentRoom)) {
+                members.applyDelta(Long.parseLong(m.getField(0)), true, m.getField(2));
+            }
+        });
+        messageHandlers.put(Command.MEMBER_LEFT, m -> {
+            if (m.getField(1).equals(currentRoom)) {
+                members.applyDelta(Long.parseLong(m.getField(0)), false, m.getField(2));
+            }
+        });
 
-            // Raum erstellt
-            if (message.startsWith("ROOM_CREATED:")) {
-                appendChat("Raum '" + message.substring(13) + "' wurde erstellt.");
-                return;
+        // Ab v9: Treffer der Suche ("raum, suchwörter, nummer/nachricht...", neueste zuerst)
+        putListHandler(Command.SEARCH_RESULT, fields ->
+                showSearchResult(fields.get(0), fields.get(1), fields.subList(2, fields.size())));
+
+        // Ab v8: Token zum Wiederanmelden (kommt nach jedem Login neu)
+        messageHandlers.put(Command.SESSION, m -> sessionToken = m.getField(0));
+
+        // Raum erstellt
+        messageHandlers.put(Command.ROOM_CREATED, m ->
+                appendChat("Raum '" + m.getField(0) + "' wurde erstellt."));
+
+        // Raum beigetreten
+        messageHandlers.put(Command.ROOM_JOINED, m -> {
+            String roomName = m.getField(0);
+            setCurrentRoom(roomName);
+            members.reset();
+            chatTextArea.setText("");
+            appendChat("=== Raum: " + roomName + " ===");
+            chatHistory.reset(chatTextArea.getDocument().getLength());
+            messages.reset();
+        });
+
+        // Ab v7: Chat-Nachricht mit Nummer ("raum, nummer, nachricht")
+        messageHandlers.put(Command.ROOM_MESSAGE, m -> {
+            if (m.getField(0).equals(currentRoom)) {
+                messages.accept(parseNumber(m.getField(1)), m.getField(2));
             }
+        });
 
-            // Raum beigetreten
-            if (message.startsWith("ROOM_JOINED:")) {
-                String roomName = message.substring(12);
+        // Ab v7: Zurück im Raum nach RESUME ("raum, von, bis, nummer/nachricht...")
+        putListHandler(Command.ROOM_RESUMED, fields -> {
+            String roomName = fields.get(0);
+            if (!roomName.equals(currentRoom)) {
                 setCurrentRoom(roomName);
-                chatTextArea.setText("");
-                appendChat("=== Raum: " + roomName + " ===");
-                return;
             }
-
-            // Raum verlassen
-            if (message.startsWith("ROOM_LEFT:")) {
-                setCurrentRoom(null);
-                appendChat("Du hast den Raum verlassen.");
-                clearUsers();
-                return;
+            members.reset();
+            long skipped = messages.resume(Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)));
+            if (skipped > 0) {
+                appendChat("(" + skipped + " verpasste Nachrichten nicht nachgeholt)");
             }
-
-            // Raum gelöscht
-            if (message.startsWith("ROOM_DELETED:")) {
-                appendChat("Raum '" + message.substring(13) + "' wurde gelöscht.");
-                return;
+            for (String entry : fields.subList(3, fields.size())) {
+                int slash = entry.indexOf('/');
+                if (slash > 0) {
+                    messages.accept(parseNumber(entry.substring(0, slash)), entry.substring(slash + 1));
+                }
             }
+            appendChat("=== Wieder in Raum: " + roomName + " ===");
+        });
 
-            // Fehler
-            if (message.startsWith("ERROR:")) {
-                JOptionPane.showMessageDialog(this, message.substring(6),
-                        "Fehler", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        // Raum verlassen
+        messageHandlers.put(Command.ROOM_LEFT, m -> {
+            setCurrentRoom(null);
+            appendChat("Du hast den Raum verlassen.");
+            members.reset();
+            chatHistory.clear();
+            clearUsers();
+        });
 
-            // Warnung vom Admin
-            if (message.startsWith("WARNING:")) {
-                JOptionPane.showMessageDialog(this,
-                        "WARNUNG VOM SERVER:\n\n" + message.substring(8),
-                        "Warnung", JOptionPane.WARNING_MESSAGE);
-                return;
-            }
+        // Raum gelöscht
+        messageHandlers.put(Command.ROOM_DELETED, m ->
+                appendChat("Raum '" + m.getField(0) + "' wurde gelöscht."));
 
-            // ============================================================
-            // DATEI-ANTWORTEN
-            // ============================================================
+        // Fehler
+        messageHandlers.put(Command.ERROR, m ->
+                JOptionPane.showMessageDialog(this, m.getField(0),
+                        "Fehler", JOptionPane.ERROR_MESSAGE));
 
-            // Upload fehlgeschlagen
-            if (message.startsWith("UPLOAD_ERROR:")) {
+        // Warnung vom Admin
+        messageHandlers.put(Command.WARNING, m ->
                 JOptionPane.showMessageDialog(this,
-                        "Upload fehlgeschlagen:\n" + message.substring(13),
-                        "Fehler", JOptionPane.ERROR_MESSAGE);
-                return;
+                        "WARNUNG VOM SERVER:\n\n" + m.getField(0),
+                        "Warnung", JOptionPane.WARNING_MESSAGE));
+
+        // ============================================================
+        // DATEI-ANTWORTEN
+        // ============================================================
+
+        // Upload fehlgeschlagen
+        messageHandlers.put(Command.UPLOAD_ERROR, m -> {
+            pendingUploads.poll();
+            JOptionPane.showMessageDialog(this,
+                    "Upload fehlgeschlagen:\n" + m.getField(0),
+                    "Fehler", JOptionPane.ERROR_MESSAGE);
+        });
+
+        // Server wartet auf die Datei-Bytes
+        messageHandlers.put(Command.READY_FOR_UPLOAD, m -> {
+            File file = pendingUploads.poll();
+            if (file != null) {
+                new Thread(() -> sendUploadData(file, 0)).start();
             }
+        });
 
-            // Upload erfolgreich
-            if (message.startsWith("UPLOAD_SUCCESS:")) {
-                appendChat("Datei '" + message.substring(15) + "' hochgeladen.");
-                return;
+        // Server hat schon einen Teil der Datei (abgebrochener Upload) - nur den Rest senden
+        messageHandlers.put(Command.UPLOAD_RESUME, m -> {
+            File file = pendingUploads.poll();
+            long offset = Math.max(parseNumber(m.getField(1)), 0);
+            if (file != null) {
+                appendChat("Setze Upload von '" + file.getName() + "' bei " + offset + " Bytes fort...");
+                new Thread(() -> sendUploadData(file, offset)).start();
             }
+        });
 
-            // Dateiliste empfangen
-            if (message.startsWith("FILE_LIST:")) {
-                showFileListDialog(message.substring(10));
-                return;
+        // v3: Upload in Stücken mit Transfer-ID ("UPLOAD_BEGIN:id:name:schon vorhanden")
+        messageHandlers.put(Command.UPLOAD_BEGIN, m -> {
+            File file = pendingUploads.poll();
+            String transferId = m.getField(0);
+            long offset = Math.max(parseNumber(m.getField(2)), 0);
+            if (file != null && offset > 0 && offset >= file.length()) {
+                // Inhalt liegt schon auf dem Server - UPLOAD_SUCCESS kommt gleich
+                appendChat("'" + file.getName() + "' ist schon auf dem Server, nichts zu übertragen.");
+            } else if (file != null) {
+                activeUploads.put(transferId, file);
+                appendChat(offset > 0
+                        ? "Setze Upload von '" + file.getName() + "' bei " + offset + " Bytes fort..."
+                        : "Lade '" + file.getName() + "' hoch...");
+                new Thread(() -> sendUploadChunks(file, transferId, offset)).start();
             }
+        });
 
-            // Download fehlgeschlagen
-            if (message.startsWith("DOWNLOAD_ERROR:")) {
+        // v3: Ein Transfer ist fehlgeschlagen (nur dieser, die Verbindung bleibt)
+        messageHandlers.put(Command.TRANSFER_ERROR, m -> {
+            String transferId = m.getField(0);
+            File upload = activeUploads.remove(transferId);
+            FileReceiver download = downloads.remove(transferId);
+            if (download != null) {
+                download.abort();
+            }
+            String what = upload != null ? "Upload von '" + upload.getName() + "'"
+                    : download != null ? "Download von '" + download.getFileName() + "'"
+                    : "Übertragung";
+            JOptionPane.showMessageDialog(this,
+                    what + " fehlgeschlagen:\n" + m.getField(1),
+                    "Fehler", JOptionPane.ERROR_MESSAGE);
+        });
+
+        // Upload erfolgreich
+        messageHandlers.put(Command.UPLOAD_SUCCESS, m ->
+                appendChat("Datei '" + m.getField(0) + "' hochgeladen."));
+
+        // Dateiliste empfangen
+        putListHandler(Command.FILE_LIST, files -> showFileListDialog(files, files));
+
+        // v3: Dateiliste mit Größe und Upload-Zeit ("name/größe/zeit")
+        putListHandler(Command.FILE_INFO_LIST, this::showFileInfoList);
+
+        // Download fehlgeschlagen
+        messageHandlers.put(Command.DOWNLOAD_ERROR, m ->
                 JOptionPane.showMessageDialog(this,
-                        "Download fehlgeschlagen:\n" + message.substring(15),
-                        "Fehler", JOptionPane.ERROR_MESSAGE);
-                return;
+                        "Download fehlgeschlagen:\n" + m.getField(0),
+                        "Fehler", JOptionPane.ERROR_MESSAGE));
+
+        // FILE_DATA wird im Listener-Thread behandelt (siehe startMessageListener)
+        // weil die Binärdaten sofort gelesen werden müssen
+    }
+
+
+    /**
+     * Registriert einen Listen-Befehl samt seinen Teilen.
+     * Lange Listen kommen als *_PART-Nachrichten und zuletzt als eigentlicher
+     * Befehl - angezeigt wird erst die vollständige Liste.
+     */
+    private void putListHandler(Command command, Consumer<List<String>> handler) {
+        messageHandlers.put(command.getPartCommand(), m ->
+                listParts.computeIfAbsent(command, c -> new ArrayList<>()).addAll(m.getFields()));
+
+        messageHandlers.put(command, m -> {
+            List<String> entries = listParts.remove(command);
+            if (entries == null) {
+                handler.accept(m.getFields());
+            } else {
+                entries.addAll(m.getFields());
+                handler.accept(entries);
             }
+        });
+    }
 
-            // FILE_DATA wird im Listener-Thread behandelt (siehe startMessageListener)
-            // weil die Binärdaten sofort gelesen werden müssen
 
-            // Normale Chat-Nachricht
-            appendChat(message);
+    /**
+     * Verarbeitet eine Nachricht vom Server.
+     */
+    private void handleServerMessage(Message message) {
+        SwingUtilities.invokeLater(() -> {
+            Consumer<Message> handler = messageHandlers.get(message.getCommand());
+            if (handler != null) {
+                handler.accept(message);
+            } else {
+                // Normale Chat-Nachricht
+                appendChat(message.toString());
+            }
         });
     }
 
 
-    private void updateRoomList(String roomData) {
+    private void updateRoomList(List<String> rooms) {
         roomListModel.clear();
-        if (!roomData.isEmpty()) {
-            for (String room : roomData.split(",")) {
-                if (!room.trim().isEmpty()) {
-                    roomListModel.addElement(room.trim());
-                }
+        for (String room : rooms) {
+            if (!room.trim().isEmpty()) {
+                roomListModel.addElement(room.trim());
             }
         }
     }
 
 
-    private void updateUserList(String userData) {
+    /**
+     * Ab v5 wird die Raumliste seitenweise geholt (RoomDirectory), sonst ganz (rooms).
+     */
+    private boolean usesRoomDirectory() {
+        return connection != null && connection.getProtocolVersion() >= Protocol.VERSION_5;
+    }
+
+
+    private void applyRoomChange(Message message, boolean added) {
+        long version = Long.parseLong(message.getField(0));
+        if (usesRoomDirectory()) {
+            roomDirectory.applyDelta(version, added, message.getField(1));
+        } else {
+            rooms.applyDelta(version, added, message.getField(1));
+        }
+    }
+
+
+    /**
+     * Lädt die Raumliste ab der ersten Seite neu (mit dem aktuellen Filter).
+     */
+    private void reloadRooms() {
+        if (usesRoomDirectory()) {
+            roomDirectory.reload(roomFilterField.getText().trim());
+        }
+    }
+
+
+    /**
+     * Lädt die nächste Seite, wenn weniger als eine halbe Höhe bis zum Ende fehlt.
+     */
+    private void loadRoomsIfNearEnd() {
+        if (!usesRoomDirectory()) {
+            return;
+        }
+        BoundedRangeModel scroll = roomScrollPane.getVerticalScrollBar().getModel();
+        if (scroll.getValue() + scroll.getExtent() * 3 / 2 >= scroll.getMaximum()) {
+            roomDirectory.loadMore();
+        }
+    }
+
+
+    private void requestRoomPage(String prefix, String after) {
+        if (!connected) {
+            return;
+        }
+        try {
+            connection.send(Command.LIST_ROOMS, String.valueOf(ROOM_PAGE_SIZE), prefix, after);
+        } catch (IOException e) {
+            appendChat("Fehler: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Fügt eine Seite der Historie oben ein. Die Historie beim Betreten zeigt
+     * das Ende des Chats, bei älteren Seiten bleibt die Ansicht, wo sie war
+     * (um die Höhe der neuen Zeilen verschoben).
+     */
+    private void applyHistoryPage(long before, boolean more, List<String> entries) {
+        JScrollBar scroll = chatScrollPane.getVerticalScrollBar();
+        int value = scroll.getValue();
+        int maximum = scroll.getMaximum();
+
+        if (before == 0) {
+            // Ab hier zählen die Nummern der ROOM_MESSAGEs weiter
+            messages.start(lastSeqOf(entries));
+        }
+        if (!chatHistory.applyPage(before, more, entries)) {
+            return;
+        }
+        if (before == 0) {
+            chatTextArea.setCaretPosition(chatTextArea.getDocument().getLength());
+        } else {
+            // Erst nach dem Layout ist die neue Höhe bekannt
+            SwingUtilities.invokeLater(() -> scroll.setValue(value + scroll.getMaximum() - maximum));
+        }
+        // Füllt die Seite die Anzeige nicht, gleich weiterladen
+        SwingUtilities.invokeLater(this::loadHistoryIfNearTop);
+    }
+
+
+    private static long lastSeqOf(List<String> entries) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        String last = entries.get(entries.size() - 1);
+        int slash = last.indexOf('/');
+        return slash > 0 ? Math.max(parseNumber(last.substring(0, slash)), 0) : 0;
+    }
+
+
+    /**
+     * Lädt ältere Nachrichten, wenn weniger als eine halbe Höhe bis zum Anfang fehlt.
+     */
+    private void loadHistoryIfNearTop() {
+        if (currentRoom == null || connection == null
+                || connection.getProtocolVersion() < Protocol.VERSION_6) {
+            return;
+        }
+        BoundedRangeModel scroll = chatScrollPane.getVerticalScrollBar().getModel();
+        if (scroll.getValue() <= scroll.getExtent() / 2) {
+            chatHistory.loadMore();
+        }
+    }
+
+
+    private void requestHistoryPage(long before) {
+        if (!connected) {
+            return;
+        }
+        try {
+            connection.send(Command.HISTORY_BEFORE, String.valueOf(before), String.valueOf(HISTORY_PAGE_SIZE));
+        } catch (IOException e) {
+            appendChat("Fehler: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Fordert eine ganze Liste an (GET_ROOMS/GET_USERS), wenn bei den
+     * Änderungen eine Version fehlt.
+     */
+    private void requestList(Command command) {
+        if (!connected) {
+            return;
+        }
+        try {
+            connection.send(command);
+        } catch (IOException e) {
+            appendChat("Fehler: " + e.getMessage());
+        }
+    }
+
+
+    private void updateUserList(List<String> users) {
         userListModel.clear();
-        if (!userData.isEmpty()) {
-            for (String user : userData.split(",")) {
-                if (!user.trim().isEmpty()) {
-                    userListModel.addElement(user.trim());
-                }
+        for (String user : users) {
+            if (!user.trim().isEmpty()) {
+                userListModel.addElement(user.trim());
             }
         }
     }
@@ -460,9 +980,11 @@ public class ClientGUI extends JFrame {
         if (message.isEmpty()) return;
 
         try {
-            output.writeUTF(message);
-            output.flush();
-            appendChat("[" + username + "] " + message);
+            connection.send(Command.CHAT, message);
+            // Ab v7 kommt die eigene Nachricht mit Nummer zurück
+            if (connection.getProtocolVersion() < Protocol.VERSION_7) {
+                appendChat("[" + username + "] " + message);
+            }
             messageField.setText("");
         } catch (IOException e) {
             appendChat("Fehler beim Senden: " + e.getMessage());
@@ -472,12 +994,8 @@ public class ClientGUI extends JFrame {
 
     private void disconnect() {
         connected = false;
-        try {
-            if (input != null) input.close();
-            if (output != null) output.close();
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            // Ignorieren
+        if (connection != null) {
+            connection.close();
         }
     }
 
@@ -493,8 +1011,7 @@ public class ClientGUI extends JFrame {
 
         if (roomName != null && !roomName.trim().isEmpty()) {
             try {
-                output.writeUTF("CREATE_ROOM:" + roomName.trim());
-                output.flush();
+                connection.send(Command.CREATE_ROOM, roomName.trim());
             } catch (IOException e) {
                 appendChat("Fehler: " + e.getMessage());
             }
@@ -518,8 +1035,7 @@ public class ClientGUI extends JFrame {
         }
 
         try {
-            output.writeUTF("JOIN_ROOM:" + selectedRoom);
-            output.flush();
+            connection.send(Command.JOIN_ROOM, selectedRoom);
         } catch (IOException e) {
             appendChat("Fehler: " + e.getMessage());
         }
@@ -542,30 +1058,100 @@ public class ClientGUI extends JFrame {
         }
 
         try {
-            output.writeUTF("LEAVE_ROOM");
-            output.flush();
+            connection.send(Command.LEAVE_ROOM);
+        } catch (IOException e) {
+            appendChat("Fehler: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Durchsucht den Verlauf des aktuellen Raums (oder des ausgewählten, ab v9).
+     */
+    private void handleSearch() {
+        String roomName = currentRoom != null ? currentRoom : roomList.getSelectedValue();
+        if (roomName == null) {
+            JOptionPane.showMessageDialog(this, "Bitte betritt einen Raum oder wähle einen aus.",
+                    "Hinweis", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (connection.getProtocolVersion() < Protocol.VERSION_9) {
+            JOptionPane.showMessageDialog(this, "Der Server unterstützt keine Suche.",
+                    "Hinweis", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        String query = JOptionPane.showInputDialog(this, "Suchwörter:", "Suchen in: " + roomName,
+                JOptionPane.QUESTION_MESSAGE);
+        if (query == null || query.trim().isEmpty()) {
+            return;
+        }
+
+        try {
+            connection.send(Command.SEARCH, roomName, query.trim());
         } catch (IOException e) {
             appendChat("Fehler: " + e.getMessage());
         }
     }
 
 
+    private void showSearchResult(String roomName, String query, List<String> entries) {
+        DefaultListModel<String> listModel = new DefaultListModel<>();
+        for (String entry : entries) {
+            int slash = entry.indexOf('/');
+            if (slash > 0) {
+                listModel.addElement(entry.substring(slash + 1));
+            }
+        }
+        if (listModel.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Keine Treffer für '" + query + "'.",
+                    "Suchen in: " + roomName, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        JDialog dialog = new JDialog(this, "Suchen in: " + roomName, true);
+        dialog.setSize(500, 350);
+        dialog.setLocationRelativeTo(this);
+
+        JButton closeBtn = new JButton("Schließen");
+        closeBtn.addActionListener(e -> dialog.dispose());
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(closeBtn);
+
+        dialog.setLayout(new BorderLayout(5, 5));
+        dialog.add(new JLabel("  " + listModel.size() + " Treffer für '" + query + "' (neueste zuerst):"),
+                BorderLayout.NORTH);
+        dialog.add(new JScrollPane(new JList<>(listModel)), BorderLayout.CENTER);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+
+        dialog.setVisible(true);
+    }
+
+
     // ========================================================================
     // DATEI-FUNKTIONEN (Meilenstein 3)
     // ========================================================================
     //
     // So funktioniert der Upload:
     // 1. Benutzer wählt Datei aus (JFileChooser)
-    // 2. Wir schicken "UPLOAD_FILE:dateiname" an Server
-    // 3. Server antwortet "READY_FOR_UPLOAD"
-    // 4. Wir schicken: Dateigröße (4 Bytes) + alle Datei-Bytes
+    // 2. Wir schicken "UPLOAD_FILE:dateiname:größe" an Server
+    // 3. Server antwortet "READY_FOR_UPLOAD" (oder "UPLOAD_ERROR", z.B. zu groß)
+    //    oder "UPLOAD_RESUME:dateiname:bytes", wenn er von einem abgebrochenen
+    //    Versuch schon so viele Bytes hat
+    // 4. Wir schicken: Anzahl (4 Bytes) + die (restlichen) Datei-Bytes (stückweise)
     // 5. Server speichert und antwortet "UPLOAD_SUCCESS"
     //
+    // Ab v3 schicken wir den SHA-256 der Datei mit ("UPLOAD_FILE:name:größe:hash").
+    // Kennt der Server den Inhalt schon, meldet UPLOAD_BEGIN die ganze Datei
+    // als vorhanden und es wird nichts übertragen.
+    //
     // So funktioniert der Download:
     // 1. Wir schicken "DOWNLOAD_FILE:dateiname" an Server
-    // 2. Server antwortet "FILE_DATA:dateiname"
-    // 3. Server schickt: Dateigröße (4 Bytes) + alle Datei-Bytes
-    // 4. Wir zeigen Speichern-Dialog und schreiben die Bytes in eine Datei
+    //    (liegt schon ein Teil vom letzten Versuch da: "DOWNLOAD_FILE:dateiname:start")
+    // 2. Server antwortet "FILE_DATA:dateiname" (bzw. "FILE_RANGE:dateiname:start:gesamt")
+    // 3. Server schickt: Anzahl (4 Bytes) + die Datei-Bytes
+    // 4. Wir schreiben sie stückweise in eine Teil-Datei, zeigen den
+    //    Speichern-Dialog und verschieben sie an den gewählten Ort
     // ========================================================================
 
 
@@ -611,34 +1197,109 @@ public class ClientGUI extends JFrame {
      * Lädt eine Datei auf den Server.
      *
      * Ablauf:
-     * 1. Datei in byte-Array einlesen
-     * 2. "UPLOAD_FILE:name" senden
-     * 3. Kurz warten (Server bereitet sich vor)
-     * 4. Größe als int senden (4 Bytes)
-     * 5. Alle Datei-Bytes senden
+     * 1. "UPLOAD_FILE:name:größe" senden (ältere Server: nur "UPLOAD_FILE:name")
+     * 2. Auf "READY_FOR_UPLOAD" oder "UPLOAD_RESUME" warten (siehe initMessageHandlers)
+     * 3. Dann sendet sendUploadData() Größe und Bytes
      */
     private void uploadFile(File file) {
+        // Vor v3 blockieren die Datei-Bytes die Verbindung - nur ein Upload gleichzeitig
+        int version = connection.getProtocolVersion();
+        if (version < Protocol.VERSION_3 && !pendingUploads.isEmpty()) {
+            SwingUtilities.invokeLater(() -> appendChat("Es läuft bereits ein Upload."));
+            return;
+        }
+
+        // synchronized: Anfragen in derselben Reihenfolge einreihen und senden
+        // v3: Hash vorab berechnen - kennt der Server den Inhalt, ist der Upload sofort fertig
+        String hash = null;
+        if (version >= Protocol.VERSION_3) {
+            try {
+                hash = sha256(file);
+            } catch (IOException e) {
+                showUploadError(e);
+                return;
+            }
+        }
+
+        synchronized (pendingUploads) {
+            try {
+                pendingUploads.add(file);
+
+                // Die Größe gleich mitschicken: zu große Dateien lehnt der Server sofort ab
+                if (hash != null) {
+                    connection.send(Command.UPLOAD_FILE, file.getName(), String.valueOf(file.length()), hash);
+                } else if (version >= Protocol.VERSION_2) {
+                    connection.send(Command.UPLOAD_FILE, file.getName(), String.valueOf(file.length()));
+                } else {
+                    connection.send(Command.UPLOAD_FILE, file.getName());
+                }
+            } catch (IOException e) {
+                pendingUploads.remove(file);
+                showUploadError(e);
+            }
+        }
+    }
+
+
+    /**
+     * Berechnet den SHA-256 einer Datei (hex, wie der Server ihn speichert).
+     */
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
         try {
-            // Datei komplett einlesen
-            byte[] fileData = new byte[(int) file.length()];
-            try (FileInputStream fis = new FileInputStream(file)) {
-                fis.read(fileData);
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] chunk = new byte[FILE_CHUNK_SIZE];
+            int count;
+            while ((count = fis.read(chunk)) > 0) {
+                digest.update(chunk, 0, count);
             }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+
+    private void showUploadError(IOException e) {
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(this,
+                    "Fehler beim Hochladen: " + e.getMessage(),
+                    "Fehler", JOptionPane.ERROR_MESSAGE);
+        });
+    }
+
+
+    /**
+     * Sendet Größe (4 Bytes) und Datei-Bytes, nachdem der Server bereit ist.
+     * Die Datei wird stückweise gelesen und geschrieben, nie komplett eingelesen.
+     *
+     * @param offset So viele Bytes hat der Server schon (werden übersprungen, nicht gelesen)
+     */
+    private void sendUploadData(File file, long offset) {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            long start = Math.min(offset, file.length());
+            fis.getChannel().position(start);
 
             // synchronized: Nur ein Thread darf gleichzeitig senden
+            DataOutputStream output = connection.getOutput();
             synchronized (output) {
-                // Befehl senden
-                output.writeUTF("UPLOAD_FILE:" + file.getName());
-                output.flush();
+                long remaining = file.length() - start;
 
-                // Kurz warten bis Server bereit ist
-                Thread.sleep(100);
-
-                // Dateigröße senden (writeInt = 4 Bytes)
-                output.writeInt(fileData.length);
+                // Anzahl der folgenden Bytes senden (writeInt = 4 Bytes)
+                output.writeInt((int) remaining);
 
                 // Datei-Bytes senden
-                output.write(fileData);
+                byte[] chunk = new byte[FILE_CHUNK_SIZE];
+                while (remaining > 0) {
+                    int count = fis.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (count < 0) {
+                        throw new EOFException("Datei wurde beim Hochladen verändert");
+                    }
+                    output.write(chunk, 0, count);
+                    remaining -= count;
+                }
                 output.flush();
             }
 
@@ -646,12 +1307,40 @@ public class ClientGUI extends JFrame {
                 appendChat("Lade '" + file.getName() + "' hoch...");
             });
 
-        } catch (IOException | InterruptedException e) {
-            SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(this,
-                        "Fehler beim Hochladen: " + e.getMessage(),
-                        "Fehler", JOptionPane.ERROR_MESSAGE);
-            });
+        } catch (IOException e) {
+            showUploadError(e);
+        }
+    }
+
+
+    /**
+     * Sendet die Datei in Stücken mit Transfer-ID (v3).
+     *
+     * Jedes Stück ist eine eigene Nachricht - eigene Chat-Nachrichten und
+     * andere Uploads kommen dazwischen dran, statt auf die ganze Datei zu warten.
+     * Meldet der Server einen Fehler (TRANSFER_ERROR), hört der Upload auf.
+     *
+     * @param offset So viele Bytes hat der Server schon (werden übersprungen, nicht gelesen)
+     */
+    private void sendUploadChunks(File file, String transferId, long offset) {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            long remaining = file.length() - Math.min(offset, file.length());
+            fis.getChannel().position(file.length() - remaining);
+
+            byte[] chunk = new byte[TRANSFER_CHUNK_SIZE];
+            while (remaining > 0 && activeUploads.containsKey(transferId)) {
+                int count = fis.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (count < 0) {
+                    throw new EOFException("Datei wurde beim Hochladen verändert");
+                }
+                connection.sendChunk(Command.UPLOAD_CHUNK, transferId, chunk, count);
+                remaining -= count;
+            }
+
+        } catch (IOException e) {
+            showUploadError(e);
+        } finally {
+            activeUploads.remove(transferId);
         }
     }
 
@@ -667,36 +1356,70 @@ public class ClientGUI extends JFrame {
         }
 
         try {
-            output.writeUTF("LIST_FILES");
-            output.flush();
+            connection.send(Command.LIST_FILES);
         } catch (IOException e) {
             appendChat("Fehler: " + e.getMessage());
         }
     }
 
 
+    /**
+     * Zeigt eine Dateiliste mit Größe und Zeit an (v3).
+     */
+    private void showFileInfoList(List<String> entries) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm");
+        List<String> names = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        for (String entry : entries) {
+            String[] parts = entry.split("/");
+            if (parts.length != 3) {
+                continue;
+            }
+            long size = Math.max(parseNumber(parts[1]), 0);
+            long modified = Math.max(parseNumber(parts[2]), 0);
+            names.add(parts[0]);
+            labels.add(parts[0] + "  (" + formatSize(size) + ", " + dateFormat.format(new Date(modified)) + ")");
+        }
+        showFileListDialog(names, labels);
+    }
+
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / 1024.0 / 1024.0);
+    }
+
+
     /**
      * Zeigt die Dateiliste in einem Dialog an.
+     *
+     * @param files Dateinamen (für den Download)
+     * @param labels Anzeige pro Datei (gleiche Reihenfolge)
      */
-    private void showFileListDialog(String fileData) {
-        if (fileData.isEmpty()) {
+    private void showFileListDialog(List<String> files, List<String> labels) {
+        if (files.isEmpty()) {
             JOptionPane.showMessageDialog(this, "Keine Dateien im Raum.",
                     "Dateien", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
 
-        String[] files = fileData.split(",");
-
         // Dialog bauen
         JDialog dialog = new JDialog(this, "Dateien in: " + currentRoom, true);
-        dialog.setSize(350, 300);
+        dialog.setSize(450, 300);
         dialog.setLocationRelativeTo(this);
 
         // Liste
         DefaultListModel<String> listModel = new DefaultListModel<>();
-        for (String file : files) {
-            if (!file.trim().isEmpty()) {
-                listModel.addElement(file.trim());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (!files.get(i).trim().isEmpty()) {
+                names.add(files.get(i).trim());
+                listModel.addElement(labels.get(i).trim());
             }
         }
         JList<String> fileList = new JList<>(listModel);
@@ -705,10 +1428,10 @@ public class ClientGUI extends JFrame {
         // Download-Button
         JButton downloadBtn = new JButton("Herunterladen");
         downloadBtn.addActionListener(e -> {
-            String selected = fileList.getSelectedValue();
-            if (selected != null) {
+            int selected = fileList.getSelectedIndex();
+            if (selected >= 0) {
                 dialog.dispose();
-                downloadFileFromServer(selected);
+                downloadFileFromServer(names.get(selected));
             }
         });
 
@@ -752,18 +1475,52 @@ public class ClientGUI extends JFrame {
 
     /**
      * Fordert eine Datei vom Server an.
+     * Liegt noch ein Teil vom letzten (abgebrochenen) Versuch da, wird nur
+     * der Rest angefordert - ältere Server (v1) bekommen die normale Anfrage.
      */
     private void downloadFileFromServer(String fileName) {
         try {
-            output.writeUTF("DOWNLOAD_FILE:" + fileName);
-            output.flush();
-            appendChat("Lade '" + fileName + "' herunter...");
+            File partial = partialDownloadFile(currentRoom, fileName);
+            pendingDownloads.put(fileName, partial);
+
+            long held = partial.length();
+            if (held > 0 && connection.getProtocolVersion() >= Protocol.VERSION_2) {
+                connection.send(Command.DOWNLOAD_FILE, fileName, String.valueOf(held));
+                appendChat("Setze Download von '" + fileName + "' bei " + held + " Bytes fort...");
+            } else {
+                connection.send(Command.DOWNLOAD_FILE, fileName);
+                appendChat("Lade '" + fileName + "' herunter...");
+            }
         } catch (IOException e) {
             appendChat("Fehler: " + e.getMessage());
         }
     }
 
 
+    /**
+     * Teil-Datei für einen Download (gleicher Raum und Name = gleiche Datei).
+     */
+    private static File partialDownloadFile(String roomName, String fileName) {
+        String key = SERVER_HOST + ":" + SERVER_PORT + "\0" + roomName + "\0" + fileName;
+        UUID id = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+        return new File(PARTIAL_DOWNLOAD_DIR, id + ".part");
+    }
+
+
+    /**
+     * Liest eine Zahl aus einem Nachrichtenfeld.
+     *
+     * @return Die Zahl oder -1 wenn das Feld keine Zahl ist
+     */
+    private static long parseNumber(String field) {
+        try {
+            return Long.parseLong(field.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
     /**
      * Empfängt die Datei-Bytes vom Server und speichert sie.
      *
@@ -773,53 +1530,139 @@ public class ClientGUI extends JFrame {
      * die Binärdaten als nächste UTF-Nachricht - und das geht schief.
      *
      * Ablauf:
-     * 1. readInt() liest die Dateigröße (4 Bytes)
-     * 2. readFully() liest genau so viele Bytes
+     * 1. readInt() liest die Anzahl der Bytes (4 Bytes)
+     * 2. Die Bytes werden stückweise ab "start" in die Teil-Datei geschrieben -
+     *    bricht die Verbindung ab, bleibt sie für den nächsten Versuch liegen
      * 3. Speichern-Dialog zeigen (auf dem Swing-Thread)
-     * 4. Bytes in Datei schreiben
+     * 4. Teil-Datei an den gewählten Ort verschieben
+     *
+     * @param start Position der ersten Bytes in der Datei (0 bei FILE_DATA)
+     * @param total Größe der ganzen Datei (-1 bei FILE_DATA: so viele wie gesendet)
      */
-    private void receiveFileDataNow(String fileName) {
+    private void receiveFileDataNow(String fileName, long start, long total) {
         try {
             // Größe lesen (4 Bytes) - direkt im Listener-Thread!
-            int fileSize = input.readInt();
+            DataInputStream input = connection.getInput();
+            int count = input.readInt();
 
-            // Alle Bytes lesen - readFully wartet bis alles da ist
-            byte[] fileData = new byte[fileSize];
-            input.readFully(fileData);
+            FileReceiver receiver = FileReceiver.open(fileName, takePartialDownload(fileName),
+                    Math.max(start, 0), count, total < 0 ? count : total);
+            try {
+                byte[] chunk = new byte[FILE_CHUNK_SIZE];
+                while (!receiver.isComplete()) {
+                    int read = input.read(chunk, 0, (int) Math.min(chunk.length, receiver.getRemaining()));
+                    if (read < 0) {
+                        throw new EOFException("Verbindung während des Downloads abgebrochen");
+                    }
+                    receiver.write(chunk, 0, read);
+                }
+            } catch (IOException e) {
+                receiver.abort();
+                throw e;
+            }
 
             // Jetzt sind alle Daten gelesen, der Stream ist wieder "sauber"
             // Ab hier können wir auf den Swing-Thread wechseln für den Dialog
-            SwingUtilities.invokeLater(() -> {
-                JFileChooser fileChooser = new JFileChooser();
-                fileChooser.setDialogTitle("Datei speichern");
-                fileChooser.setSelectedFile(new File(fileName));
-
-                int result = fileChooser.showSaveDialog(this);
-                if (result == JFileChooser.APPROVE_OPTION) {
-                    File targetFile = fileChooser.getSelectedFile();
-                    try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-                        fos.write(fileData);
-                        appendChat("Gespeichert: " + targetFile.getAbsolutePath());
-                    } catch (IOException e) {
-                        JOptionPane.showMessageDialog(this,
-                                "Fehler beim Speichern: " + e.getMessage(),
-                                "Fehler", JOptionPane.ERROR_MESSAGE);
-                    }
-                } else {
-                    appendChat("Download abgebrochen.");
-                }
-            });
+            offerSave(fileName, receiver.finish());
 
         } catch (Exception e) {
-            SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(this,
-                        "Fehler beim Empfangen: " + e.getMessage(),
-                        "Fehler", JOptionPane.ERROR_MESSAGE);
-            });
+            showReceiveError(e);
+        }
+    }
+
+
+    /**
+     * Beginnt einen Download in Stücken (v3, "FILE_BEGIN:id:name:start:länge:gesamt").
+     * Die Stücke kommen zwischen anderen Nachrichten - der Listener bleibt frei.
+     */
+    private void beginDownload(Message message) {
+        String transferId = message.getField(0);
+        String fileName = message.getField(1);
+        FileReceiver receiver = FileReceiver.open(fileName, takePartialDownload(fileName),
+                Math.max(parseNumber(message.getField(2)), 0),
+                parseNumber(message.getField(3)), parseNumber(message.getField(4)));
+
+        downloads.put(transferId, receiver);
+        if (receiver.isComplete()) {
+            completeDownload(transferId, receiver);
         }
     }
 
 
+    /**
+     * Schreibt ein Stück eines Downloads (v3) in die Teil-Datei.
+     */
+    private void receiveDownloadChunk(Message message) {
+        String transferId = message.getField(0);
+        FileReceiver receiver = downloads.get(transferId);
+        if (receiver == null) {
+            return;
+        }
+        byte[] data = message.getData();
+        receiver.write(data, 0, data.length);
+        if (receiver.isComplete()) {
+            completeDownload(transferId, receiver);
+        }
+    }
+
+
+    private void completeDownload(String transferId, FileReceiver receiver) {
+        downloads.remove(transferId);
+        try {
+            offerSave(receiver.getFileName(), receiver.finish());
+        } catch (IOException e) {
+            showReceiveError(e);
+        }
+    }
+
+
+    /**
+     * Gibt die Teil-Datei für einen angeforderten Download zurück.
+     */
+    private File takePartialDownload(String fileName) {
+        File partial = pendingDownloads.remove(fileName);
+        return partial != null ? partial : partialDownloadFile(currentRoom, fileName);
+    }
+
+
+    /**
+     * Zeigt den Speichern-Dialog und verschiebt die fertige Teil-Datei dorthin.
+     */
+    private void offerSave(String fileName, File received) {
+        SwingUtilities.invokeLater(() -> {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Datei speichern");
+            fileChooser.setSelectedFile(new File(fileName));
+
+            int result = fileChooser.showSaveDialog(this);
+            if (result == JFileChooser.APPROVE_OPTION) {
+                File targetFile = fileChooser.getSelectedFile();
+                try {
+                    Files.move(received.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    appendChat("Gespeichert: " + targetFile.getAbsolutePath());
+                } catch (IOException e) {
+                    received.delete();
+                    JOptionPane.showMessageDialog(this,
+                            "Fehler beim Speichern: " + e.getMessage(),
+                            "Fehler", JOptionPane.ERROR_MESSAGE);
+                }
+            } else {
+                received.delete();
+                appendChat("Download abgebrochen.");
+            }
+        });
+    }
+
+
+    private void showReceiveError(Exception e) {
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(this,
+                    "Fehler beim Empfangen: " + e.getMessage(),
+                    "Fehler", JOptionPane.ERROR_MESSAGE);
+        });
+    }
+
+
     // ========================================================================
     // HILFSMETHODEN
     // ========================================================================
@@ -0,0 +1,143 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Ein Download, der stückweise in eine Teil-Datei geschrieben wird.
+ *
+ * Die Bytes kommen am Stück hinter FILE_DATA/FILE_RANGE (v1/v2) oder in
+ * FILE_CHUNK-Nachrichten (v3). Bricht die Verbindung ab, bleibt die
+ * Teil-Datei liegen und beim nächsten Versuch wird nur der Rest angefordert.
+ *
+ * Klappt das Schreiben nicht (z.B. Platte voll), werden weitere Bytes nur
+ * noch gezählt - der Fehler kommt erst bei finish(), damit der Strom vom
+ * Server lesbar bleibt.
+ */
+final class FileReceiver {
+
+    private final String fileName;
+    private final File partial;
+    private final long total;
+    private FileChannel channel;
+    private long remaining;
+    private IOException writeError;
+
+
+    private FileReceiver(String fileName, File partial, long total, long length) {
+        this.fileName = fileName;
+        this.partial = partial;
+        this.total = total;
+        this.remaining = length;
+    }
+
+
+    /**
+     * Öffnet die Teil-Datei und schneidet sie bei "start" ab.
+     *
+     * @param fileName Name der Datei auf dem Server
+     * @param partial Die Teil-Datei
+     * @param start Position der ersten Bytes in der Datei
+     * @param length Anzahl der Bytes, die jetzt kommen
+     * @param total Größe der ganzen Datei
+     */
+    static FileReceiver open(String fileName, File partial, long start, long length, long total) {
+        FileReceiver receiver = new FileReceiver(fileName, partial, total, length);
+        try {
+            partial.getParentFile().mkdirs();
+            receiver.channel = FileChannel.open(partial.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            receiver.channel.truncate(start);
+            receiver.channel.position(start);
+        } catch (IOException e) {
+            receiver.fail(e);
+        }
+        return receiver;
+    }
+
+
+    /**
+     * Schreibt empfangene Bytes in die Teil-Datei.
+     */
+    void write(byte[] data, int offset, int length) {
+        remaining -= length;
+        if (writeError != null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+
+    /**
+     * Anzahl der Bytes, die noch kommen.
+     */
+    long getRemaining() {
+        return remaining;
+    }
+
+
+    boolean isComplete() {
+        return remaining <= 0;
+    }
+
+
+    String getFileName() {
+        return fileName;
+    }
+
+
+    /**
+     * Schließt die Teil-Datei und prüft sie.
+     *
+     * Passt die Größe nicht zur Datei auf dem Server, wurde sie zwischen zwei
+     * Versuchen ersetzt - die Teil-Datei wird gelöscht, beim nächsten Mal von vorne.
+     *
+     * @return Die fertige Teil-Datei
+     */
+    File finish() throws IOException {
+        close();
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (partial.length() != total) {
+            partial.delete();
+            throw new IOException("Datei wurde auf dem Server geändert, bitte erneut herunterladen");
+        }
+        return partial;
+    }
+
+
+    /**
+     * Bricht ab - die Teil-Datei bleibt für den nächsten Versuch.
+     */
+    void abort() {
+        close();
+    }
+
+
+    private void fail(IOException e) {
+        writeError = e;
+        close();
+    }
+
+
+    private void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Ignorieren
+        }
+    }
+}
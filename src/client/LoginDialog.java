@@ -1,9 +1,10 @@
 package client;
 
+import protocol.Command;
+import protocol.Message;
+
 import javax.swing.*;
 import java.awt.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
@@ -20,25 +21,23 @@ public class LoginDialog extends JDialog {
     private JLabel statusLabel;
 
     // ===== Netzwerk =====
-    private final DataInputStream input;
-    private final DataOutputStream output;
+    private final ServerConnection connection;
 
     // ===== Ergebnis =====
     private boolean loginSuccessful = false;
     private String username;
+    private String password;
 
 
     /**
      * Konstruktor - Erstellt den Login-Dialog.
      *
      * @param parent Das übergeordnete Fenster
-     * @param input Eingabestrom vom Server
-     * @param output Ausgabestrom zum Server
+     * @param connection Verbindung zum Server
      */
-    public LoginDialog(JFrame parent, DataInputStream input, DataOutputStream output) {
+    public LoginDialog(JFrame parent, ServerConnection connection) {
         super(parent, "Chat Anmeldung", true); // Modal
-        this.input = input;
-        this.output = output;
+        this.connection = connection;
 
         setSize(350, 200);
         setLocationRelativeTo(parent);
@@ -138,22 +137,22 @@ public class LoginDialog extends JDialog {
         new Thread(() -> {
             try {
                 // LOGIN-Befehl senden
-                output.writeUTF("LOGIN:" + user + ":" + pass);
-                output.flush();
+                connection.send(Command.LOGIN, user, pass);
 
                 // Antwort lesen
-                String response = input.readUTF();
-                String[] parts = response.split(":", 2);
+                Message response = connection.receive();
+                String text = response != null ? response.getField(0) : "";
 
                 SwingUtilities.invokeLater(() -> {
-                    if (parts[0].equals("SUCCESS")) {
+                    if (response != null && response.getCommand() == Command.SUCCESS) {
                         // Login erfolgreich
                         loginSuccessful = true;
                         username = user;
+                        password = pass;
                         dispose();
                     } else {
                         // Login fehlgeschlagen
-                        showStatus(parts.length > 1 ? parts[1] : "Login fehlgeschlagen", true);
+                        showStatus(!text.isEmpty() ? text : "Login fehlgeschlagen", true);
                         setButtonsEnabled(true);
                     }
                 });
@@ -195,21 +194,20 @@ public class LoginDialog extends JDialog {
         new Thread(() -> {
             try {
                 // REGISTER-Befehl senden
-                output.writeUTF("REGISTER:" + user + ":" + pass);
-                output.flush();
+                connection.send(Command.REGISTER, user, pass);
 
                 // Antwort lesen
-                String response = input.readUTF();
-                String[] parts = response.split(":", 2);
+                Message response = connection.receive();
+                String text = response != null ? response.getField(0) : "";
 
                 SwingUtilities.invokeLater(() -> {
-                    if (parts[0].equals("SUCCESS")) {
+                    if (response != null && response.getCommand() == Command.SUCCESS) {
                         // Registrierung erfolgreich
                         showStatus("Registrierung erfolgreich! Bitte anmelden.", false);
                         statusLabel.setForeground(new Color(0, 128, 0)); // Grün
                     } else {
                         // Registrierung fehlgeschlagen
-                        showStatus(parts.length > 1 ? parts[1] : "Registrierung fehlgeschlagen", true);
+                        showStatus(!text.isEmpty() ? text : "Registrierung fehlgeschlagen", true);
                     }
                     setButtonsEnabled(true);
                 });
@@ -262,4 +260,14 @@ public class LoginDialog extends JDialog {
     public String getUsername() {
         return username;
     }
+
+
+    /**
+     * Gibt das Passwort der erfolgreichen Anmeldung zurück (zum Wiederverbinden).
+     *
+     * @return Passwort oder null
+     */
+    public String getPassword() {
+        return password;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Bringt die Chat-Nachrichten des aktuellen Raums ab Protokoll v7 in die
+ * Reihenfolge ihrer Nummern.
+ *
+ * Direkt gesendete Nachrichten können sich mit der Historie beim Betreten
+ * (oder den nachgeholten nach RESUME) überschneiden und vor ihr ankommen;
+ * zwei gleichzeitige Nachrichten können vertauscht ankommen. Angezeigt wird
+ * deshalb immer nur die nächste Nummer - doppelte werden verworfen, zu
+ * frühe aufgehoben, bis die Lücke geschlossen ist.
+ *
+ * Die letzte angezeigte Nummer ist das, was der Client nach einem
+ * Verbindungsabbruch mit RESUME schickt.
+ *
+ * Nur im Event-Dispatch-Thread benutzen.
+ */
+final class MessageSequence {
+
+    // Bleibt eine Lücke so lange offen, wird sie übersprungen (die Nachricht kommt nicht mehr)
+    private static final int MAX_PENDING = 200;
+
+    private final Consumer<String> display;
+
+    // Nummer -> Nachricht, die noch nicht angezeigt werden kann
+    private final Map<Long, String> pending = new TreeMap<>();
+
+    // Letzte angezeigte Nummer (-1 = Anfang noch unbekannt)
+    private long lastSeq = -1;
+
+
+    /**
+     * @param display Zeigt eine Nachricht an (unten im Chat)
+     */
+    MessageSequence(Consumer<String> display) {
+        this.display = display;
+    }
+
+
+    /**
+     * Neuer Raum: Bis die Historie kommt, wird alles aufgehoben.
+     */
+    void reset() {
+        lastSeq = -1;
+        pending.clear();
+    }
+
+
+    /**
+     * Letzte angezeigte Nummer (-1 wenn noch keine bekannt ist).
+     */
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+
+    /**
+     * Die Historie beim Betreten ist angezeigt: Ab hier wird weitergezählt.
+     *
+     * @param seq Letzte Nummer der Historie (0 = der Raum hat noch keine)
+     */
+    void start(long seq) {
+        if (lastSeq >= 0) {
+            return;
+        }
+        lastSeq = seq;
+        drain();
+    }
+
+
+    /**
+     * Nach RESUME: Setzt die Zählung auf die nachgeholten Nachrichten.
+     *
+     * @param from Erste nachgeholte Nummer
+     * @param to Letzte Nummer im Raum
+     * @return Wie viele verpasste Nachrichten nicht mehr nachgeholt werden konnten
+     */
+    long resume(long from, long to) {
+        long skipped = 0;
+        if (lastSeq < 0 || to < lastSeq) {
+            // Unbekannt oder der Server hat eine neue Historie begonnen
+            // (was schon wartet, ist neuer als "bis" oder wird verworfen)
+            lastSeq = from - 1;
+        } else if (from > lastSeq + 1) {
+            skipped = from - lastSeq - 1;
+            lastSeq = from - 1;
+        }
+        drain();
+        return skipped;
+    }
+
+
+    /**
+     * Nimmt eine Nachricht an und zeigt alle an, die jetzt an der Reihe sind.
+     *
+     * @param seq Nummer (0 = ohne Nummer, wird sofort angezeigt)
+     */
+    void accept(long seq, String message) {
+        if (seq <= 0) {
+            display.accept(message);
+            return;
+        }
+        if (lastSeq >= 0 && seq <= lastSeq) {
+            return;
+        }
+        pending.put(seq, message);
+        drain();
+    }
+
+
+    private void drain() {
+        if (lastSeq < 0) {
+            return;
+        }
+
+        Iterator<Map.Entry<Long, String>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, String> next = iterator.next();
+            long seq = next.getKey();
+            if (seq <= lastSeq) {
+                iterator.remove();
+                continue;
+            }
+            if (seq != lastSeq + 1 && pending.size() <= MAX_PENDING) {
+                break;
+            }
+            iterator.remove();
+            lastSeq = seq;
+            display.accept(next.getValue());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.swing.DefaultListModel;
+
+/**
+ * Eine Liste (Räume oder Mitglieder), die ab Protokoll v4 aus Änderungen
+ * zusammengesetzt wird.
+ *
+ * Jede Änderung trägt eine fortlaufende Versionsnummer. Änderungen, die zu
+ * früh kommen, werden aufgehoben, bis die Lücke geschlossen ist. Fehlt eine
+ * Version, wird einmal die ganze Liste angefordert (requestSnapshot) - der
+ * Snapshot ersetzt dann alles bis zu seiner Version.
+ *
+ * Hinzufügen und Entfernen sind idempotent: Eine Änderung, die der Snapshot
+ * schon enthält, richtet keinen Schaden an.
+ *
+ * Nur im Event-Dispatch-Thread benutzen.
+ */
+final class PresenceList {
+
+    /**
+     * Eine aufgehobene Änderung.
+     */
+    private record Delta(boolean added, String name) {
+    }
+
+    private final DefaultListModel<String> model;
+    private final Runnable requestSnapshot;
+
+    // Version -> Änderung, die noch nicht angewendet werden kann
+    private final Map<Long, Delta> pending = new TreeMap<>();
+
+    // Version des angezeigten Stands (-1 = noch kein Snapshot)
+    private long version = -1;
+    private boolean snapshotRequested;
+
+
+    /**
+     * @param model Angezeigte Liste
+     * @param requestSnapshot Fordert die ganze Liste beim Server an
+     */
+    PresenceList(DefaultListModel<String> model, Runnable requestSnapshot) {
+        this.model = model;
+        this.requestSnapshot = requestSnapshot;
+    }
+
+
+    /**
+     * Ersetzt die Liste durch einen Snapshot und wendet danach aufgehobene
+     * neuere Änderungen an.
+     */
+    void applySnapshot(long snapshotVersion, List<String> names) {
+        if (snapshotVersion < version) {
+            // Veraltet - ein neuerer Stand ist schon angezeigt
+            return;
+        }
+
+        model.clear();
+        for (String name : names) {
+            if (!name.trim().isEmpty()) {
+                model.addElement(name.trim());
+            }
+        }
+        version = snapshotVersion;
+        snapshotRequested = false;
+        pending.keySet().removeIf(v -> v <= snapshotVersion);
+        drain();
+    }
+
+
+    /**
+     * Wendet eine Änderung an oder hebt sie auf, bis die Versionen davor da sind.
+     *
+     * @param deltaVersion Version nach der Änderung
+     * @param added true = hinzugekommen, false = weggefallen
+     */
+    void applyDelta(long deltaVersion, boolean added, String name) {
+        if (version >= 0 && deltaVersion <= version) {
+            return;
+        }
+        pending.put(deltaVersion, new Delta(added, name));
+        drain();
+    }
+
+
+    /**
+     * Vergisst den Stand (z.B. beim Raumwechsel). Die Liste selbst bleibt.
+     */
+    void reset() {
+        version = -1;
+        snapshotRequested = false;
+        pending.clear();
+    }
+
+
+    /**
+     * Wendet alle lückenlos anschließenden Änderungen an. Bleibt eine Lücke,
+     * wird (einmal) ein Snapshot angefordert.
+     */
+    private void drain() {
+        if (version < 0) {
+            // Der Snapshot kommt noch
+            return;
+        }
+
+        Delta next;
+        while ((next = pending.remove(version + 1)) != null) {
+            version++;
+            if (next.added()) {
+                if (!model.contains(next.name())) {
+                    model.addElement(next.name());
+                }
+            } else {
+                model.removeElement(next.name());
+            }
+        }
+
+        if (!pending.isEmpty() && !snapshotRequested) {
+            snapshotRequested = true;
+            requestSnapshot.run();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package client;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.swing.DefaultListModel;
+
+/**
+ * Die Raumliste ab Protokoll v5: seitenweise vom Server geholt (LIST_ROOMS),
+ * gefiltert nach Namensanfang, und erst weitergeladen, wenn der Nutzer ans
+ * Ende der Liste scrollt.
+ *
+ * Eine Seite beginnt hinter dem letzten geladenen Raum (nicht bei einer
+ * Position). Neue und gelöschte Räume (ROOM_ADDED/ROOM_REMOVED) werden nur
+ * im schon geladenen Bereich eingetragen - alles dahinter kommt mit der
+ * nächsten Seite. Kommen zwei Änderungen desselben Raums vertauscht an,
+ * gilt die mit der höheren Version.
+ *
+ * Nur im Event-Dispatch-Thread benutzen.
+ */
+final class RoomDirectory {
+
+    private final DefaultListModel<String> model;
+
+    // Fordert eine Seite an: (präfix, nach)
+    private final BiConsumer<String, String> requestPage;
+
+    // Mitglieder pro Raum (Stand der Seite bzw. 1 für neue Räume)
+    private final Map<String, Integer> memberCounts = new HashMap<>();
+
+    // Raumname -> Version der letzten angewendeten Änderung
+    private final Map<String, Long> versions = new HashMap<>();
+
+    private String prefix = "";
+    private boolean more;
+
+    // "nach" der laufenden Anfrage (null = keine Anfrage unterwegs)
+    private String pendingAfter;
+
+
+    /**
+     * @param model Angezeigte Liste (nur Raumnamen)
+     * @param requestPage Sendet LIST_ROOMS mit Präfix und "nach"
+     */
+    RoomDirectory(DefaultListModel<String> model, BiConsumer<String, String> requestPage) {
+        this.model = model;
+        this.requestPage = requestPage;
+    }
+
+
+    /**
+     * Leert die Liste und lädt die erste Seite (z.B. nach dem Login oder
+     * wenn sich der Filter ändert).
+     *
+     * @param prefix Nur Räume mit diesem Namensanfang (leer = alle)
+     */
+    void reload(String prefix) {
+        this.prefix = prefix;
+        model.clear();
+        memberCounts.clear();
+        versions.clear();
+        more = true;
+        pendingAfter = null;
+        loadMore();
+    }
+
+
+    /**
+     * Fordert die nächste Seite an, wenn es noch eine gibt und keine unterwegs ist.
+     */
+    void loadMore() {
+        if (!more || pendingAfter != null) {
+            return;
+        }
+        pendingAfter = model.isEmpty() ? "" : model.lastElement();
+        requestPage.accept(prefix, pendingAfter);
+    }
+
+
+    /**
+     * Hängt eine Seite an. Antworten auf veraltete Anfragen (anderer Filter)
+     * werden ignoriert.
+     *
+     * @param entries Einträge "name/mitglieder"
+     */
+    void applyPage(String pagePrefix, String after, boolean hasMore, List<String> entries) {
+        if (!pagePrefix.equals(prefix) || !after.equals(pendingAfter)) {
+            return;
+        }
+        pendingAfter = null;
+        more = hasMore;
+
+        for (String entry : entries) {
+            int slash = entry.lastIndexOf('/');
+            if (slash < 0) {
+                continue;
+            }
+            String name = entry.substring(0, slash);
+            if (!model.contains(name)) {
+                model.addElement(name);
+            }
+            try {
+                memberCounts.put(name, Integer.parseInt(entry.substring(slash + 1)));
+            } catch (NumberFormatException e) {
+                // Ohne Anzahl anzeigen
+            }
+        }
+    }
+
+
+    /**
+     * Trägt einen neuen oder gelöschten Raum ein.
+     *
+     * @param version Version der Raumliste nach der Änderung
+     * @param added true = angelegt, false = gelöscht
+     */
+    void applyDelta(long version, boolean added, String name) {
+        Long last = versions.get(name);
+        if (last != null && last >= version) {
+            return;
+        }
+        versions.put(name, version);
+
+        if (!added) {
+            model.removeElement(name);
+            memberCounts.remove(name);
+            return;
+        }
+
+        if (!name.startsWith(prefix) || model.contains(name)) {
+            return;
+        }
+        // Hinter dem geladenen Bereich kommt der Raum mit der nächsten Seite
+        if (more && (model.isEmpty() || name.compareTo(model.lastElement()) > 0)) {
+            return;
+        }
+        model.add(insertionPoint(name), name);
+        memberCounts.put(name, 1);
+    }
+
+
+    /**
+     * Anzahl der Mitglieder eines Raums (null wenn unbekannt).
+     */
+    Integer getMemberCount(String name) {
+        return memberCounts.get(name);
+    }
+
+
+    /**
+     * Position, an der ein Name in die sortierte Liste gehört (binäre Suche).
+     */
+    private int insertionPoint(String name) {
+        int low = 0;
+        int high = model.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (model.get(middle).compareTo(name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,134 @@
+package client;
+
+import protocol.Command;
+import protocol.Message;
+import protocol.Protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Verbindung zum Server.
+ *
+ * Kapselt Socket und Streams und kümmert sich um die Protokoll-Version:
+ * Vor dem Login wird v2 (binär) angefragt. Ein älterer Server kennt den
+ * Befehl nicht und antwortet mit einem Fehler - dann bleibt es bei v1 (Text).
+ */
+public class ServerConnection {
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    // Wird nur vor dem Login geändert (negotiate)
+    private volatile int protocolVersion = Protocol.VERSION_1;
+
+
+    /**
+     * Baut die Verbindung auf.
+     *
+     * @param host Server-Adresse
+     * @param port Server-Port
+     */
+    public ServerConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.input = new DataInputStream(socket.getInputStream());
+        this.output = new DataOutputStream(socket.getOutputStream());
+    }
+
+
+    /**
+     * Handelt die Protokoll-Version aus ("PROTOCOL:2", noch in v1).
+     *
+     * @return Die verwendete Version
+     */
+    public int negotiate() throws IOException {
+        send(Command.PROTOCOL, String.valueOf(Protocol.LATEST));
+
+        Message response = receive();
+        if (response != null && response.getCommand() == Command.PROTOCOL) {
+            try {
+                protocolVersion = Integer.parseInt(response.getField(0).trim());
+            } catch (NumberFormatException e) {
+                // Unbekannte Antwort - bei v1 bleiben
+            }
+        }
+        return protocolVersion;
+    }
+
+
+    /**
+     * Sendet einen Befehl.
+     *
+     * @param command Der Befehl
+     * @param fields Die Felder des Befehls
+     */
+    public void send(Command command, String... fields) throws IOException {
+        // synchronized: Nur ein Thread darf gleichzeitig senden (auch Uploads)
+        synchronized (output) {
+            Protocol.write(output, protocolVersion, command, fields);
+            output.flush();
+        }
+    }
+
+
+    /**
+     * Sendet ein Datei-Stück (v3).
+     * Jedes Stück wird einzeln gesendet, andere Nachrichten kommen dazwischen dran.
+     *
+     * @param command UPLOAD_CHUNK
+     * @param transferId ID des Transfers (vom Server)
+     * @param data Puffer mit den Bytes
+     * @param length Anzahl der Bytes im Puffer
+     */
+    public void sendChunk(Command command, String transferId, byte[] data, int length) throws IOException {
+        synchronized (output) {
+            Protocol.writeChunk(output, command, transferId, data, 0, length);
+            output.flush();
+        }
+    }
+
+
+    /**
+     * Wartet auf die nächste Nachricht vom Server.
+     *
+     * @return Die Nachricht oder null bei unbekanntem Opcode (v2)
+     */
+    public Message receive() throws IOException {
+        return Protocol.read(input, protocolVersion, Command.Direction.SERVER);
+    }
+
+
+    /**
+     * Eingabestrom für Binärdaten (Download nach FILE_DATA, nur v1/v2).
+     */
+    public DataInputStream getInput() {
+        return input;
+    }
+
+
+    /**
+     * Ausgabestrom für Binärdaten (Upload, nur v1/v2). Vorher auf output synchronisieren.
+     */
+    public DataOutputStream getOutput() {
+        return output;
+    }
+
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+
+    public void close() {
+        try {
+            input.close();
+            output.close();
+            socket.close();
+        } catch (IOException e) {
+            // Ignorieren
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Alle Befehle des Chat-Protokolls (Tabelle für beide Protokoll-Versionen).
+ *
+ * Jeder Befehl hat:
+ * - einen Opcode (1 Byte, Protokoll v2)
+ * - einen Namen (Präfix im Text-Protokoll v1, z.B. "JOIN_ROOM:raum")
+ * - eine Richtung (wer darf ihn senden)
+ * - eine Anzahl an Feldern (LIST = beliebig viele, in v1 komma-getrennt;
+ *   CHUNK = Transfer-ID + Binärdaten, nur ab v3)
+ *
+ * Lange Listen werden in Teilen gesendet: erst beliebig viele *_PART-Befehle,
+ * dann der eigentliche Listen-Befehl mit dem letzten Teil. Der Empfänger
+ * sammelt die Teile und ersetzt seine Liste erst beim letzten.
+ *
+ * Server und Client verteilen empfangene Nachrichten über diese Tabelle
+ * statt über eine Kette von startsWith()-Abfragen.
+ */
+public enum Command {
+
+    // ===== Verbindung und Anmeldung =====
+    PROTOCOL(0x01, Direction.BOTH, 1),
+    LOGIN(0x02, Direction.CLIENT, 2),
+    REGISTER(0x03, Direction.CLIENT, 2),
+    READY(0x04, Direction.CLIENT, 0),
+    SUCCESS(0x05, Direction.SERVER, 1),
+    ERROR(0x06, Direction.SERVER, 1),
+    DISCONNECT(0x07, Direction.SERVER, 1),
+    WARNING(0x08, Direction.SERVER, 1),
+
+    // ===== Chat (in v1 ohne Präfix: jeder unbekannte Text ist eine Chat-Nachricht) =====
+    CHAT(0x10, Direction.BOTH, 1),
+
+    // ===== Räume =====
+    CREATE_ROOM(0x20, Direction.CLIENT, 1),
+    JOIN_ROOM(0x21, Direction.CLIENT, 1),
+    LEAVE_ROOM(0x22, Direction.CLIENT, 0),
+    GET_ROOMS(0x23, Direction.CLIENT, 0),
+    GET_USERS(0x24, Direction.CLIENT, 0),
+    // Raumverzeichnis seitenweise: "seitengröße, präfix, nach" (nach = letzter Raum der vorigen Seite)
+    LIST_ROOMS(0x25, Direction.CLIENT, 3),
+    // Antwort: "präfix, nach, weitere (1/0), name/mitglieder, ..."
+    ROOM_PAGE(0x26, Direction.SERVER, Command.LIST),
+    ROOM_PAGE_PART(0x27, Direction.SERVER, Command.LIST),
+    ROOM_LIST(0x28, Direction.SERVER, Command.LIST),
+    USER_LIST(0x29, Direction.SERVER, Command.LIST),
+    ROOM_CREATED(0x2A, Direction.SERVER, 1),
+    ROOM_JOINED(0x2B, Direction.SERVER, 1),
+    ROOM_LEFT(0x2C, Direction.SERVER, 1),
+    ROOM_DELETED(0x2D, Direction.SERVER, 1),
+    ROOM_LIST_PART(0x2E, Direction.SERVER, Command.LIST),
+    USER_LIST_PART(0x2F, Direction.SERVER, Command.LIST),
+
+    // ===== Dateien =====
+    // v1 nur "UPLOAD_FILE:name" bzw. "DOWNLOAD_FILE:name" - der Name darf ':' enthalten
+    UPLOAD_FILE(0x30, Direction.CLIENT, 3, 1),
+    LIST_FILES(0x31, Direction.CLIENT, 0),
+    DOWNLOAD_FILE(0x32, Direction.CLIENT, 3, 1),
+    UPLOAD_CHUNK(0x33, Direction.CLIENT, Command.CHUNK),
+    READY_FOR_UPLOAD(0x38, Direction.SERVER, 0),
+    UPLOAD_SUCCESS(0x39, Direction.SERVER, 1),
+    UPLOAD_ERROR(0x3A, Direction.SERVER, 1),
+    FILE_LIST(0x3B, Direction.SERVER, Command.LIST),
+    FILE_DATA(0x3C, Direction.SERVER, 1),
+    DOWNLOAD_ERROR(0x3D, Direction.SERVER, 1),
+    FILE_LIST_PART(0x3E, Direction.SERVER, Command.LIST),
+    UPLOAD_RESUME(0x3F, Direction.SERVER, 2),
+    FILE_RANGE(0x37, Direction.SERVER, 3),
+
+    // ===== Dateien in Stücken (v3): mehrere Transfers gleichzeitig, Chat dazwischen =====
+    UPLOAD_BEGIN(0x40, Direction.SERVER, 3),
+    FILE_BEGIN(0x41, Direction.SERVER, 5),
+    FILE_CHUNK(0x42, Direction.SERVER, Command.CHUNK),
+    TRANSFER_ERROR(0x43, Direction.SERVER, 2),
+
+    // ===== Dateiliste mit Größe und Zeit (v3): ein Eintrag "name/größe/zeit" pro Datei =====
+    FILE_INFO_LIST(0x44, Direction.SERVER, Command.LIST),
+    FILE_INFO_LIST_PART(0x45, Direction.SERVER, Command.LIST),
+
+    // ===== Anwesenheit als Änderungen (v4): erstes Feld ist immer die Version =====
+    ROOM_ADDED(0x50, Direction.SERVER, 2),
+    ROOM_REMOVED(0x51, Direction.SERVER, 2),
+    MEMBER_JOINED(0x52, Direction.SERVER, 3),
+    MEMBER_LEFT(0x53, Direction.SERVER, 3),
+    // "version, raum, raum, ..." bzw. "version, raum, user, user, ..."
+    ROOM_SNAPSHOT(0x54, Direction.SERVER, Command.LIST),
+    ROOM_SNAPSHOT_PART(0x55, Direction.SERVER, Command.LIST),
+    MEMBER_SNAPSHOT(0x56, Direction.SERVER, Command.LIST),
+    MEMBER_SNAPSHOT_PART(0x57, Direction.SERVER, Command.LIST),
+
+    // ===== Historie seitenweise (v6) =====
+    // "nummer, anzahl": Nachrichten vor dieser Nummer im aktuellen Raum
+    HISTORY_BEFORE(0x60, Direction.CLIENT, 2),
+    // Antwort und Historie beim Betreten: "raum, vor, weitere (1/0), nummer/nachricht, ..."
+    HISTORY_PAGE(0x61, Direction.SERVER, Command.LIST),
+    HISTORY_PAGE_PART(0x62, Direction.SERVER, Command.LIST),
+
+    // ===== Nachrichten mit Nummer (v7) =====
+    // Chat-Nachricht im Raum: "raum, nummer, nachricht"
+    ROOM_MESSAGE(0x63, Direction.SERVER, 3),
+    // Nach dem Wiederverbinden: "raum, letzte nummer" (die letzte empfangene Nachricht)
+    RESUME(0x64, Direction.CLIENT, 2),
+    // Antwort: "raum, ab, bis, nummer/nachricht, ..." (die verpassten Nachrichten ab..bis)
+    ROOM_RESUMED(0x65, Direction.SERVER, Command.LIST),
+    ROOM_RESUMED_PART(0x66, Direction.SERVER, Command.LIST),
+
+    // ===== Sitzungen (v8) =====
+    // Nach SUCCESS: "token" zum Wiederanmelden ohne Passwort
+    SESSION(0x67, Direction.SERVER, 1),
+    // Anmelden mit dem Token statt LOGIN: "token"
+    LOGIN_TOKEN(0x68, Direction.CLIENT, 1),
+
+    // ===== Suche (v9) =====
+    // "raum, suchwörter": Nachrichten mit allen Wörtern
+    SEARCH(0x69, Direction.CLIENT, 2),
+    // Antwort: "raum, suchwörter, nummer/nachricht, ..." (neueste zuerst)
+    SEARCH_RESULT(0x6A, Direction.SERVER, Command.LIST),
+    SEARCH_RESULT_PART(0x6B, Direction.SERVER, Command.LIST);
+
+
+    /**
+     * Wer einen Befehl senden darf.
+     */
+    public enum Direction { CLIENT, SERVER, BOTH }
+
+    // Feldanzahl für Listen (v1: "ROOM_LIST:a,b,c", v2: ein Feld pro Eintrag)
+    public static final int LIST = -1;
+
+    // Feldanzahl für Datei-Stücke: Transfer-ID + Binärdaten (gibt es nur binär)
+    public static final int CHUNK = -2;
+
+    // Opcode -> Befehl (für v2)
+    private static final Command[] BY_OPCODE = new Command[256];
+
+    // Name -> Befehl (für v1)
+    private static final Map<String, Command> BY_NAME = new HashMap<>();
+
+    static {
+        for (Command command : values()) {
+            BY_OPCODE[command.opcode] = command;
+            if (command != CHAT) {
+                BY_NAME.put(command.name(), command);
+            }
+        }
+    }
+
+    private final int opcode;
+    private final Direction direction;
+    private final int fieldCount;
+    // Felder im v1-Text (spätere Felder gibt es nur binär)
+    private final int textFieldCount;
+
+
+    Command(int opcode, Direction direction, int fieldCount) {
+        this(opcode, direction, fieldCount, fieldCount);
+    }
+
+
+    Command(int opcode, Direction direction, int fieldCount, int textFieldCount) {
+        this.opcode = opcode;
+        this.direction = direction;
+        this.fieldCount = fieldCount;
+        this.textFieldCount = textFieldCount;
+    }
+
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+
+    /**
+     * Felder im v1-Text: Das letzte nimmt den Rest samt ':' auf.
+     */
+    public int getTextFieldCount() {
+        return textFieldCount;
+    }
+
+
+    public boolean isList() {
+        return fieldCount == LIST;
+    }
+
+
+    public boolean isChunk() {
+        return fieldCount == CHUNK;
+    }
+
+
+    /**
+     * Gibt den Befehl für Teil-Listen zurück (z.B. ROOM_LIST -> ROOM_LIST_PART).
+     *
+     * @return Der Teil-Befehl oder null, wenn die Liste nicht geteilt werden kann
+     */
+    public Command getPartCommand() {
+        return switch (this) {
+            case ROOM_LIST -> ROOM_LIST_PART;
+            case USER_LIST -> USER_LIST_PART;
+            case FILE_LIST -> FILE_LIST_PART;
+            case FILE_INFO_LIST -> FILE_INFO_LIST_PART;
+            case ROOM_SNAPSHOT -> ROOM_SNAPSHOT_PART;
+            case MEMBER_SNAPSHOT -> MEMBER_SNAPSHOT_PART;
+            case ROOM_PAGE -> ROOM_PAGE_PART;
+            case HISTORY_PAGE -> HISTORY_PAGE_PART;
+            case ROOM_RESUMED -> ROOM_RESUMED_PART;
+            case SEARCH_RESULT -> SEARCH_RESULT_PART;
+            default -> null;
+        };
+    }
+
+
+    /**
+     * Prüft ob dieser Befehl von der angegebenen Seite gesendet werden darf.
+     *
+     * @param sender CLIENT oder SERVER
+     */
+    public boolean isSentBy(Direction sender) {
+        return direction == Direction.BOTH || direction == sender;
+    }
+
+
+    /**
+     * Findet einen Befehl anhand seines Opcodes.
+     *
+     * @param opcode Der Opcode (0-255)
+     * @return Der Befehl oder null wenn unbekannt
+     */
+    public static Command fromOpcode(int opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
+
+
+    /**
+     * Findet einen Befehl anhand seines Namens im Text-Protokoll.
+     *
+     * @param name z.B. "JOIN_ROOM"
+     * @return Der Befehl oder null wenn unbekannt
+     */
+    static Command fromName(String name) {
+        return BY_NAME.get(name);
+    }
+}
@@ -0,0 +1,70 @@
+package protocol;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Eine dekodierte Nachricht: Befehl + Felder.
+ * Sieht für beide Protokoll-Versionen gleich aus.
+ * Datei-Stücke (v3) tragen zusätzlich Binärdaten.
+ */
+public final class Message {
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Command command;
+    private final List<String> fields;
+    private final byte[] data;
+
+
+    public Message(Command command, List<String> fields) {
+        this(command, fields, NO_DATA);
+    }
+
+
+    public Message(Command command, List<String> fields, byte[] data) {
+        this.command = command;
+        this.fields = Collections.unmodifiableList(fields);
+        this.data = data != null ? data : NO_DATA;
+    }
+
+
+    public Command getCommand() {
+        return command;
+    }
+
+
+    /**
+     * Gibt ein Feld zurück.
+     *
+     * @param index Position des Feldes
+     * @return Das Feld oder "" wenn es fehlt
+     */
+    public String getField(int index) {
+        return index < fields.size() ? fields.get(index) : "";
+    }
+
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+
+    public int getFieldCount() {
+        return fields.size();
+    }
+
+
+    /**
+     * Binärdaten eines Datei-Stücks (leer bei allen anderen Befehlen).
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+
+    @Override
+    public String toString() {
+        return Protocol.toText(command, fields);
+    }
+}
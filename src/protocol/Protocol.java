@@ -0,0 +1,440 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Kodierung der beiden Protokoll-Versionen.
+ *
+ * v1 (Text): writeUTF/readUTF, Befehl als Präfix, z.B. "JOIN_ROOM:raum".
+ *            Jeder Text ohne bekanntes Präfix ist eine Chat-Nachricht.
+ *
+ * v2 (Binär): [Opcode: 1 Byte][Länge: Varint][Felder]
+ *             Jedes Feld: [Länge: Varint][UTF-8 Bytes]
+ *
+ * Ein neuer Client schickt vor dem Login "PROTOCOL:2" (noch in v1).
+ * Antwortet der Server mit "PROTOCOL:2", sprechen ab dann beide v2.
+ * Alte Clients schicken nichts und bleiben bei v1; alte Server antworten
+ * mit "ERROR:..." und der Client bleibt ebenfalls bei v1.
+ *
+ * Die Länge steht in v2 als Varint (bis zu 4 Bytes für MAX_PAYLOAD), die
+ * 64-KB-Grenze von writeUTF gilt dort nicht. Lange Listen werden zusätzlich
+ * in Teilen gesendet (siehe Command.getPartCommand()).
+ *
+ * v3 (Binär): wie v2, aber Dateien kommen nicht mehr am Stück hinter dem
+ *             Befehl, sondern in FILE_CHUNK/UPLOAD_CHUNK-Nachrichten mit
+ *             Transfer-ID. Dazwischen können andere Nachrichten laufen und
+ *             mehrere Transfers gleichzeitig. Das letzte Feld eines Stücks
+ *             sind rohe Bytes statt UTF-8.
+ *
+ * v4 (Binär): wie v3, aber Raum- und Mitgliederliste kommen als Änderungen
+ *             (ROOM_ADDED, MEMBER_JOINED, ...) mit fortlaufender Versionsnummer
+ *             statt jedes Mal als ganze Liste. Fehlt eine Version, holt sich
+ *             der Client die ganze Liste (ROOM_SNAPSHOT/MEMBER_SNAPSHOT).
+ *
+ * v5 (Binär): wie v4, aber die Raumliste kommt nie als Ganzes von selbst
+ *             (weder nach dem Login noch nach vielen Änderungen). Der Client
+ *             holt sie seitenweise mit LIST_ROOMS und bekommt danach nur
+ *             ROOM_ADDED/ROOM_REMOVED.
+ *
+ * v6 (Binär): wie v5, aber die Historie beim Betreten kommt als HISTORY_PAGE
+ *             mit der Nummer jeder Nachricht. Ältere Nachrichten holt der
+ *             Client seitenweise mit HISTORY_BEFORE.
+ *
+ * v7 (Binär): wie v6, aber jede Chat-Nachricht im Raum kommt als
+ *             ROOM_MESSAGE mit ihrer Nummer. Nach dem Wiederverbinden
+ *             schickt der Client RESUME mit der letzten Nummer und bekommt
+ *             genau die verpassten Nachrichten (ROOM_RESUMED).
+ *
+ * v8 (Binär): wie v7, aber nach jedem erfolgreichen Login kommt ein
+ *             Token (SESSION). Mit LOGIN_TOKEN meldet sich der Client
+ *             damit wieder an, ohne dass der Server die Datenbank fragt.
+ *
+ * v9 (Binär): wie v8, dazu die Volltextsuche in der Historie eines Raums
+ *             (SEARCH, Antwort SEARCH_RESULT).
+ *
+ * Die Binärdaten von Uploads/Downloads (4 Bytes Größe + Bytes) folgen
+ * in v1 und v2 unverändert auf den jeweiligen Befehl.
+ */
+public final class Protocol {
+
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int VERSION_3 = 3;
+    public static final int VERSION_4 = 4;
+    public static final int VERSION_5 = 5;
+    public static final int VERSION_6 = 6;
+    public static final int VERSION_7 = 7;
+    public static final int VERSION_8 = 8;
+    public static final int VERSION_9 = 9;
+
+    // Neueste Version, die Server und Client sprechen
+    public static final int LATEST = VERSION_9;
+
+    // Größte erlaubte Nutzlast einer v2-Nachricht
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    // Ein Varint für int braucht höchstens 5 Bytes (7 Bit pro Byte)
+    private static final int MAX_VARINT_BYTES = 5;
+
+
+    private Protocol() {
+    }
+
+
+    // ========================================================================
+    // VERSION 1 (TEXT)
+    // ========================================================================
+
+
+    /**
+     * Baut den v1-Text einer Nachricht, z.B. "ROOM_LIST:a,b,c".
+     */
+    public static String toText(Command command, List<String> fields) {
+        if (command == Command.CHAT) {
+            return fields.isEmpty() ? "" : fields.get(0);
+        }
+        if (command.getFieldCount() == 0) {
+            return command.name();
+        }
+        String separator = command.isList() ? "," : ":";
+        return command.name() + ":" + String.join(separator, fields);
+    }
+
+
+    /**
+     * Zerlegt einen v1-Text in Befehl und Felder.
+     * Unbekannte Präfixe (oder Befehle der Gegenseite) ergeben eine Chat-Nachricht.
+     *
+     * @param text Der empfangene Text
+     * @param sender Wer den Text gesendet hat
+     */
+    public static Message parseText(String text, Command.Direction sender) {
+        int colon = text.indexOf(':');
+        Command command = Command.fromName(colon < 0 ? text : text.substring(0, colon));
+
+        // Befehle ohne Felder stehen allein ("LEAVE_ROOM"), alle anderen mit ':'
+        // (Datei-Stücke gibt es nur binär)
+        if (command == null || !command.isSentBy(sender) || command.isChunk()
+                || (command.getFieldCount() == 0) != (colon < 0)) {
+            return new Message(Command.CHAT, List.of(text));
+        }
+
+        if (command.getFieldCount() == 0) {
+            return new Message(command, List.of());
+        }
+
+        String rest = text.substring(colon + 1);
+        if (command.isList()) {
+            return new Message(command, rest.isEmpty() ? List.of() : Arrays.asList(rest.split(",")));
+        }
+        return new Message(command, Arrays.asList(rest.split(":", command.getTextFieldCount())));
+    }
+
+
+    // ========================================================================
+    // VERSION 2 (BINÄR)
+    // ========================================================================
+
+
+    /**
+     * Kodiert eine Nachricht im v2-Format.
+     */
+    public static byte[] encodeBinary(Command command, List<String> fields) {
+        int fieldCount = command.getFieldCount() == 0 ? 0 : fields.size();
+        byte[][] encoded = new byte[fieldCount][];
+
+        int payloadLength = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            encoded[i] = fields.get(i).getBytes(StandardCharsets.UTF_8);
+            payloadLength += varintSize(encoded[i].length) + encoded[i].length;
+        }
+
+        byte[] frame = new byte[1 + varintSize(payloadLength) + payloadLength];
+        frame[0] = (byte) command.getOpcode();
+        int pos = writeVarint(frame, 1, payloadLength);
+        for (byte[] field : encoded) {
+            pos = writeVarint(frame, pos, field.length);
+            System.arraycopy(field, 0, frame, pos, field.length);
+            pos += field.length;
+        }
+        return frame;
+    }
+
+
+    /**
+     * Dekodiert die Nutzlast einer v2-Nachricht.
+     *
+     * @param opcode Der Opcode
+     * @param payload Die Nutzlast (nur die Felder)
+     * @param sender Wer die Nachricht gesendet hat
+     * @return Die Nachricht oder null bei unbekanntem Opcode
+     */
+    public static Message decodeBinary(int opcode, byte[] payload, Command.Direction sender)
+            throws ProtocolException {
+        Command command = Command.fromOpcode(opcode);
+        if (command == null || !command.isSentBy(sender)) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<>();
+        byte[] data = null;
+        int pos = 0;
+        while (pos < payload.length) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos >= payload.length || shift >= 7 * MAX_VARINT_BYTES) {
+                    throw new ProtocolException("Ungültige Feldlänge");
+                }
+                b = payload[pos++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (length < 0 || length > payload.length - pos) {
+                throw new ProtocolException("Ungültige Feldlänge");
+            }
+            if (isDataField(command, fields)) {
+                data = Arrays.copyOfRange(payload, pos, pos + length);
+            } else {
+                fields.add(new String(payload, pos, length, StandardCharsets.UTF_8));
+            }
+            pos += length;
+        }
+        return new Message(command, fields, data);
+    }
+
+
+    /**
+     * Prüft ob das nächste Feld die Binärdaten eines Datei-Stücks sind
+     * (bei CHUNK-Befehlen alles nach der Transfer-ID).
+     */
+    private static boolean isDataField(Command command, List<String> fields) {
+        return command.isChunk() && fields.size() == 1;
+    }
+
+
+    /**
+     * Prüft, ob der Kopf einer v2-Nachricht vollständig im Puffer liegt
+     * (für die NIO-Engine). Der Puffer wird nicht verändert.
+     *
+     * @return Länge des Kopfs (Opcode + Varint) oder -1 wenn noch Bytes fehlen
+     */
+    public static int peekHeaderLength(ByteBuffer in) throws ProtocolException {
+        int pos = in.position() + 1;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (pos + i >= in.limit()) {
+                return -1;
+            }
+            if ((in.get(pos + i) & 0x80) == 0) {
+                return 2 + i;
+            }
+        }
+        throw new ProtocolException("Ungültige Länge");
+    }
+
+
+    /**
+     * Liest die Nutzlast-Länge aus einem vollständigen Kopf (siehe peekHeaderLength).
+     */
+    public static int peekPayloadLength(ByteBuffer in) throws ProtocolException {
+        int length = 0;
+        int pos = in.position() + 1;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get(pos++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Nachricht zu lang: " + length + " Bytes");
+        }
+        return length;
+    }
+
+
+    // ========================================================================
+    // LESEN UND SCHREIBEN (STREAMS)
+    // ========================================================================
+
+
+    /**
+     * Liest eine Nachricht blockierend.
+     *
+     * In v2 wird Feld für Feld direkt aus dem Strom gelesen - auch lange
+     * Nachrichten (bis MAX_PAYLOAD) brauchen keinen Puffer für die ganze Nutzlast.
+     *
+     * @param in Der Eingabestrom
+     * @param version Aktuelle Protokoll-Version
+     * @param sender Wer die Nachricht sendet
+     * @return Die Nachricht oder null bei unbekanntem Opcode (v2)
+     */
+    public static Message read(DataInputStream in, int version, Command.Direction sender) throws IOException {
+        if (version < VERSION_2) {
+            return parseText(in.readUTF(), sender);
+        }
+
+        int opcode = in.readUnsignedByte();
+        int remaining = readVarint(in);
+        if (remaining > MAX_PAYLOAD) {
+            throw new ProtocolException("Nachricht zu lang: " + remaining + " Bytes");
+        }
+
+        Command command = Command.fromOpcode(opcode);
+        if (command == null || !command.isSentBy(sender)) {
+            // Unbekannt - Nutzlast überspringen, der Strom bleibt lesbar
+            in.skipNBytes(remaining);
+            return null;
+        }
+
+        List<String> fields = new ArrayList<>();
+        byte[] data = null;
+        while (remaining > 0) {
+            int length = readVarint(in);
+            remaining -= varintSize(length);
+            if (length > remaining) {
+                throw new ProtocolException("Ungültige Feldlänge");
+            }
+            byte[] field = new byte[length];
+            in.readFully(field);
+            if (isDataField(command, fields)) {
+                data = field;
+            } else {
+                fields.add(new String(field, StandardCharsets.UTF_8));
+            }
+            remaining -= length;
+        }
+        return new Message(command, fields, data);
+    }
+
+
+    /**
+     * Schreibt eine Nachricht (ohne flush).
+     *
+     * In v2 werden Kopf und Felder einzeln geschrieben, ohne die ganze
+     * Nachricht vorher in ein Array zu kopieren.
+     */
+    public static void write(DataOutputStream out, int version, Command command, String... fields)
+            throws IOException {
+        if (version < VERSION_2) {
+            out.writeUTF(toText(command, Arrays.asList(fields)));
+            return;
+        }
+
+        int fieldCount = command.getFieldCount() == 0 ? 0 : fields.length;
+        byte[][] encoded = new byte[fieldCount][];
+        int payloadLength = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payloadLength += varintSize(encoded[i].length) + encoded[i].length;
+        }
+        if (payloadLength > MAX_PAYLOAD) {
+            throw new ProtocolException("Nachricht zu lang: " + payloadLength + " Bytes");
+        }
+
+        out.writeByte(command.getOpcode());
+        writeVarint(out, payloadLength);
+        for (byte[] field : encoded) {
+            writeVarint(out, field.length);
+            out.write(field);
+        }
+    }
+
+
+    /**
+     * Schreibt ein Datei-Stück (v3, ohne flush): Transfer-ID + Binärdaten.
+     */
+    public static void writeChunk(DataOutputStream out, Command command, String transferId,
+                                  byte[] data, int offset, int length) throws IOException {
+        out.write(encodeChunkHeader(command, transferId, length));
+        out.write(data, offset, length);
+    }
+
+
+    /**
+     * Kodiert alles von einem Datei-Stück außer den Binärdaten selbst.
+     * Die Daten müssen direkt danach folgen (z.B. per transferTo aus der Datei).
+     *
+     * @param command FILE_CHUNK oder UPLOAD_CHUNK
+     * @param transferId ID des Transfers
+     * @param length Anzahl der folgenden Bytes
+     */
+    public static byte[] encodeChunkHeader(Command command, String transferId, int length)
+            throws ProtocolException {
+        byte[] id = transferId.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = varintSize(id.length) + id.length + varintSize(length) + length;
+        if (length < 0 || payloadLength > MAX_PAYLOAD) {
+            throw new ProtocolException("Stück zu groß: " + length + " Bytes");
+        }
+
+        int headerLength = payloadLength - length;
+        byte[] header = new byte[1 + varintSize(payloadLength) + headerLength];
+        header[0] = (byte) command.getOpcode();
+        int pos = writeVarint(header, 1, payloadLength);
+        pos = writeVarint(header, pos, id.length);
+        System.arraycopy(id, 0, header, pos, id.length);
+        writeVarint(header, pos + id.length, length);
+        return header;
+    }
+
+
+    // ========================================================================
+    // VARINT (7 Bit pro Byte, höchstes Bit = "es folgt noch ein Byte")
+    // ========================================================================
+
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+
+    private static int writeVarint(byte[] target, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[pos++] = (byte) value;
+        return pos;
+    }
+
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new ProtocolException("Ungültige Länge");
+    }
+}
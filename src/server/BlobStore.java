@@ -0,0 +1,249 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Speicher für Dateiinhalte, adressiert über ihren SHA-256-Hash.
+ *
+ * Jeder Inhalt liegt genau einmal auf der Platte (room_blobs/ab/abcd...),
+ * egal in wie vielen Räumen und unter wie vielen Namen er vorkommt. Welcher
+ * Name in welchem Raum zu welchem Hash gehört, steht in den Manifesten der
+ * Räume (siehe RoomFiles).
+ *
+ * Pro Hash wird gezählt, wie viele Manifest-Einträge auf ihn zeigen. Fällt
+ * die Zahl auf 0, wird der Inhalt gelöscht. Die Zähler stehen nur im Speicher
+ * und werden beim Start aus den Manifesten neu berechnet.
+ */
+final class BlobStore {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final File directory;
+
+    // Hash -> Anzahl der Manifest-Einträge
+    private final Map<String, Integer> references = new HashMap<>();
+
+    // ReentrantLock statt synchronized (virtuelle Threads, siehe Room)
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    BlobStore(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+
+    /**
+     * Gibt die Datei mit dem Inhalt zu einem Hash zurück (muss nicht existieren).
+     */
+    File getFile(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+
+    /**
+     * Legt einen Inhalt ab und zählt eine Referenz dazu.
+     *
+     * Gibt es den Inhalt schon, wird die Temp-Datei nur gelöscht - das
+     * Kopieren ist also bei doppelten Dateien schon erledigt.
+     *
+     * @param source Fertige Temp-Datei (auf derselben Platte, wird verschoben oder gelöscht)
+     * @param hash SHA-256 des Inhalts (hex)
+     */
+    void store(Path source, String hash) throws IOException {
+        lock.lock();
+        try {
+            File blob = getFile(hash);
+            if (blob.isFile()) {
+                Files.delete(source);
+            } else {
+                blob.getParentFile().mkdirs();
+                try {
+                    Files.move(source, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(source, blob.toPath());
+                }
+            }
+            references.merge(hash, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Zählt eine Referenz auf einen vorhandenen Inhalt dazu.
+     *
+     * Die Größe muss passen - der Client soll nicht allein über einen
+     * geratenen Hash an einen Inhalt kommen, dessen Größe er nicht kennt.
+     *
+     * @param hash SHA-256 des Inhalts (hex)
+     * @param size Erwartete Größe in Bytes
+     * @return false wenn es den Inhalt (mit dieser Größe) nicht gibt
+     */
+    boolean retain(String hash, long size) {
+        lock.lock();
+        try {
+            File blob = getFile(hash);
+            if (!references.containsKey(hash) || blob.length() != size) {
+                return false;
+            }
+            references.merge(hash, 1, Integer::sum);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Nimmt eine Referenz weg. War es die letzte, wird der Inhalt gelöscht.
+     *
+     * Laufende Downloads haben die Datei schon offen und lesen sie zu Ende.
+     */
+    void release(String hash) {
+        lock.lock();
+        try {
+            Integer count = references.get(hash);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                references.put(hash, count - 1);
+                return;
+            }
+            references.remove(hash);
+            getFile(hash).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Übernimmt die Zähler aus den Manifesten (beim Start) und löscht alle
+     * Inhalte, auf die kein Manifest mehr zeigt.
+     *
+     * @param counts Hash -> Anzahl der Einträge in allen Manifesten
+     * @param deleteUnreferenced false wenn nicht alle Manifeste gelesen werden konnten
+     */
+    void initReferences(Map<String, Integer> counts, boolean deleteUnreferenced) {
+        lock.lock();
+        try {
+            references.clear();
+            references.putAll(counts);
+            if (!deleteUnreferenced) {
+                return;
+            }
+
+            File[] buckets = directory.listFiles(File::isDirectory);
+            if (buckets == null) {
+                return;
+            }
+            for (File bucket : buckets) {
+                File[] blobs = bucket.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    if (!references.containsKey(blob.getName())) {
+                        blob.delete();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Prüft ob noch ein Manifest auf einen Inhalt zeigt.
+     */
+    boolean isReferenced(String hash) {
+        lock.lock();
+        try {
+            return references.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Anzahl der gespeicherten Inhalte.
+     */
+    int getBlobCount() {
+        lock.lock();
+        try {
+            return references.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // ========================================================================
+    // HASH
+    // ========================================================================
+
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Jede Java-Plattform muss SHA-256 können
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    static String toHex(MessageDigest digest) {
+        return HEX.formatHex(digest.digest());
+    }
+
+
+    /**
+     * Prüft ob ein Text ein SHA-256-Hash ist (64 Hex-Zeichen, klein).
+     */
+    static boolean isHash(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Berechnet den Hash einer Datei (für Dateien aus der Zeit vor dem BlobStore).
+     */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return toHex(digest);
+    }
+}
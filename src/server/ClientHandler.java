@@ -1,32 +1,188 @@
 package server;
 
+import protocol.Command;
+import protocol.Message;
+import protocol.Protocol;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Verwaltet die Kommunikation mit einem einzelnen Client.
- * Läuft in eigenem Thread und kümmert sich um Login, Chat und Dateitransfer.
+ * Kümmert sich um Login, Chat und Dateitransfer.
+ *
+ * Die Protokoll-Logik ist nachrichtengetrieben (handleMessage), damit sie von
+ * beiden Server-Engines genutzt werden kann:
+ * - BLOCKING/VIRTUAL: run() läuft in eigenem (Plattform- bzw. virtuellem) Thread
+ *   und liest blockierend vom Socket
+ * - NIO: NioConnection dekodiert die Frames und ruft handleMessage() in einem
+ *   Worker-Thread auf (nie mehr als ein Aufruf gleichzeitig)
+ *
+ * Empfangene Nachrichten werden über Tabellen (Befehl -> Methode) verteilt,
+ * unabhängig davon ob der Client Protokoll v1 (Text) oder v2 (Binär) spricht.
+ *
+ * Ausgehende Nachrichten werden nie direkt auf den Socket geschrieben, sondern
+ * kodiert in eine begrenzte OutboundQueue gelegt. Ein eigener Writer (Writer-Thread
+ * bzw. Event-Loop) schreibt sie - so blockiert ein langsamer Client niemanden.
  */
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
+
+    // Maximale Dateigröße für Uploads (10 MB)
+    static final int MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+    // Stückgröße für Dateien bei BLOCKING/VIRTUAL (Uploads lesen, Download-Ausweichweg)
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+    // Größe eines FILE_CHUNK (v3): so lange muss eine Chat-Nachricht höchstens
+    // hinter einem Download warten
+    static final int TRANSFER_CHUNK_SIZE = 32 * 1024;
+
+    // So viele Uploads bzw. Downloads darf ein Client gleichzeitig haben
+    private static final int MAX_PARALLEL_TRANSFERS = 4;
+
+    // Größte Seite bei LIST_ROOMS
+    private static final int MAX_ROOM_PAGE = 200;
+
+    // Größte Seite bei HISTORY_BEFORE
+    private static final int MAX_HISTORY_PAGE = 200;
+
+    // Höchstens so viele verpasste Nachrichten bei RESUME (die neuesten)
+    private static final int MAX_RESUME_MESSAGES = 1000;
+
+    // Höchstens so viele Treffer bei SEARCH (die neuesten)
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    // Längste Suchanfrage (Zeichen)
+    private static final int MAX_SEARCH_QUERY = 200;
+
+    // So lange darf der Writer beim Schließen noch ausstehende Frames schreiben
+    private static final long WRITER_CLOSE_TIMEOUT_MS = 1000;
+
+    // Puffer des Writer-Threads: mehrere Frames werden mit einem flush() geschrieben
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    // So lange wartet der Writer bei viel Verkehr höchstens auf weitere Frames,
+    // bevor er flusht (über "chat.flush.maxLatencyMs" änderbar, 0 = nie warten)
+    static final long FLUSH_MAX_LATENCY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.flush.maxLatencyMs", 2));
+
+    /**
+     * Verarbeitet einen empfangenen Befehl.
+     */
+    @FunctionalInterface
+    private interface CommandHandler {
+        void handle(ClientHandler client, Message message) throws IOException;
+    }
+
+    // Befehle während der Anmeldung
+    private static final Map<Command, CommandHandler> AUTH_COMMANDS = new EnumMap<>(Command.class);
+
+    // Befehle im Chat (statt einer Kette von startsWith()-Abfragen)
+    private static final Map<Command, CommandHandler> CHAT_COMMANDS = new EnumMap<>(Command.class);
+
+    static {
+        AUTH_COMMANDS.put(Command.PROTOCOL, (c, m) -> c.handleProtocol(m));
+        AUTH_COMMANDS.put(Command.REGISTER, (c, m) -> c.handleRegister(m));
+        AUTH_COMMANDS.put(Command.LOGIN, (c, m) -> c.handleLogin(m));
+        AUTH_COMMANDS.put(Command.LOGIN_TOKEN, (c, m) -> c.handleLoginToken(m.getField(0)));
+
+        // Raum-Befehle
+        CHAT_COMMANDS.put(Command.CREATE_ROOM, (c, m) -> c.handleCreateRoom(m.getField(0)));
+        CHAT_COMMANDS.put(Command.JOIN_ROOM, (c, m) -> c.handleJoinRoom(m.getField(0)));
+        CHAT_COMMANDS.put(Command.LEAVE_ROOM, (c, m) -> c.handleLeaveRoom());
+        CHAT_COMMANDS.put(Command.GET_ROOMS, (c, m) -> c.sendRoomList());
+        CHAT_COMMANDS.put(Command.GET_USERS, (c, m) -> c.sendUserListForCurrentRoom());
+        CHAT_COMMANDS.put(Command.LIST_ROOMS, (c, m) -> c.handleListRooms(m.getField(0), m.getField(1), m.getField(2)));
+        CHAT_COMMANDS.put(Command.HISTORY_BEFORE, (c, m) -> c.handleHistoryBefore(m.getField(0), m.getField(1)));
+        CHAT_COMMANDS.put(Command.RESUME, (c, m) -> c.handleResume(m.getField(0), m.getField(1)));
+        CHAT_COMMANDS.put(Command.SEARCH, (c, m) -> c.handleSearch(m.getField(0), m.getField(1)));
+
+        // Datei-Befehle (Meilenstein 3)
+        CHAT_COMMANDS.put(Command.UPLOAD_FILE, (c, m) -> c.handleUploadFile(m.getField(0), m.getField(1), m.getField(2)));
+        CHAT_COMMANDS.put(Command.LIST_FILES, (c, m) -> c.handleListFiles());
+        CHAT_COMMANDS.put(Command.DOWNLOAD_FILE, (c, m) -> c.handleDownloadFile(m.getField(0), m.getField(1), m.getField(2)));
+        CHAT_COMMANDS.put(Command.UPLOAD_CHUNK, (c, m) -> c.handleUploadChunk(m.getField(0), m.getData()));
+
+        // Normale Chat-Nachricht
+        CHAT_COMMANDS.put(Command.CHAT, (c, m) -> c.handleChatMessage(m.getField(0)));
+    }
 
     private final Socket socket;
+    private final NioConnection connection;
     private final UserManager userManager;
     private final Server server;
 
     private DataInputStream input;
-    private DataOutputStream output;
+
+    // Ausgehende Frames (geschrieben vom Writer-Thread bzw. der Event-Loop)
+    private final OutboundQueue outbound;
+    private Thread writerThread;
 
     private String username;
+    // Ausgehandelte Protokoll-Version (v1 bis der Client "PROTOCOL:2" schickt)
+    private volatile int protocolVersion = Protocol.VERSION_1;
     private volatile boolean readyForChat = false;
     private volatile boolean connected = true;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+    private boolean chatStarted = false;
     private String currentRoom = null;
 
+    // Upload, dessen Binärdaten als nächstes erwartet werden (null = keiner)
+    private String pendingUploadName = null;
+    private RoomFiles pendingUploadTarget = null;
+    // Angekündigte Größe (-1 = alter Client, Upload nicht fortsetzbar)
+    private int pendingUploadSize = -1;
+    // Upload, dessen Bytes gerade in die Temp-Datei geschrieben werden
+    private volatile UploadReceiver upload = null;
+    // Lesepuffer für Uploads (BLOCKING/VIRTUAL, erst beim ersten Upload angelegt)
+    private byte[] uploadChunk;
+
+    // ===== Transfers in Stücken (v3) =====
+    private final AtomicInteger nextTransferId = new AtomicInteger(1);
+    // Laufende Uploads: Transfer-ID -> Temp-Datei
+    private final Map<String, UploadReceiver> uploads = new ConcurrentHashMap<>();
+    // Eingereihte oder laufende Downloads (offene Dateien)
+    private final AtomicInteger openDownloads = new AtomicInteger();
+    // Puffer des Writer-Threads, falls transferTo() nicht weiterkommt (erst bei Bedarf angelegt)
+    private ByteBuffer writerChunkBuffer;
+
 
+    /**
+     * Konstruktor für die blockierende Engine (ein Thread pro Client).
+     */
     public ClientHandler(Socket socket, UserManager userManager, Server server) {
         this.socket = socket;
+        this.connection = null;
+        this.userManager = userManager;
+        this.server = server;
+        this.outbound = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, null);
+    }
+
+
+    /**
+     * Konstruktor für die NIO-Engine.
+     * Die Ausgangs-Queue wird von der Event-Loop der Verbindung geleert.
+     */
+    ClientHandler(NioConnection connection, UserManager userManager, Server server) {
+        this.socket = null;
+        this.connection = connection;
         this.userManager = userManager;
         this.server = server;
+        this.outbound = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, connection::requestFlush);
     }
 
 
@@ -34,28 +190,19 @@ public class ClientHandler extends Thread {
     public void run() {
         try {
             input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
+            startWriter();
 
             server.log("Neuer Client verbunden: " + socket.getInetAddress());
 
             // Login/Registrierung
-            username = authenticate();
+            authenticate();
             if (username == null) {
                 close();
                 return;
             }
 
-            server.log("User '" + username + "' eingeloggt");
-
             // Auf READY warten
-            String readySignal = input.readUTF();
-            if (readySignal.equals("READY")) {
-                server.log("Client '" + username + "' ist bereit");
-                readyForChat = true;
-                server.notifyUserJoined(username);
-                sendUserList();
-                server.broadcast(">>> " + username + " hat den Chat betreten", this);
-            }
+            handleReadySignal(readMessage());
 
             // Hauptschleife
             chatLoop();
@@ -70,77 +217,191 @@ public class ClientHandler extends Thread {
     }
 
 
+    /**
+     * Liest die nächste Nachricht blockierend in der aktuellen Protokoll-Version.
+     */
+    private Message readMessage() throws IOException {
+        return Protocol.read(input, protocolVersion, Command.Direction.CLIENT);
+    }
+
+
+    /**
+     * Verarbeitet eine empfangene Nachricht je nach Verbindungszustand
+     * (Anmeldung, Warten auf READY, Chat).
+     * Wird von der NIO-Engine für jeden dekodierten Frame aufgerufen.
+     *
+     * @param message Die empfangene Nachricht (null = unbekannter Opcode)
+     */
+    void handleMessage(Message message) throws IOException {
+        if (message == null) {
+            sendResponse(Command.ERROR, "Unbekannter Befehl");
+        } else if (username == null) {
+            handleAuthMessage(message);
+        } else if (!chatStarted) {
+            handleReadySignal(message);
+        } else {
+            handleChatCommand(message);
+        }
+    }
+
+
     /**
      * Login oder Registrierung durchführen.
      */
-    private String authenticate() throws IOException {
+    private void authenticate() throws IOException {
         server.log("Warte auf Authentifizierung...");
 
-        while (connected) {
-            String message = input.readUTF();
-            server.log("Empfangen: " + message);
-
-            String[] parts = message.split(":", 3);
-            String command = parts[0];
-
-            if (command.equals("REGISTER")) {
-                handleRegister(parts);
-            } else if (command.equals("LOGIN")) {
-                String loginResult = handleLogin(parts);
-                if (loginResult != null) {
-                    return loginResult;
-                }
-            } else {
-                sendResponse("ERROR", "Unbekannter Befehl");
-            }
+        while (connected && username == null) {
+            handleMessage(readMessage());
         }
-        return null;
     }
 
 
-    private void handleRegister(String[] parts) throws IOException {
-        if (parts.length != 3) {
-            sendResponse("ERROR", "Ungültiges Format");
+    /**
+     * Verarbeitet eine Nachricht während der Anmeldung.
+     */
+    private void handleAuthMessage(Message message) throws IOException {
+        server.log("Empfangen: " + message);
+
+        CommandHandler handler = AUTH_COMMANDS.get(message.getCommand());
+        if (handler != null) {
+            handler.handle(this, message);
+        } else {
+            sendResponse(Command.ERROR, "Unbekannter Befehl");
+        }
+    }
+
+
+    /**
+     * Handelt die Protokoll-Version aus ("PROTOCOL:2").
+     * Die Antwort geht noch in der alten Version raus, danach gilt die neue.
+     */
+    private void handleProtocol(Message message) throws IOException {
+        int requested;
+        try {
+            requested = Integer.parseInt(message.getField(0).trim());
+        } catch (NumberFormatException e) {
+            sendResponse(Command.ERROR, "Ungültige Protokoll-Version");
             return;
         }
 
-        String user = parts[1];
-        String pass = parts[2];
+        int version = Math.max(Protocol.VERSION_1, Math.min(requested, Protocol.LATEST));
+        sendResponse(Command.PROTOCOL, String.valueOf(version));
+        protocolVersion = version;
+        server.log("Protokoll-Version " + version + " ausgehandelt");
+    }
+
+
+    /**
+     * Verarbeitet die erste Nachricht nach dem Login (normalerweise "READY").
+     */
+    private void handleReadySignal(Message readySignal) throws IOException {
+        if (readySignal != null && readySignal.getCommand() == Command.READY) {
+            server.log("Client '" + username + "' ist bereit");
+            readyForChat = true;
+            server.notifyUserJoined(username);
+            sendUserList();
+            server.getPresence().chatJoined(this);
+        }
+
+        chatStarted = true;
+
+        // Ab v5 holt sich der Client die Raumliste seitenweise (LIST_ROOMS)
+        if (protocolVersion < Protocol.VERSION_5) {
+            sendRoomList();
+        }
+    }
+
+
+    private void handleRegister(Message message) throws IOException {
+        if (message.getFieldCount() != 2) {
+            sendResponse(Command.ERROR, "Ungültiges Format");
+            return;
+        }
+
+        String user = message.getField(0);
+        String pass = message.getField(1);
 
         if (userManager.registerUser(user, pass)) {
-            sendResponse("SUCCESS", "Registrierung erfolgreich");
+            sendResponse(Command.SUCCESS, "Registrierung erfolgreich");
             server.log("Neuer User registriert: " + user);
         } else {
-            sendResponse("ERROR", "Username bereits vergeben");
+            sendResponse(Command.ERROR, "Username bereits vergeben");
         }
     }
 
 
-    private String handleLogin(String[] parts) throws IOException {
-        if (parts.length != 3) {
-            sendResponse("ERROR", "Ungültiges Format");
+    private void handleLogin(Message message) throws IOException {
+        String user = checkLogin(message);
+        if (user != null) {
+            username = user;
+            server.registerUsername(this);
+            server.log("User '" + username + "' eingeloggt");
+            sendSessionToken();
+        }
+    }
+
+
+    /**
+     * Anmelden mit dem Token einer früheren Verbindung (v8). Geprüft wird
+     * nur im Speicher (siehe SessionTokens) - die Datenbank bleibt außen vor.
+     */
+    private void handleLoginToken(String token) throws IOException {
+        SessionTokens sessions = server.getSessions();
+        String user = sessions.redeem(token.trim());
+        if (user == null) {
+            sendResponse(Command.ERROR, "Sitzung abgelaufen");
+            return;
+        }
+        if (sessions.isBanned(user)) {
+            sendResponse(Command.ERROR, "Dein Account wurde gesperrt");
+            return;
+        }
+
+        sendResponse(Command.SUCCESS, "Login erfolgreich");
+        username = user;
+        server.registerUsername(this);
+        server.log("User '" + username + "' mit Token wieder eingeloggt");
+        sendSessionToken();
+    }
+
+
+    /**
+     * Ab v8 bekommt der Client nach dem Login ein Token zum Wiederanmelden
+     * (jedes gilt nur einmal, darum nach jedem Login ein neues).
+     */
+    private void sendSessionToken() throws IOException {
+        if (protocolVersion >= Protocol.VERSION_8) {
+            sendResponse(Command.SESSION, server.getSessions().issue(username));
+        }
+    }
+
+
+    private String checkLogin(Message message) throws IOException {
+        if (message.getFieldCount() != 2) {
+            sendResponse(Command.ERROR, "Ungültiges Format");
             return null;
         }
 
-        String user = parts[1];
-        String pass = parts[2];
+        String user = message.getField(0);
+        String pass = message.getField(1);
 
         if (!userManager.userExists(user)) {
-            sendResponse("ERROR", "Username nicht gefunden");
+            sendResponse(Command.ERROR, "Username nicht gefunden");
             return null;
         }
 
         if (userManager.isUserBanned(user)) {
-            sendResponse("ERROR", "Dein Account wurde gesperrt");
+            sendResponse(Command.ERROR, "Dein Account wurde gesperrt");
             return null;
         }
 
         if (!userManager.validatePassword(user, pass)) {
-            sendResponse("ERROR", "Falsches Passwort");
+            sendResponse(Command.ERROR, "Falsches Passwort");
             return null;
         }
 
-        sendResponse("SUCCESS", "Login erfolgreich");
+        sendResponse(Command.SUCCESS, "Login erfolgreich");
         return user;
     }
 
@@ -156,39 +417,13 @@ public class ClientHandler extends Thread {
      * Hauptschleife: Empfängt Befehle und Nachrichten vom Client.
      */
     private void chatLoop() throws IOException {
-        sendRoomList();
-
         while (connected) {
             try {
-                String message = input.readUTF();
-
-                // Raum-Befehle
-                if (message.startsWith("CREATE_ROOM:")) {
-                    handleCreateRoom(message.substring(12));
-                } else if (message.startsWith("JOIN_ROOM:")) {
-                    handleJoinRoom(message.substring(10));
-                } else if (message.equals("LEAVE_ROOM")) {
-                    handleLeaveRoom();
-                } else if (message.equals("GET_ROOMS")) {
-                    sendRoomList();
-                } else if (message.equals("GET_USERS")) {
-                    sendUserListForCurrentRoom();
-                }
+                handleChatCommand(readMessage());
 
-                // ============================================================
-                // DATEI-BEFEHLE (Meilenstein 3)
-                // ============================================================
-                else if (message.startsWith("UPLOAD_FILE:")) {
-                    handleUploadFile(message.substring(12));
-                } else if (message.equals("LIST_FILES")) {
-                    handleListFiles();
-                } else if (message.startsWith("DOWNLOAD_FILE:")) {
-                    handleDownloadFile(message.substring(14));
-                }
-
-                // Normale Chat-Nachricht
-                else {
-                    handleChatMessage(message);
+                // Binärdaten eines Uploads folgen direkt auf den Befehl
+                if (isAwaitingUpload()) {
+                    receiveUpload();
                 }
 
             } catch (EOFException e) {
@@ -199,9 +434,30 @@ public class ClientHandler extends Thread {
     }
 
 
+    /**
+     * Verteilt einen Befehl oder eine Chat-Nachricht an die passende Methode.
+     */
+    private void handleChatCommand(Message message) throws IOException {
+        if (message == null) {
+            sendMessage(Command.ERROR, "Unbekannter Befehl");
+            return;
+        }
+
+        CommandHandler handler = CHAT_COMMANDS.get(message.getCommand());
+        if (handler != null) {
+            handler.handle(this, message);
+        } else if (protocolVersion < Protocol.VERSION_2) {
+            // v1: z.B. "READY" im Chat war schon immer normaler Text
+            handleChatMessage(message.toString());
+        } else {
+            sendMessage(Command.ERROR, "Befehl im Chat nicht erlaubt");
+        }
+    }
+
+
     private void handleChatMessage(String message) throws IOException {
         if (currentRoom == null) {
-            sendMessage("ERROR:Du musst zuerst einem Raum beitreten");
+            sendMessage(Command.ERROR, "Du musst zuerst einem Raum beitreten");
             return;
         }
 
@@ -219,28 +475,33 @@ public class ClientHandler extends Thread {
         roomName = roomName.trim();
 
         if (roomName.isEmpty()) {
-            sendMessage("ERROR:Raumname darf nicht leer sein");
+            sendMessage(Command.ERROR, "Raumname darf nicht leer sein");
             return;
         }
 
         RoomManager roomManager = server.getRoomManager();
 
+        // Der Ersteller ist danach schon Mitglied
         if (roomManager.createRoom(roomName, this)) {
             if (currentRoom != null) {
                 leaveCurrentRoom();
             }
 
             currentRoom = roomName;
-            roomManager.joinRoom(roomName, this);
 
-            sendMessage("ROOM_CREATED:" + roomName);
-            sendMessage("ROOM_JOINED:" + roomName);
+            sendMessage(Command.ROOM_CREATED, roomName);
+            sendMessage(Command.ROOM_JOINED, roomName);
+
+            // Gab es den Raum schon einmal, ist seine Historie noch da
+            Room room = roomManager.getRoom(roomName);
+            if (room != null) {
+                room.sendHistoryTo(this);
+            }
 
             server.notifyUserRoomChanged(username, roomName);
-            broadcastRoomListToAll();
             sendUserListForCurrentRoom();
         } else {
-            sendMessage("ERROR:Raum existiert bereits oder Name ungültig");
+            sendMessage(Command.ERROR, "Raum existiert bereits oder Name ungültig");
         }
     }
 
@@ -250,52 +511,250 @@ public class ClientHandler extends Thread {
         RoomManager roomManager = server.getRoomManager();
 
         if (!roomManager.roomExists(roomName)) {
-            sendMessage("ERROR:Raum existiert nicht");
+            sendMessage(Command.ERROR, "Raum existiert nicht");
             return;
         }
 
+        String leftRoom = currentRoom;
         if (currentRoom != null) {
-            boolean roomDeleted = leaveCurrentRoom();
-            if (roomDeleted) {
-                broadcastRoomListToAll();
-            }
+            leaveCurrentRoom();
         }
 
+        // Der Raum kann inzwischen gelöscht sein (letztes Mitglied gegangen)
+        if (!roomManager.joinRoom(roomName, this)) {
+            if (leftRoom != null) {
+                sendMessage(Command.ROOM_LEFT, leftRoom);
+            }
+            sendMessage(Command.ERROR, "Raum existiert nicht");
+            // Ab v5 reicht das ROOM_REMOVED, das ohnehin kommt
+            if (protocolVersion < Protocol.VERSION_5) {
+                sendRoomList();
+            }
+            return;
+        }
         currentRoom = roomName;
-        roomManager.joinRoom(roomName, this);
 
-        sendMessage("ROOM_JOINED:" + roomName);
+        sendMessage(Command.ROOM_JOINED, roomName);
         server.notifyUserRoomChanged(username, roomName);
 
         Room room = roomManager.getRoom(roomName);
         if (room != null) {
             room.sendHistoryTo(this);
-            room.broadcast(">>> " + username + " hat den Raum betreten", this);
+            server.getPresence().roomJoined(room, this);
+        }
+
+        // Die anderen Mitglieder hat Room.addMember() schon informiert
+        sendUserListForCurrentRoom();
+    }
+
+
+    /**
+     * Sendet eine Seite des Raumverzeichnisses: ROOM_PAGE mit Präfix und
+     * "nach" der Anfrage (damit der Client veraltete Antworten erkennt), ob
+     * es weitergeht, und je Raum "name/mitglieder" ('/' kommt in Raumnamen
+     * nicht vor).
+     *
+     * @param limit Seitengröße (höchstens MAX_ROOM_PAGE)
+     * @param prefix Nur Räume mit diesem Namensanfang (leer = alle)
+     * @param after Letzter Raum der vorigen Seite (leer = erste Seite)
+     */
+    private void handleListRooms(String limit, String prefix, String after) throws IOException {
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            sendMessage(Command.ERROR, "Ungültige Seitengröße");
+            return;
+        }
+        pageSize = Math.max(1, Math.min(pageSize, MAX_ROOM_PAGE));
+
+        RoomManager.RoomPage page = server.getRoomManager().getRoomPage(prefix, after, pageSize);
+        List<String> fields = new ArrayList<>();
+        fields.add(prefix);
+        fields.add(after);
+        fields.add(page.more() ? "1" : "0");
+        for (Room room : page.rooms()) {
+            fields.add(room.getName() + "/" + room.getMemberCount());
+        }
+        sendFrame(Frame.of(Command.ROOM_PAGE, fields));
+    }
+
+
+    /**
+     * Sendet eine Seite älterer Nachrichten des aktuellen Raums: HISTORY_PAGE
+     * mit Raum und "vor" der Anfrage (damit der Client veraltete Antworten
+     * erkennt), ob es davor weitergeht, und je Nachricht "nummer/nachricht".
+     *
+     * @param before Nachrichten vor dieser Nummer (0 = die neuesten)
+     * @param limit Seitengröße (höchstens MAX_HISTORY_PAGE)
+     */
+    private void handleHistoryBefore(String before, String limit) throws IOException {
+        Room room = currentRoom != null ? server.getRoomManager().getRoom(currentRoom) : null;
+        if (room == null) {
+            sendMessage(Command.ERROR, "Du musst zuerst einem Raum beitreten");
+            return;
+        }
+
+        long beforeSeq;
+        int pageSize;
+        try {
+            beforeSeq = Long.parseLong(before);
+        } catch (NumberFormatException e) {
+            sendMessage(Command.ERROR, "Ungültige Nachrichtennummer");
+            return;
+        }
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            sendMessage(Command.ERROR, "Ungültige Seitengröße");
+            return;
+        }
+        pageSize = Math.max(1, Math.min(pageSize, MAX_HISTORY_PAGE));
+
+        Room.HistoryPage page;
+        try {
+            page = room.getHistoryBefore(beforeSeq, pageSize);
+        } catch (IOException e) {
+            server.log("Historie nicht lesbar: " + room.getName() + " (" + e.getMessage() + ")");
+            sendMessage(Command.ERROR, "Historie nicht lesbar");
+            return;
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(room.getName());
+        fields.add(before);
+        fields.add(page.more() ? "1" : "0");
+        for (HistoryLog.Entry entry : page.entries()) {
+            fields.add(entry.seq() + "/" + entry.message());
+        }
+        sendFrame(Frame.of(Command.HISTORY_PAGE, fields));
+    }
+
+
+    /**
+     * Durchsucht die Historie eines Raums. Wie bei HISTORY_BEFORE nur für
+     * Mitglieder des Raums.
+     *
+     * @param roomName Der Raum
+     * @param query Suchwörter (alle müssen vorkommen)
+     */
+    private void handleSearch(String roomName, String query) throws IOException {
+        Room room = server.getRoomManager().getRoom(roomName.trim());
+        if (room == null) {
+            sendMessage(Command.ERROR, "Raum existiert nicht");
+            return;
+        }
+        if (!room.hasMember(this)) {
+            sendMessage(Command.ERROR, "Du musst zuerst dem Raum beitreten");
+            return;
+        }
+        query = query.trim();
+        if (query.isEmpty()) {
+            sendMessage(Command.ERROR, "Suchbegriff fehlt");
+            return;
+        }
+        if (query.length() > MAX_SEARCH_QUERY) {
+            sendMessage(Command.ERROR, "Suchbegriff zu lang");
+            return;
+        }
+
+        List<HistoryLog.Entry> entries;
+        try {
+            entries = room.search(query, MAX_SEARCH_RESULTS);
+        } catch (IOException e) {
+            server.log("Suche fehlgeschlagen: " + room.getName() + " (" + e.getMessage() + ")");
+            sendMessage(Command.ERROR, "Suche fehlgeschlagen");
+            return;
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(room.getName());
+        fields.add(query);
+        for (HistoryLog.Entry entry : entries) {
+            fields.add(entry.seq() + "/" + entry.message());
+        }
+        sendFrame(Frame.of(Command.SEARCH_RESULT, fields));
+    }
+
+
+    /**
+     * Kehrt nach einem Verbindungsabbruch in einen Raum zurück und schickt
+     * genau die verpassten Nachrichten (ROOM_RESUMED statt ROOM_JOINED und
+     * Historie). Wurde der Raum inzwischen gelöscht (z.B. weil er leer war),
+     * gibt es einen Fehler - angelegt werden Räume nur mit CREATE_ROOM.
+     *
+     * @param roomName Der Raum vor dem Abbruch
+     * @param lastSeq Nummer der letzten Nachricht, die der Client hat
+     */
+    private void handleResume(String roomName, String lastSeq) throws IOException {
+        roomName = roomName.trim();
+        long after;
+        try {
+            after = Long.parseLong(lastSeq);
+        } catch (NumberFormatException e) {
+            sendMessage(Command.ERROR, "Ungültige Nachrichtennummer");
+            return;
         }
 
+        if (currentRoom != null) {
+            leaveCurrentRoom();
+        }
+
+        RoomManager roomManager = server.getRoomManager();
+        Room room = roomManager.joinRoom(roomName, this) ? roomManager.getRoom(roomName) : null;
+        if (room == null) {
+            sendMessage(Command.ERROR, "Raum existiert nicht");
+            return;
+        }
+        currentRoom = roomName;
+        server.notifyUserRoomChanged(username, roomName);
+
+        Room.ResumePage page;
+        try {
+            page = room.getMessagesAfter(after, MAX_RESUME_MESSAGES);
+        } catch (IOException e) {
+            server.log("Historie nicht lesbar: " + roomName + " (" + e.getMessage() + ")");
+            page = new Room.ResumePage(after + 1, after, new ArrayList<>());
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(roomName);
+        fields.add(String.valueOf(page.from()));
+        fields.add(String.valueOf(page.to()));
+        for (HistoryLog.Entry entry : page.entries()) {
+            fields.add(entry.seq() + "/" + entry.message());
+        }
+        sendFrame(Frame.of(Command.ROOM_RESUMED, fields));
+        server.log(username + " ist zurück in Raum '" + roomName + "' (" + page.entries().size()
+                + " verpasste Nachrichten)");
+
+        server.getPresence().roomJoined(room, this);
         sendUserListForCurrentRoom();
-        broadcastUserListToRoom(roomName);
     }
 
 
     private void handleLeaveRoom() throws IOException {
         if (currentRoom == null) {
-            sendMessage("ERROR:Du bist in keinem Raum");
+            sendMessage(Command.ERROR, "Du bist in keinem Raum");
             return;
         }
 
         String leftRoom = currentRoom;
         boolean roomDeleted = leaveCurrentRoom();
 
-        sendMessage("ROOM_LEFT:" + leftRoom);
+        sendMessage(Command.ROOM_LEFT, leftRoom);
         if (roomDeleted) {
-            sendMessage("ROOM_DELETED:" + leftRoom);
+            sendMessage(Command.ROOM_DELETED, leftRoom);
         }
-
-        broadcastRoomListToAll();
     }
 
 
+    /**
+     * Verlässt den aktuellen Raum. Die anderen Mitglieder und (wenn der Raum
+     * dabei gelöscht wird) alle Clients informieren Room und RoomManager.
+     *
+     * @return true wenn der Raum gelöscht wurde
+     */
     private boolean leaveCurrentRoom() throws IOException {
         if (currentRoom == null) {
             return false;
@@ -303,20 +762,15 @@ public class ClientHandler extends Thread {
 
         RoomManager roomManager = server.getRoomManager();
         Room room = roomManager.getRoom(currentRoom);
-        String roomName = currentRoom;
 
         if (room != null) {
-            room.broadcast("<<< " + username + " hat den Raum verlassen", this);
+            server.getPresence().roomLeft(room, this);
         }
 
         boolean deleted = roomManager.leaveRoom(currentRoom, this);
         currentRoom = null;
         server.notifyUserRoomChanged(username, null);
 
-        if (!deleted) {
-            broadcastUserListToRoom(roomName);
-        }
-
         return deleted;
     }
 
@@ -328,16 +782,25 @@ public class ClientHandler extends Thread {
     // So funktioniert die Übertragung:
     //
     // UPLOAD (Client -> Server):
-    // 1. Client schickt: "UPLOAD_FILE:bild.png"
-    // 2. Server antwortet: "READY_FOR_UPLOAD"
-    // 3. Client schickt: 4 Bytes (Dateigröße als int)
-    // 4. Client schickt: Die Datei-Bytes
-    // 5. Server speichert und antwortet: "UPLOAD_SUCCESS:bild.png"
+    // 1. Client schickt: "UPLOAD_FILE:bild.png:größe" (alte Clients ohne Größe)
+    // 2. Server antwortet: "READY_FOR_UPLOAD" (oder "UPLOAD_ERROR:..." - dann kommen keine Bytes)
+    //    Liegt von einem abgebrochenen Versuch schon ein Teil der Datei vor:
+    //    "UPLOAD_RESUME:bild.png:bytes" - der Client schickt dann nur den Rest
+    // 3. Client schickt: 4 Bytes (Anzahl der folgenden Bytes als int)
+    // 4. Client schickt: Die Datei-Bytes (ab Position "bytes" beim Fortsetzen)
+    // 5. Server schreibt sie stückweise in eine Temp-Datei, legt sie unter
+    //    ihrem SHA-256 im BlobStore ab und antwortet: "UPLOAD_SUCCESS:bild.png"
+    //
+    // Ab v3 schickt der Client den Hash gleich mit ("UPLOAD_FILE:name:größe:hash").
+    // Gibt es den Inhalt schon (z.B. dasselbe Bild in einem anderen Raum),
+    // wird nur der Name eingetragen - es werden keine Bytes übertragen.
     //
     // DOWNLOAD (Server -> Client):
     // 1. Client schickt: "DOWNLOAD_FILE:bild.png"
+    //    oder einen Bereich: "DOWNLOAD_FILE:bild.png:start:länge" (Länge optional)
     // 2. Server antwortet: "FILE_DATA:bild.png"
-    // 3. Server schickt: 4 Bytes (Dateigröße als int)
+    //    bzw. beim Bereich: "FILE_RANGE:bild.png:start:gesamtgröße"
+    // 3. Server schickt: 4 Bytes (Anzahl der folgenden Bytes als int)
     // 4. Server schickt: Die Datei-Bytes
     //
     // Warum so kompliziert?
@@ -345,22 +808,33 @@ public class ClientHandler extends Thread {
     // - Wir müssen wissen wie viele Bytes kommen (sonst wissen wir nicht wann die Datei zu Ende ist)
     // - writeInt() schreibt genau 4 Bytes, readInt() liest genau 4 Bytes
     // - readFully() wartet bis ALLE Bytes angekommen sind (wichtig bei großen Dateien!)
+    // - Die Größe kommt schon mit dem Befehl, damit zu große Dateien abgelehnt
+    //   werden, bevor der Client überhaupt Bytes schickt
     // ========================================================================
 
 
     /**
-     * Empfängt eine Datei vom Client und speichert sie.
+     * Prüft einen Upload-Befehl und meldet dem Client, dass er senden kann.
+     * Die eigentlichen Binärdaten werden danach von receiveUpload() (BLOCKING)
+     * bzw. von der NioConnection (NIO) gelesen.
+     *
+     * @param fileName Name der Datei
+     * @param announcedSize Angekündigte Größe (leer bei alten Clients)
+     * @param announcedHash SHA-256 des Inhalts (nur v3-Clients, sonst leer)
      */
-    private void handleUploadFile(String fileName) throws IOException {
+    private void handleUploadFile(String fileName, String announcedSize, String announcedHash) throws IOException {
         // Muss in einem Raum sein
         if (currentRoom == null) {
-            sendMessage("UPLOAD_ERROR:Du musst zuerst einem Raum beitreten");
+            sendMessage(Command.UPLOAD_ERROR, "Du musst zuerst einem Raum beitreten");
             return;
         }
 
         // Sicherheitscheck: Keine Pfade wie "../geheim.txt" erlauben
-        if (fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) {
-            sendMessage("UPLOAD_ERROR:Ungültiger Dateiname");
+        // (und keine versteckten Namen - so heißen die Temp-Dateien laufender Uploads;
+        // keine Steuerzeichen - das Manifest hat eine Zeile pro Datei)
+        if (fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")
+                || fileName.startsWith(".") || fileName.chars().anyMatch(Character::isISOControl)) {
+            sendMessage(Command.UPLOAD_ERROR, "Ungültiger Dateiname");
             return;
         }
 
@@ -373,50 +847,287 @@ public class ClientHandler extends Thread {
                 lowerName.endsWith(".gif");
 
         if (!erlaubt) {
-            sendMessage("UPLOAD_ERROR:Nur PDF und Bilder (PNG, JPG, GIF) erlaubt");
+            sendMessage(Command.UPLOAD_ERROR, "Nur PDF und Bilder (PNG, JPG, GIF) erlaubt");
             return;
         }
 
-        // Raum-Ordner holen
-        File roomDir = server.getRoomManager().getRoomDirectory(currentRoom);
-        if (roomDir == null || !roomDir.exists()) {
-            sendMessage("UPLOAD_ERROR:Raumverzeichnis nicht gefunden");
+        // Dateien des Raums holen
+        RoomFiles target = server.getRoomManager().getRoomFiles(currentRoom);
+        if (target == null) {
+            sendMessage(Command.UPLOAD_ERROR, "Raumverzeichnis nicht gefunden");
             return;
         }
 
+        // Zu große Dateien ablehnen, bevor der Client Bytes schickt
+        int size = -1;
+        if (!announcedSize.isEmpty()) {
+            size = parseSize(announcedSize);
+            if (size < 0 || size > MAX_FILE_SIZE) {
+                sendMessage(Command.UPLOAD_ERROR, "Datei zu groß (max. 10 MB)");
+                return;
+            }
+        }
+
+        // v3: Datei kommt in Stücken mit Transfer-ID, auch mehrere gleichzeitig
+        if (protocolVersion >= Protocol.VERSION_3 && size >= 0) {
+            beginChunkedUpload(target, fileName, size, announcedHash);
+            return;
+        }
+
+        pendingUploadName = fileName;
+        pendingUploadTarget = target;
+        pendingUploadSize = size;
+
+        // Mit Größe ist der Upload fortsetzbar: schon vorhandene Bytes melden
+        long offset = 0;
+        if (size >= 0) {
+            UploadReceiver.deleteStalePartials(target.getDirectory());
+            offset = UploadReceiver.getPartialLength(target.getDirectory(), username, fileName, size);
+        }
+
         // Client sagen dass wir bereit sind
-        sendMessage("READY_FOR_UPLOAD");
+        if (offset > 0) {
+            sendMessage(Command.UPLOAD_RESUME, fileName, String.valueOf(offset));
+        } else {
+            sendMessage(Command.READY_FOR_UPLOAD);
+        }
+    }
+
+
+    /**
+     * Startet einen Upload in Stücken (v3) und meldet die Transfer-ID.
+     * Liegt schon ein Teil der Datei vor, steht dessen Länge in UPLOAD_BEGIN -
+     * der Client schickt nur den Rest.
+     *
+     * Gibt es den Inhalt mit diesem Hash schon im Raum, ist der Upload sofort fertig:
+     * UPLOAD_BEGIN meldet die ganze Größe als vorhanden, dann UPLOAD_SUCCESS.
+     */
+    private void beginChunkedUpload(RoomFiles target, String fileName, int size, String hash) throws IOException {
+        if (BlobStore.isHash(hash) && target.link(fileName, hash, size)) {
+            String transferId = String.valueOf(nextTransferId.getAndIncrement());
+            sendMessage(Command.UPLOAD_BEGIN, transferId, fileName, String.valueOf(size));
+            completeUpload(fileName, size, true);
+            return;
+        }
+
+        if (uploads.size() >= MAX_PARALLEL_TRANSFERS) {
+            sendMessage(Command.UPLOAD_ERROR, "Zu viele gleichzeitige Uploads");
+            return;
+        }
+
+        UploadReceiver.deleteStalePartials(target.getDirectory());
+        UploadReceiver receiver = UploadReceiver.resume(target, username, fileName, size);
+        String transferId = String.valueOf(nextTransferId.getAndIncrement());
+        uploads.put(transferId, receiver);
+
+        sendMessage(Command.UPLOAD_BEGIN, transferId, fileName, String.valueOf(receiver.getReceived()));
+
+        // Schon alles da (leere Datei oder vollständiger Teil) - es kommen keine Stücke
+        if (receiver.isComplete()) {
+            uploads.remove(transferId);
+            finishUpload(receiver, transferId);
+        }
+    }
+
+
+    /**
+     * Schreibt ein Stück eines Uploads (v3) in dessen Temp-Datei.
+     * Stücke zu unbekannten IDs (z.B. nach einem Fehler) werden verworfen.
+     */
+    private void handleUploadChunk(String transferId, byte[] data) throws IOException {
+        UploadReceiver receiver = uploads.get(transferId);
+        if (receiver == null) {
+            return;
+        }
+
+        try {
+            receiver.write(ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            uploads.remove(transferId);
+            receiver.abort();
+            server.log("Upload fehlgeschlagen: " + receiver.getFileName() + " von " + username + ": " + e.getMessage());
+            sendMessage(Command.TRANSFER_ERROR, transferId, "Datei konnte nicht gespeichert werden");
+            return;
+        }
 
+        if (receiver.isComplete()) {
+            uploads.remove(transferId);
+            finishUpload(receiver, transferId);
+        }
+    }
+
+
+    /**
+     * Liest eine Größen- oder Positionsangabe des Clients.
+     *
+     * @return Die Zahl oder -1 wenn sie ungültig ist (oder nicht in ein int passt)
+     */
+    private static int parseSize(String value) {
+        try {
+            long number = Long.parseLong(value.trim());
+            return number >= 0 && number <= Integer.MAX_VALUE ? (int) number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Liest die Binärdaten eines Uploads blockierend vom Socket
+     * und schreibt sie stückweise in die Temp-Datei.
+     */
+    private void receiveUpload() throws IOException {
         // Dateigröße lesen (4 Bytes)
         // writeInt() auf Client-Seite schreibt die Zahl als 4 Bytes
         // readInt() liest genau diese 4 Bytes und macht wieder eine Zahl draus
         int fileSize = input.readInt();
 
-        // Nicht zu große Dateien (max 10 MB)
-        if (fileSize > 10 * 1024 * 1024) {
-            // Trotzdem die Bytes lesen, sonst blockiert der Stream
-            byte[] discard = new byte[fileSize];
-            input.readFully(discard);
-            sendMessage("UPLOAD_ERROR:Datei zu groß (max. 10 MB)");
+        // Nicht zu große Dateien (max 10 MB) - kommt nur bei alten Clients
+        // ohne angekündigte Größe vor
+        if (fileSize > MAX_FILE_SIZE || fileSize < 0) {
+            // Trotzdem die Bytes lesen, sonst blockiert der Stream (ohne sie zu speichern)
+            input.skipNBytes(Math.max(fileSize, 0));
+            rejectOversizeUpload();
             return;
         }
 
-        // Datei-Bytes lesen
-        // readFully() ist wichtig! Normales read() könnte weniger Bytes lesen
-        // als wir brauchen (wenn die Daten in mehreren TCP-Paketen ankommen)
-        byte[] fileData = new byte[fileSize];
-        input.readFully(fileData);
+        beginUpload(fileSize);
+
+        if (uploadChunk == null) {
+            uploadChunk = new byte[FILE_CHUNK_SIZE];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(uploadChunk, 0, 0);
+
+        // Nie mehr lesen als zum Upload gehört - danach kommt der nächste Befehl
+        while (!writeUpload(buffer)) {
+            int count = input.read(uploadChunk, 0, Math.min(uploadChunk.length, upload.getRemaining()));
+            if (count < 0) {
+                throw new EOFException();
+            }
+            buffer.clear().limit(count);
+        }
+    }
+
+
+    /**
+     * Prüft ob gerade auf die Binärdaten eines Uploads gewartet wird.
+     */
+    boolean isAwaitingUpload() {
+        return pendingUploadName != null;
+    }
+
+
+    /**
+     * Prüft ob gerade die Bytes eines Uploads in die Temp-Datei geschrieben werden.
+     */
+    boolean isReceivingUpload() {
+        return upload != null;
+    }
+
+
+    /**
+     * Wie viele Bytes des laufenden Uploads noch fehlen (0 = keiner läuft).
+     */
+    int getUploadRemaining() {
+        UploadReceiver current = upload;
+        return current != null ? current.getRemaining() : 0;
+    }
+
+
+    /**
+     * Bricht den wartenden Upload ab, weil die Datei zu groß ist.
+     */
+    void rejectOversizeUpload() throws IOException {
+        pendingUploadName = null;
+        pendingUploadTarget = null;
+        pendingUploadSize = -1;
+        sendMessage(Command.UPLOAD_ERROR, "Datei zu groß (max. 10 MB)");
+    }
+
+
+    /**
+     * Legt die Temp-Datei für den wartenden Upload an.
+     * Danach werden die Bytes mit writeUpload() geschrieben.
+     *
+     * Beim Fortsetzen ist fileSize nur der Rest - die ersten Bytes liegen
+     * schon in der Teil-Datei.
+     *
+     * @param fileSize Anzahl der folgenden Bytes laut Client (schon geprüft)
+     */
+    void beginUpload(int fileSize) throws IOException {
+        try {
+            upload = pendingUploadSize >= 0
+                    ? UploadReceiver.openResumable(pendingUploadTarget, username, pendingUploadName,
+                            pendingUploadSize, fileSize)
+                    : UploadReceiver.open(pendingUploadTarget, pendingUploadName, fileSize);
+        } finally {
+            pendingUploadName = null;
+            pendingUploadTarget = null;
+            pendingUploadSize = -1;
+        }
+    }
+
 
-        // In Datei speichern
-        File targetFile = new File(roomDir, fileName);
-        try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-            fos.write(fileData);
+    /**
+     * Schreibt Upload-Bytes aus dem Puffer in die Temp-Datei. Bytes nach
+     * dem Ende des Uploads bleiben im Puffer.
+     *
+     * @return true wenn der Upload vollständig ist (Datei liegt dann im Raum)
+     */
+    boolean writeUpload(ByteBuffer in) throws IOException {
+        UploadReceiver current = upload;
+        try {
+            current.write(in);
+        } catch (IOException e) {
+            current.abort();
+            upload = null;
+            throw e;
         }
 
-        server.log("Datei hochgeladen: " + fileName + " (" + fileSize + " Bytes) von " + username);
+        if (!current.isComplete()) {
+            return false;
+        }
+        upload = null;
+        finishUpload(current, null);
+        return true;
+    }
+
+
+    /**
+     * Übernimmt die vollständige Temp-Datei in die Dateien des Raums.
+     *
+     * @param transferId ID des Uploads (v3) oder null
+     */
+    private void finishUpload(UploadReceiver completed, String transferId) throws IOException {
+        String fileName = completed.getFileName();
+
+        try {
+            completed.commit();
+        } catch (IOException e) {
+            server.log("Upload fehlgeschlagen: " + fileName + " von " + username + ": " + e.getMessage());
+            if (transferId != null) {
+                sendMessage(Command.TRANSFER_ERROR, transferId, "Datei konnte nicht gespeichert werden");
+            } else {
+                sendMessage(Command.UPLOAD_ERROR, "Datei konnte nicht gespeichert werden");
+            }
+            return;
+        }
+
+        completeUpload(fileName, completed.getSize(), false);
+    }
+
+
+    /**
+     * Meldet einen fertigen Upload dem Client und dem Raum.
+     *
+     * @param deduplicated true wenn der Inhalt schon vorhanden war (nichts übertragen)
+     */
+    private void completeUpload(String fileName, int size, boolean deduplicated) throws IOException {
+        server.log("Datei hochgeladen: " + fileName + " (" + size + " Bytes"
+                + (deduplicated ? ", schon vorhanden" : "") + ") von " + username);
 
         // Erfolg melden
-        sendMessage("UPLOAD_SUCCESS:" + fileName);
+        sendMessage(Command.UPLOAD_SUCCESS, fileName);
 
         // Alle im Raum informieren
         Room room = server.getRoomManager().getRoom(currentRoom);
@@ -427,63 +1138,132 @@ public class ClientHandler extends Thread {
 
 
     /**
-     * Sendet die Liste aller Dateien im aktuellen Raum.
+     * Sendet die Liste aller Dateien im aktuellen Raum (aus dem Speicher).
+     * v3-Clients bekommen Größe und Upload-Zeit mit: "name/größe/zeit"
+     * ('/' kommt in Dateinamen nicht vor).
      */
     private void handleListFiles() throws IOException {
-        if (currentRoom == null) {
-            sendMessage("FILE_LIST:");
+        Command command = protocolVersion >= Protocol.VERSION_3 ? Command.FILE_INFO_LIST : Command.FILE_LIST;
+        RoomFiles files = currentRoom != null ? server.getRoomManager().getRoomFiles(currentRoom) : null;
+        if (files == null) {
+            sendMessage(command);
             return;
         }
 
-        List<String> files = server.getRoomManager().getFilesInRoom(currentRoom);
-        String fileList = String.join(",", files);
+        if (command == Command.FILE_LIST) {
+            sendFrame(Frame.of(Command.FILE_LIST, files.getNames()));
+            return;
+        }
 
-        sendMessage("FILE_LIST:" + fileList);
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, RoomFiles.Entry> file : files.getEntries().entrySet()) {
+            RoomFiles.Entry entry = file.getValue();
+            entries.add(file.getKey() + "/" + entry.size() + "/" + entry.modified());
+        }
+        sendFrame(Frame.of(Command.FILE_INFO_LIST, entries));
     }
 
 
     /**
-     * Sendet eine Datei an den Client.
+     * Sendet eine Datei (oder einen Teil davon) an den Client.
+     *
+     * @param fileName Name der Datei
+     * @param start Erstes Byte des Bereichs (leer = ganze Datei als FILE_DATA)
+     * @param length Länge des Bereichs (leer = bis zum Ende)
      */
-    private void handleDownloadFile(String fileName) throws IOException {
+    private void handleDownloadFile(String fileName, String start, String length) throws IOException {
         if (currentRoom == null) {
-            sendMessage("DOWNLOAD_ERROR:Du bist in keinem Raum");
+            sendMessage(Command.DOWNLOAD_ERROR, "Du bist in keinem Raum");
+            return;
+        }
+
+        // Sicherheitscheck (der Name wird nur im Manifest nachgeschlagen,
+        // trotzdem dieselben Regeln wie beim Upload)
+        if (fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")
+                || fileName.startsWith(".")) {
+            sendMessage(Command.DOWNLOAD_ERROR, "Ungültiger Dateiname");
             return;
         }
 
-        // Sicherheitscheck
-        if (fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) {
-            sendMessage("DOWNLOAD_ERROR:Ungültiger Dateiname");
+        // Bereich prüfen (fehlt er, geht die ganze Datei wie bisher als FILE_DATA)
+        boolean ranged = !start.isEmpty();
+        int offset = ranged ? parseSize(start) : 0;
+        int count = length.isEmpty() ? Integer.MAX_VALUE : parseSize(length);
+        if (offset < 0 || count < 0) {
+            sendMessage(Command.DOWNLOAD_ERROR, "Ungültiger Bereich");
             return;
         }
 
-        File roomDir = server.getRoomManager().getRoomDirectory(currentRoom);
-        if (roomDir == null) {
-            sendMessage("DOWNLOAD_ERROR:Raumverzeichnis nicht gefunden");
+        RoomFiles files = server.getRoomManager().getRoomFiles(currentRoom);
+        if (files == null) {
+            sendMessage(Command.DOWNLOAD_ERROR, "Raumverzeichnis nicht gefunden");
             return;
         }
 
-        File file = new File(roomDir, fileName);
-        if (!file.exists() || !file.isFile()) {
-            sendMessage("DOWNLOAD_ERROR:Datei nicht gefunden");
+        // Inhalt im BlobStore
+        File file = files.resolve(fileName);
+        if (file == null || !file.isFile()) {
+            sendMessage(Command.DOWNLOAD_ERROR, "Datei nicht gefunden");
             return;
         }
 
-        // Datei komplett in Speicher lesen
-        byte[] fileData = new byte[(int) file.length()];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            fis.read(fileData);
+        // Start hinter dem Ende: die Datei wurde inzwischen ersetzt - von vorne senden
+        if (offset > file.length()) {
+            offset = 0;
         }
 
-        // Erst den Header schicken (normale UTF-Nachricht)
-        sendMessage("FILE_DATA:" + fileName);
+        // Jeder wartende Download hält eine Datei offen
+        if (openDownloads.incrementAndGet() > MAX_PARALLEL_TRANSFERS) {
+            openDownloads.decrementAndGet();
+            sendMessage(Command.DOWNLOAD_ERROR, "Zu viele gleichzeitige Downloads");
+            return;
+        }
 
-        // Dann die Binärdaten: Erst Größe (4 Bytes), dann die Bytes
-        output.writeInt(fileData.length);
-        output.write(fileData);
-        output.flush();
+        // Datei nur öffnen - gelesen wird sie erst vom Writer (transferTo)
+        FileRegion region;
+        try {
+            region = FileRegion.open(file, offset, count);
+        } catch (NoSuchFileException e) {
+            // Gerade eben ersetzt oder gelöscht (letzte Referenz weg)
+            openDownloads.decrementAndGet();
+            sendMessage(Command.DOWNLOAD_ERROR, "Datei nicht gefunden");
+            return;
+        } catch (IOException e) {
+            openDownloads.decrementAndGet();
+            throw e;
+        }
+        region.setCloseListener(openDownloads::decrementAndGet);
+        if (region.getSize() > Integer.MAX_VALUE) {
+            region.close();
+            sendMessage(Command.DOWNLOAD_ERROR, "Datei zu groß");
+            return;
+        }
+
+        // v3: Kopf mit Transfer-ID, die Bytes folgen in Stücken zwischen anderen Nachrichten
+        if (protocolVersion >= Protocol.VERSION_3) {
+            String transferId = String.valueOf(nextTransferId.getAndIncrement());
+            region.setTransferId(transferId);
+            Frame header = Frame.of(Command.FILE_BEGIN, transferId, fileName,
+                    String.valueOf(region.getStart()), String.valueOf(region.getSize()),
+                    String.valueOf(region.getFileSize()));
+            sendFileData(header, region);
+            server.log("Datei wird gesendet: " + fileName + " (" + region.getSize() + " Bytes, Transfer "
+                    + transferId + ") an " + username);
+            return;
+        }
 
-        server.log("Datei gesendet: " + fileName + " (" + fileData.length + " Bytes) an " + username);
+        // Erst den Header schicken (normale Nachricht),
+        // dann die Binärdaten: Erst Größe (4 Bytes), dann die Bytes.
+        // Beim Bereich stehen Start und Gesamtgröße im Header - der Client
+        // schreibt ab dem Start, auch wenn er einen anderen angefragt hat.
+        Frame header = ranged
+                ? Frame.of(Command.FILE_RANGE, fileName,
+                        String.valueOf(region.getStart()), String.valueOf(region.getFileSize()))
+                : Frame.of(Command.FILE_DATA, fileName);
+        sendFileData(header, region);
+
+        server.log("Datei gesendet: " + fileName + " (" + region.getSize() + " Bytes"
+                + (ranged ? " ab Byte " + region.getStart() : "") + ") an " + username);
     }
 
 
@@ -492,59 +1272,336 @@ public class ClientHandler extends Thread {
     // ========================================================================
 
 
+    /**
+     * Sendet die ganze Raumliste (ab v4 mit Version als ROOM_SNAPSHOT).
+     */
     private void sendRoomList() throws IOException {
-        String roomList = server.getRoomManager().getRoomListString();
-        sendMessage("ROOM_LIST:" + roomList);
+        RoomManager roomManager = server.getRoomManager();
+        if (protocolVersion >= Protocol.VERSION_4) {
+            sendFrame(Frame.of(Command.ROOM_SNAPSHOT, roomManager.getRoomSnapshot()));
+        } else {
+            sendFrame(Frame.of(Command.ROOM_LIST, roomManager.getRoomNames()));
+        }
     }
 
 
+    /**
+     * Sendet die Mitglieder des aktuellen Raums (ab v4 mit Version als
+     * MEMBER_SNAPSHOT) bzw. ohne Raum alle angemeldeten Nutzer.
+     */
     private void sendUserListForCurrentRoom() throws IOException {
         if (currentRoom != null) {
-            String userList = server.getRoomManager().getMemberListString(currentRoom);
-            sendMessage("USER_LIST:" + userList);
+            Room room = server.getRoomManager().getRoom(currentRoom);
+            if (room != null && protocolVersion >= Protocol.VERSION_4) {
+                sendFrame(room.getMemberSnapshot());
+                return;
+            }
+            List<String> members = room != null ? room.getMemberNames() : List.of();
+            sendFrame(Frame.of(Command.USER_LIST, members));
         } else {
             var usernames = server.getConnectedUsernames();
-            sendMessage("USER_LIST:" + String.join(",", usernames));
+            sendFrame(Frame.of(Command.USER_LIST, usernames));
         }
     }
 
 
-    private void broadcastRoomListToAll() {
-        String roomList = "ROOM_LIST:" + server.getRoomManager().getRoomListString();
-        server.broadcastToAll(roomList);
+    /**
+     * Gibt die ausgehandelte Protokoll-Version zurück.
+     */
+    int getProtocolVersion() {
+        return protocolVersion;
     }
 
 
-    private void broadcastUserListToRoom(String roomName) {
-        RoomManager roomManager = server.getRoomManager();
-        Room room = roomManager.getRoom(roomName);
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
 
-        if (room != null) {
-            String userList = "USER_LIST:" + roomManager.getMemberListString(roomName);
-            room.broadcastToAll(userList);
+
+    /**
+     * Antwort während der Anmeldung (wird auch vor "READY" gesendet).
+     */
+    private void sendResponse(Command command, String message) throws IOException {
+        enqueue(Frame.of(command, message).getBytes(protocolVersion));
+    }
+
+
+    /**
+     * Reiht eine Chat-Nachricht in die Ausgangs-Queue ein.
+     * Blockiert nie - auch nicht, wenn der Client gerade langsam liest.
+     *
+     * @param message Die Nachricht
+     * @throws IOException wenn die Queue voll ist (Client wird dann getrennt)
+     */
+    public void sendMessage(String message) throws IOException {
+        sendFrame(Frame.chat(message));
+    }
+
+
+    /**
+     * Reiht einen Befehl in die Ausgangs-Queue ein.
+     *
+     * @param command Der Befehl
+     * @param fields Die Felder des Befehls
+     * @throws IOException wenn die Queue voll ist (Client wird dann getrennt)
+     */
+    public void sendMessage(Command command, String... fields) throws IOException {
+        sendFrame(Frame.of(command, fields));
+    }
+
+
+    /**
+     * Reiht einen Frame ein (für Broadcasts: alle Empfänger mit derselben
+     * Protokoll-Version teilen sich dieselben Bytes).
+     *
+     * @param frame Der Frame
+     * @throws IOException wenn die Queue voll ist (Client wird dann getrennt)
+     */
+    void sendFrame(Frame frame) throws IOException {
+        if (!readyForChat || !connected) {
+            return;
+        }
+
+        try {
+            // Lange Liste: alle Teile am Stück einreihen. Alte Clients (v1) kennen
+            // die Teil-Befehle nicht und bekommen die ganze Liste in einem Frame
+            // (gekürzt nur, wenn sie nicht in die 64 KB von v1 passt).
+            if (!frame.getParts().isEmpty()) {
+                if (protocolVersion < Protocol.VERSION_2) {
+                    enqueue(frame.getWholeTextBytes());
+                    if (frame.getOmittedEntries() > 0) {
+                        server.log(frame.getCommand() + " an " + username + " gekürzt: "
+                                + frame.getOmittedEntries() + " Einträge passen nicht in einen v1-Frame");
+                    }
+                    return;
+                }
+
+                List<byte[]> group = new ArrayList<>(frame.getParts().size() + 1);
+                for (Frame part : frame.getParts()) {
+                    group.add(part.getBytes(protocolVersion));
+                }
+                group.add(frame.getBytes(protocolVersion));
+                enqueueAll(group);
+                return;
+            }
+
+            enqueue(frame.getBytes(protocolVersion));
+        } catch (UTFDataFormatException e) {
+            // Passt nicht in einen v1-Frame - nur diese Nachricht auslassen
+            server.log("Nachricht an " + username + " nicht gesendet: " + e.getMessage());
         }
     }
 
 
-    public String getCurrentRoom() {
-        return currentRoom;
+    /**
+     * Reiht Header und Größe zusammen mit dem Datei-Inhalt als EINEN Eintrag ein,
+     * damit keine andere Nachricht dazwischen geraten kann.
+     * In Stücken (v3) gehört keine Größe zum Kopf - die steht in FILE_BEGIN.
+     */
+    private void sendFileData(Frame header, FileRegion region) throws IOException {
+        if (!readyForChat || !connected) {
+            region.close();
+            return;
+        }
+
+        region.setHeader(region.isChunked()
+                ? header.getBytes(protocolVersion)
+                : header.withLength(protocolVersion, (int) region.getSize()));
+        if (!outbound.offerFile(region)) {
+            region.close();
+            if (!closed.get()) {
+                abortSlowClient();
+            }
+            throw new IOException("Ausgangs-Queue voll");
+        }
     }
 
 
-    private void sendResponse(String status, String message) throws IOException {
-        output.writeUTF(status + ":" + message);
-        output.flush();
+    /**
+     * Legt einen fertigen Frame in die Ausgangs-Queue.
+     * Ist sie voll, liest der Client offenbar nicht mehr mit - er wird getrennt.
+     */
+    private void enqueue(byte[] frame) throws IOException {
+        if (!outbound.offer(frame)) {
+            if (!closed.get()) {
+                abortSlowClient();
+            }
+            throw new IOException("Ausgangs-Queue voll");
+        }
     }
 
 
-    public void sendMessage(String message) throws IOException {
-        if (readyForChat && connected) {
-            output.writeUTF(message);
-            output.flush();
+    /**
+     * Legt mehrere zusammengehörige Frames in die Ausgangs-Queue.
+     */
+    private void enqueueAll(List<byte[]> group) throws IOException {
+        if (!outbound.offerAll(group)) {
+            if (!closed.get()) {
+                abortSlowClient();
+            }
+            throw new IOException("Ausgangs-Queue voll");
+        }
+    }
+
+
+    /**
+     * Trennt einen Client, dessen Ausgangs-Queue voll ist.
+     * Läuft evtl. innerhalb eines Broadcasts (unter Sperren) - deshalb wird hier
+     * nur die Verbindung abgebrochen; aufgeräumt wird im Lese-Thread bzw. (NIO) in einem Worker.
+     */
+    private void abortSlowClient() {
+        if (!aborted.compareAndSet(false, true)) {
+            return;
+        }
+
+        server.log("Client " + username + " liest zu langsam (Ausgangs-Queue voll) - Verbindung wird getrennt");
+        connected = false;
+
+        if (connection != null) {
+            connection.abort("Ausgangs-Queue voll");
+        } else {
+            closeSocket();
+        }
+    }
+
+
+    /**
+     * Startet den Writer-Thread (BLOCKING/VIRTUAL).
+     * Er ist von derselben Art wie der Lese-Thread (Plattform oder virtuell).
+     */
+    private void startWriter() throws IOException {
+        OutputStream socketOutput = socket.getOutputStream();
+
+        Thread.Builder builder = Thread.currentThread().isVirtual()
+                ? Thread.ofVirtual()
+                : Thread.ofPlatform().daemon(true);
+        writerThread = builder.name("ClientWriter-" + socket.getPort())
+                .start(() -> runWriter(socketOutput));
+    }
+
+
+    /**
+     * Schreibt die Frames der Ausgangs-Queue auf den Socket.
+     *
+     * Alle Frames, die schon warten, landen im Puffer und gehen mit einem
+     * flush() raus (ein Systemaufruf statt einer pro Nachricht). Wartete
+     * mehr als ein Frame (voller Raum, Historie), wartet der Writer bis zu
+     * FLUSH_MAX_LATENCY_NANOS auf weitere Frames. Ein einzelner Frame in
+     * einem ruhigen Raum wird dagegen sofort geschrieben.
+     *
+     * Downloads in Stücken (v3) kommen nach dem Kopf in eine Liste; wartet
+     * kein Frame, geht das nächste Stück reihum von einem der Downloads raus.
+     * Chat-Nachrichten warten so höchstens ein Stück lang.
+     */
+    private void runWriter(OutputStream socketOutput) {
+        BufferedOutputStream out = new BufferedOutputStream(socketOutput, WRITE_BUFFER_SIZE);
+        // Ziel für Downloads: der SocketChannel (sendfile), sonst der Stream
+        WritableByteChannel fileTarget = socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socketOutput);
+        // Laufende Downloads in Stücken, reihum
+        ArrayDeque<FileRegion> transfers = new ArrayDeque<>();
+        try {
+            while (true) {
+                Object item = transfers.isEmpty() ? outbound.take() : outbound.poll();
+                if (item == null) {
+                    // Nichts wartet - ein Stück des nächsten Downloads
+                    FileRegion region = transfers.poll();
+                    out.write(region.nextChunk(TRANSFER_CHUNK_SIZE));
+                    out.flush();
+                    sendRegion(region, fileTarget);
+                    if (!region.isFinished()) {
+                        transfers.add(region);
+                    }
+                    continue;
+                }
+                if (item == OutboundQueue.CLOSE) {
+                    break;
+                }
+
+                long deadline = System.nanoTime() + FLUSH_MAX_LATENCY_NANOS;
+                int count = 0;
+
+                while (item != null && item != OutboundQueue.CLOSE) {
+                    if (item instanceof FileRegion region) {
+                        out.write(region.getHeader());
+                        if (region.isChunked()) {
+                            // Nur FILE_BEGIN - die Stücke folgen zwischen anderen Frames
+                            if (region.isFinished()) {
+                                region.close();
+                            } else {
+                                transfers.add(region);
+                            }
+                        } else {
+                            // Kopf (FILE_DATA + Größe) und gepufferte Frames zuerst, dann die Datei
+                            out.flush();
+                            sendRegion(region, fileTarget);
+                        }
+                    } else {
+                        out.write((byte[]) item);
+                    }
+                    count++;
+
+                    item = outbound.poll();
+                    if (item == null && count > 1 && transfers.isEmpty()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining > 0) {
+                            item = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                }
+                out.flush();
+
+                if (item == OutboundQueue.CLOSE) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Verbindung weg - der Lese-Thread bemerkt das ebenfalls
+        } finally {
+            transfers.forEach(FileRegion::close);
+            outbound.discard();
+            closeSocket();
+        }
+    }
+
+
+    /**
+     * Sendet eine Datei bzw. das aktuelle Stück blockierend (nur Writer-Thread).
+     */
+    private void sendRegion(FileRegion region, WritableByteChannel target) throws IOException {
+        try {
+            while (!region.transferTo(target)) {
+                // Nur falls transferTo() nicht weiterkommt (siehe FileRegion.writeChunk)
+                if (writerChunkBuffer == null) {
+                    writerChunkBuffer = ByteBuffer.allocateDirect(FILE_CHUNK_SIZE);
+                }
+                region.writeChunk(target, writerChunkBuffer);
+            }
+        } catch (IOException e) {
+            region.close();
+            throw e;
         }
     }
 
 
+    private void closeSocket() {
+        try {
+            if (socket != null && !socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            // Ignorieren
+        }
+    }
+
+
+    /**
+     * Gibt die Ausgangs-Queue zurück (wird von der NioConnection geleert).
+     */
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+
     public boolean isReadyForChat() {
         return readyForChat;
     }
@@ -552,9 +1609,8 @@ public class ClientHandler extends Thread {
 
     public void disconnect(String reason) {
         try {
-            if (connected && output != null) {
-                output.writeUTF("DISCONNECT:" + reason);
-                output.flush();
+            if (connected) {
+                enqueue(Frame.of(Command.DISCONNECT, reason).getBytes(protocolVersion));
             }
         } catch (IOException e) {
             // Ignorieren
@@ -565,24 +1621,82 @@ public class ClientHandler extends Thread {
     }
 
 
-    private void close() {
+    /**
+     * Wird von der NIO-Engine aufgerufen, wenn die Verbindung abbricht.
+     */
+    void connectionLost(String reason) {
+        if (connected) {
+            if (reason == null) {
+                server.log(username + " hat sich abgemeldet");
+            } else {
+                server.log("Fehler bei Client " + username + ": " + reason);
+            }
+        }
+        close();
+    }
+
+
+    void close() {
+        // Nur einmal aufräumen (disconnect() und der Lese-Thread rufen beide close() auf)
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
         try {
             connected = false;
             readyForChat = false;
 
+            // NIO: erst wenn kein Aufruf mehr im Worker läuft (NioConnection ruft abortUploads() auf)
+            if (connection == null) {
+                abortUploads();
+            }
+
             if (username != null) {
-                server.broadcast("<<< " + username + " hat den Chat verlassen", this);
+                server.getPresence().chatLeft(this);
                 server.removeClient(this);
-                broadcastRoomListToAll();
+            } else {
+                // Nie angemeldet (Login abgebrochen) - nur aus der Liste nehmen
+                server.removeClient(this);
+            }
+
+            // Writer schreibt noch ausstehende Frames (z.B. DISCONNECT) und schließt dann
+            outbound.close();
+
+            if (connection != null) {
+                connection.close();
+                return;
+            }
+
+            if (writerThread != null && writerThread != Thread.currentThread()) {
+                writerThread.join(WRITER_CLOSE_TIMEOUT_MS);
             }
+            // Offene Dateien von Downloads, die nicht mehr gesendet werden
+            outbound.discard();
 
             if (input != null) input.close();
-            if (output != null) output.close();
-            if (socket != null && !socket.isClosed()) socket.close();
+            closeSocket();
 
         } catch (IOException e) {
             server.log("Fehler beim Schließen: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeSocket();
+        }
+    }
+
+
+    /**
+     * Räumt abgebrochene Uploads weg (Temp-Dateien).
+     * Nur aus dem Thread, der auch writeUpload() aufruft.
+     */
+    void abortUploads() {
+        UploadReceiver unfinished = upload;
+        if (unfinished != null) {
+            unfinished.abort();
+            upload = null;
         }
+        uploads.values().forEach(UploadReceiver::abort);
+        uploads.clear();
     }
 
 
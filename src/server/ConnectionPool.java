@@ -0,0 +1,266 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Offene Verbindungen zur SQLite-Datenbank des UserManagers.
+ *
+ * Eine neue Verbindung pro Abfrage heißt: Datei öffnen, Schema lesen, SQL
+ * übersetzen, alles wieder schließen - bei jedem Login dreimal. Hier bleiben
+ * die Verbindungen offen: eine zum Schreiben und einige zum Lesen. Im
+ * WAL-Modus lesen die Leser parallel zum Schreiber, geschrieben wird immer
+ * nur von einer Verbindung (SQLite erlaubt ohnehin nur einen Schreiber - so
+ * gibt es kein SQLITE_BUSY zwischen den eigenen Verbindungen).
+ *
+ * Jede Verbindung merkt sich ihre PreparedStatements (SQL -> Statement),
+ * jede Abfrage wird also nur einmal pro Verbindung übersetzt.
+ *
+ * Verbindungen werden erst beim ersten Gebrauch geöffnet. Schlägt das fehl
+ * (oder bricht eine Verbindung weg), gibt es eine SQLException wie vorher
+ * bei DriverManager.getConnection() und beim nächsten Aufruf einen neuen
+ * Versuch.
+ */
+final class ConnectionPool implements AutoCloseable {
+
+    // Anzahl der Verbindungen zum Lesen
+    private static final int READERS = Math.max(1, Integer.getInteger("chat.db.readers", 4));
+
+    // So lange wartet eine Abfrage, wenn ein anderer Prozess die Datei sperrt
+    private static final int BUSY_TIMEOUT_MS = Integer.getInteger("chat.db.busyTimeoutMs", 5000);
+
+    // Seiten-Cache pro Verbindung in KiB (negativ = KiB statt Seiten)
+    private static final int CACHE_KIB = Integer.getInteger("chat.db.cacheKiB", 4096);
+
+    // Datei bis zu dieser Größe direkt aus dem Speicher lesen
+    private static final long MMAP_BYTES = Long.getLong("chat.db.mmapBytes", 32L * 1024 * 1024);
+
+    /**
+     * Arbeit mit einer Verbindung (read() oder write()).
+     */
+    @FunctionalInterface
+    interface Work<T> {
+        T run(Handle db) throws SQLException;
+    }
+
+    /**
+     * Eine Verbindung mit ihren übersetzten Statements.
+     *
+     * Gehört während read()/write() genau einem Thread.
+     */
+    static final class Handle {
+
+        private final String url;
+        private final boolean readOnly;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private Connection connection;
+
+        private Handle(String url, boolean readOnly) {
+            this.url = url;
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * Gibt das Statement für diesen SQL-Text zurück (beim ersten Mal
+         * übersetzt, danach mit geleerten Parametern).
+         *
+         * Nicht schließen - es gehört der Verbindung. Das ResultSet dagegen
+         * schon (try-with-resources).
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection().prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Die Verbindung selbst (für Statements, die nur einmal laufen).
+         */
+        Connection connection() throws SQLException {
+            if (connection == null) {
+                Connection opened = DriverManager.getConnection(url);
+                try {
+                    configure(opened, readOnly);
+                } catch (SQLException e) {
+                    opened.close();
+                    throw e;
+                }
+                connection = opened;
+            }
+            return connection;
+        }
+
+        /**
+         * Nach einem Fehler: Ist die Verbindung kaputt, wird sie geschlossen
+         * und beim nächsten Mal neu geöffnet. (Fehler wie UNIQUE-Verletzungen
+         * lassen sie offen.)
+         */
+        private void discardIfBroken() {
+            try {
+                if (connection != null && connection.isValid(1)) {
+                    return;
+                }
+            } catch (SQLException e) {
+                // Kaputt
+            }
+            close();
+        }
+
+        private void close() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // Ignorieren beim Schließen
+                }
+            }
+            statements.clear();
+
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    // Ignorieren beim Schließen
+                }
+                connection = null;
+            }
+        }
+    }
+
+    private final Handle writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Freie Verbindungen zum Lesen
+    private final BlockingQueue<Handle> readers;
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * @param url JDBC-URL der Datenbank ("jdbc:sqlite:datei")
+     */
+    ConnectionPool(String url) {
+        writer = new Handle(url, false);
+        readers = new ArrayBlockingQueue<>(READERS);
+        for (int i = 0; i < READERS; i++) {
+            readers.add(new Handle(url, true));
+        }
+    }
+
+
+    /**
+     * Führt eine lesende Abfrage auf einer freien Leser-Verbindung aus
+     * (wartet, wenn alle belegt sind).
+     */
+    <T> T read(Work<T> work) throws SQLException {
+        if (closed) {
+            throw new SQLException("Datenbank ist geschlossen");
+        }
+
+        Handle handle;
+        try {
+            handle = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Unterbrochen beim Warten auf die Datenbank", e);
+        }
+
+        try {
+            return work.run(handle);
+        } catch (SQLException e) {
+            handle.discardIfBroken();
+            throw e;
+        } finally {
+            if (closed) {
+                handle.close();
+            }
+            readers.add(handle);
+        }
+    }
+
+
+    /**
+     * Führt Änderungen auf der einen Schreib-Verbindung aus. Was innerhalb
+     * eines Aufrufs läuft, kommt keinem anderen Schreiber in die Quere.
+     */
+    <T> T write(Work<T> work) throws SQLException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new SQLException("Datenbank ist geschlossen");
+            }
+            return work.run(writer);
+        } catch (SQLException e) {
+            writer.discardIfBroken();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    /**
+     * Schließt alle Verbindungen. Leser, die gerade arbeiten, schließen
+     * ihre Verbindung beim Zurückgeben.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        writeLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writeLock.unlock();
+        }
+
+        List<Handle> idle = new ArrayList<>();
+        readers.drainTo(idle);
+        for (Handle handle : idle) {
+            handle.close();
+        }
+        readers.addAll(idle);
+    }
+
+
+    /**
+     * Stellt eine frisch geöffnete Verbindung ein.
+     *
+     * - journal_mode=WAL: Leser blockieren den Schreiber nicht mehr und
+     *   umgekehrt; bleibt in der Datei gespeichert (nur der Schreiber setzt es)
+     * - synchronous=NORMAL: Im WAL-Modus sicher gegen kaputte Dateien, spart
+     *   das fsync bei jedem Commit (nur der Checkpoint wartet auf die Platte)
+     * - busy_timeout: Warten statt sofort SQLITE_BUSY, wenn die Datei gesperrt ist
+     * - query_only: Leser können versehentlich nichts ändern
+     */
+    private static void configure(Connection connection, boolean readOnly) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (!readOnly) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+            }
+            statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+            statement.execute("PRAGMA cache_size=-" + CACHE_KIB);
+            statement.execute("PRAGMA mmap_size=" + MMAP_BYTES);
+            statement.execute("PRAGMA temp_store=MEMORY");
+            if (readOnly) {
+                statement.execute("PRAGMA query_only=ON");
+            }
+        }
+    }
+}
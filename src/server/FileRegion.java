@@ -0,0 +1,235 @@
+package server;
+
+import protocol.Command;
+import protocol.Protocol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Inhalt einer Datei, der direkt aus dem Dateisystem auf den Socket geht.
+ *
+ * Wird für Downloads in die Ausgangs-Queue gelegt - zusammen mit dem Kopf
+ * (FILE_DATA-Frame + Größe) als EIN Eintrag, damit keine andere Nachricht
+ * zwischen Kopf und Datei geraten kann. Der Writer schreibt erst den Kopf
+ * und überträgt dann die Bytes mit FileChannel.transferTo() - unter Linux
+ * ist das sendfile(), die Datei wird also nie in den Java-Heap kopiert.
+ * Der Speicherbedarf pro Download ist damit unabhängig von der Dateigröße.
+ *
+ * Es kann auch nur ein Bereich der Datei gesendet werden (fortgesetzter
+ * Download). Die Größe wird beim Öffnen festgehalten.
+ *
+ * Ab v3 hat ein Download eine Transfer-ID und geht in Stücken raus
+ * (nextChunk): Der Writer sendet zwischen zwei Stücken erst alle wartenden
+ * Nachrichten und wechselt reihum zwischen mehreren Downloads. Der Kopf ist
+ * dann FILE_BEGIN, jedes Stück bekommt einen eigenen FILE_CHUNK-Kopf.
+ *
+ * Wird die Datei während des Downloads ersetzt oder ihr Inhalt aus dem
+ * BlobStore gelöscht, liest der Download weiter den alten (offenen) Inhalt.
+ */
+final class FileRegion {
+
+    private final FileChannel file;
+    private final long fileSize;
+    private final long start;
+    private final long end;
+    private long position;
+    // Bis hierhin sendet transferTo() (Ende des aktuellen Stücks bzw. der Datei)
+    private long limit;
+    private byte[] header = new byte[0];
+    // Nur bei Stücken (v3), sonst null
+    private String transferId;
+    private Runnable closeListener;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+
+    private FileRegion(FileChannel file, long fileSize, long start, long end) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+        this.limit = end;
+    }
+
+
+    /**
+     * Öffnet eine Datei zum Senden.
+     */
+    static FileRegion open(File source) throws IOException {
+        return open(source, 0, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Öffnet einen Bereich einer Datei zum Senden.
+     * Reicht der Bereich über das Dateiende hinaus, wird er gekürzt.
+     *
+     * @param source Die Datei
+     * @param offset Erstes Byte
+     * @param length Höchstens so viele Bytes
+     */
+    static FileRegion open(File source, long offset, long length) throws IOException {
+        FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        long fileSize = file.size();
+        long start = Math.min(offset, fileSize);
+        long end = start + Math.min(length, fileSize - start);
+        return new FileRegion(file, fileSize, start, end);
+    }
+
+
+    /**
+     * Anzahl der Bytes, die insgesamt gesendet werden.
+     */
+    long getSize() {
+        return end - start;
+    }
+
+
+    /**
+     * Position des ersten gesendeten Bytes in der Datei.
+     */
+    long getStart() {
+        return start;
+    }
+
+
+    /**
+     * Größe der ganzen Datei (beim Öffnen).
+     */
+    long getFileSize() {
+        return fileSize;
+    }
+
+
+    /**
+     * Legt die Bytes fest, die vor der Datei gesendet werden (vor dem Einreihen).
+     */
+    void setHeader(byte[] header) {
+        this.header = header;
+    }
+
+
+    byte[] getHeader() {
+        return header;
+    }
+
+
+    /**
+     * Lässt den Download in Stücken mit dieser ID senden (v3, vor dem Einreihen).
+     */
+    void setTransferId(String transferId) {
+        this.transferId = transferId;
+    }
+
+
+    /**
+     * Prüft ob der Download in Stücken gesendet wird (sonst am Stück hinter dem Kopf).
+     */
+    boolean isChunked() {
+        return transferId != null;
+    }
+
+
+    /**
+     * Wird einmal aufgerufen, wenn die Datei geschlossen wird (fertig oder abgebrochen).
+     */
+    void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+
+    /**
+     * Prüft ob alle Bytes gesendet sind.
+     */
+    boolean isFinished() {
+        return position >= end;
+    }
+
+
+    /**
+     * Legt das nächste Stück fest. Danach sendet transferTo() nur bis zu dessen Ende.
+     *
+     * @param maxBytes Höchstens so viele Bytes
+     * @return Der FILE_CHUNK-Kopf, auf den die Bytes des Stücks folgen müssen
+     */
+    byte[] nextChunk(int maxBytes) throws IOException {
+        limit = Math.min(end, position + maxBytes);
+        return Protocol.encodeChunkHeader(Command.FILE_CHUNK, transferId, (int) (limit - position));
+    }
+
+
+    /**
+     * Überträgt so viel wie möglich auf den Socket (bei Stücken nur das aktuelle).
+     * Bei einem blockierenden Socket kehrt die Methode erst zurück, wenn alles
+     * gesendet ist; bei einem nicht-blockierenden, sobald der Sendepuffer voll ist.
+     *
+     * @param target Der Socket
+     * @return true wenn das Stück bzw. die Datei gesendet ist (die Datei wird
+     *         nach dem letzten Byte geschlossen)
+     */
+    boolean transferTo(WritableByteChannel target) throws IOException {
+        while (position < limit) {
+            long count = file.transferTo(position, limit - position, target);
+            if (count == 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("Datei wurde während des Downloads verkürzt");
+                }
+                return false;
+            }
+            position += count;
+        }
+        if (isFinished()) {
+            close();
+        }
+        return true;
+    }
+
+
+    /**
+     * Schreibt das nächste Stück der Datei über einen Puffer (blockierend).
+     *
+     * Für blockierende Writer, wenn transferTo() nichts übertragen konnte:
+     * Bei virtuellen Threads ist der Socket intern nicht-blockierend, sendfile
+     * kehrt bei vollem Sendepuffer sofort zurück. write() wartet dagegen, bis
+     * wieder Platz ist - danach geht es mit transferTo() weiter.
+     *
+     * @param target Der Socket
+     * @param buffer Wiederverwendbarer Puffer des Writers
+     */
+    void writeChunk(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+        if (file.read(buffer, position) < 0) {
+            throw new EOFException("Datei wurde während des Downloads verkürzt");
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer);
+        }
+    }
+
+
+    /**
+     * Schließt die Datei (mehrfach aufrufbar, auch bei abgebrochenem Download).
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Ignorieren
+        }
+        if (closeListener != null) {
+            closeListener.run();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Beobachtet die Raumordner und den BlobStore mit einem WatchService und
+ * gleicht die Dateilisten im Speicher ab, wenn sich von außen etwas ändert.
+ *
+ * - Wird eine Datei in einen Raumordner kopiert, wird sie übernommen
+ *   (wie beim Start, siehe RoomFiles.importPlainFiles)
+ * - Wird ein Inhalt im BlobStore gelöscht, auf den noch Räume zeigen,
+ *   verschwinden die Einträge aus deren Listen
+ *
+ * Eigene Änderungen (Manifest, Teil-Uploads, neue Inhalte) betreffen nur
+ * versteckte Dateien bzw. neu angelegte Inhalte und werden ignoriert.
+ * Abgeglichen wird erst, wenn QUIET_PERIOD_MS lang nichts mehr passiert
+ * ist - eine gerade hineinkopierte Datei ist dann vollständig.
+ *
+ * Läuft in einem eigenen Daemon-Thread und hält dabei keine Sperre des
+ * RoomManagers.
+ */
+final class FileWatcher implements Runnable {
+
+    private static final long QUIET_PERIOD_MS = 500;
+
+    private final WatchService service;
+    private final Path blobDirectory;
+    private final BlobStore blobs;
+    private final Supplier<List<RoomFiles>> allRooms;
+    private final Server server;
+
+    // Beobachtete Raumordner
+    private final Map<WatchKey, RoomFiles> rooms = new ConcurrentHashMap<>();
+
+    // Unterordner des BlobStores (ab/, cd/, ...)
+    private final Set<WatchKey> buckets = ConcurrentHashMap.newKeySet();
+
+    // Nur im Watcher-Thread benutzt
+    private final Set<RoomFiles> dirtyRooms = new HashSet<>();
+    private boolean blobsDeleted;
+    private long reconcileAt;
+
+    private Thread thread;
+
+
+    /**
+     * @param blobDirectory Ordner des BlobStores
+     * @param blobs Der BlobStore (um eigene Löschungen zu erkennen)
+     * @param allRooms Liefert die Dateien aller aktiven Räume
+     * @param server Für Log-Ausgaben
+     */
+    FileWatcher(Path blobDirectory, BlobStore blobs, Supplier<List<RoomFiles>> allRooms,
+                Server server) throws IOException {
+        this.service = blobDirectory.getFileSystem().newWatchService();
+        this.blobDirectory = blobDirectory;
+        this.blobs = blobs;
+        this.allRooms = allRooms;
+        this.server = server;
+    }
+
+
+    /**
+     * Registriert den BlobStore und startet den Thread.
+     */
+    void start() throws IOException {
+        blobDirectory.register(service, StandardWatchEventKinds.ENTRY_CREATE);
+        try (Stream<Path> existing = Files.list(blobDirectory)) {
+            for (Path bucket : existing.filter(Files::isDirectory).toList()) {
+                watchBucket(bucket);
+            }
+        }
+
+        thread = new Thread(this, "FileWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Beobachtet den Ordner eines Raums.
+     */
+    void watch(RoomFiles files) {
+        try {
+            WatchKey key = files.getDirectory().toPath().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            rooms.put(key, files);
+        } catch (IOException | ClosedWatchServiceException e) {
+            server.log("Raumordner wird nicht beobachtet: " + files.getDirectory() + " (" + e.getMessage() + ")");
+        }
+    }
+
+
+    /**
+     * Beendet die Beobachtung eines Raums (vor dem Löschen des Ordners).
+     */
+    void unwatch(RoomFiles files) {
+        rooms.entrySet().removeIf(entry -> {
+            if (entry.getValue() != files) {
+                return false;
+            }
+            entry.getKey().cancel();
+            return true;
+        });
+    }
+
+
+    /**
+     * Beendet den Thread.
+     */
+    void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            // Ignorieren beim Herunterfahren
+        }
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = reconcileAt == 0
+                        ? service.take()
+                        : service.poll(Math.max(reconcileAt - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    handle(key);
+                    key.reset();
+                } else if (System.currentTimeMillis() >= reconcileAt) {
+                    reconcile();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Server wird beendet
+        }
+    }
+
+
+    /**
+     * Merkt sich, was abgeglichen werden muss, und schiebt den Abgleich nach hinten.
+     */
+    private void handle(WatchKey key) {
+        RoomFiles room = rooms.get(key);
+        boolean bucket = buckets.contains(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events verloren - alles abgleichen
+                dirtyRooms.addAll(allRooms.get());
+                blobsDeleted = true;
+                continue;
+            }
+
+            Path name = (Path) event.context();
+            if (room != null) {
+                // Versteckt = Manifest oder Teil-Upload (eigene Dateien)
+                if (!name.toString().startsWith(".")) {
+                    dirtyRooms.add(room);
+                }
+            } else if (bucket) {
+                // Eigene Löschungen haben keine Referenz mehr
+                if (blobs.isReferenced(name.toString())) {
+                    blobsDeleted = true;
+                }
+            } else {
+                // Neuer Unterordner im BlobStore
+                Path created = blobDirectory.resolve(name);
+                if (Files.isDirectory(created)) {
+                    watchBucket(created);
+                }
+            }
+        }
+
+        if (!dirtyRooms.isEmpty() || blobsDeleted) {
+            reconcileAt = System.currentTimeMillis() + QUIET_PERIOD_MS;
+        }
+    }
+
+
+    private void reconcile() {
+        if (blobsDeleted) {
+            dirtyRooms.addAll(allRooms.get());
+            blobsDeleted = false;
+        }
+        for (RoomFiles room : dirtyRooms) {
+            try {
+                int changed = room.reconcile();
+                if (changed > 0) {
+                    server.log("Dateiliste abgeglichen: " + room.getDirectory() + " (" + changed + " Änderungen)");
+                }
+            } catch (IOException e) {
+                server.log("Abgleich fehlgeschlagen: " + room.getDirectory() + " (" + e.getMessage() + ")");
+            }
+        }
+        dirtyRooms.clear();
+        reconcileAt = 0;
+    }
+
+
+    private void watchBucket(Path bucket) {
+        try {
+            buckets.add(bucket.register(service, StandardWatchEventKinds.ENTRY_DELETE));
+        } catch (IOException e) {
+            server.log("BlobStore-Ordner wird nicht beobachtet: " + bucket + " (" + e.getMessage() + ")");
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package server;
+
+import protocol.Command;
+import protocol.Protocol;
+
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Eine Nachricht an Clients (unveränderlich).
+ *
+ * Die Bytes werden pro Protokoll-Version höchstens einmal kodiert und dann
+ * wiederverwendet. Ein Broadcast legt so dieselben Bytes in die Queue jedes
+ * Empfängers, statt die Nachricht für jedes Mitglied neu zu kodieren - auch
+ * wenn im Raum v1- und v2-Clients gemischt sind.
+ *
+ * Die Bytes werden nie verändert - sie dürfen deshalb von beliebig vielen
+ * Verbindungen gleichzeitig geschrieben werden.
+ *
+ * Lange Listen (ROOM_LIST, USER_LIST, FILE_LIST) werden in Teile von
+ * höchstens LIST_CHUNK_CHARS Zeichen zerlegt: vorneweg *_PART-Frames, der
+ * Frame selbst enthält den letzten Teil. So bleibt jeder kodierte Frame klein,
+ * egal wie viele Räume es gibt. v1-Clients kennen die Teile nicht - sie
+ * bekommen die ganze Liste in einem Frame (siehe getWholeTextBytes()).
+ */
+final class Frame {
+
+    // Größte Länge, die in das 2-Byte-Präfix von v1 passt (wie bei writeUTF)
+    static final int MAX_LENGTH = 0xFFFF;
+
+    // Zeichen pro Listen-Teil (höchstens 3 Bytes pro Zeichen -> passt sicher in MAX_LENGTH)
+    static final int LIST_CHUNK_CHARS = 16 * 1024;
+
+    private final Command command;
+    private final List<String> fields;
+
+    // Vorangehende Teile einer langen Liste (meist leer)
+    private final List<Frame> parts;
+
+    // Kodierungen pro Version (werden beim ersten Bedarf erzeugt; doppeltes
+    // Kodieren bei gleichzeitigem Zugriff ist harmlos, das Ergebnis ist gleich)
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+
+    // Ganze Liste für v1 (bei langen Listen) und wie viele Einträge nicht mehr hineinpassten
+    private volatile byte[] wholeTextBytes;
+    private volatile int omitted;
+
+
+    private Frame(Command command, List<String> fields) {
+        this(command, fields, List.of());
+    }
+
+
+    private Frame(Command command, List<String> fields, List<Frame> parts) {
+        this.command = command;
+        this.fields = fields;
+        this.parts = parts;
+    }
+
+
+    /**
+     * Erstellt einen Frame für einen Befehl.
+     *
+     * @param command Der Befehl
+     * @param fields Die Felder (bei Listen: ein Eintrag pro Element)
+     */
+    static Frame of(Command command, String... fields) {
+        return new Frame(command, List.of(fields));
+    }
+
+
+    /**
+     * Erstellt einen Frame für einen Listen-Befehl (z.B. ROOM_LIST).
+     * Lange Listen werden in Teile zerlegt (siehe getParts()).
+     */
+    static Frame of(Command command, List<String> fields) {
+        Command partCommand = command.getPartCommand();
+        if (partCommand == null) {
+            return new Frame(command, List.copyOf(fields));
+        }
+
+        List<Frame> parts = new ArrayList<>();
+        int start = 0;
+        int chars = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            int length = fields.get(i).length() + 1;
+            if (chars + length > LIST_CHUNK_CHARS && i > start) {
+                parts.add(new Frame(partCommand, List.copyOf(fields.subList(start, i))));
+                start = i;
+                chars = 0;
+            }
+            chars += length;
+        }
+        return new Frame(command, List.copyOf(fields.subList(start, fields.size())), List.copyOf(parts));
+    }
+
+
+    /**
+     * Erstellt einen Frame für eine Chat-Nachricht.
+     */
+    static Frame chat(String message) {
+        return of(Command.CHAT, message);
+    }
+
+
+    /**
+     * Gibt die kodierten Bytes für eine Protokoll-Version zurück.
+     * Das Array wird geteilt und darf nicht verändert werden.
+     *
+     * @param version Protokoll-Version des Empfängers
+     * @throws UTFDataFormatException wenn die Nachricht für v1 zu lang ist (wie bei writeUTF)
+     */
+    byte[] getBytes(int version) throws UTFDataFormatException {
+        if (version >= Protocol.VERSION_2) {
+            byte[] bytes = binaryBytes;
+            if (bytes == null) {
+                bytes = Protocol.encodeBinary(command, fields);
+                binaryBytes = bytes;
+            }
+            return bytes;
+        }
+
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            bytes = encodeText(Protocol.toText(command, fields));
+            textBytes = bytes;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Gibt eine lange Liste für v1 in einem einzigen Frame zurück (alle Teile
+     * und dieser Frame). Passt sie nicht in MAX_LENGTH, fehlen die letzten
+     * Einträge - wie viele, sagt danach getOmittedEntries().
+     */
+    byte[] getWholeTextBytes() throws UTFDataFormatException {
+        byte[] bytes = wholeTextBytes;
+        if (bytes == null) {
+            List<String> all = new ArrayList<>();
+            for (Frame part : parts) {
+                all.addAll(part.fields);
+            }
+            all.addAll(fields);
+
+            // Einträge nehmen, solange sie samt Komma noch passen
+            int length = encodedLength(command.name()) + 1;
+            int count = 0;
+            while (count < all.size()) {
+                int next = encodedLength(all.get(count)) + (count > 0 ? 1 : 0);
+                if (length + next > MAX_LENGTH) {
+                    break;
+                }
+                length += next;
+                count++;
+            }
+
+            omitted = all.size() - count;
+            bytes = encodeText(Protocol.toText(command, all.subList(0, count)));
+            wholeTextBytes = bytes;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Anzahl der Einträge, die getWholeTextBytes() weglassen musste (0 = alle drin).
+     */
+    int getOmittedEntries() {
+        return omitted;
+    }
+
+
+    /**
+     * Kodiert einen v1-Text wie writeUTF (2 Bytes Länge + modified UTF-8).
+     * Schreibt direkt in ein Array der passenden Größe
+     * (kein ByteArrayOutputStream/DataOutputStream pro Nachricht).
+     */
+    private static byte[] encodeText(String message) throws UTFDataFormatException {
+        int length = encodedLength(message);
+        if (length > MAX_LENGTH) {
+            throw new UTFDataFormatException("Nachricht zu lang: " + length + " Bytes");
+        }
+
+        byte[] bytes = new byte[2 + length];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+
+        int pos = 2;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Länge in modified UTF-8 ('\0' belegt 2 Bytes, Zeichen über U+07FF 3 Bytes).
+     */
+    private static int encodedLength(String message) {
+        int length = message.length();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == 0 || c > 0x007F) {
+                length += c <= 0x07FF ? 1 : 2;
+            }
+        }
+        return length;
+    }
+
+
+    /**
+     * Hängt die Größe folgender Binärdaten (4 Bytes, wie writeInt) an die
+     * Kodierung an, z.B. für FILE_DATA. Die Bytes selbst sendet der Writer
+     * danach direkt aus der Datei. Das Ergebnis wird nicht zwischengespeichert.
+     */
+    byte[] withLength(int version, int length) throws UTFDataFormatException {
+        byte[] header = getBytes(version);
+        byte[] frame = Arrays.copyOf(header, header.length + 4);
+        frame[header.length] = (byte) (length >>> 24);
+        frame[header.length + 1] = (byte) (length >>> 16);
+        frame[header.length + 2] = (byte) (length >>> 8);
+        frame[header.length + 3] = (byte) length;
+        return frame;
+    }
+
+
+    Command getCommand() {
+        return command;
+    }
+
+
+    /**
+     * Gibt die Teile zurück, die vor diesem Frame gesendet werden müssen
+     * (nur bei langen Listen, sonst leer). Sie werden zusammen mit dem Frame
+     * eingereiht, damit sich zwei gleichzeitig gesendete Listen nicht mischen.
+     */
+    List<Frame> getParts() {
+        return parts;
+    }
+
+
+    /**
+     * Gibt die Nachricht als v1-Text zurück (für Historie und Log).
+     * Bei langen Listen nur der letzte Teil.
+     */
+    String getMessage() {
+        return Protocol.toText(command, fields);
+    }
+
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
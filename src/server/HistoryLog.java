@@ -0,0 +1,803 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Chat-Historie eines Raums als Log auf der Platte (room_history/Raumname/).
+ *
+ * Das Log besteht aus Segmenten, an die nur angehängt wird. Der Dateiname
+ * ist die Nummer der ersten Nachricht ("00000000000000000001.log"). Ist ein
+ * Segment voll, wird es abgeschlossen, bekommt seinen Index als eigene Datei
+ * (".idx") und ein neues beginnt. Gelöscht wird nichts - nur wenn
+ * chat.history.maxSegments gesetzt ist, fallen die ältesten Segmente weg.
+ *
+ * Jede Nachricht ist ein Eintrag [Länge: 4][CRC32: 4][Nummer: 8][UTF-8].
+ * Der Index ist dünn: nur jede INDEX_EVERY-te Nummer (und die erste eines
+ * Segments) mit ihrer Position. Gelesen wird über eine gemappte Datei: zum
+ * Eintrag im Index springen, von dort die paar Einträge weiterlesen.
+ *
+ * append() schreibt nur in einen Puffer im Speicher - das Schreiben auf die
+ * Platte samt fsync übernimmt der HistoryStore für viele Nachrichten (und
+ * Räume) auf einmal. Gelesen wird nur, was schon auf der Platte gesichert
+ * ist. Nach einem Absturz fehlen höchstens die Nachrichten seit dem letzten
+ * fsync; ein halb geschriebener Eintrag am Ende wird beim Öffnen abgeschnitten.
+ *
+ * Schlägt das Schreiben fehl (Platte voll o.ä.), wird das Segment auf den
+ * Stand davor zurückgeschnitten und der Block beim nächsten Durchgang
+ * erneut geschrieben - es gehen keine Nummern verloren.
+ */
+final class HistoryLog {
+
+    /**
+     * Eine Nachricht aus dem Log.
+     *
+     * @param seq Fortlaufende Nummer im Raum (ab 1)
+     * @param message Die Nachricht
+     */
+    record Entry(long seq, String message) {
+    }
+
+    /**
+     * Ein Block aufeinanderfolgender Einträge, wie er ins Segment geschrieben wird.
+     *
+     * @param index Nummer und Position (relativ zu bytes) der Index-Einträge
+     */
+    private record Batch(byte[] bytes, long firstSeq, long lastSeq, List<long[]> index) {
+
+        /**
+         * Hängt den nächsten Block dahinter.
+         */
+        Batch append(Batch next) {
+            byte[] joined = Arrays.copyOf(bytes, bytes.length + next.bytes.length);
+            System.arraycopy(next.bytes, 0, joined, bytes.length, next.bytes.length);
+            List<long[]> joinedIndex = new ArrayList<>(index);
+            for (long[] entry : next.index) {
+                joinedIndex.add(new long[] {entry[0], bytes.length + entry[1]});
+            }
+            return new Batch(joined, firstSeq, next.lastSeq, joinedIndex);
+        }
+    }
+
+    // Kopf eines Eintrags: Länge, CRC32, Nummer
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    // Ein Index-Eintrag pro so vielen Nachrichten
+    static final int INDEX_EVERY = 32;
+
+    // Ab dieser Größe wird ein neues Segment begonnen
+    static final long SEGMENT_BYTES = Long.getLong("chat.history.segmentBytes", 4L * 1024 * 1024);
+
+    // So viele Segmente bleiben pro Raum liegen (0 = alle, nichts wird gelöscht)
+    static final int MAX_SEGMENTS = Integer.getInteger("chat.history.maxSegments", 0);
+
+    // Ist mehr als das noch nicht geschrieben, wartet append() auf den HistoryStore
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+    private final HistoryStore store;
+
+    // Segmente nach Nummer sortiert (nie verändert, nur ersetzt - Leser brauchen keine Sperre)
+    private volatile List<Segment> segments;
+
+    // Letzte gesicherte Nummer (0 = keine)
+    private volatile long durableSeq;
+
+    // Noch nicht geschriebene Einträge (unter der Sperre)
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final List<long[]> pendingIndex = new ArrayList<>();
+    private long pendingFirstSeq;
+    private long pendingLastSeq;
+    private long nextSeq;
+    private boolean scheduled;
+
+    // Block, dessen Schreiben fehlgeschlagen ist (nur HistoryStore-Thread)
+    private Batch unwritten;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+
+
+    private HistoryLog(File directory, HistoryStore store, List<Segment> segments, long lastSeq) {
+        this.directory = directory;
+        this.store = store;
+        this.segments = segments;
+        this.durableSeq = lastSeq;
+        this.nextSeq = lastSeq + 1;
+    }
+
+
+    /**
+     * Öffnet das Log eines Raums. Segmente ohne Index-Datei und das letzte
+     * Segment werden durchgelesen; ein kaputter Eintrag am Ende wird
+     * abgeschnitten.
+     */
+    static HistoryLog open(File directory, HistoryStore store) throws IOException {
+        directory.mkdirs();
+        File[] files = directory.listFiles(file -> file.getName().endsWith(LOG_SUFFIX));
+        if (files == null) {
+            throw new IOException("Ordner nicht lesbar: " + directory.getPath());
+        }
+        Arrays.sort(files);
+
+        List<Segment> segments = new ArrayList<>();
+        long lastSeq = 0;
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            Segment segment = Segment.open(files[i], last);
+            if (segment.lastSeq > 0) {
+                lastSeq = segment.lastSeq;
+            }
+            segments.add(segment);
+        }
+        return new HistoryLog(directory, store, List.copyOf(segments), lastSeq);
+    }
+
+
+    // ========================================================================
+    // SCHREIBEN
+    // ========================================================================
+
+
+    /**
+     * Hängt eine Nachricht an (nur im Speicher, gesichert wird im HistoryStore).
+     * Wartet nur, wenn die Platte so weit hinterherhängt, dass schon
+     * MAX_PENDING_BYTES auf sie warten.
+     *
+     * @return Die Nummer der Nachricht
+     */
+    long append(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        boolean schedule = false;
+        long seq;
+
+        lock.lock();
+        try {
+            while (pending.size() > MAX_PENDING_BYTES && !store.isClosed()) {
+                drained.awaitUninterruptibly();
+            }
+
+            seq = nextSeq++;
+            if (pending.size() == 0) {
+                pendingFirstSeq = seq;
+            }
+            if (seq % INDEX_EVERY == 0) {
+                pendingIndex.add(new long[] {seq, pending.size()});
+            }
+            pendingOut.writeInt(text.length);
+            pendingOut.writeInt(checksum(seq, text));
+            pendingOut.writeLong(seq);
+            pendingOut.write(text);
+            pendingLastSeq = seq;
+
+            if (!scheduled) {
+                scheduled = true;
+                schedule = true;
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream wirft nicht
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+
+        if (schedule) {
+            store.schedule(this);
+        }
+        return seq;
+    }
+
+
+    /**
+     * Schreibt alle wartenden Einträge in das aktuelle Segment (nur vom
+     * HistoryStore-Thread). Gesichert und für Leser sichtbar werden sie
+     * erst mit sync().
+     *
+     * Schlägt das fehl, bleibt der Block liegen und wird beim nächsten
+     * Aufruf vor allem Neuen geschrieben. Bis dahin nimmt er höchstens
+     * MAX_PENDING_BYTES auf - danach wartet append() wie bei einer langsamen Platte.
+     */
+    void writePending() throws IOException {
+        Batch batch = unwritten;
+
+        lock.lock();
+        try {
+            scheduled = false;
+            if (pending.size() > 0 && (batch == null || batch.bytes().length < MAX_PENDING_BYTES)) {
+                Batch fresh = new Batch(pending.toByteArray(), pendingFirstSeq, pendingLastSeq,
+                        new ArrayList<>(pendingIndex));
+                batch = batch == null ? fresh : batch.append(fresh);
+                pending.reset();
+                pendingIndex.clear();
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batch == null) {
+            return;
+        }
+
+        try {
+            List<Segment> current = segments;
+            Segment active = current.isEmpty() ? null : current.get(current.size() - 1);
+            if (active == null || active.size >= SEGMENT_BYTES) {
+                active = roll(current, active, batch.firstSeq());
+            }
+            active.write(batch.bytes(), batch.firstSeq(), batch.lastSeq(), batch.index());
+            unwritten = null;
+        } catch (IOException e) {
+            unwritten = batch;
+            throw e;
+        }
+    }
+
+
+    /**
+     * true wenn ein Block nach einem Fehler noch nicht geschrieben ist
+     * (nur vom HistoryStore-Thread).
+     */
+    boolean hasUnwritten() {
+        return unwritten != null;
+    }
+
+
+    /**
+     * Sichert das aktuelle Segment (fsync) und macht die geschriebenen
+     * Einträge für Leser sichtbar (nur vom HistoryStore-Thread).
+     */
+    void sync() throws IOException {
+        List<Segment> current = segments;
+        if (current.isEmpty()) {
+            return;
+        }
+        Segment active = current.get(current.size() - 1);
+        if (active.sync()) {
+            lock.lock();
+            try {
+                durableSeq = active.lastSeq;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Schließt das aktuelle Segment ab, beginnt ein neues und löscht die
+     * ältesten, wenn es mehr als MAX_SEGMENTS sind (falls gesetzt).
+     */
+    private Segment roll(List<Segment> current, Segment active, long firstSeq) throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+
+        File file = new File(directory, String.format("%020d", firstSeq) + LOG_SUFFIX);
+        Segment created = Segment.create(file, firstSeq);
+
+        List<Segment> updated = new ArrayList<>(current);
+        updated.add(created);
+        while (MAX_SEGMENTS > 0 && updated.size() > MAX_SEGMENTS) {
+            updated.remove(0).delete();
+        }
+        segments = List.copyOf(updated);
+        return created;
+    }
+
+
+    /**
+     * Schließt das aktuelle Segment (beim Beenden, nach dem letzten sync()).
+     */
+    void close() {
+        List<Segment> current = segments;
+        if (!current.isEmpty()) {
+            current.get(current.size() - 1).closeChannel();
+        }
+    }
+
+
+    // ========================================================================
+    // LESEN
+    // ========================================================================
+
+
+    /**
+     * Gibt die letzten gesicherten Nachrichten zurück (älteste zuerst).
+     *
+     * @param limit Höchstens so viele
+     */
+    List<Entry> readLast(int limit) throws IOException {
+        long last = durableSeq;
+        return read(Math.max(1, last - limit + 1), last);
+    }
+
+
+    /**
+     * Liest die gesicherten Nachrichten von from bis to (beide einschließlich).
+     * Nummern, die nicht mehr (oder noch nicht) auf der Platte sind, fehlen.
+     */
+    List<Entry> read(long from, long to) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<Segment> current = segments;
+
+        // Letztes Segment, das bei from oder davor beginnt
+        int first = 0;
+        for (int i = current.size() - 1; i >= 0; i--) {
+            if (current.get(i).baseSeq <= from) {
+                first = i;
+                break;
+            }
+        }
+
+        for (int i = first; i < current.size() && (entries.isEmpty() || entries.get(entries.size() - 1).seq() < to); i++) {
+            current.get(i).read(from, to, entries);
+        }
+        return entries;
+    }
+
+
+    /**
+     * Liest eine Seite vor einer Nummer (für HISTORY_BEFORE).
+     *
+     * @param before Nachrichten vor dieser Nummer (0 = die neuesten)
+     * @param limit Höchstens so viele
+     * @return Die Nachrichten (älteste zuerst); leer wenn es davor nichts mehr gibt
+     */
+    List<Entry> readBefore(long before, int limit) throws IOException {
+        long to = before > 0 ? before - 1 : durableSeq;
+        long first = getFirstSeq();
+        if (first == 0 || to < first) {
+            return new ArrayList<>();
+        }
+        return read(Math.max(first, to - limit + 1), to);
+    }
+
+
+    /**
+     * Nummer der ältesten Nachricht, die noch auf der Platte liegt (0 = keine).
+     */
+    long getFirstSeq() {
+        for (Segment segment : segments) {
+            long first = segment.firstSeq();
+            if (first > 0) {
+                return first;
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Nummer der letzten angehängten Nachricht, auch wenn sie noch nicht
+     * gesichert ist (0 = keine).
+     */
+    long getLastSeq() {
+        lock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Wartet, bis eine Nachricht gesichert (und damit lesbar) ist.
+     *
+     * @return false wenn sie nach timeoutMs noch nicht gesichert ist
+     */
+    boolean awaitDurable(long seq, long timeoutMs) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    remaining = synced.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Nummer der letzten gesicherten Nachricht (0 = keine).
+     */
+    long getDurableSeq() {
+        return durableSeq;
+    }
+
+
+    private static int checksum(long seq, byte[] text) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(text);
+        return (int) crc.getValue();
+    }
+
+
+    // ========================================================================
+    // SEGMENT
+    // ========================================================================
+
+
+    /**
+     * Eine Log-Datei mit ihrem dünnen Index.
+     *
+     * Geschrieben wird nur vom HistoryStore-Thread. Leser sehen nur den Teil
+     * bis durableSize und den Index bis zu dessen (veröffentlichter) Länge.
+     */
+    private static final class Segment {
+
+        /**
+         * Veröffentlichter Stand des Index: Einträge [0, count) sind fertig.
+         */
+        private record Index(long[] seqs, long[] positions, int count) {
+        }
+
+        /**
+         * Gemappter Bereich [0, size) - Puffer und Größe gehören zusammen.
+         */
+        private record Mapping(MappedByteBuffer buffer, long size) {
+        }
+
+        final File file;
+        final long baseSeq;
+
+        // Nur vom Schreiber benutzt
+        private FileChannel channel;
+        long size;
+        long lastSeq;
+        private long[] indexSeqs = new long[16];
+        private long[] indexPositions = new long[16];
+        private int indexCount;
+        private long unsyncedSeq;
+        // Ein Schreiben ist mitten im Block abgebrochen und das Ende noch nicht abgeschnitten
+        private boolean torn;
+
+        // Für Leser veröffentlicht (nach fsync)
+        private volatile long durableSize;
+        private volatile Index index = new Index(indexSeqs, indexPositions, 0);
+
+        // Gemappter Bereich (wird neu gemappt, wenn die Datei gewachsen ist)
+        private final AtomicReference<Mapping> mapped = new AtomicReference<>();
+
+
+        private Segment(File file, long baseSeq) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+        }
+
+
+        static Segment create(File file, long baseSeq) throws IOException {
+            Segment segment = new Segment(file, baseSeq);
+            segment.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            return segment;
+        }
+
+
+        /**
+         * Öffnet ein vorhandenes Segment. Abgeschlossene Segmente mit
+         * Index-Datei werden nicht gelesen, alle anderen einmal durch (dabei
+         * wird der Index neu aufgebaut und ein kaputtes Ende abgeschnitten).
+         *
+         * @param active true beim letzten Segment (bleibt zum Schreiben offen)
+         */
+        static Segment open(File file, boolean active) throws IOException {
+            String name = file.getName();
+            long baseSeq = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            Segment segment = new Segment(file, baseSeq);
+
+            File indexFile = indexFile(file);
+            if (!active && indexFile.isFile() && segment.loadIndex(indexFile)) {
+                segment.size = file.length();
+            } else {
+                segment.scan();
+            }
+            segment.durableSize = segment.size;
+            segment.index = new Index(segment.indexSeqs, segment.indexPositions, segment.indexCount);
+
+            if (active) {
+                segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+                segment.channel.truncate(segment.size);
+                segment.channel.position(segment.size);
+            }
+            return segment;
+        }
+
+
+        /**
+         * Liest die Index-Datei ([Nummer: 8][Position: 8] je Eintrag, der letzte
+         * Eintrag ist die letzte Nummer des Segments mit Position -1).
+         *
+         * @return false wenn sie nicht passt (dann wird durchgelesen)
+         */
+        private boolean loadIndex(File indexFile) throws IOException {
+            try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                long length = in.size();
+                if (length < 16 || length % 16 != 0) {
+                    return false;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) length);
+                while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                    // weiterlesen
+                }
+                buffer.flip();
+
+                int entries = (int) (length / 16) - 1;
+                for (int i = 0; i < entries; i++) {
+                    addIndex(buffer.getLong(), buffer.getLong());
+                }
+                lastSeq = buffer.getLong();
+                return buffer.getLong() == -1;
+            }
+        }
+
+
+        /**
+         * Liest das Segment durch: Index neu aufbauen, letzte Nummer finden und
+         * beim ersten unvollständigen oder kaputten Eintrag aufhören.
+         */
+        private void scan() throws IOException {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = in.size();
+                ByteBuffer data = length > 0 ? in.map(FileChannel.MapMode.READ_ONLY, 0, length) : ByteBuffer.allocate(0);
+
+                long position = 0;
+                while (position + HEADER_SIZE <= length) {
+                    data.position((int) position);
+                    int textLength = data.getInt();
+                    int crc = data.getInt();
+                    long seq = data.getLong();
+                    if (textLength < 0 || position + HEADER_SIZE + textLength > length) {
+                        break;
+                    }
+                    byte[] text = new byte[textLength];
+                    data.get(text);
+                    if (checksum(seq, text) != crc) {
+                        break;
+                    }
+
+                    if (indexCount == 0 || seq % INDEX_EVERY == 0) {
+                        addIndex(seq, position);
+                    }
+                    lastSeq = seq;
+                    position += HEADER_SIZE + textLength;
+                }
+                size = position;
+            }
+        }
+
+
+        /**
+         * Schreibt Einträge ans Ende (ohne fsync). Bricht das ab, wird die
+         * Datei auf die alte Größe zurückgeschnitten - sonst stünde ein halber
+         * Eintrag mitten im Segment, und beim Öffnen ginge alles danach verloren.
+         *
+         * @param index Nummer und Position (relativ zu bytes) der Index-Einträge
+         */
+        void write(byte[] bytes, long firstSeq, long last, List<long[]> index) throws IOException {
+            if (torn) {
+                truncateTail();
+            }
+
+            int indexBefore = indexCount;
+            if (indexCount == 0) {
+                addIndex(firstSeq, size);
+            }
+            for (long[] entry : index) {
+                if (indexSeqs[indexCount - 1] != entry[0]) {
+                    addIndex(entry[0], size + entry[1]);
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                indexCount = indexBefore;
+                torn = true;
+                try {
+                    truncateTail();
+                } catch (IOException truncateFailed) {
+                    // Beim nächsten write() noch einmal
+                }
+                throw e;
+            }
+            size += bytes.length;
+            lastSeq = last;
+            unsyncedSeq = last;
+        }
+
+
+        /**
+         * Schneidet die Datei auf size zurück (Rest eines abgebrochenen Schreibens).
+         */
+        private void truncateTail() throws IOException {
+            channel.truncate(size);
+            channel.position(size);
+            torn = false;
+        }
+
+
+        /**
+         * fsync und danach Größe und Index für Leser veröffentlichen.
+         *
+         * @return true wenn es etwas zu sichern gab
+         */
+        boolean sync() throws IOException {
+            if (unsyncedSeq == 0) {
+                return false;
+            }
+            channel.force(false);
+            unsyncedSeq = 0;
+            index = new Index(indexSeqs, indexPositions, indexCount);
+            durableSize = size;
+            return true;
+        }
+
+
+        /**
+         * Schließt das Segment ab: Index-Datei schreiben, Datei schließen.
+         */
+        void seal() throws IOException {
+            sync();
+            ByteBuffer buffer = ByteBuffer.allocate((indexCount + 1) * 16);
+            for (int i = 0; i < indexCount; i++) {
+                buffer.putLong(indexSeqs[i]).putLong(indexPositions[i]);
+            }
+            buffer.putLong(lastSeq).putLong(-1).flip();
+
+            try (FileChannel out = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(false);
+            }
+            closeChannel();
+        }
+
+
+        /**
+         * Erste Nummer im Segment (0 solange noch nichts gesichert ist).
+         */
+        long firstSeq() {
+            Index published = index;
+            return published.count() > 0 ? published.seqs()[0] : 0;
+        }
+
+
+        void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignorieren
+                }
+                channel = null;
+            }
+        }
+
+
+        void delete() {
+            closeChannel();
+            file.delete();
+            indexFile(file).delete();
+        }
+
+
+        /**
+         * Hängt die Nachrichten from..to aus diesem Segment an entries an.
+         */
+        void read(long from, long to, List<Entry> entries) throws IOException {
+            long limit = durableSize;
+            Index published = index;
+            if (limit == 0 || published.count() == 0) {
+                return;
+            }
+
+            // Letzter Index-Eintrag bei from oder davor
+            int low = 0;
+            int high = published.count() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (published.seqs()[middle] <= from) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            ByteBuffer data = map(limit).duplicate();
+            long position = published.positions()[low];
+            while (position + HEADER_SIZE <= limit) {
+                data.position((int) position);
+                int textLength = data.getInt();
+                data.getInt();
+                long seq = data.getLong();
+                if (seq > to) {
+                    return;
+                }
+                if (seq >= from) {
+                    byte[] text = new byte[textLength];
+                    data.get(text);
+                    entries.add(new Entry(seq, new String(text, StandardCharsets.UTF_8)));
+                }
+                position += HEADER_SIZE + textLength;
+            }
+        }
+
+
+        /**
+         * Gibt die Datei gemappt bis mindestens limit zurück.
+         *
+         * Mappen mehrere Leser gleichzeitig neu, ersetzt jeder nur das
+         * Mapping, das er gesehen hat - ein größeres wird nie durch ein
+         * kleineres ersetzt. Gelesen wird aus dem zurückgegebenen Puffer,
+         * der immer bis limit reicht.
+         */
+        private MappedByteBuffer map(long limit) throws IOException {
+            Mapping current = mapped.get();
+            if (current != null && current.size() >= limit) {
+                return current.buffer();
+            }
+            MappedByteBuffer buffer;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+            }
+            mapped.compareAndSet(current, new Mapping(buffer, limit));
+            return buffer;
+        }
+
+
+        private void addIndex(long seq, long position) {
+            if (indexCount == indexSeqs.length) {
+                // Neue Arrays: Leser behalten ihren veröffentlichten Stand
+                indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexSeqs[indexCount] = seq;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+
+        private static File indexFile(File logFile) {
+            String name = logFile.getName();
+            return new File(logFile.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schreibt die Chat-Historie aller Räume auf die Platte (room_history/).
+ *
+ * Jeder Raum hat ein eigenes Log (siehe HistoryLog). Ein Broadcast hängt
+ * seine Nachricht dort nur im Speicher an - auf die Platte bringt sie ein
+ * eigener Thread. Der nimmt alles, was sich seit seinem letzten Durchgang
+ * angesammelt hat (aus allen Räumen), schreibt es und macht danach ein
+ * fsync pro Log ("Group Commit"). Unter Last teilen sich so hunderte
+ * Nachrichten ein fsync, und kein Broadcast wartet auf die Platte.
+ *
+ * Die Logs gehören zum Raumnamen, nicht zum Raum: Räume werden gelöscht,
+ * sobald sie leer sind, ihre Historie bleibt. Ein neuer Raum mit demselben
+ * Namen (auch nach einem Neustart) macht dort weiter. Offen bleiben Log und
+ * Index nur, solange ein Raum sie benutzt: Nach release() schreibt der
+ * Thread den Rest, geschlossen werden beide im Index-Thread (nach allem,
+ * was dort für diesen Index noch wartet - ein neuer Raum öffnet sonst
+ * Dateien, die gerade zusammengelegt werden).
+ *
+ * Daneben hat jeder Raum einen Volltext-Index (siehe SearchIndex, im
+ * Unterordner search/). Dessen Dateien schreibt und legt ein zweiter
+ * Thread zusammen, damit das Group Commit nie auf den Index wartet.
+ */
+final class HistoryStore implements Runnable {
+
+    // So oft schaut der Thread nach, ob er aufhören soll (nicht per
+    // interrupt(): das würde den FileChannel mitten im Schreiben schließen)
+    private static final long STOP_CHECK_MS = 100;
+
+    // Nach einem Schreibfehler: so lange warten, bevor es das Log noch einmal versucht
+    private static final long RETRY_MS = Long.getLong("chat.history.retryMs", 1000);
+
+    // So lange darf der Index-Thread beim Beenden noch schreiben
+    private static final long INDEX_CLOSE_TIMEOUT_MS = 5000;
+
+    private static final String INDEX_DIRECTORY = "search";
+
+    private final File directory;
+    private final Server server;
+
+    /**
+     * Ein offenes Log mit seinem Index.
+     *
+     * users zählt die Räume, die es benutzen (kurz zwei, wenn ein Raum mit
+     * demselben Namen neu angelegt wird), changes jedes open() und release().
+     * Beides ändert sich nur unter der Sperre der Map für diesen Namen.
+     */
+    private static final class Opened {
+
+        final HistoryLog log;
+        volatile SearchIndex index;
+        volatile int users;
+        volatile long changes;
+
+        Opened(HistoryLog log) {
+            this.log = log;
+        }
+    }
+
+    // Raumname -> Log und Index (solange ein Raum sie benutzt)
+    private final Map<String, Opened> opened = new ConcurrentHashMap<>();
+
+    // Freigegebene Räume (siehe release())
+    private final BlockingQueue<String> released = new LinkedBlockingQueue<>();
+
+    // Schreibt und legt die Index-Dateien aller Räume zusammen
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Search-Index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Logs mit neuen Nachrichten (jedes höchstens einmal, siehe HistoryLog.append())
+    private final BlockingQueue<HistoryLog> dirty = new LinkedBlockingQueue<>();
+
+    private Thread thread;
+    private volatile boolean closed;
+
+
+    /**
+     * @param directory Ordner für die Logs (wird angelegt)
+     * @param server Für Log-Ausgaben
+     */
+    HistoryStore(File directory, Server server) {
+        this.directory = directory;
+        this.server = server;
+        directory.mkdirs();
+    }
+
+
+    /**
+     * Startet den Schreib-Thread.
+     */
+    void start() {
+        thread = new Thread(this, "History");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Gibt das Log eines Raums zurück und öffnet es, wenn es noch nicht offen
+     * ist. Jeder Aufruf muss später mit release() freigegeben werden.
+     *
+     * @return Das Log oder null wenn es nicht lesbar ist (der Raum hat dann
+     *         nur die Historie im Speicher)
+     */
+    HistoryLog open(String roomName) {
+        try {
+            return opened.compute(roomName, (key, current) -> {
+                if (current == null) {
+                    try {
+                        current = new Opened(HistoryLog.open(new File(directory, key), this));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }
+                current.users++;
+                current.changes++;
+                return current;
+            }).log;
+        } catch (IllegalStateException e) {
+            server.log("Historie nicht lesbar: " + roomName + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+
+    /**
+     * Gibt den Volltext-Index eines Raums zurück und öffnet ihn beim ersten
+     * Mal (holt dabei nach, was im Log steht, aber noch nicht im Index).
+     *
+     * @param log Das Log des Raums (von open())
+     * @return Der Index oder null wenn er nicht lesbar ist (der Raum ist dann nicht durchsuchbar)
+     */
+    SearchIndex openIndex(String roomName, HistoryLog log) {
+        try {
+            Opened current = opened.computeIfPresent(roomName, (key, entry) -> {
+                if (entry.log == log && entry.index == null) {
+                    try {
+                        entry.index = SearchIndex.open(new File(new File(directory, key), INDEX_DIRECTORY), log,
+                                this::runIndexTask);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }
+                return entry;
+            });
+            return current != null && current.log == log ? current.index : null;
+        } catch (IllegalStateException e) {
+            server.log("Suchindex nicht lesbar: " + roomName + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+
+    /**
+     * Gibt das Log eines Raums frei (Raum gelöscht, nichts wird mehr
+     * angehängt). Benutzt es kein Raum mehr, schreibt der Thread den Rest
+     * und schließt Log und Index.
+     *
+     * @param log Das Log von open()
+     */
+    void release(String roomName, HistoryLog log) {
+        opened.computeIfPresent(roomName, (key, current) -> {
+            if (current.log == log) {
+                current.users--;
+                current.changes++;
+            }
+            return current;
+        });
+        if (!closed) {
+            released.add(roomName);
+        }
+    }
+
+
+    /**
+     * Führt eine Aufgabe eines Index im Index-Thread aus (nach close() nicht mehr).
+     */
+    private void runIndexTask(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            indexer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Gerade beendet
+        }
+    }
+
+
+    /**
+     * Meldet ein Log mit neuen Nachrichten (von HistoryLog.append()).
+     */
+    void schedule(HistoryLog log) {
+        if (!closed) {
+            dirty.add(log);
+        }
+    }
+
+
+    /**
+     * true nach close() - dann wartet append() nicht mehr auf den Thread.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+
+    /**
+     * Beendet den Thread, schreibt den Rest und schließt alle Logs.
+     */
+    void close() {
+        closed = true;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Was nach dem letzten Durchgang kam
+        List<HistoryLog> all = new ArrayList<>();
+        for (Opened current : opened.values()) {
+            all.add(current.log);
+        }
+        commit(all);
+        for (HistoryLog log : all) {
+            log.close();
+        }
+
+        // Laufendes Zusammenlegen zu Ende bringen, den Rest holt der nächste Start aus dem Log
+        for (Opened current : opened.values()) {
+            if (current.index != null) {
+                current.index.close();
+            }
+        }
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(INDEX_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    @Override
+    public void run() {
+        List<HistoryLog> batch = new ArrayList<>();
+        // Logs, deren Schreiben fehlgeschlagen ist (ihr Block wartet in HistoryLog)
+        Set<HistoryLog> failed = new LinkedHashSet<>();
+        long lastRetry = 0;
+        // Freigegebene Räume, deren Log noch geschlossen werden muss
+        Set<String> evicting = new LinkedHashSet<>();
+        try {
+            while (!closed) {
+                HistoryLog log = dirty.poll(STOP_CHECK_MS, TimeUnit.MILLISECONDS);
+                if (log != null) {
+                    batch.add(log);
+                    dirty.drainTo(batch);
+                }
+                // Fehlgeschlagene Logs erst nach RETRY_MS wieder (neue Nachrichten warten so lange mit)
+                if (!failed.isEmpty() && System.currentTimeMillis() - lastRetry >= RETRY_MS) {
+                    batch.addAll(failed);
+                    failed.clear();
+                    lastRetry = System.currentTimeMillis();
+                } else {
+                    batch.removeAll(failed);
+                }
+                if (!batch.isEmpty()) {
+                    failed.addAll(commit(batch));
+                    batch.clear();
+                }
+
+                released.drainTo(evicting);
+                evicting.removeIf(name -> evict(name, failed));
+            }
+        } catch (InterruptedException e) {
+            // Beendet - den Rest schreibt close()
+        }
+    }
+
+
+    /**
+     * Schreibt den Rest eines freigegebenen Logs und lässt dann Log und
+     * Index im Index-Thread schließen. Wurde der Raum inzwischen wieder
+     * geöffnet (changes anders), bleibt beides offen.
+     *
+     * @param failed Logs, deren Schreiben fehlgeschlagen ist
+     * @return false wenn das Log erst noch geschrieben werden muss (nächster Durchgang)
+     */
+    private boolean evict(String roomName, Set<HistoryLog> failed) {
+        Opened entry = opened.get(roomName);
+        if (entry == null || entry.users > 0) {
+            return true;
+        }
+        if (failed.contains(entry.log)) {
+            return false;
+        }
+
+        long changes = entry.changes;
+        List<HistoryLog> notWritten = commit(List.of(entry.log));
+        if (!notWritten.isEmpty()) {
+            failed.addAll(notWritten);
+            return false;
+        }
+
+        runIndexTask(() -> opened.computeIfPresent(roomName, (key, current) -> {
+            if (current != entry || current.users > 0 || current.changes != changes) {
+                return current;
+            }
+            current.log.close();
+            if (current.index != null) {
+                current.index.close();
+            }
+            return null;
+        }));
+        return true;
+    }
+
+
+    /**
+     * Schreibt die wartenden Nachrichten aller Logs und macht danach ein
+     * fsync pro Log - erst alles schreiben, dann sichern, damit sich die
+     * Platte die Schreibvorgänge zusammenlegen kann.
+     *
+     * @return Die Logs, deren Schreiben fehlgeschlagen ist
+     */
+    private List<HistoryLog> commit(List<HistoryLog> batch) {
+        Set<HistoryLog> written = new LinkedHashSet<>();
+        List<HistoryLog> failed = new ArrayList<>();
+        for (HistoryLog log : batch) {
+            if (written.contains(log) || failed.contains(log)) {
+                continue;
+            }
+            try {
+                log.writePending();
+                written.add(log);
+            } catch (IOException e) {
+                failed.add(log);
+                server.log("Historie nicht geschrieben (neuer Versuch folgt): " + e.getMessage());
+            }
+        }
+        for (HistoryLog log : written) {
+            try {
+                log.sync();
+            } catch (IOException e) {
+                server.log("Historie nicht gesichert: " + e.getMessage());
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,644 @@
+package server;
+
+import protocol.Command;
+import protocol.Message;
+import protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Eine Client-Verbindung der NIO-Engine.
+ *
+ * Dekodiert das gleiche Protokoll wie DataInputStream, nur nicht-blockierend:
+ * - v1 Text-Frames: 2 Bytes Länge + modified UTF-8 (wie writeUTF/readUTF)
+ * - v2 Binär-Frames: 1 Byte Opcode + Varint-Länge + Felder
+ * - Upload-Daten: 4 Bytes Größe (wie writeInt) + Datei-Bytes, die ohne
+ *   Zwischenkopie in die Temp-Datei des Uploads geschrieben werden
+ *
+ * Kommen Daten nur teilweise an, werden die restlichen Bytes bis zum nächsten
+ * Lesen aufbewahrt (in einem Puffer, der bei Bedarf auf das Doppelte wächst,
+ * damit ein großer Frame in vielen Stücken nicht jedes Mal ganz kopiert wird).
+ *
+ * Der ClientHandler läuft nicht in der Event-Loop, sondern in einem Worker
+ * (NioEventLoop.dispatch()). Pro Verbindung ist immer nur ein Aufruf
+ * unterwegs; solange liest die Loop von dieser Verbindung nichts. Erst
+ * danach wird weiter dekodiert - so bleibt die Reihenfolge erhalten, und
+ * der Dekodierer sieht die neue Protokoll-Version bzw. den angekündigten
+ * Upload, bevor er die nächsten Bytes deutet.
+ *
+ * Auch das Aufräumen nach dem Trennen (EOF, Schreibfehler, zu langsamer
+ * Client) läuft so: Die Loop schließt nur den Channel, connectionLost()
+ * kommt als letzter Aufruf in einen Worker - erst wenn der laufende Aufruf
+ * (z.B. writeUpload()) fertig ist.
+ *
+ * Ausgaben liegen in der OutboundQueue des ClientHandlers
+ * und werden von der Event-Loop geschrieben, sobald der Socket bereit ist -
+ * alles was bis dahin eingereiht wurde, mit einem einzigen write()-Aufruf.
+ * Downloads in Stücken (v3) gehen reihum raus, wenn kein Frame mehr wartet.
+ */
+class NioConnection {
+
+    // Zustände des Dekodierers
+    private enum ReadState { FRAME, UPLOAD_SIZE, UPLOAD_DATA, UPLOAD_DISCARD }
+
+    // Markierung: Frame ist noch nicht vollständig angekommen
+    private static final Message NOT_COMPLETE = new Message(Command.CHAT, List.of());
+
+    // Nach diesen Befehlen wird erst weiter dekodiert, wenn der ClientHandler
+    // sie verarbeitet hat (neue Protokoll-Version, Binärdaten eines Uploads)
+    private static final Set<Command> DECODER_BARRIERS = EnumSet.of(Command.PROTOCOL, Command.UPLOAD_FILE);
+
+    // So viele Frames werden höchstens mit einem write()-Aufruf geschrieben
+    private static final int MAX_BATCH_FRAMES = 64;
+
+    // So viele Download-Stücke am Stück, dann sind erst die anderen Verbindungen der Event-Loop dran
+    private static final int MAX_CHUNKS_PER_FLUSH = 8;
+
+    // Anfangsgröße des Puffers für unvollständige Frames
+    private static final int MIN_LEFTOVER_SIZE = 4096;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private ClientHandler handler;
+    private SelectionKey key;
+
+    // ===== Lesen (nur im Thread der Event-Loop) =====
+    private ReadState state = ReadState.FRAME;
+    // Aufbewahrte Bytes (Schreibmodus), null wenn nichts übrig ist
+    private ByteBuffer leftover;
+    private int discardRemaining;
+    // Ein Aufruf des ClientHandlers läuft gerade im Worker (Lesen pausiert)
+    private boolean dispatching = false;
+    // Verbindung verloren: connectionLost() steht aus bzw. ist schon übergeben
+    private boolean lost = false;
+    private boolean tornDown = false;
+    private String lostReason;
+
+    // ===== Schreiben (Puffer nur im Thread der Event-Loop) =====
+    // Frames, die mit einem write()-Aufruf zusammen geschrieben werden
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    // Download (bzw. Stück), der nach dem Batch per transferTo() gesendet wird
+    private FileRegion region;
+    // Laufende Downloads in Stücken (v3), reihum
+    private final ArrayDeque<FileRegion> transfers = new ArrayDeque<>();
+    // CLOSE-Markierung gesehen: nach dem aktuellen Batch schließen
+    private boolean closeAfterBatch = false;
+    private boolean writeInterest = false;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+
+
+    NioConnection(SocketChannel channel, NioEventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+
+    // ========================================================================
+    // LESEN
+    // ========================================================================
+
+
+    /**
+     * Ein Aufruf des ClientHandlers, der im Worker läuft.
+     */
+    @FunctionalInterface
+    private interface HandlerCall {
+        void run() throws IOException;
+    }
+
+
+    /**
+     * Liest verfügbare Bytes und verarbeitet alle vollständigen Frames.
+     *
+     * @param readBuffer Gemeinsamer Lesepuffer der Event-Loop
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        if (dispatching || closing) {
+            return;
+        }
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                lose(null);
+                return;
+            }
+            readBuffer.flip();
+
+            if (leftover == null) {
+                process(readBuffer);
+            } else {
+                // Hinter die Reste vom letzten Lesen hängen
+                append(readBuffer);
+                process(leftover.flip());
+            }
+
+        } catch (IOException e) {
+            lose(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Dekodiert und hebt auf, was übrig bleibt (unvollständiger Frame oder
+     * Bytes hinter einem Aufruf, der noch läuft).
+     *
+     * @param in Der Lesepuffer der Event-Loop oder leftover (beide im Lesemodus)
+     */
+    private void process(ByteBuffer in) throws IOException {
+        decode(in);
+
+        if (in == leftover) {
+            leftover.compact();
+            if (leftover.position() == 0) {
+                // Nichts mehr übrig - einen großen Puffer nicht pro Verbindung festhalten
+                leftover = null;
+            }
+        } else if (in.hasRemaining() && !closing) {
+            append(in);
+        }
+    }
+
+
+    /**
+     * Hängt Bytes an leftover an. Reicht der Platz nicht, wächst der Puffer
+     * mindestens auf das Doppelte.
+     */
+    private void append(ByteBuffer src) {
+        if (leftover == null) {
+            leftover = ByteBuffer.allocate(Math.max(src.remaining(), MIN_LEFTOVER_SIZE));
+        } else if (leftover.remaining() < src.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                    Math.max(leftover.capacity() * 2, leftover.position() + src.remaining()));
+            grown.put(leftover.flip());
+            leftover = grown;
+        }
+        leftover.put(src);
+    }
+
+
+    /**
+     * Zustandsautomat: verarbeitet so viele Bytes wie möglich, bis ein
+     * Aufruf an den ClientHandler übergeben ist.
+     */
+    private void decode(ByteBuffer in) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        while (!closing) {
+            switch (state) {
+                case FRAME -> {
+                    // Die Version kann sich nach jeder PROTOCOL-Nachricht ändern (siehe DECODER_BARRIERS)
+                    Message message = handler.getProtocolVersion() >= Protocol.VERSION_2
+                            ? decodeBinary(in)
+                            : decodeText(in);
+                    if (message == NOT_COMPLETE) {
+                        dispatchMessages(messages);
+                        return;
+                    }
+
+                    messages.add(message);
+                    if (message != null && DECODER_BARRIERS.contains(message.getCommand())) {
+                        dispatchMessages(messages);
+                        return;
+                    }
+                }
+                case UPLOAD_SIZE -> {
+                    if (in.remaining() < 4) return;
+                    int fileSize = in.getInt();
+
+                    if (fileSize > ClientHandler.MAX_FILE_SIZE || fileSize < 0) {
+                        discardRemaining = Math.max(fileSize, 0);
+                        state = ReadState.UPLOAD_DISCARD;
+                    } else {
+                        state = ReadState.UPLOAD_DATA;
+                        dispatch(() -> handler.beginUpload(fileSize));
+                        return;
+                    }
+                }
+                case UPLOAD_DATA -> {
+                    // Nie mehr nehmen als zum Upload gehört - danach kommt der nächste Befehl.
+                    // Kopie, weil der Lesepuffer der Event-Loop gleich wieder gefüllt
+                    // (bzw. leftover zusammengeschoben) wird.
+                    int count = Math.min(in.remaining(), handler.getUploadRemaining());
+                    if (count == 0 && handler.getUploadRemaining() > 0) return;
+
+                    ByteBuffer data = ByteBuffer.allocate(count);
+                    data.put(in.slice(in.position(), count)).flip();
+                    in.position(in.position() + count);
+                    dispatch(() -> handler.writeUpload(data));
+                    return;
+                }
+                case UPLOAD_DISCARD -> {
+                    int count = Math.min(in.remaining(), discardRemaining);
+                    in.position(in.position() + count);
+                    discardRemaining -= count;
+                    if (discardRemaining > 0) return;
+
+                    state = ReadState.FRAME;
+                    dispatch(handler::rejectOversizeUpload);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    private void dispatchMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        dispatch(() -> {
+            for (Message message : messages) {
+                if (closing) {
+                    return;
+                }
+                handler.handleMessage(message);
+            }
+        });
+    }
+
+
+    /**
+     * Übergibt einen Aufruf an den Worker und pausiert das Lesen, bis er
+     * fertig ist (danach geht es in resume() weiter).
+     */
+    private void dispatch(HandlerCall call) {
+        dispatching = true;
+        updateInterest();
+
+        loop.dispatch(() -> {
+            try {
+                if (!closing) {
+                    call.run();
+                }
+            } catch (IOException e) {
+                abort(e.getMessage());
+            } catch (RuntimeException e) {
+                abort(e.toString());
+            }
+            loop.execute(this::resume);
+        });
+    }
+
+
+    /**
+     * Der Aufruf im Worker ist fertig: Zustand übernehmen und weiter dekodieren.
+     */
+    private void resume() {
+        dispatching = false;
+        if (lost) {
+            // Verbindung ist während des Aufrufs abgebrochen - jetzt aufräumen
+            tearDown();
+            return;
+        }
+        if (closing) {
+            return;
+        }
+
+        if (state == ReadState.FRAME && handler.isAwaitingUpload()) {
+            // Auf den Upload-Befehl folgen die Binärdaten
+            state = ReadState.UPLOAD_SIZE;
+        } else if (state == ReadState.UPLOAD_DATA && !handler.isReceivingUpload()) {
+            state = ReadState.FRAME;
+        }
+
+        try {
+            if (leftover != null) {
+                process(leftover.flip());
+            } else if (state == ReadState.UPLOAD_DATA && handler.getUploadRemaining() == 0) {
+                // Leerer Upload: ohne weitere Bytes abschließen
+                process(ByteBuffer.allocate(0));
+            }
+        } catch (IOException e) {
+            lose(e.getMessage());
+            return;
+        }
+
+        updateInterest();
+    }
+
+
+    /**
+     * Dekodiert einen v1-Frame im Format von writeUTF (inklusive Längen-Präfix).
+     *
+     * @return Die Nachricht oder NOT_COMPLETE wenn noch Bytes fehlen
+     */
+    private static Message decodeText(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) return NOT_COMPLETE;
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (in.remaining() < 2 + length) return NOT_COMPLETE;
+
+        byte[] frame = new byte[2 + length];
+        in.get(frame);
+        String text = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+        return Protocol.parseText(text, Command.Direction.CLIENT);
+    }
+
+
+    /**
+     * Dekodiert einen v2-Frame (Opcode + Varint-Länge + Felder).
+     *
+     * @return Die Nachricht, null bei unbekanntem Opcode oder NOT_COMPLETE wenn noch Bytes fehlen
+     */
+    private static Message decodeBinary(ByteBuffer in) throws IOException {
+        int headerLength = Protocol.peekHeaderLength(in);
+        if (headerLength < 0) return NOT_COMPLETE;
+        int length = Protocol.peekPayloadLength(in);
+        if (in.remaining() < headerLength + length) return NOT_COMPLETE;
+
+        int opcode = in.get() & 0xFF;
+        in.position(in.position() + headerLength - 1);
+        byte[] payload = new byte[length];
+        in.get(payload);
+        return Protocol.decodeBinary(opcode, payload, Command.Direction.CLIENT);
+    }
+
+
+    // ========================================================================
+    // SCHREIBEN
+    // ========================================================================
+
+
+    /**
+     * Meldet, dass neue Frames in der Ausgangs-Queue liegen.
+     * Darf von beliebigen Threads aufgerufen werden.
+     */
+    void requestFlush() {
+        if (!closing && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushWrites);
+        }
+    }
+
+
+    /**
+     * Wird aufgerufen, wenn der Socket wieder Daten annimmt.
+     */
+    void onWritable() {
+        flushWrites();
+    }
+
+
+    /**
+     * Schreibt so viel aus der Ausgangs-Queue wie der Socket gerade annimmt.
+     * Läuft nur im Thread der Event-Loop.
+     *
+     * Alle bis dahin eingereihten Frames (z.B. die Historie beim Betreten eines
+     * Raums oder viele Nachrichten in einem vollen Raum) werden gesammelt und
+     * mit einem einzigen write()-Aufruf geschrieben (Gathering-Write) statt
+     * einem Systemaufruf pro Frame. Downloads gehen danach mit transferTo()
+     * direkt aus der Datei auf den Socket - in Stücken (v3) immer erst,
+     * wenn keine Frames mehr warten, damit der Chat nicht hinter der Datei hängt.
+     */
+    private void flushWrites() {
+        if (closing) {
+            return;
+        }
+
+        OutboundQueue outbound = handler.getOutbound();
+        int chunks = 0;
+        try {
+            while (true) {
+                if (batchStart < batchEnd) {
+                    channel.write(batch, batchStart, batchEnd - batchStart);
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd) {
+                        // Sendepuffer voll - weiter wenn der Socket wieder schreibbar ist
+                        setWriteInterest(true);
+                        return;
+                    }
+                } else if (region != null) {
+                    // Datei direkt aus dem Dateisystem (sendfile), so weit der Sendepuffer reicht
+                    if (!region.transferTo(channel)) {
+                        setWriteInterest(true);
+                        return;
+                    }
+                    if (!region.isFinished()) {
+                        // Stück fertig - der Download kommt wieder hinten an
+                        transfers.add(region);
+                    }
+                    region = null;
+                } else if (closeAfterBatch) {
+                    break;
+                } else if (fillBatch(outbound)) {
+                    continue;
+                } else if (chunks == MAX_CHUNKS_PER_FLUSH && !transfers.isEmpty()) {
+                    // Später weiter (flushScheduled bleibt gesetzt)
+                    setWriteInterest(false);
+                    loop.execute(this::flushWrites);
+                    return;
+                } else if (nextChunk()) {
+                    chunks++;
+                } else {
+                    break;
+                }
+            }
+
+            if (closeAfterBatch) {
+                closeChannel();
+                return;
+            }
+
+            setWriteInterest(false);
+            flushScheduled.set(false);
+
+            // Falls zwischendurch etwas eingereiht wurde
+            if (!outbound.isEmpty()) {
+                requestFlush();
+            }
+
+        } catch (IOException e) {
+            lose(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Holt wartende Frames aus der Queue in den Batch.
+     * Ein Download beendet den Batch - er wird danach gesendet.
+     *
+     * @return false wenn nichts zu schreiben ist
+     */
+    private boolean fillBatch(OutboundQueue outbound) {
+        batchStart = 0;
+        batchEnd = 0;
+        while (batchEnd < MAX_BATCH_FRAMES) {
+            Object item = outbound.poll();
+            if (item == null) {
+                break;
+            }
+            if (item == OutboundQueue.CLOSE) {
+                closeAfterBatch = true;
+                break;
+            }
+            if (item instanceof FileRegion file) {
+                batch[batchEnd++] = ByteBuffer.wrap(file.getHeader());
+                if (file.isChunked()) {
+                    // Nur FILE_BEGIN - die Stücke kommen, wenn keine Frames mehr warten
+                    if (file.isFinished()) {
+                        file.close();
+                    } else {
+                        transfers.add(file);
+                    }
+                    continue;
+                }
+                // Kopf noch in diesen Batch, die Datei danach
+                region = file;
+                break;
+            }
+            batch[batchEnd++] = ByteBuffer.wrap((byte[]) item);
+        }
+        return batchEnd > 0 || region != null;
+    }
+
+
+    /**
+     * Legt das nächste Stück eines laufenden Downloads (reihum) in den Batch.
+     *
+     * @return false wenn kein Download läuft
+     */
+    private boolean nextChunk() throws IOException {
+        FileRegion next = transfers.poll();
+        if (next == null) {
+            return false;
+        }
+        batch[0] = ByteBuffer.wrap(next.nextChunk(ClientHandler.TRANSFER_CHUNK_SIZE));
+        batchStart = 0;
+        batchEnd = 1;
+        region = next;
+        return true;
+    }
+
+
+    private void setWriteInterest(boolean enabled) {
+        writeInterest = enabled;
+        updateInterest();
+    }
+
+
+    /**
+     * Lesen nur, solange kein Aufruf im Worker läuft; Schreiben nur,
+     * wenn der Sendepuffer voll war.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = (dispatching ? 0 : SelectionKey.OP_READ)
+                | (writeInterest ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+
+    /**
+     * Schließt die Verbindung, nachdem noch ausstehende Frames geschrieben wurden
+     * (soweit der Socket sie sofort annimmt, z.B. für "DISCONNECT:...").
+     */
+    void close() {
+        loop.execute(() -> {
+            flushWrites();
+            lose(null);
+        });
+    }
+
+
+    /**
+     * Bricht die Verbindung sofort ab (z.B. weil der Client zu langsam liest).
+     * Darf von beliebigen Threads aufgerufen werden.
+     *
+     * @param reason Grund für das Log
+     */
+    void abort(String reason) {
+        loop.execute(() -> lose(reason));
+    }
+
+
+    /**
+     * Schließt den Channel und lässt den ClientHandler aufräumen - im Worker,
+     * nach einem evtl. noch laufenden Aufruf. Läuft nur im Thread der Event-Loop.
+     *
+     * @param reason Grund für das Log, null wenn der Client sich abgemeldet hat
+     */
+    private void lose(String reason) {
+        closeChannel();
+        if (lost) {
+            return;
+        }
+        lost = true;
+        lostReason = reason;
+        if (!dispatching) {
+            tearDown();
+        }
+    }
+
+
+    /**
+     * Letzter Aufruf im Worker: connectionLost() und die Temp-Dateien
+     * abgebrochener Uploads. Danach wird nicht mehr gelesen (dispatching bleibt gesetzt).
+     */
+    private void tearDown() {
+        if (tornDown) {
+            return;
+        }
+        tornDown = true;
+        dispatching = true;
+        String reason = lostReason;
+        loop.dispatch(() -> {
+            try {
+                handler.connectionLost(reason);
+            } finally {
+                handler.abortUploads();
+            }
+        });
+    }
+
+
+    private void closeChannel() {
+        closing = true;
+        Arrays.fill(batch, null);
+        batchStart = 0;
+        batchEnd = 0;
+        if (region != null) {
+            region.close();
+            region = null;
+        }
+        transfers.forEach(FileRegion::close);
+        transfers.clear();
+        if (handler != null) {
+            handler.getOutbound().discard();
+        }
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            // Ignorieren
+        }
+    }
+}
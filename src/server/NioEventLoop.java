@@ -0,0 +1,221 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Event-Loop der NIO-Engine.
+ *
+ * Jede Event-Loop besitzt einen eigenen Selector und bedient beliebig viele
+ * Verbindungen in genau einem Thread. Statt eines Threads pro Client laufen
+ * so nur wenige Threads für alle Clients.
+ *
+ * Andere Threads dürfen den Selector nicht direkt anfassen - sie legen
+ * Aufgaben mit execute() in eine Queue, die die Loop selbst abarbeitet.
+ *
+ * Die Loop selbst liest, dekodiert und schreibt nur. Die Nachrichten
+ * verarbeitet der ClientHandler in einem virtuellen Thread (dispatch()) -
+ * Login-Abfragen, Historie, Suche oder das Speichern eines Uploads halten
+ * so die anderen Verbindungen der Loop nicht auf.
+ */
+class NioEventLoop implements Runnable {
+
+    // Größe des gemeinsamen Lesepuffers (ein kompletter UTF-Frame passt hinein)
+    private static final int READ_BUFFER_SIZE = 64 * 1024 + 2;
+
+    private final Server server;
+    private final UserManager userManager;
+    private final Selector selector;
+
+    // Aufgaben von anderen Threads (Registrieren, Schreiben, Schließen)
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Ein Lesepuffer für alle Verbindungen dieser Loop (spart Speicher bei vielen Clients)
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Verarbeitet die Nachrichten der Verbindungen (ein virtueller Thread pro Aufgabe)
+    private ExecutorService workers;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+
+    /**
+     * Konstruktor für eine Event-Loop.
+     *
+     * @param server Der Server
+     * @param userManager Verwaltung der Benutzerkonten
+     */
+    NioEventLoop(Server server, UserManager userManager) throws IOException {
+        this.server = server;
+        this.userManager = userManager;
+        this.selector = Selector.open();
+    }
+
+
+    /**
+     * Startet den Thread der Event-Loop.
+     *
+     * @param name Name des Threads
+     */
+    void start(String name) {
+        workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-Worker-", 0).factory());
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Übergibt eine neu akzeptierte Verbindung an diese Loop.
+     *
+     * @param channel Der (nicht-blockierende) SocketChannel
+     * @return Der ClientHandler der Verbindung
+     */
+    ClientHandler register(SocketChannel channel) {
+        NioConnection connection = new NioConnection(channel, this);
+        ClientHandler handler = new ClientHandler(connection, userManager, server);
+        connection.setHandler(handler);
+
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+            } catch (IOException e) {
+                connection.abort(e.getMessage());
+            }
+        });
+
+        return handler;
+    }
+
+
+    /**
+     * Führt eine Aufgabe im Thread der Event-Loop aus.
+     *
+     * @param task Die Aufgabe
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+
+    /**
+     * Führt eine Aufgabe außerhalb der Event-Loop aus (Verarbeitung von
+     * Nachrichten, darf blockieren). Die Reihenfolge pro Verbindung sichert
+     * die NioConnection, indem sie immer nur eine Aufgabe unterwegs hat.
+     *
+     * @param task Die Aufgabe
+     */
+    void dispatch(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Server wird beendet
+        }
+    }
+
+
+    /**
+     * Prüft ob der aufrufende Thread der Thread dieser Loop ist.
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Verbindung wurde inzwischen geschlossen
+                    } catch (RuntimeException e) {
+                        // Nur diese Verbindung schließen, die Loop läuft weiter
+                        server.log("Fehler in Event-Loop: " + e);
+                        connection.abort(e.toString());
+                    }
+                }
+
+            } catch (IOException e) {
+                if (running) {
+                    server.log("Fehler in Event-Loop: " + e.getMessage());
+                }
+            }
+        }
+
+        closeSelector();
+    }
+
+
+    /**
+     * Arbeitet alle wartenden Aufgaben ab.
+     * Aufgaben, die dabei neu dazukommen (z.B. ein Download, der nach einigen
+     * Stücken weitermachen will), laufen erst nach dem nächsten select() -
+     * so kommen die anderen Verbindungen dazwischen.
+     */
+    private void runTasks() {
+        for (int pending = tasks.size(); pending > 0; pending--) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                server.log("Fehler in Event-Loop: " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Beendet die Event-Loop.
+     */
+    void shutdown() {
+        running = false;
+        if (workers != null) {
+            workers.shutdown();
+        }
+        selector.wakeup();
+    }
+
+
+    private void closeSelector() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // Ignorieren beim Herunterfahren
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Begrenzte Ausgangs-Queue einer Client-Verbindung.
+ *
+ * Einträge sind fertig kodierte Frames (byte[]) oder Datei-Inhalte für
+ * Downloads (FileRegion), die der Writer ohne Umweg über den Heap sendet.
+ *
+ * Broadcasts legen fertig kodierte Frames nur hier ab und kehren sofort zurück.
+ * Geschrieben wird von einem eigenen Writer (Writer-Thread bei BLOCKING/VIRTUAL,
+ * Event-Loop bei NIO). Ein langsamer Client bremst so nie den ganzen Raum aus -
+ * läuft seine Queue voll, wird er getrennt.
+ */
+class OutboundQueue {
+
+    // Standard-Kapazität in Frames (über "chat.outbound.capacity" änderbar)
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+
+    // Markierung: Writer soll nach allen vorherigen Frames die Verbindung schließen
+    static final byte[] CLOSE = new byte[0];
+
+    private final BlockingQueue<Object> frames;
+
+    // Wird nach jedem eingereihten Frame aufgerufen (NIO: Event-Loop wecken)
+    private final Runnable signal;
+
+    // Nur für offerAll(): mehrere zusammengehörige Frames am Stück einreihen
+    private final ReentrantLock groupLock = new ReentrantLock();
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * Konstruktor.
+     *
+     * @param capacity Maximale Anzahl wartender Frames
+     * @param signal Benachrichtigung für den Writer, kann null sein
+     */
+    OutboundQueue(int capacity, Runnable signal) {
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.signal = signal;
+    }
+
+
+    /**
+     * Reiht einen Frame ein, ohne zu blockieren.
+     *
+     * @param frame Die fertig kodierten Bytes
+     * @return false wenn die Queue voll oder geschlossen ist
+     */
+    boolean offer(byte[] frame) {
+        if (closed || !frames.offer(frame)) {
+            return false;
+        }
+        if (signal != null) {
+            signal.run();
+        }
+        return true;
+    }
+
+
+    /**
+     * Reiht mehrere zusammengehörige Frames ein (z.B. die Teile einer langen Liste).
+     * Zwei Gruppen werden nie ineinander verschachtelt; einzelne Frames
+     * anderer Threads können dazwischen liegen.
+     *
+     * @param group Die fertig kodierten Bytes in Sende-Reihenfolge
+     * @return false wenn die Queue voll oder geschlossen ist
+     */
+    boolean offerAll(List<byte[]> group) {
+        groupLock.lock();
+        try {
+            for (byte[] frame : group) {
+                if (closed || !frames.offer(frame)) {
+                    return false;
+                }
+            }
+        } finally {
+            groupLock.unlock();
+        }
+        if (signal != null) {
+            signal.run();
+        }
+        return true;
+    }
+
+
+    /**
+     * Reiht einen Download ein (Kopf und Datei-Inhalt als ein Eintrag).
+     *
+     * @param region Der Datei-Inhalt mit Kopf
+     * @return false wenn die Queue voll oder geschlossen ist (der Aufrufer schließt dann die Datei)
+     */
+    boolean offerFile(FileRegion region) {
+        if (closed || !frames.offer(region)) {
+            return false;
+        }
+        if (signal != null) {
+            signal.run();
+        }
+        return true;
+    }
+
+
+    /**
+     * Holt den nächsten Eintrag (byte[] oder FileRegion) oder null, wenn keiner wartet.
+     */
+    Object poll() {
+        return frames.poll();
+    }
+
+
+    /**
+     * Wartet auf den nächsten Eintrag (nur für Writer-Threads).
+     */
+    Object take() throws InterruptedException {
+        return frames.take();
+    }
+
+
+    /**
+     * Wartet höchstens die angegebene Zeit auf den nächsten Eintrag.
+     *
+     * @return Der Eintrag oder null, wenn keiner kam
+     */
+    Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return frames.poll(timeout, unit);
+    }
+
+
+    boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+
+    /**
+     * Anzahl wartender Frames.
+     */
+    int size() {
+        return frames.size();
+    }
+
+
+    /**
+     * Schließt die Queue. Bereits eingereihte Frames werden noch geschrieben,
+     * danach sieht der Writer die CLOSE-Markierung. Ist die Queue voll,
+     * werden die wartenden Frames verworfen.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (!frames.offer(CLOSE)) {
+            release(frames.poll());
+        }
+        if (signal != null) {
+            signal.run();
+        }
+    }
+
+
+    /**
+     * Verwirft alle wartenden Einträge und schließt offene Dateien.
+     * Wird aufgerufen, wenn der Writer nichts mehr schreiben wird.
+     */
+    void discard() {
+        Object item;
+        while ((item = frames.poll()) != null) {
+            release(item);
+        }
+    }
+
+
+    private static void release(Object item) {
+        if (item instanceof FileRegion region) {
+            region.close();
+        }
+    }
+}
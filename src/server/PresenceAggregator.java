@@ -0,0 +1,345 @@
+package server;
+
+import protocol.Command;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sammelt Anwesenheits-Meldungen (Betreten/Verlassen, Raum- und
+ * Mitgliederliste) für ein kurzes Zeitfenster und verschickt sie dann
+ * gebündelt.
+ *
+ * Melden sich 300 Nutzer gleichzeitig an, bekäme sonst jeder Client 300
+ * einzelne "hat den Chat betreten"-Nachrichten und jede Änderung der
+ * Listen einzeln. Gebündelt bekommt jeder Client pro Fenster höchstens:
+ * - eine Nachricht pro Art ("alice, bob und 298 weitere haben den Chat betreten")
+ * - eine Änderung der Raumliste (eine einzelne Änderung oder, bei mehreren,
+ *   die ganze Liste als Snapshot bzw. ROOM_LIST; ab v5 die einzelnen
+ *   Änderungen, siehe Server.broadcastRoomChanges())
+ * - pro Raum eine Änderung der Mitgliederliste (ebenso)
+ *
+ * Die Reihenfolge von Betreten und Verlassen bleibt erhalten: Nur
+ * aufeinanderfolgende Meldungen derselben Art werden zusammengefasst.
+ *
+ * Das Fenster wird über "chat.presence.windowMs" eingestellt (Standard
+ * 200 ms). Bei 0 wird sofort verschickt, wie ohne Bündelung.
+ */
+final class PresenceAggregator {
+
+    static final long WINDOW_MS = Long.getLong("chat.presence.windowMs", 200);
+
+    // So viele Namen stehen in einer gebündelten Nachricht, der Rest wird gezählt
+    private static final int MAX_NAMES = 10;
+
+    /**
+     * Aufeinanderfolgende Meldungen derselben Art ("betreten" oder "verlassen").
+     *
+     * @param joined true = betreten
+     * @param names Benutzernamen in Reihenfolge
+     * @param clients Die betroffenen Clients (bekommen die Nachricht nicht)
+     */
+    private record Notice(boolean joined, List<String> names, Set<ClientHandler> clients) {
+    }
+
+    /**
+     * Eine Änderung der Raumliste oder der Mitglieder eines Raums.
+     *
+     * @param change ROOM_ADDED/ROOM_REMOVED bzw. MEMBER_JOINED/MEMBER_LEFT
+     * @param name Raumname
+     * @param version Version nach der Änderung
+     * @param client Betroffener Client (nur bei Mitgliedern)
+     */
+    record Change(Command change, String name, long version, ClientHandler client) {
+    }
+
+    /**
+     * Was sich in einem Raum während des Fensters getan hat.
+     */
+    private static final class RoomBatch {
+        final List<Notice> notices = new ArrayList<>();
+        final List<Change> changes = new ArrayList<>();
+    }
+
+    private final Server server;
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+
+    // Gesammelte Meldungen des aktuellen Fensters (unter der Sperre)
+    private List<Notice> notices = new ArrayList<>();
+    private List<Change> roomChanges = new ArrayList<>();
+    private Map<Room, RoomBatch> rooms = new LinkedHashMap<>();
+    private boolean scheduled;
+
+    // ReentrantLock statt synchronized (virtuelle Threads, siehe Room)
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    /**
+     * @param server Für Broadcasts an alle Clients
+     * @param windowMs Länge des Fensters (0 = sofort verschicken)
+     */
+    PresenceAggregator(Server server, long windowMs) {
+        this.server = server;
+        this.windowMs = windowMs;
+        this.scheduler = windowMs > 0
+                ? Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "Presence");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+
+    // ========================================================================
+    // MELDUNGEN
+    // ========================================================================
+
+
+    /**
+     * Ein Nutzer hat den Chat betreten (">>> ... hat den Chat betreten").
+     */
+    void chatJoined(ClientHandler client) {
+        lock.lock();
+        try {
+            addNotice(notices, true, client);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Ein Nutzer hat den Chat verlassen ("<<< ... hat den Chat verlassen").
+     */
+    void chatLeft(ClientHandler client) {
+        lock.lock();
+        try {
+            addNotice(notices, false, client);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Ein Nutzer hat einen Raum betreten (Nachricht an die Mitglieder).
+     */
+    void roomJoined(Room room, ClientHandler client) {
+        lock.lock();
+        try {
+            addNotice(batchFor(room).notices, true, client);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Ein Nutzer hat einen Raum verlassen (Nachricht an die Mitglieder).
+     */
+    void roomLeft(Room room, ClientHandler client) {
+        lock.lock();
+        try {
+            addNotice(batchFor(room).notices, false, client);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Ein Raum wurde angelegt oder gelöscht.
+     */
+    void roomListChanged(Command change, String roomName, long version) {
+        lock.lock();
+        try {
+            roomChanges.add(new Change(change, roomName, version, null));
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Die Mitglieder eines Raums haben sich geändert.
+     */
+    void membersChanged(Room room, Command change, long version, ClientHandler client) {
+        if (client.getUsername() == null) {
+            // Nie angemeldet - taucht in keiner Liste auf
+            return;
+        }
+
+        lock.lock();
+        try {
+            batchFor(room).changes.add(new Change(change, room.getName(), version, client));
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+
+    /**
+     * Beendet den Timer-Thread. Noch nicht verschickte Meldungen verfallen
+     * (alle Clients werden ohnehin getrennt).
+     */
+    void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    private RoomBatch batchFor(Room room) {
+        return rooms.computeIfAbsent(room, key -> new RoomBatch());
+    }
+
+
+    /**
+     * Hängt eine Meldung an die letzte derselben Art an oder beginnt eine neue.
+     */
+    private static void addNotice(List<Notice> list, boolean joined, ClientHandler client) {
+        String username = client.getUsername();
+        if (username == null) {
+            return;
+        }
+
+        Notice last = list.isEmpty() ? null : list.get(list.size() - 1);
+        if (last == null || last.joined() != joined) {
+            last = new Notice(joined, new ArrayList<>(), new HashSet<>());
+            list.add(last);
+        }
+        last.names().add(username);
+        last.clients().add(client);
+    }
+
+
+    // ========================================================================
+    // VERSCHICKEN
+    // ========================================================================
+
+
+    /**
+     * Startet das Fenster mit der ersten Meldung. Ohne Fenster wird sofort verschickt.
+     */
+    private void schedule() {
+        if (scheduler == null) {
+            flush();
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Server wird beendet
+        }
+    }
+
+
+    /**
+     * Verschickt alles, was sich im Fenster gesammelt hat. Gesendet wird
+     * ohne Sperre - neue Meldungen landen schon im nächsten Fenster.
+     */
+    private void flush() {
+        List<Notice> chatNotices;
+        List<Change> listChanges;
+        Map<Room, RoomBatch> roomBatches;
+
+        lock.lock();
+        try {
+            chatNotices = notices;
+            listChanges = roomChanges;
+            roomBatches = rooms;
+            notices = new ArrayList<>();
+            roomChanges = new ArrayList<>();
+            rooms = new LinkedHashMap<>();
+            scheduled = false;
+        } finally {
+            lock.unlock();
+        }
+
+        for (Notice notice : chatNotices) {
+            server.broadcast(format(notice, "den Chat"), notice.clients());
+        }
+
+        if (!listChanges.isEmpty()) {
+            // Nach Version sortiert (eingereiht wird erst nach der Sperre im RoomManager)
+            listChanges.sort(Comparator.comparingLong(Change::version));
+            server.broadcastRoomChanges(listChanges);
+        }
+
+        for (Map.Entry<Room, RoomBatch> entry : roomBatches.entrySet()) {
+            Room room = entry.getKey();
+            RoomBatch batch = entry.getValue();
+
+            for (Notice notice : batch.notices) {
+                room.broadcast(format(notice, "den Raum"), notice.clients());
+            }
+
+            if (batch.changes.size() == 1) {
+                Change change = batch.changes.get(0);
+                room.announce(change.change(), change.version(), change.client());
+            } else if (!batch.changes.isEmpty()) {
+                room.announceSnapshot();
+            }
+        }
+    }
+
+
+    /**
+     * Baut die Nachricht, z.B. ">>> alice hat den Chat betreten" oder
+     * "<<< alice, bob und 3 weitere haben den Raum verlassen".
+     *
+     * @param where "den Chat" oder "den Raum"
+     */
+    private static String format(Notice notice, String where) {
+        List<String> names = notice.names();
+        String prefix = notice.joined() ? ">>> " : "<<< ";
+        String action = notice.joined() ? " betreten" : " verlassen";
+
+        if (names.size() == 1) {
+            return prefix + names.get(0) + " hat " + where + action;
+        }
+
+        int shown = Math.min(names.size(), MAX_NAMES);
+        int rest = names.size() - shown;
+        StringBuilder text = new StringBuilder(prefix);
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                text.append(i == shown - 1 && rest == 0 ? " und " : ", ");
+            }
+            text.append(names.get(i));
+        }
+        if (rest > 0) {
+            text.append(" und ").append(rest).append(" weitere");
+        }
+        return text.append(" haben ").append(where).append(action).toString();
+    }
+}
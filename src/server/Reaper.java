@@ -0,0 +1,238 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Räumt die Ordner gelöschter Räume im Hintergrund weg.
+ *
+ * Beim Löschen eines Raums wird sein Ordner nur in den Papierkorb
+ * (room_trash/) umbenannt - ein einziger Systemaufruf, danach kann
+ * sofort ein neuer Raum mit demselben Namen entstehen. Das eigentliche
+ * Löschen (Manifest, Teil-Uploads, nicht mehr genutzte Inhalte im BlobStore)
+ * macht ein eigener Thread, ohne dabei eine Sperre des RoomManagers zu halten.
+ *
+ * Reste im Papierkorb (z.B. nach einem Absturz) werden beim Start
+ * weggeräumt. Ihre Manifeste zählen beim Start nicht mehr mit.
+ *
+ * Der Rückstand ist als MXBean "multichat:type=Reaper" abrufbar.
+ */
+final class Reaper implements Runnable, ReaperMXBean {
+
+    private static final String OBJECT_NAME = "multichat:type=Reaper";
+
+    /**
+     * Ein umbenannter Raumordner.
+     *
+     * @param directory Ordner im Papierkorb
+     * @param files Dateien des Raums (Referenzen freigeben) oder null bei Resten vom letzten Start
+     */
+    private record Tombstone(File directory, RoomFiles files) {
+    }
+
+    private final File trash;
+    private final Server server;
+    private final BlockingQueue<Tombstone> queue = new LinkedBlockingQueue<>();
+
+    // Kennzahlen
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long lastReapMillis;
+
+    private Thread thread;
+    private ObjectName objectName;
+
+
+    /**
+     * @param trash Papierkorb (wird angelegt)
+     * @param server Für Log-Ausgaben
+     */
+    Reaper(File trash, Server server) {
+        this.trash = trash;
+        this.server = server;
+        trash.mkdirs();
+    }
+
+
+    /**
+     * Startet den Thread, reiht Reste vom letzten Start ein und meldet die MXBean an.
+     */
+    void start() {
+        File[] leftovers = trash.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                enqueue(new Tombstone(leftover, null));
+            }
+        }
+
+        thread = new Thread(this, "Reaper");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            server.log("Reaper-Kennzahlen nicht verfügbar: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Benennt den Ordner eines gelöschten Raums um und reiht ihn zum Löschen ein.
+     *
+     * Klappt das Umbenennen nicht, wird sofort gelöscht (wie vor dem Reaper) -
+     * sonst würde ein neuer Raum mit demselben Namen den alten Ordner erben.
+     *
+     * @param files Dateien des Raums (schon mit delete() gesperrt)
+     */
+    void bury(RoomFiles files) {
+        File directory = files.getDirectory();
+        Path tombstone = new File(trash, directory.getName() + "." + UUID.randomUUID()).toPath();
+        try {
+            try {
+                Files.move(directory.toPath(), tombstone, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(directory.toPath(), tombstone);
+            }
+        } catch (IOException e) {
+            backlog.incrementAndGet();
+            reap(new Tombstone(directory, files));
+            return;
+        }
+        enqueue(new Tombstone(tombstone.toFile(), files));
+    }
+
+
+    /**
+     * Beendet den Thread. Was noch im Papierkorb liegt, wird beim nächsten Start weggeräumt.
+     */
+    void close() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Ignorieren beim Herunterfahren
+            }
+        }
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                reap(queue.take());
+            }
+        } catch (InterruptedException e) {
+            // Server wird beendet
+        }
+    }
+
+
+    /**
+     * Gibt die Referenzen frei (löscht nicht mehr genutzte Inhalte im
+     * BlobStore) und löscht dann den Ordner mit Manifest und Teil-Uploads.
+     */
+    private void reap(Tombstone tombstone) {
+        long start = System.nanoTime();
+        long before = filesDeleted.get();
+
+        if (tombstone.files() != null) {
+            tombstone.files().releaseAll();
+        }
+        deleteRecursively(tombstone.directory());
+
+        lastReapMillis = (System.nanoTime() - start) / 1_000_000;
+        reaped.incrementAndGet();
+        int remaining = backlog.decrementAndGet();
+        server.log("Ordner gelöscht: " + tombstone.directory().getPath() + " ("
+                + (filesDeleted.get() - before) + " Dateien, " + lastReapMillis + " ms, noch "
+                + remaining + " in der Warteschlange)");
+    }
+
+
+    /**
+     * Löscht einen Ordner samt Inhalt.
+     *
+     * Geht rekursiv durch: Erst alle Dateien/Unterordner löschen,
+     * dann den Ordner selbst.
+     */
+    private void deleteRecursively(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        } else {
+            filesDeleted.incrementAndGet();
+        }
+        if (!file.delete() && file.exists()) {
+            failed.incrementAndGet();
+        }
+    }
+
+
+    private void enqueue(Tombstone tombstone) {
+        backlog.incrementAndGet();
+        queue.add(tombstone);
+    }
+
+
+    // ========================================================================
+    // KENNZAHLEN (ReaperMXBean)
+    // ========================================================================
+
+
+    @Override
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+
+    @Override
+    public long getReapedTotal() {
+        return reaped.get();
+    }
+
+
+    @Override
+    public long getFilesDeletedTotal() {
+        return filesDeleted.get();
+    }
+
+
+    @Override
+    public long getFailedTotal() {
+        return failed.get();
+    }
+
+
+    @Override
+    public long getLastReapMillis() {
+        return lastReapMillis;
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * Kennzahlen des Reapers (z.B. in JConsole unter "multichat:type=Reaper").
+ */
+public interface ReaperMXBean {
+
+    /**
+     * Anzahl der gelöschten Räume, deren Ordner noch nicht weggeräumt sind.
+     */
+    int getBacklog();
+
+    /**
+     * Anzahl der seit dem Start weggeräumten Raumordner.
+     */
+    long getReapedTotal();
+
+    /**
+     * Anzahl der seit dem Start gelöschten Dateien (ohne Ordner).
+     */
+    long getFilesDeletedTotal();
+
+    /**
+     * Anzahl der Dateien und Ordner, die nicht gelöscht werden konnten.
+     */
+    long getFailedTotal();
+
+    /**
+     * Dauer des letzten Aufräumens in Millisekunden.
+     */
+    long getLastReapMillis();
+}
@@ -1,31 +1,120 @@
 package server;
 
+import protocol.Command;
+import protocol.Protocol;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Repräsentiert einen Chat-Raum.
  * Verwaltet die Mitglieder des Raums und ermöglicht das Senden
  * von Nachrichten an alle Mitglieder.
+ *
+ * Die Mitglieder liegen in einem unveränderlichen Array (Copy-on-Write):
+ * Beitreten und Verlassen ersetzen es unter der Sperre durch eine Kopie,
+ * Broadcasts lesen nur den aktuellen Stand und brauchen keine Sperre.
+ * Ein Broadcast blockiert also weder Beitritte noch andere Broadcasts.
+ *
+ * Ist ein Raum leer geworden und gelöscht (closeIfEmpty), kann niemand
+ * mehr beitreten - so kann der RoomManager leere Räume ohne globale Sperre
+ * löschen.
+ *
+ * Jede Änderung der Mitglieder bekommt eine Versionsnummer. Clients ab v4
+ * bekommen nur die Änderung (MEMBER_JOINED/MEMBER_LEFT), ältere die ganze
+ * USER_LIST. Verschickt werden die Änderungen gebündelt über den
+ * PresenceAggregator.
+ *
+ * Die Chat-Historie wird zusätzlich in ein Log auf der Platte geschrieben
+ * (HistoryLog). Im Speicher bleiben nur die letzten Nachrichten für den
+ * Beitritt - beim Anlegen des Raums werden sie aus dem Log geladen. Ältere
+ * Seiten liest getHistoryBefore() aus dem Log (HISTORY_BEFORE, v6).
+ *
+ * Jede Chat-Nachricht bekommt im Log ihre Nummer. Clients ab v7 bekommen
+ * sie mit (ROOM_MESSAGE, auch der Absender selbst) und können nach einem
+ * Verbindungsabbruch genau die verpassten Nachrichten nachholen
+ * (getMessagesAfter()).
  */
 public class Room {
 
     // Maximale Anzahl gespeicherter Nachrichten
     private static final int MAX_HISTORY_SIZE = 50;
 
+    // So lange warten RESUME und SEARCH höchstens, bis Nachrichten auf der Platte sind
+    private static final long RESUME_WAIT_MS = 1000;
+
+    /**
+     * Eine Nachricht der Historie im Speicher.
+     *
+     * @param seq Nummer im Log (0 ohne Log)
+     * @param frame Die bereits kodierte Nachricht
+     */
+    private record Line(long seq, Frame frame) {
+    }
+
+    /**
+     * Eine Seite älterer Nachrichten.
+     *
+     * @param entries Die Nachrichten (älteste zuerst)
+     * @param more true wenn es davor noch Nachrichten gibt
+     */
+    record HistoryPage(List<HistoryLog.Entry> entries, boolean more) {
+    }
+
+    /**
+     * Die Nachrichten, die ein Client verpasst hat (für RESUME).
+     *
+     * @param from Nummer der ersten Nachricht (größer als gewünscht, wenn
+     *             ältere nicht mehr da sind oder es zu viele wären)
+     * @param to Nummer der letzten Nachricht im Raum
+     * @param entries Die Nachrichten from..to
+     */
+    record ResumePage(long from, long to, List<HistoryLog.Entry> entries) {
+    }
+
     // Name des Raums
     private final String name;
 
-    // Liste der Mitglieder (ClientHandler)
-    private final List<ClientHandler> members;
+    private static final ClientHandler[] NO_MEMBERS = new ClientHandler[0];
+
+    // Mitglieder (nie verändert, nur unter der Sperre ersetzt)
+    private volatile ClientHandler[] members = NO_MEMBERS;
+
+    // Nach closeIfEmpty() kann niemand mehr beitreten
+    private boolean closed;
+
+    // Version der Mitgliederliste (wird unter der Sperre mit jeder Änderung erhöht)
+    private long memberVersion;
 
     // Ersteller des Raums
     private final String createdBy;
 
-    // Chat-Historie (letzte Nachrichten)
-    private final LinkedList<String> chatHistory;
+    // Chat-Historie (letzte Nachrichten, bereits kodiert)
+    private final LinkedList<Line> chatHistory;
+
+    // Die ganze Historie auf der Platte (null wenn das Log nicht lesbar war)
+    private final HistoryLog history;
+
+    // Volltext-Index über die Historie (null ohne Log oder wenn er nicht lesbar war)
+    private final SearchIndex search;
+
+    // Hochgeladene Dateien (Manifest, Inhalte im BlobStore)
+    private final RoomFiles files;
+
+    // Bündelt Änderungen der Mitglieder (siehe announce())
+    private final PresenceAggregator presence;
+
+    // Sperre für Änderungen an Mitgliedern und für die Historie.
+    // ReentrantLock statt synchronized: blockiert ein virtueller Thread beim Senden,
+    // wird sein Träger-Thread freigegeben (synchronized würde ihn festhalten).
+    private final ReentrantLock lock = new ReentrantLock();
 
 
     /**
@@ -33,12 +122,31 @@ public class Room {
      *
      * @param name Name des Raums
      * @param createdBy Benutzername des Erstellers
+     * @param files Dateien des Raums
+     * @param presence Verschickt Änderungen der Mitglieder gebündelt
+     * @param history Historie auf der Platte oder null
+     * @param search Volltext-Index über die Historie oder null
      */
-    public Room(String name, String createdBy) {
+    Room(String name, String createdBy, RoomFiles files, PresenceAggregator presence, HistoryLog history,
+         SearchIndex search) {
         this.name = name;
         this.createdBy = createdBy;
-        this.members = new ArrayList<>();
+        this.files = files;
+        this.presence = presence;
+        this.history = history;
+        this.search = search;
         this.chatHistory = new LinkedList<>();
+
+        // Letzte Nachrichten von früher (z.B. vor einem Neustart)
+        if (history != null) {
+            try {
+                for (HistoryLog.Entry entry : history.readLast(MAX_HISTORY_SIZE)) {
+                    chatHistory.addLast(new Line(entry.seq(), Frame.chat(entry.message())));
+                }
+            } catch (IOException e) {
+                // Dann beginnt die Historie im Speicher leer
+            }
+        }
     }
 
 
@@ -62,15 +170,49 @@ public class Room {
     }
 
 
+    /**
+     * Gibt die Dateien des Raums zurück.
+     */
+    RoomFiles getFiles() {
+        return files;
+    }
+
+
+    /**
+     * Gibt die Historie des Raums auf der Platte zurück (null wenn es keine gibt).
+     */
+    HistoryLog getHistoryLog() {
+        return history;
+    }
+
+
     /**
      * Fügt einen Client zum Raum hinzu.
      *
      * @param client Der hinzuzufügende Client
+     * @return false wenn der Raum schon gelöscht ist
      */
-    public synchronized void addMember(ClientHandler client) {
-        if (!members.contains(client)) {
-            members.add(client);
+    public boolean addMember(ClientHandler client) {
+        long version;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (indexOf(members, client) >= 0) {
+                return true;
+            }
+            ClientHandler[] current = members;
+            ClientHandler[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = client;
+            members = updated;
+            version = ++memberVersion;
+        } finally {
+            lock.unlock();
         }
+
+        presence.membersChanged(this, Command.MEMBER_JOINED, version, client);
+        return true;
     }
 
 
@@ -79,8 +221,122 @@ public class Room {
      *
      * @param client Der zu entfernende Client
      */
-    public synchronized void removeMember(ClientHandler client) {
-        members.remove(client);
+    public void removeMember(ClientHandler client) {
+        long version;
+        lock.lock();
+        try {
+            ClientHandler[] current = members;
+            int index = indexOf(current, client);
+            if (index < 0) {
+                return;
+            }
+            ClientHandler[] updated = new ClientHandler[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            members = updated;
+            version = ++memberVersion;
+        } finally {
+            lock.unlock();
+        }
+
+        presence.membersChanged(this, Command.MEMBER_LEFT, version, client);
+    }
+
+
+    /**
+     * Meldet eine einzelne Änderung der Mitglieder an alle anderen Mitglieder
+     * (vom PresenceAggregator): ab v4 als Änderung, älteren Clients als ganze
+     * USER_LIST. Der betroffene Client selbst bekommt nichts (beim Beitreten
+     * holt er sich die ganze Liste, siehe getMemberSnapshot()).
+     */
+    void announce(Command change, long version, ClientHandler client) {
+        String username = client.getUsername();
+        if (username == null) {
+            return;
+        }
+
+        Frame delta = Frame.of(change, String.valueOf(version), name, username);
+        Frame list = null;
+        for (ClientHandler member : members) {
+            if (member == client) continue;
+
+            Frame frame;
+            if (member.getProtocolVersion() >= Protocol.VERSION_4) {
+                frame = delta;
+            } else {
+                if (list == null) {
+                    list = Frame.of(Command.USER_LIST, getMemberNames());
+                }
+                frame = list;
+            }
+
+            try {
+                member.sendFrame(frame);
+            } catch (IOException e) {
+                removeMember(member);
+            }
+        }
+    }
+
+
+    /**
+     * Meldet mehrere Änderungen auf einmal (vom PresenceAggregator): Alle
+     * Mitglieder bekommen die ganze Liste, ab v4 als MEMBER_SNAPSHOT.
+     */
+    void announceSnapshot() {
+        Frame snapshot = null;
+        Frame list = null;
+        for (ClientHandler member : members) {
+            Frame frame;
+            if (member.getProtocolVersion() >= Protocol.VERSION_4) {
+                if (snapshot == null) {
+                    snapshot = getMemberSnapshot();
+                }
+                frame = snapshot;
+            } else {
+                if (list == null) {
+                    list = Frame.of(Command.USER_LIST, getMemberNames());
+                }
+                frame = list;
+            }
+
+            try {
+                member.sendFrame(frame);
+            } catch (IOException e) {
+                removeMember(member);
+            }
+        }
+    }
+
+
+    /**
+     * Schließt den Raum, wenn er leer ist. Danach schlägt addMember() fehl.
+     *
+     * @return true wenn der Raum leer war und jetzt geschlossen ist
+     */
+    boolean closeIfEmpty() {
+        lock.lock();
+        try {
+            if (members.length == 0) {
+                closed = true;
+            }
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Schließt den Raum auch mit Mitgliedern (Raum wird gelöscht).
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -90,8 +346,8 @@ public class Room {
      * @param client Der zu prüfende Client
      * @return true wenn Mitglied
      */
-    public synchronized boolean hasMember(ClientHandler client) {
-        return members.contains(client);
+    public boolean hasMember(ClientHandler client) {
+        return indexOf(members, client) >= 0;
     }
 
 
@@ -100,8 +356,8 @@ public class Room {
      *
      * @return Anzahl der Mitglieder
      */
-    public synchronized int getMemberCount() {
-        return members.size();
+    public int getMemberCount() {
+        return members.length;
     }
 
 
@@ -110,8 +366,8 @@ public class Room {
      *
      * @return true wenn keine Mitglieder
      */
-    public synchronized boolean isEmpty() {
-        return members.isEmpty();
+    public boolean isEmpty() {
+        return members.length == 0;
     }
 
 
@@ -120,7 +376,7 @@ public class Room {
      *
      * @return Liste mit Benutzernamen
      */
-    public synchronized List<String> getMemberNames() {
+    public List<String> getMemberNames() {
         List<String> names = new ArrayList<>();
         for (ClientHandler client : members) {
             String username = client.getUsername();
@@ -132,17 +388,61 @@ public class Room {
     }
 
 
+    /**
+     * Gibt die ganze Mitgliederliste mit ihrer Version zurück (MEMBER_SNAPSHOT, v4).
+     * Version und Namen passen zusammen: Beide werden unter der Sperre gelesen.
+     */
+    Frame getMemberSnapshot() {
+        List<String> fields = new ArrayList<>();
+        lock.lock();
+        try {
+            fields.add(String.valueOf(memberVersion));
+            fields.add(name);
+            fields.addAll(getMemberNames());
+        } finally {
+            lock.unlock();
+        }
+        return Frame.of(Command.MEMBER_SNAPSHOT, fields);
+    }
+
+
     /**
      * Fügt eine Nachricht zur Chat-Historie hinzu.
      *
      * @param message Die Nachricht
      */
-    public synchronized void addToHistory(String message) {
-        chatHistory.addLast(message);
+    public void addToHistory(String message) {
+        addToHistory(Frame.chat(message));
+    }
+
+
+    /**
+     * Fügt einen bereits kodierten Frame zur Chat-Historie hinzu.
+     * So muss die Historie beim Betreten des Raums nicht neu kodiert werden.
+     *
+     * Ins Log kommt die Nachricht unter derselben Sperre (gleiche
+     * Reihenfolge wie im Speicher), geschrieben wird sie später vom HistoryStore.
+     * Nach close() nicht mehr - dann kann der HistoryStore das Log schließen.
+     *
+     * @param frame Der Frame
+     * @return Nummer der Nachricht (0 ohne Log)
+     */
+    private long addToHistory(Frame frame) {
+        lock.lock();
+        try {
+            long seq = history != null && !closed ? history.append(frame.getMessage()) : 0;
+            chatHistory.addLast(new Line(seq, frame));
+            if (search != null && seq > 0) {
+                search.add(seq, frame.getMessage());
+            }
 
-        // Älteste Nachrichten entfernen wenn Limit erreicht
-        while (chatHistory.size() > MAX_HISTORY_SIZE) {
-            chatHistory.removeFirst();
+            // Älteste Nachrichten entfernen wenn Limit erreicht
+            while (chatHistory.size() > MAX_HISTORY_SIZE) {
+                chatHistory.removeFirst();
+            }
+            return seq;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -152,35 +452,183 @@ public class Room {
      *
      * @return Liste der letzten Nachrichten
      */
-    public synchronized List<String> getChatHistory() {
-        return new ArrayList<>(chatHistory);
+    public List<String> getChatHistory() {
+        lock.lock();
+        try {
+            List<String> messages = new ArrayList<>();
+            for (Line line : chatHistory) {
+                messages.add(line.frame().getMessage());
+            }
+            return messages;
+        } finally {
+            lock.unlock();
+        }
     }
 
 
     /**
-     * Sendet die Chat-Historie an einen Client.
+     * Sendet die Chat-Historie an einen Client. Ab v6 als HISTORY_PAGE mit
+     * Nummern, damit der Client ältere Seiten anfordern kann - auch leer,
+     * dann weiß ein v7-Client, dass er bei Nummer 1 beginnt.
      *
      * @param client Der Client
      */
-    public synchronized void sendHistoryTo(ClientHandler client) {
-        if (chatHistory.isEmpty()) {
-            return;
+    public void sendHistoryTo(ClientHandler client) {
+        lock.lock();
+        try {
+            boolean withSeq = client.getProtocolVersion() >= Protocol.VERSION_6;
+            if (chatHistory.isEmpty() && !withSeq) {
+                return;
+            }
+
+            try {
+                if (withSeq) {
+                    long first = history != null ? history.getFirstSeq() : 0;
+                    List<String> fields = new ArrayList<>();
+                    fields.add(name);
+                    fields.add("0");
+                    fields.add(first > 0 && !chatHistory.isEmpty() && chatHistory.getFirst().seq() > first ? "1" : "0");
+                    for (Line line : chatHistory) {
+                        fields.add(line.seq() + "/" + line.frame().getMessage());
+                    }
+                    client.sendFrame(Frame.of(Command.HISTORY_PAGE, fields));
+                    return;
+                }
+
+                // Markierung für Historie-Beginn
+                client.sendMessage("=== Letzte Nachrichten ===");
+
+                // Alle Nachrichten aus der Historie senden
+                for (Line line : chatHistory) {
+                    client.sendFrame(line.frame());
+                }
+
+                // Markierung für Historie-Ende
+                client.sendMessage("=== Ende der Historie ===");
+            } catch (IOException e) {
+                // Client nicht erreichbar - ignorieren
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Liest eine Seite älterer Nachrichten aus dem Log (ohne Sperre, das Log
+     * liest nur bereits Gesichertes).
+     *
+     * @param before Nachrichten vor dieser Nummer (0 = die neuesten)
+     * @param limit Höchstens so viele
+     */
+    HistoryPage getHistoryBefore(long before, int limit) throws IOException {
+        if (history == null) {
+            return new HistoryPage(new ArrayList<>(), false);
+        }
+        List<HistoryLog.Entry> entries = history.readBefore(before, limit);
+        boolean more = !entries.isEmpty() && entries.get(0).seq() > history.getFirstSeq();
+        return new HistoryPage(entries, more);
+    }
+
+
+    /**
+     * Gibt die Nachrichten nach einer Nummer zurück (für RESUME).
+     *
+     * Der Aufrufer ist schon wieder Mitglied: Was danach geschrieben wird,
+     * bekommt er direkt. Die neuesten Nachrichten kommen aus dem Speicher,
+     * ältere aus dem Log. Überschneidungen mit dem, was direkt ankommt,
+     * sortiert der Client anhand der Nummern aus.
+     *
+     * @param lastSeq Letzte Nachricht, die der Client hat
+     * @param limit Höchstens so viele (die neuesten)
+     */
+    ResumePage getMessagesAfter(long lastSeq, int limit) throws IOException {
+        if (history == null) {
+            return new ResumePage(1, 0, new ArrayList<>());
+        }
+
+        long last;
+        List<HistoryLog.Entry> recent = new ArrayList<>();
+        lock.lock();
+        try {
+            last = history.getLastSeq();
+            if (lastSeq > last) {
+                // Der Client kennt mehr als das Log (Historie gelöscht) - alles schicken
+                lastSeq = 0;
+            }
+            for (Line line : chatHistory) {
+                if (line.seq() > lastSeq) {
+                    recent.add(new HistoryLog.Entry(line.seq(), line.frame().getMessage()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        long from = Math.max(lastSeq + 1, last - limit + 1);
+        recent.removeIf(entry -> entry.seq() < from);
+        long recentStart = recent.isEmpty() ? last + 1 : recent.get(0).seq();
+
+        List<HistoryLog.Entry> entries = new ArrayList<>();
+        if (from < recentStart) {
+            // Meist längst gesichert - nur bei sehr vielen neuen Nachrichten kurz warten
+            history.awaitDurable(recentStart - 1, RESUME_WAIT_MS);
+            entries.addAll(history.read(from, recentStart - 1));
+        }
+        entries.addAll(recent);
+
+        return new ResumePage(entries.isEmpty() ? last + 1 : entries.get(0).seq(), last, entries);
+    }
+
+
+    /**
+     * Durchsucht die Historie (SEARCH). Die Nummern kommen aus dem Index, die
+     * Nachrichten aus dem Speicher oder dem Log - was dort nicht mehr liegt
+     * (ältere Segmente gelöscht), fehlt.
+     *
+     * @param query Suchwörter (alle müssen vorkommen)
+     * @param limit Höchstens so viele
+     * @return Die Treffer, neueste zuerst
+     */
+    List<HistoryLog.Entry> search(String query, int limit) throws IOException {
+        List<HistoryLog.Entry> entries = new ArrayList<>();
+        if (search == null) {
+            return entries;
         }
 
+        long[] seqs = search.search(query, limit);
+        Map<Long, String> recent = new HashMap<>();
+        lock.lock();
         try {
-            // Markierung für Historie-Beginn
-            client.sendMessage("=== Letzte Nachrichten ===");
+            for (Line line : chatHistory) {
+                recent.put(line.seq(), line.frame().getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
 
-            // Alle Nachrichten aus der Historie senden
-            for (String message : chatHistory) {
-                client.sendMessage(message);
+        // Einmal auf die neueste Nummer warten, die aus dem Log kommt - nicht pro Treffer
+        long newest = 0;
+        for (long seq : seqs) {
+            if (!recent.containsKey(seq)) {
+                newest = Math.max(newest, seq);
             }
+        }
+        if (newest > 0) {
+            history.awaitDurable(newest, RESUME_WAIT_MS);
+        }
 
-            // Markierung für Historie-Ende
-            client.sendMessage("=== Ende der Historie ===");
-        } catch (IOException e) {
-            // Client nicht erreichbar - ignorieren
+        for (long seq : seqs) {
+            String message = recent.get(seq);
+            if (message == null) {
+                List<HistoryLog.Entry> read = history.read(seq, seq);
+                message = read.isEmpty() ? null : read.get(0).message();
+            }
+            if (message != null) {
+                entries.add(new HistoryLog.Entry(seq, message));
+            }
         }
+        return entries;
     }
 
 
@@ -188,30 +636,59 @@ public class Room {
      * Sendet eine Nachricht an alle Mitglieder des Raums.
      * Speichert die Nachricht auch in der Historie.
      *
+     * Die Nachricht wird nur einmal kodiert; alle Mitglieder bekommen
+     * dieselben Bytes in ihre Ausgangs-Queue. Chat-Nachrichten gehen an
+     * Clients ab v7 als ROOM_MESSAGE mit ihrer Nummer - auch an den Absender,
+     * damit er die Nummer seiner eigenen Nachricht kennt.
+     *
      * @param message Die Nachricht
-     * @param sender Der Sender (wird ausgeschlossen), kann null sein
+     * @param sender Der Sender (wird ausgeschlossen, ab v7 nicht), kann null sein
      */
-    public synchronized void broadcast(String message, ClientHandler sender) {
-        // Nachricht zur Historie hinzufügen (nur Chat-Nachrichten, keine System-Nachrichten)
-        if (message.startsWith("[") && !message.startsWith(">>>") && !message.startsWith("<<<")) {
-            addToHistory(message);
-        }
+    public void broadcast(String message, ClientHandler sender) {
+        Frame frame = Frame.chat(message);
 
-        List<ClientHandler> disconnected = new ArrayList<>();
+        // Nur Chat-Nachrichten kommen in die Historie, keine System-Nachrichten
+        if (!message.startsWith("[") || message.startsWith(">>>") || message.startsWith("<<<")) {
+            send(frame, sender);
+            return;
+        }
 
+        long seq = addToHistory(frame);
+        Frame numbered = null;
         for (ClientHandler client : members) {
-            // Nicht an Sender zurückschicken
-            if (client == sender) continue;
+            boolean withSeq = client.getProtocolVersion() >= Protocol.VERSION_7;
+            if (client == sender && !withSeq) continue;
 
+            if (withSeq && numbered == null) {
+                numbered = Frame.of(Command.ROOM_MESSAGE, name, String.valueOf(seq), message);
+            }
             try {
-                client.sendMessage(message);
+                client.sendFrame(withSeq ? numbered : frame);
             } catch (IOException e) {
-                disconnected.add(client);
+                removeMember(client);
             }
         }
+    }
+
 
-        // Getrennte Clients entfernen
-        members.removeAll(disconnected);
+    /**
+     * Sendet eine Systemnachricht an alle Mitglieder außer den genannten
+     * (gebündelte Betreten/Verlassen-Meldungen, nicht in der Historie).
+     *
+     * @param message Die Nachricht
+     * @param excluded Clients, die die Nachricht nicht bekommen
+     */
+    void broadcast(String message, Set<ClientHandler> excluded) {
+        Frame frame = Frame.chat(message);
+        for (ClientHandler client : members) {
+            if (excluded.contains(client)) continue;
+
+            try {
+                client.sendFrame(frame);
+            } catch (IOException e) {
+                removeMember(client);
+            }
+        }
     }
 
 
@@ -220,19 +697,47 @@ public class Room {
      *
      * @param message Die Nachricht
      */
-    public synchronized void broadcastToAll(String message) {
-        List<ClientHandler> disconnected = new ArrayList<>();
+    public void broadcastToAll(String message) {
+        broadcastToAll(Frame.chat(message));
+    }
+
 
+    /**
+     * Sendet einen Frame an ALLE Mitglieder (inkl. Sender), z.B. USER_LIST.
+     * Kodiert wird höchstens einmal pro Protokoll-Version.
+     *
+     * @param frame Der Frame
+     */
+    void broadcastToAll(Frame frame) {
+        send(frame, null);
+    }
+
+
+    /**
+     * Reiht einen Frame bei allen Mitgliedern ein (ohne Sperre, auf dem
+     * aktuellen Stand der Mitglieder). Getrennte Clients werden entfernt.
+     */
+    private void send(Frame frame, ClientHandler sender) {
         for (ClientHandler client : members) {
+            // Nicht an Sender zurückschicken
+            if (client == sender) continue;
+
             try {
-                client.sendMessage(message);
+                client.sendFrame(frame);
             } catch (IOException e) {
-                disconnected.add(client);
+                removeMember(client);
             }
         }
+    }
+
 
-        // Getrennte Clients entfernen
-        members.removeAll(disconnected);
+    private static int indexOf(ClientHandler[] clients, ClientHandler client) {
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == client) {
+                return i;
+            }
+        }
+        return -1;
     }
 
 
@@ -0,0 +1,377 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Die Dateien eines Raums: welcher Name zu welchem Inhalt im BlobStore gehört.
+ *
+ * Alle Einträge (Name, Hash, Größe, Änderungszeit) liegen im Speicher - die
+ * Dateiliste wird ohne Plattenzugriff beantwortet. Auf der Platte steht die
+ * Zuordnung im Manifest (room_files/Raumname/.files, eine Zeile pro Datei,
+ * Felder durch Tabs getrennt). Es wird bei jeder Änderung komplett neu
+ * geschrieben (erst in eine Temp-Datei, die mit fsync gesichert wird, dann
+ * umbenannt) - sonst könnte nach einem Absturz ein leeres Manifest dastehen,
+ * und der BlobStore würde beim Start Inhalte löschen, auf die es zeigte. Im Raumordner
+ * selbst liegen sonst nur noch Teil-Dateien laufender Uploads.
+ *
+ * Änderungen von außen (Datei in den Raumordner kopiert, Inhalt im BlobStore
+ * gelöscht) gleicht reconcile() ab - ausgelöst vom FileWatcher.
+ *
+ * Wird ein Raum gelöscht, werden (im Reaper) nur seine Referenzen
+ * freigegeben - die Inhalte verschwinden erst, wenn kein anderer Raum sie
+ * mehr nutzt.
+ */
+final class RoomFiles {
+
+    /**
+     * Eine Datei im Raum.
+     *
+     * @param hash SHA-256 des Inhalts
+     * @param size Größe in Bytes
+     * @param modified Zeitpunkt des Uploads (Millisekunden seit 1970)
+     */
+    record Entry(String hash, long size, long modified) {
+    }
+
+    // Versteckt, damit es nie als Datei des Raums erscheint
+    private static final String MANIFEST = ".files";
+    private static final String MANIFEST_TEMP = ".files.tmp";
+
+    private final File directory;
+    private final BlobStore blobs;
+
+    // Dateiname -> Eintrag, sortiert für die Dateiliste
+    private final Map<String, Entry> files;
+
+    // Nach delete() kommen keine Dateien mehr dazu
+    private boolean deleted;
+
+    // ReentrantLock statt synchronized (virtuelle Threads, siehe Room)
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    private RoomFiles(File directory, BlobStore blobs, Map<String, Entry> files) {
+        this.directory = directory;
+        this.blobs = blobs;
+        this.files = files;
+    }
+
+
+    /**
+     * Lädt das Manifest eines Raumordners (ein fehlendes Manifest ist ein leerer Raum).
+     * Die Referenzen im BlobStore sind schon gezählt (beim Start bzw. beim Hinzufügen).
+     */
+    static RoomFiles open(File directory, BlobStore blobs) throws IOException {
+        directory.mkdirs();
+        return new RoomFiles(directory, blobs, readManifest(directory, blobs));
+    }
+
+
+    /**
+     * Liest das Manifest eines Raumordners. Kaputte Zeilen werden übersprungen.
+     *
+     * Zeilen im alten Format "hash name" (ohne Größe und Zeit) bekommen
+     * Größe und Zeit vom Inhalt im BlobStore.
+     *
+     * @return Dateiname -> Eintrag (leer wenn es kein Manifest gibt)
+     */
+    static Map<String, Entry> readManifest(File directory, BlobStore blobs) throws IOException {
+        Map<String, Entry> files = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(
+                new File(directory, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line, files, blobs);
+            }
+        } catch (NoSuchFileException e) {
+            // Raum ohne Dateien
+        }
+        return files;
+    }
+
+
+    /**
+     * Liest eine Zeile des Manifests: "hash\tgröße\tzeit\tname" (oder alt "hash name").
+     */
+    private static void parseLine(String line, Map<String, Entry> files, BlobStore blobs) {
+        if (line.length() < 66 || !BlobStore.isHash(line.substring(0, 64))) {
+            return;
+        }
+        String hash = line.substring(0, 64);
+
+        if (line.charAt(64) == ' ') {
+            File blob = blobs.getFile(hash);
+            files.put(line.substring(65), new Entry(hash, blob.length(), blob.lastModified()));
+            return;
+        }
+
+        String[] parts = line.split("\t", 4);
+        if (parts.length != 4) {
+            return;
+        }
+        try {
+            files.put(parts[3], new Entry(hash, Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+        } catch (NumberFormatException e) {
+            // Kaputte Zeile überspringen
+        }
+    }
+
+
+    /**
+     * Ordner des Raums (für Teil-Dateien laufender Uploads).
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+
+    /**
+     * Gibt alle Dateinamen zurück (sortiert).
+     */
+    List<String> getNames() {
+        lock.lock();
+        try {
+            return new ArrayList<>(files.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gibt alle Dateien mit Größe und Zeit zurück (sortiert nach Name).
+     */
+    Map<String, Entry> getEntries() {
+        lock.lock();
+        try {
+            return new LinkedHashMap<>(files);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gibt die Datei mit dem Inhalt zu einem Namen zurück.
+     *
+     * @return Die Datei im BlobStore oder null wenn es den Namen nicht gibt
+     */
+    File resolve(String fileName) {
+        lock.lock();
+        try {
+            Entry entry = files.get(fileName);
+            return entry != null ? blobs.getFile(entry.hash()) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Übernimmt einen fertigen Upload: Inhalt in den BlobStore, Name ins Manifest.
+     * Eine Datei gleichen Namens wird ersetzt.
+     *
+     * @param fileName Name der Datei im Raum
+     * @param source Fertige Temp-Datei (wird verschoben oder gelöscht)
+     * @param hash SHA-256 des Inhalts
+     */
+    void add(String fileName, Path source, String hash) throws IOException {
+        lock.lock();
+        try {
+            if (deleted) {
+                Files.deleteIfExists(source);
+                throw new IOException("Raum wurde gelöscht");
+            }
+            long size = Files.size(source);
+            blobs.store(source, hash);
+            put(fileName, new Entry(hash, size, System.currentTimeMillis()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Legt einen Namen für einen Inhalt an, der schon in diesem Raum liegt
+     * (doppelte Datei - es muss nichts übertragen werden).
+     *
+     * Nur innerhalb des Raums: Hash und Größe beweisen nicht, dass der Client
+     * den Inhalt hat - sonst käme er an jede Datei eines anderen Raums, deren
+     * Hash er kennt. Hier kann er sie ohnehin herunterladen.
+     *
+     * @param fileName Name der Datei im Raum
+     * @param hash SHA-256 des Inhalts laut Client
+     * @param size Größe laut Client
+     * @return false wenn der Raum den Inhalt nicht hat (dann normal hochladen)
+     */
+    boolean link(String fileName, String hash, long size) throws IOException {
+        lock.lock();
+        try {
+            if (deleted || !contains(hash, size) || !blobs.retain(hash, size)) {
+                return false;
+            }
+            put(fileName, new Entry(hash, size, System.currentTimeMillis()));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private boolean contains(String hash, long size) {
+        for (Entry entry : files.values()) {
+            if (entry.hash().equals(hash) && entry.size() == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Trägt einen Namen ein, dessen Referenz schon gezählt ist, und gibt die
+     * Referenz der ersetzten Datei frei. Klappt das Speichern nicht, bleibt
+     * alles wie vorher.
+     */
+    private void put(String fileName, Entry entry) throws IOException {
+        Entry previous = files.put(fileName, entry);
+        try {
+            save();
+        } catch (IOException e) {
+            if (previous != null) {
+                files.put(fileName, previous);
+            } else {
+                files.remove(fileName);
+            }
+            blobs.release(entry.hash());
+            throw e;
+        }
+        if (previous != null) {
+            blobs.release(previous.hash());
+        }
+    }
+
+
+    /**
+     * Markiert den Raum als gelöscht: Danach können keine Dateien mehr
+     * hinzukommen (laufende Uploads schlagen fehl), und der Index wird nicht
+     * mehr abgeglichen. Die Referenzen gibt erst releaseAll() frei.
+     */
+    void delete() {
+        lock.lock();
+        try {
+            deleted = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gibt alle Dateien eines gelöschten Raums im BlobStore frei
+     * (vom Reaper, nicht mehr genutzte Inhalte werden dabei gelöscht).
+     */
+    void releaseAll() {
+        lock.lock();
+        try {
+            for (Entry entry : files.values()) {
+                blobs.release(entry.hash());
+            }
+            files.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Übernimmt normale Dateien im Raumordner (von vor dem BlobStore oder von
+     * außen hineinkopiert) in den BlobStore und ins Manifest.
+     *
+     * @return Anzahl der übernommenen Dateien
+     */
+    int importPlainFiles() throws IOException {
+        File[] plain = directory.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        if (plain == null) {
+            return 0;
+        }
+        for (File file : plain) {
+            add(file.getName(), file.toPath(), BlobStore.hash(file.toPath()));
+        }
+        return plain.length;
+    }
+
+
+    /**
+     * Gleicht den Index mit der Platte ab: hineinkopierte Dateien werden
+     * übernommen, Einträge ohne Inhalt im BlobStore (von außen gelöscht)
+     * fallen weg.
+     *
+     * @return Anzahl der geänderten Einträge
+     */
+    int reconcile() throws IOException {
+        lock.lock();
+        try {
+            if (deleted) {
+                return 0;
+            }
+
+            List<String> missing = new ArrayList<>();
+            for (Map.Entry<String, Entry> file : files.entrySet()) {
+                if (!blobs.getFile(file.getValue().hash()).isFile()) {
+                    missing.add(file.getKey());
+                }
+            }
+            for (String fileName : missing) {
+                blobs.release(files.remove(fileName).hash());
+            }
+            if (!missing.isEmpty()) {
+                save();
+            }
+
+            return missing.size() + importPlainFiles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void save() throws IOException {
+        Path temp = new File(directory, MANIFEST_TEMP).toPath();
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> file : files.entrySet()) {
+                Entry entry = file.getValue();
+                writer.write(entry.hash() + '\t' + entry.size() + '\t' + entry.modified() + '\t' + file.getKey());
+                writer.write('\n');
+            }
+            // Erst gesichert, dann umbenannt (siehe Klassenkommentar)
+            writer.flush();
+            stream.getFD().sync();
+        }
+
+        Path target = new File(directory, MANIFEST).toPath();
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
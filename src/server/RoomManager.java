@@ -1,31 +1,105 @@
 package server;
 
+import protocol.Command;
+
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Verwaltet alle Chat-Räume auf dem Server.
  *
- * Für jeden Raum wird ein Ordner erstellt, in dem Dateien gespeichert werden.
- * Wenn ein Raum gelöscht wird, wird auch sein Ordner gelöscht.
+ * Für jeden Raum wird ein Ordner mit seinem Datei-Manifest erstellt (siehe
+ * RoomFiles). Die Inhalte selbst liegen einmal im gemeinsamen BlobStore -
+ * dieselbe Datei in zehn Räumen belegt den Platz nur einmal. Wenn ein Raum
+ * gelöscht wird, wird sein Ordner nur in den Papierkorb umbenannt - das
+ * Freigeben der Referenzen und Löschen macht der Reaper im Hintergrund.
+ *
+ * Die Dateilisten liegen im Speicher (RoomFiles). Änderungen von außen
+ * bemerkt der FileWatcher.
+ *
+ * Die Räume liegen in einer ConcurrentHashMap. Anlegen und Löschen laufen
+ * atomar pro Raumname (computeIfAbsent bzw. computeIfPresent). Beitreten und
+ * "löschen wenn leer" stimmt der Raum selbst ab (siehe Room.closeIfEmpty):
+ * Wer einem gerade gelöschten Raum beitreten will, bekommt false.
+ *
+ * Die Raumliste hat eine Versionsnummer, die mit jedem neuen und jedem
+ * gelöschten Raum steigt. Clients ab v4 bekommen nur die Änderung
+ * (ROOM_ADDED/ROOM_REMOVED), ältere die ganze ROOM_LIST. Nur Anlegen,
+ * Löschen und das Lesen der ganzen Liste samt Version teilen sich eine
+ * Sperre - Beitreten, Verlassen und Broadcasts laufen ohne.
+ *
+ * Zusätzlich liegen die Räume sortiert in einer ConcurrentSkipListMap (unter
+ * derselben Sperre mitgepflegt). Daraus kommen die Seiten für LIST_ROOMS:
+ * Eine Seite kostet O(log Räume + Seitengröße), egal wie viele Räume es gibt.
+ *
+ * Die Chat-Historie liegt getrennt von den Räumen in room_history/ (siehe
+ * HistoryStore) und überlebt das Löschen eines Raums und Neustarts.
  */
 public class RoomManager {
 
     // Hier werden alle Raum-Ordner gespeichert
     private static final String ROOMS_DIRECTORY = "room_files";
 
+    // Gemeinsamer Speicher für alle Dateiinhalte (neben den Raum-Ordnern,
+    // damit kein Raum so heißen kann)
+    private static final String BLOB_DIRECTORY = "room_blobs";
+
+    // Dort lagen die Inhalte früher (room_files/.blobs) - wird beim Start verschoben
+    private static final String OLD_BLOB_DIRECTORY = ".blobs";
+
+    // Ordner gelöschter Räume, bis der Reaper sie weggeräumt hat (neben
+    // den Raum-Ordnern, damit kein Raum so heißen kann)
+    private static final String TRASH_DIRECTORY = "room_trash";
+
+    // Dort lag der Papierkorb früher (room_files/.trash) - wird beim Start verschoben
+    private static final String OLD_TRASH_DIRECTORY = ".trash";
+
+    // Chat-Historie aller Räume (bleibt auch nach dem Löschen eines Raums)
+    private static final String HISTORY_DIRECTORY = "room_history";
+
     // Alle Räume: Name -> Room-Objekt
     private final Map<String, Room> rooms;
 
+    // Dieselben Räume sortiert nach Name (für Seiten und sortierte Listen)
+    private final NavigableMap<String, Room> directory = new ConcurrentSkipListMap<>();
+
     // Referenz zum Server
     private final Server server;
 
+    // Dateiinhalte aller Räume
+    private final BlobStore blobs;
+
+    // Gleicht die Dateilisten mit der Platte ab (null wenn er nicht starten konnte)
+    private FileWatcher watcher;
+
+    // Löscht die Ordner gelöschter Räume im Hintergrund
+    private final Reaper reaper;
+
+    // Raumname -> Ordner, der noch in den Papierkorb muss (removeRoom benennt
+    // ihn erst nach roomListLock um; ein neuer Raum mit demselben Namen wartet darauf)
+    private final Map<String, Burial> burials = new ConcurrentHashMap<>();
+
+    // Schreibt die Chat-Historie auf die Platte
+    private final HistoryStore history;
+
+    // Version der Raumliste (steigt mit jedem neuen/gelöschten Raum)
+    private long roomListVersion;
+
+    // Sperre für Anlegen/Löschen und roomListVersion: So passen Version und
+    // Liste in getRoomSnapshot() immer zusammen
+    private final ReentrantLock roomListLock = new ReentrantLock();
+
 
     public RoomManager(Server server) {
-        this.rooms = new HashMap<>();
+        this.rooms = new ConcurrentHashMap<>();
         this.server = server;
 
         // Basis-Ordner erstellen falls nicht vorhanden
@@ -33,133 +107,336 @@ public class RoomManager {
         if (!baseDir.exists()) {
             baseDir.mkdirs();
         }
+
+        File blobDir = new File(BLOB_DIRECTORY);
+        File oldBlobDir = new File(baseDir, OLD_BLOB_DIRECTORY);
+        if (oldBlobDir.isDirectory() && !blobDir.exists() && !oldBlobDir.renameTo(blobDir)) {
+            server.log("Dateiinhalte nicht verschoben: " + oldBlobDir.getPath() + " -> " + blobDir.getPath());
+        }
+        this.blobs = new BlobStore(blobDir);
+        initBlobStore(baseDir);
+
+        File trashDir = new File(TRASH_DIRECTORY);
+        File oldTrashDir = new File(baseDir, OLD_TRASH_DIRECTORY);
+        if (oldTrashDir.isDirectory() && !trashDir.exists() && !oldTrashDir.renameTo(trashDir)) {
+            server.log("Papierkorb nicht verschoben: " + oldTrashDir.getPath() + " -> " + trashDir.getPath());
+        }
+        this.reaper = new Reaper(trashDir, server);
+        reaper.start();
+
+        this.history = new HistoryStore(new File(HISTORY_DIRECTORY), server);
+        history.start();
+
+        try {
+            watcher = new FileWatcher(blobDir.toPath(), blobs, this::getAllRoomFiles, server);
+            watcher.start();
+        } catch (IOException e) {
+            watcher = null;
+            server.log("Dateiordner werden nicht beobachtet: " + e.getMessage());
+        }
     }
 
 
     /**
-     * Erstellt einen neuen Raum mit eigenem Datei-Ordner.
+     * Beendet FileWatcher und Reaper und sichert die Historie (beim Stoppen des Servers).
      */
-    public synchronized boolean createRoom(String name, ClientHandler creator) {
-        // Name schon vergeben?
-        if (rooms.containsKey(name)) {
-            return false;
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
         }
+        reaper.close();
+        history.close();
+    }
 
-        // Name gültig?
-        if (name == null || name.trim().isEmpty()) {
-            return false;
+
+    /**
+     * Zählt beim Start die Referenzen aus allen Manifesten und übernimmt
+     * normale Dateien aus Raumordnern (von vor dem BlobStore).
+     *
+     * Inhalte ohne Referenz werden gelöscht - aber nur, wenn alle Manifeste
+     * gelesen werden konnten.
+     */
+    private void initBlobStore(File baseDir) {
+        File[] roomDirs = baseDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        if (roomDirs == null) {
+            roomDirs = new File[0];
         }
 
-        // Keine Sonderzeichen die Probleme im Dateisystem machen
-        if (name.contains("/") || name.contains("\\") || name.contains("..")) {
+        Map<String, Integer> counts = new HashMap<>();
+        boolean complete = true;
+        for (File roomDir : roomDirs) {
+            try {
+                for (RoomFiles.Entry entry : RoomFiles.readManifest(roomDir, blobs).values()) {
+                    counts.merge(entry.hash(), 1, Integer::sum);
+                }
+            } catch (IOException e) {
+                complete = false;
+                server.log("Manifest nicht lesbar: " + roomDir.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+        blobs.initReferences(counts, complete);
+
+        for (File roomDir : roomDirs) {
+            try {
+                int imported = RoomFiles.open(roomDir, blobs).importPlainFiles();
+                if (imported > 0) {
+                    server.log(imported + " Dateien in den BlobStore übernommen: " + roomDir.getPath());
+                }
+            } catch (IOException e) {
+                server.log("Dateien nicht übernommen: " + roomDir.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+        server.log("BlobStore: " + blobs.getBlobCount() + " Dateiinhalte");
+    }
+
+
+    /**
+     * Erstellt einen neuen Raum mit eigenem Datei-Ordner.
+     * Der Ersteller ist danach schon Mitglied (im selben Schritt, sonst könnte
+     * der leere Raum gelöscht werden, bevor er beitritt).
+     */
+    public boolean createRoom(String name, ClientHandler creator) {
+        if (!isValidRoomName(name)) {
             return false;
         }
 
-        // Raum erstellen
-        Room room = new Room(name, creator.getUsername());
-        rooms.put(name, room);
+        // Name schon vergeben? Dann liefert computeIfAbsent den alten Raum
+        // und openRoom wird nicht aufgerufen. Die Plattenzugriffe in openRoom
+        // laufen nur unter der Sperre für diesen Namen, nicht unter roomListLock.
+        Room[] created = new Room[1];
+        rooms.computeIfAbsent(name, key -> created[0] = openRoom(key, creator));
+        if (created[0] == null) {
+            return false;
+        }
 
-        // Ordner für Dateien erstellen: room_files/Raumname/
-        File roomDir = new File(ROOMS_DIRECTORY, name);
-        if (!roomDir.exists()) {
-            roomDir.mkdirs();
-            server.log("Ordner erstellt: " + roomDir.getPath());
+        long version;
+        roomListLock.lock();
+        try {
+            if (rooms.get(name) != created[0]) {
+                // Schon wieder gelöscht (removeRoom hat die Liste bereits angepasst)
+                return true;
+            }
+            directory.put(name, created[0]);
+            version = ++roomListVersion;
+        } finally {
+            roomListLock.unlock();
         }
 
         server.log("Raum erstellt: " + name + " (von " + creator.getUsername() + ")");
+        server.log(creator.getUsername() + " ist Raum '" + name + "' beigetreten");
         server.notifyRoomCreated(name);
+        server.getPresence().roomListChanged(Command.ROOM_ADDED, name, version);
 
         return true;
     }
 
 
     /**
-     * Löscht einen Raum und seinen Datei-Ordner.
+     * Prüft einen neuen Raumnamen: nicht leer, keine Zeichen, die Probleme
+     * im Dateisystem machen, und kein '.' am Anfang (versteckte Ordner in
+     * room_files/ gehören nicht zu den Räumen).
      */
-    public synchronized boolean deleteRoom(String name) {
-        Room room = rooms.remove(name);
-
-        if (room != null) {
-            // Ordner löschen (mit allen Dateien drin)
-            File roomDir = new File(ROOMS_DIRECTORY, name);
-            if (roomDir.exists()) {
-                deleteDirectoryRecursively(roomDir);
-                server.log("Ordner gelöscht: " + roomDir.getPath());
-            }
+    static boolean isValidRoomName(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return false;
+        }
+        return !name.startsWith(".") && !name.contains("/") && !name.contains("\\") && !name.contains("..");
+    }
+
+
+    /**
+     * Legt einen Raum an (unter der Sperre der ConcurrentHashMap für diesen Namen).
+     *
+     * @return Der Raum oder null wenn der Ordner nicht lesbar ist
+     */
+    private Room openRoom(String name, ClientHandler creator) {
+        // Ein gerade gelöschter Raum mit demselben Namen muss erst im Papierkorb sein
+        Burial pending = burials.get(name);
+        if (pending != null) {
+            pending.run();
+        }
 
-            server.log("Raum gelöscht: " + name);
-            server.notifyRoomDeleted(name);
-            return true;
+        // Ordner für Manifest und Teil-Uploads: room_files/Raumname/
+        // (gibt es ihn schon, sind die Dateien von früher wieder da)
+        File roomDir = new File(ROOMS_DIRECTORY, name);
+        RoomFiles files;
+        try {
+            files = RoomFiles.open(roomDir, blobs);
+        } catch (IOException e) {
+            server.log("Raumordner nicht lesbar: " + roomDir.getPath() + " (" + e.getMessage() + ")");
+            return null;
         }
 
-        return false;
+        // Historie von früher (room_history/Raumname/) - gleicher Name, gleiche Historie
+        HistoryLog log = history.open(name);
+        SearchIndex index = log != null ? history.openIndex(name, log) : null;
+        Room room = new Room(name, creator.getUsername(), files, server.getPresence(), log, index);
+        room.addMember(creator);
+        if (watcher != null) {
+            watcher.watch(files);
+        }
+        return room;
     }
 
 
     /**
-     * Löscht einen Ordner samt Inhalt.
+     * Löscht einen Raum (auch mit Mitgliedern).
+     */
+    public boolean deleteRoom(String name) {
+        return removeRoom(name, null);
+    }
+
+
+    /**
+     * Löscht einen Raum, wenn er leer ist. Tritt gleichzeitig jemand bei,
+     * gewinnt entweder der Beitritt (Raum bleibt) oder das Löschen
+     * (Beitritt schlägt fehl).
      *
-     * Geht rekursiv durch: Erst alle Dateien/Unterordner löschen,
-     * dann den Ordner selbst.
+     * @param room Der Raum, den der Aufrufer kennt (ein neuer Raum mit
+     *             demselben Namen bleibt stehen)
+     */
+    private boolean deleteIfEmpty(String name, Room room) {
+        // Ohne Sperre vorab prüfen - meist bleibt noch jemand im Raum
+        return room.isEmpty() && removeRoom(name, room);
+    }
+
+
+    /**
+     * Ein Raumordner, der in den Papierkorb muss. run() benennt ihn genau
+     * einmal um - wer zuerst kommt, macht es, wer danach kommt, wartet darauf.
      */
-    private void deleteDirectoryRecursively(File directory) {
-        if (directory.isDirectory()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    deleteDirectoryRecursively(file);
+    private final class Burial {
+
+        private final RoomFiles files;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean done;
+
+        Burial(RoomFiles files) {
+            this.files = files;
+        }
+
+        void run() {
+            lock.lock();
+            try {
+                if (!done) {
+                    reaper.bury(files);
+                    done = true;
                 }
+            } finally {
+                lock.unlock();
             }
         }
-        directory.delete();
     }
 
 
     /**
-     * Gibt den Datei-Ordner eines Raums zurück.
+     * Nimmt einen Raum aus der Map. Umbenannt wird der Ordner erst nach
+     * roomListLock (eine langsame Platte hält so kein Anlegen und Beitreten
+     * auf) - Referenzen freigeben und Dateien löschen macht der Reaper. Ein
+     * neuer Raum mit demselben Namen wartet in openRoom, bis der alte Ordner weg ist.
+     *
+     * @param ifEmpty null = immer löschen, sonst nur diesen Raum und nur wenn er leer ist
      */
-    public synchronized File getRoomDirectory(String roomName) {
-        if (!rooms.containsKey(roomName)) {
-            return null;
+    private boolean removeRoom(String name, Room ifEmpty) {
+        Burial[] burial = new Burial[1];
+        long version;
+        roomListLock.lock();
+        try {
+            rooms.computeIfPresent(name, (key, room) -> {
+                if (ifEmpty != null && (room != ifEmpty || !room.closeIfEmpty())) {
+                    return room;
+                }
+                room.close();
+                if (room.getHistoryLog() != null) {
+                    history.release(name, room.getHistoryLog());
+                }
+                if (watcher != null) {
+                    watcher.unwatch(room.getFiles());
+                }
+                room.getFiles().delete();
+                burial[0] = new Burial(room.getFiles());
+                burials.put(name, burial[0]);
+                return null;
+            });
+            if (burial[0] == null) {
+                return false;
+            }
+            directory.remove(name);
+            version = ++roomListVersion;
+        } finally {
+            roomListLock.unlock();
         }
-        return new File(ROOMS_DIRECTORY, roomName);
+
+        burial[0].run();
+        burials.remove(name, burial[0]);
+
+        server.log("Raum gelöscht: " + name);
+        server.notifyRoomDeleted(name);
+        server.getPresence().roomListChanged(Command.ROOM_REMOVED, name, version);
+        return true;
     }
 
 
     /**
-     * Listet alle Dateien in einem Raum auf.
+     * Gibt die Dateien eines Raums zurück.
+     *
+     * @return Die Dateien oder null wenn es den Raum nicht gibt
      */
-    public synchronized List<String> getFilesInRoom(String roomName) {
-        List<String> fileNames = new ArrayList<>();
-
-        File roomDir = getRoomDirectory(roomName);
-        if (roomDir != null && roomDir.exists()) {
-            File[] files = roomDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        fileNames.add(file.getName());
-                    }
-                }
-            }
+    RoomFiles getRoomFiles(String roomName) {
+        Room room = rooms.get(roomName);
+        return room != null ? room.getFiles() : null;
+    }
+
+
+    /**
+     * Gibt die Dateien aller Räume zurück (für den Abgleich im FileWatcher).
+     */
+    private List<RoomFiles> getAllRoomFiles() {
+        List<RoomFiles> all = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            all.add(room.getFiles());
         }
+        return all;
+    }
 
-        return fileNames;
+
+    /**
+     * Listet alle Dateien in einem Raum auf (aus dem Speicher, ohne Plattenzugriff).
+     */
+    public List<String> getFilesInRoom(String roomName) {
+        RoomFiles files = getRoomFiles(roomName);
+        return files != null ? files.getNames() : new ArrayList<>();
     }
 
 
     /**
      * Findet einen Raum anhand des Namens.
      */
-    public synchronized Room getRoom(String name) {
+    public Room getRoom(String name) {
         return rooms.get(name);
     }
 
 
+    /**
+     * Gibt alle Raumnamen mit der Version der Liste zurück (ROOM_SNAPSHOT, v4).
+     */
+    List<String> getRoomSnapshot() {
+        roomListLock.lock();
+        try {
+            List<String> snapshot = new ArrayList<>();
+            snapshot.add(String.valueOf(roomListVersion));
+            snapshot.addAll(directory.keySet());
+            return snapshot;
+        } finally {
+            roomListLock.unlock();
+        }
+    }
+
+
     /**
      * Prüft ob ein Raum existiert.
      */
-    public synchronized boolean roomExists(String name) {
+    public boolean roomExists(String name) {
         return rooms.containsKey(name);
     }
 
@@ -167,15 +444,56 @@ public class RoomManager {
     /**
      * Gibt alle Raumnamen zurück.
      */
-    public synchronized List<String> getRoomNames() {
-        return new ArrayList<>(rooms.keySet());
+    public List<String> getRoomNames() {
+        return new ArrayList<>(directory.keySet());
+    }
+
+
+    /**
+     * Eine Seite des Raumverzeichnisses.
+     *
+     * @param rooms Die Räume der Seite (sortiert nach Name)
+     * @param more true wenn danach noch Räume mit dem Präfix kommen
+     */
+    record RoomPage(List<Room> rooms, boolean more) {
+    }
+
+
+    /**
+     * Gibt eine Seite des Raumverzeichnisses zurück (für LIST_ROOMS).
+     *
+     * Die Seite beginnt hinter einem Raumnamen statt bei einer Position:
+     * Die Skip-Liste findet den Namen in O(log n), eine Position müsste sie
+     * abzählen. Kommen zwischen zwei Seiten Räume dazu oder fallen weg,
+     * verschiebt sich dadurch auch nichts.
+     *
+     * @param prefix Nur Räume, deren Name so beginnt (leer = alle)
+     * @param after Letzter Raum der vorigen Seite (leer = erste Seite)
+     * @param limit Höchstens so viele Räume
+     */
+    RoomPage getRoomPage(String prefix, String after, int limit) {
+        NavigableMap<String, Room> tail = after.compareTo(prefix) >= 0 && !after.isEmpty()
+                ? directory.tailMap(after, false)
+                : directory.tailMap(prefix, true);
+
+        List<Room> page = new ArrayList<>();
+        for (Map.Entry<String, Room> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == limit) {
+                return new RoomPage(page, true);
+            }
+            page.add(entry.getValue());
+        }
+        return new RoomPage(page, false);
     }
 
 
     /**
      * Gibt die Anzahl der Räume zurück.
      */
-    public synchronized int getRoomCount() {
+    public int getRoomCount() {
         return rooms.size();
     }
 
@@ -183,14 +501,14 @@ public class RoomManager {
     /**
      * Lässt einen Client einem Raum beitreten.
      */
-    public synchronized boolean joinRoom(String roomName, ClientHandler client) {
+    public boolean joinRoom(String roomName, ClientHandler client) {
         Room room = rooms.get(roomName);
 
-        if (room == null) {
+        // Raum gibt es nicht (mehr) oder er wird gerade gelöscht
+        if (room == null || !room.addMember(client)) {
             return false;
         }
 
-        room.addMember(client);
         server.log(client.getUsername() + " ist Raum '" + roomName + "' beigetreten");
 
         return true;
@@ -201,7 +519,7 @@ public class RoomManager {
      * Entfernt einen Client aus einem Raum.
      * Löscht den Raum wenn er danach leer ist.
      */
-    public synchronized boolean leaveRoom(String roomName, ClientHandler client) {
+    public boolean leaveRoom(String roomName, ClientHandler client) {
         Room room = rooms.get(roomName);
 
         if (room == null) {
@@ -212,45 +530,33 @@ public class RoomManager {
         server.log(client.getUsername() + " hat Raum '" + roomName + "' verlassen");
 
         // Leerer Raum wird gelöscht
-        if (room.isEmpty()) {
-            deleteRoom(roomName);
-            return true;
-        }
-
-        return false;
+        return deleteIfEmpty(roomName, room);
     }
 
 
     /**
      * Entfernt einen Client aus allen Räumen (bei Disconnect).
      */
-    public synchronized void removeClientFromAllRooms(ClientHandler client) {
-        List<String> emptyRooms = new ArrayList<>();
-
+    public void removeClientFromAllRooms(ClientHandler client) {
         for (Map.Entry<String, Room> entry : rooms.entrySet()) {
             Room room = entry.getValue();
 
             if (room.hasMember(client)) {
+                // Gebündelt wie beim Verlassen per LEAVE_ROOM (siehe ClientHandler.leaveCurrentRoom)
+                server.getPresence().roomLeft(room, client);
                 room.removeMember(client);
-                room.broadcastToAll("<<< " + client.getUsername() + " hat den Raum verlassen");
 
-                if (room.isEmpty()) {
-                    emptyRooms.add(entry.getKey());
-                }
+                // Leeren Raum löschen
+                deleteIfEmpty(entry.getKey(), room);
             }
         }
-
-        // Leere Räume löschen
-        for (String roomName : emptyRooms) {
-            deleteRoom(roomName);
-        }
     }
 
 
     /**
      * Gibt die Mitglieder eines Raums als komma-separierte Liste zurück.
      */
-    public synchronized String getMemberListString(String roomName) {
+    public String getMemberListString(String roomName) {
         Room room = rooms.get(roomName);
         if (room == null) {
             return "";
@@ -262,7 +568,7 @@ public class RoomManager {
     /**
      * Gibt alle Räume als komma-separierte Liste zurück.
      */
-    public synchronized String getRoomListString() {
+    public String getRoomListString() {
         return String.join(",", rooms.keySet());
     }
 }
\ No newline at end of file
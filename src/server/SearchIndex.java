@@ -0,0 +1,726 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Volltext-Index über die Historie eines Raums (SEARCH, v9).
+ *
+ * Ein invertierter Index: zu jedem Wort die Nummern der Nachrichten, in
+ * denen es vorkommt (aufsteigend, als long[] statt Listen von Long). Neue
+ * Nachrichten kommen beim Anhängen an die Historie in ein Segment im
+ * Speicher. Ist es voll, wird es eingefroren und im Hintergrund als Datei
+ * geschrieben (room_history/Raumname/search/). Je MERGE_FACTOR Dateien
+ * gleicher Stufe legt der Hintergrund-Thread zu einer der nächsten Stufe
+ * zusammen - so bleiben es wenige Dateien, und jede Nachricht wird nur
+ * ein paar Mal neu geschrieben.
+ *
+ * Eine Datei: [Kopf][Nummern je Wort als Varint-Abstände][Wörterbuch][Ende].
+ * Das Wörterbuch (sortiert) liegt im Speicher, die Nummern werden aus der
+ * gemappten Datei gelesen, wenn ein Wort gesucht wird.
+ *
+ * Das Segment im Speicher wird nie gesichert: Beim Öffnen holt der Index
+ * alles, was nach der letzten Datei kam, aus dem Log nach. Dateien, die
+ * weiter reichen als das Log (Absturz vor dem fsync der Historie), werden
+ * verworfen und ebenfalls neu aufgebaut.
+ *
+ * Löscht das Log alte Segmente (chat.history.maxSegments), zählen Treffer
+ * davor nicht mehr: Die Suche überspringt sie, Dateien ganz davor fallen
+ * beim nächsten Zusammenlegen weg, und zusammengelegte Dateien beginnen
+ * erst beim Anfang des Logs.
+ */
+final class SearchIndex {
+
+    // Ab so vielen Einträgen (Wort, Nummer) wird das Segment im Speicher geschrieben
+    static final int FLUSH_POSTINGS = Integer.getInteger("chat.search.flushPostings", 100_000);
+
+    // So viele Dateien gleicher Stufe werden zusammengelegt
+    private static final int MERGE_FACTOR = 4;
+
+    // Längere "Wörter" (z.B. Links) werden nicht indiziert
+    private static final int MAX_TERM_LENGTH = 64;
+
+    // So viele Nachrichten liest open() auf einmal aus dem Log
+    private static final int REINDEX_BATCH = 10_000;
+
+    private static final int MAGIC = 0x43485358;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int TRAILER_SIZE = 4 + 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+
+    // Die Historie des Raums (ihr Anfang begrenzt den Index nach unten)
+    private final HistoryLog log;
+
+    // Schreiben und Zusammenlegen (ein Thread für alle Räume, siehe HistoryStore)
+    private final Executor background;
+
+    // Segmente nach Nummer sortiert, auch eingefrorene im Speicher (nie verändert, nur ersetzt)
+    private volatile List<Segment> segments;
+
+    // Segment im Speicher (unter der Sperre)
+    private Map<String, PostingList> live = new HashMap<>();
+    private int livePostings;
+    private long liveFirstSeq;
+    private long liveLastSeq;
+
+    private volatile boolean closed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    private SearchIndex(File directory, HistoryLog log, Executor background, List<Segment> segments) {
+        this.directory = directory;
+        this.log = log;
+        this.background = background;
+        this.segments = segments;
+    }
+
+
+    /**
+     * Öffnet den Index eines Raums und holt nach, was im Log steht, aber
+     * noch nicht in einer Datei.
+     *
+     * @param directory Ordner für die Index-Dateien (wird angelegt)
+     * @param log Die Historie des Raums
+     * @param background Führt Schreiben und Zusammenlegen aus
+     */
+    static SearchIndex open(File directory, HistoryLog log, Executor background) throws IOException {
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Ordner nicht lesbar: " + directory.getPath());
+        }
+
+        List<DiskSegment> loaded = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Abgebrochenes Schreiben
+                file.delete();
+            } else if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    loaded.add(DiskSegment.open(file));
+                } catch (IOException e) {
+                    // Wird aus dem Log neu aufgebaut
+                    file.delete();
+                }
+            }
+        }
+        loaded.sort((a, b) -> a.firstSeq != b.firstSeq
+                ? Long.compare(a.firstSeq, b.firstSeq) : Long.compare(b.lastSeq, a.lastSeq));
+
+        long logFirst = log.getFirstSeq();
+        long logLast = log.getLastSeq();
+        List<Segment> kept = new ArrayList<>();
+        long indexed = 0;
+        for (DiskSegment segment : loaded) {
+            // In einer größeren enthalten (Absturz nach dem Zusammenlegen, vor dem Löschen),
+            // älter als das Log oder weiter als das Log
+            if (segment.lastSeq <= indexed || segment.lastSeq < logFirst || segment.lastSeq > logLast) {
+                segment.delete();
+                continue;
+            }
+            kept.add(segment);
+            indexed = segment.lastSeq;
+        }
+
+        SearchIndex index = new SearchIndex(directory, log, background, List.copyOf(kept));
+        for (long from = Math.max(indexed + 1, logFirst); from > 0 && from <= logLast; from += REINDEX_BATCH) {
+            for (HistoryLog.Entry entry : log.read(from, Math.min(logLast, from + REINDEX_BATCH - 1))) {
+                index.add(entry.seq(), entry.message());
+            }
+        }
+        background.execute(index::merge);
+        return index;
+    }
+
+
+    // ========================================================================
+    // SCHREIBEN
+    // ========================================================================
+
+
+    /**
+     * Nimmt eine Nachricht auf. Die Nummern müssen aufsteigend kommen (der
+     * Raum ruft das unter seiner Sperre nach HistoryLog.append() auf).
+     */
+    void add(long seq, String message) {
+        Set<String> terms = terms(message);
+        if (terms.isEmpty()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (livePostings == 0) {
+                liveFirstSeq = seq;
+            }
+            for (String term : terms) {
+                live.computeIfAbsent(term, key -> new PostingList()).add(seq);
+            }
+            livePostings += terms.size();
+            liveLastSeq = seq;
+
+            if (livePostings >= FLUSH_POSTINGS) {
+                MemorySegment frozen = new MemorySegment(live, liveFirstSeq, liveLastSeq);
+                live = new HashMap<>();
+                livePostings = 0;
+
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.add(frozen);
+                segments = List.copyOf(updated);
+                background.execute(() -> flush(frozen));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Schreibt ein eingefrorenes Segment als Datei und ersetzt es damit
+     * (im Hintergrund-Thread).
+     */
+    private void flush(MemorySegment frozen) {
+        if (closed) {
+            return;
+        }
+        try {
+            List<String> terms = new ArrayList<>(frozen.terms.keySet());
+            terms.sort(null);
+            DiskSegment written = write(0, frozen.firstSeq, frozen.lastSeq, terms, frozen::postings);
+            replace(List.of(frozen), written);
+        } catch (IOException e) {
+            // Bleibt im Speicher - nach einem Neustart wird es aus dem Log neu aufgebaut
+            return;
+        }
+        merge();
+    }
+
+
+    /**
+     * Legt solange je MERGE_FACTOR aufeinanderfolgende Dateien gleicher Stufe
+     * zusammen, wie es welche gibt (im Hintergrund-Thread).
+     */
+    private void merge() {
+        while (!closed) {
+            long floor = prune();
+            List<DiskSegment> run = findMergeRun(segments);
+            if (run == null) {
+                return;
+            }
+
+            TreeSet<String> terms = new TreeSet<>();
+            for (DiskSegment segment : run) {
+                terms.addAll(Arrays.asList(segment.terms));
+            }
+            try {
+                DiskSegment merged = write(run.get(0).level + 1, Math.max(run.get(0).firstSeq, floor),
+                        run.get(run.size() - 1).lastSeq, new ArrayList<>(terms), term -> {
+                            // Die Bereiche folgen aufeinander - einfach aneinanderhängen
+                            // (ohne Nummern, die nicht mehr im Log stehen)
+                            PostingList all = new PostingList();
+                            for (DiskSegment segment : run) {
+                                all.addAll(segment.postings(term), floor);
+                            }
+                            return all.toArray();
+                        });
+                replace(run, merged);
+            } catch (IOException e) {
+                return;
+            }
+            for (DiskSegment segment : run) {
+                segment.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Löscht die Dateien, deren Nachrichten alle nicht mehr im Log stehen
+     * (im Hintergrund-Thread). Segmente im Speicher bleiben, bis flush() sie ersetzt hat.
+     *
+     * @return Die erste Nummer im Log (0 = keine)
+     */
+    private long prune() {
+        long floor = log.getFirstSeq();
+        List<DiskSegment> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (!(segment instanceof DiskSegment disk) || disk.lastSeq >= floor) {
+                    break;
+                }
+                dropped.add(disk);
+            }
+            if (!dropped.isEmpty()) {
+                segments = List.copyOf(segments.subList(dropped.size(), segments.size()));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (DiskSegment segment : dropped) {
+            segment.delete();
+        }
+        return floor;
+    }
+
+
+    /**
+     * Sucht die ersten MERGE_FACTOR aufeinanderfolgenden Dateien gleicher Stufe.
+     *
+     * @return Die Dateien oder null
+     */
+    private static List<DiskSegment> findMergeRun(List<Segment> current) {
+        List<DiskSegment> run = new ArrayList<>();
+        for (Segment segment : current) {
+            if (!(segment instanceof DiskSegment disk)) {
+                run.clear();
+                continue;
+            }
+            if (!run.isEmpty() && run.get(0).level != disk.level) {
+                run.clear();
+            }
+            run.add(disk);
+            if (run.size() == MERGE_FACTOR) {
+                return run;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Ersetzt aufeinanderfolgende Segmente durch eines, das denselben Bereich abdeckt.
+     */
+    private void replace(List<? extends Segment> old, Segment replacement) {
+        lock.lock();
+        try {
+            List<Segment> updated = new ArrayList<>(segments);
+            int start = updated.indexOf(old.get(0));
+            updated.subList(start, start + old.size()).clear();
+            updated.add(start, replacement);
+            segments = List.copyOf(updated);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Schreibt eine Index-Datei (erst unter einem Hilfsnamen, dann umbenannt -
+     * eine Datei mit richtigem Namen ist immer vollständig).
+     */
+    private DiskSegment write(int level, long firstSeq, long lastSeq, List<String> terms,
+                              PostingSource source) throws IOException {
+        String name = String.format("%020d-%020d", firstSeq, lastSeq);
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        File file = new File(directory, name + SEGMENT_SUFFIX);
+
+        int[] counts = new int[terms.size()];
+        long[] offsets = new long[terms.size()];
+        byte[] varint = new byte[10];
+
+        try (FileOutputStream stream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(level);
+            out.writeLong(firstSeq);
+            out.writeLong(lastSeq);
+            long position = HEADER_SIZE;
+
+            // Nummern je Wort: Abstand zur vorigen als Varint
+            for (int i = 0; i < terms.size(); i++) {
+                long[] postings = source.postings(terms.get(i));
+                counts[i] = postings.length;
+                offsets[i] = position;
+                long previous = 0;
+                for (long seq : postings) {
+                    int length = writeVarint(varint, seq - previous);
+                    out.write(varint, 0, length);
+                    position += length;
+                    previous = seq;
+                }
+            }
+
+            // Wörterbuch
+            long dictionary = position;
+            for (int i = 0; i < terms.size(); i++) {
+                byte[] term = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(term.length);
+                out.write(term);
+                out.writeInt(counts[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.writeInt(terms.size());
+            out.writeLong(dictionary);
+            out.flush();
+            stream.getFD().sync();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return DiskSegment.open(file);
+    }
+
+
+    /**
+     * Beim Beenden: nichts mehr schreiben (das Segment im Speicher wird beim
+     * nächsten Start aus dem Log neu aufgebaut).
+     */
+    void close() {
+        closed = true;
+    }
+
+
+    // ========================================================================
+    // SUCHEN
+    // ========================================================================
+
+
+    /**
+     * Sucht Nachrichten, die alle Wörter der Anfrage enthalten (Groß- und
+     * Kleinschreibung egal).
+     *
+     * @param limit Höchstens so viele
+     * @return Die Nummern der Treffer, neueste zuerst
+     */
+    long[] search(String query, int limit) throws IOException {
+        List<String> terms = new ArrayList<>(terms(query));
+        PostingList hits = new PostingList();
+        if (terms.isEmpty() || limit <= 0) {
+            return hits.toArray();
+        }
+
+        List<Segment> current;
+        Map<String, PostingList> recent = new HashMap<>();
+        lock.lock();
+        try {
+            current = segments;
+            // Nur die gesuchten Wörter aus dem Segment im Speicher kopieren
+            for (String term : terms) {
+                PostingList postings = live.get(term);
+                if (postings != null) {
+                    recent.put(term, postings.copy());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Von neu nach alt, bis genug Treffer da sind (oder das Log zu Ende ist)
+        long floor = log.getFirstSeq();
+        collect(new MemorySegment(recent, 0, 0), terms, limit, floor, hits);
+        for (int i = current.size() - 1; i >= 0 && hits.size < limit && current.get(i).lastSeq >= floor; i--) {
+            collect(current.get(i), terms, limit, floor, hits);
+        }
+        return hits.toArray();
+    }
+
+
+    /**
+     * Hängt die Treffer eines Segments (neueste zuerst) an hits an.
+     *
+     * @param floor Kleinste Nummer, die noch im Log steht
+     */
+    private static void collect(Segment segment, List<String> terms, int limit, long floor,
+                                PostingList hits) throws IOException {
+        long[][] lists = new long[terms.size()][];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = segment.postings(terms.get(i));
+            if (lists[i].length == 0) {
+                return;
+            }
+        }
+
+        // Mit der kürzesten Liste anfangen - die Schnittmenge wird nur kleiner
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        long[] matches = lists[0];
+        for (int i = 1; i < lists.length && matches.length > 0; i++) {
+            matches = intersect(matches, lists[i]);
+        }
+        for (int i = matches.length - 1; i >= 0 && hits.size < limit && matches[i] >= floor; i--) {
+            hits.add(matches[i]);
+        }
+    }
+
+
+    /**
+     * Schnittmenge zweier aufsteigender Listen. In der längeren wird mit
+     * wachsender Schrittweite gesprungen (galoppierende Suche), damit ein
+     * seltenes Wort nicht die ganze Liste eines häufigen durchläuft.
+     */
+    static long[] intersect(long[] small, long[] large) {
+        long[] result = new long[small.length];
+        int count = 0;
+        int position = 0;
+        for (long seq : small) {
+            // Schrittweise vergrößern, bis large[bound] >= seq
+            int step = 1;
+            int bound = position;
+            while (bound < large.length && large[bound] < seq) {
+                position = bound + 1;
+                bound += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(large, position, Math.min(bound + 1, large.length), seq);
+            if (found >= 0) {
+                result[count++] = seq;
+                position = found + 1;
+            } else {
+                position = -found - 1;
+            }
+            if (position >= large.length) {
+                break;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+
+    /**
+     * Zerlegt einen Text in Wörter (Buchstaben und Ziffern, klein geschrieben).
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+
+    private static int writeVarint(byte[] buffer, long value) {
+        int length = 0;
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+        return length;
+    }
+
+
+    // ========================================================================
+    // SEGMENTE
+    // ========================================================================
+
+
+    /**
+     * Liefert die Nummern eines Worts (aufsteigend).
+     */
+    @FunctionalInterface
+    private interface PostingSource {
+        long[] postings(String term) throws IOException;
+    }
+
+
+    /**
+     * Ein Teil des Index für einen Bereich von Nummern.
+     */
+    private abstract static class Segment implements PostingSource {
+        final long firstSeq;
+        final long lastSeq;
+
+        Segment(long firstSeq, long lastSeq) {
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+        }
+    }
+
+
+    /**
+     * Eingefrorenes Segment, bis es als Datei geschrieben ist.
+     */
+    private static final class MemorySegment extends Segment {
+        final Map<String, PostingList> terms;
+
+        MemorySegment(Map<String, PostingList> terms, long firstSeq, long lastSeq) {
+            super(firstSeq, lastSeq);
+            this.terms = terms;
+        }
+
+        @Override
+        public long[] postings(String term) {
+            PostingList postings = terms.get(term);
+            return postings != null ? postings.toArray() : new long[0];
+        }
+    }
+
+
+    /**
+     * Eine Index-Datei, gemappt gelesen.
+     */
+    private static final class DiskSegment extends Segment {
+        final File file;
+        final int level;
+
+        // Wörterbuch: sortiert, mit Anzahl und Position der Nummern
+        final String[] terms;
+        private final int[] counts;
+        private final long[] offsets;
+
+        private final MappedByteBuffer data;
+
+        private DiskSegment(File file, int level, long firstSeq, long lastSeq, String[] terms,
+                            int[] counts, long[] offsets, MappedByteBuffer data) {
+            super(firstSeq, lastSeq);
+            this.file = file;
+            this.level = level;
+            this.terms = terms;
+            this.counts = counts;
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+
+        static DiskSegment open(File file) throws IOException {
+            MappedByteBuffer data;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Ungültige Index-Datei: " + file.getName());
+                }
+                data = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            if (data.getInt(0) != MAGIC) {
+                throw new IOException("Ungültige Index-Datei: " + file.getName());
+            }
+            int level = data.getInt(4);
+            long firstSeq = data.getLong(8);
+            long lastSeq = data.getLong(16);
+
+            int limit = data.capacity();
+            int count = data.getInt(limit - TRAILER_SIZE);
+            long dictionary = data.getLong(limit - TRAILER_SIZE + 4);
+            if (count < 0 || dictionary < HEADER_SIZE || dictionary > limit - TRAILER_SIZE) {
+                throw new IOException("Ungültige Index-Datei: " + file.getName());
+            }
+
+            String[] terms = new String[count];
+            int[] counts = new int[count];
+            long[] offsets = new long[count];
+            int position = (int) dictionary;
+            for (int i = 0; i < count; i++) {
+                byte[] term = new byte[data.getShort(position) & 0xFFFF];
+                data.get(position + 2, term);
+                position += 2 + term.length;
+                terms[i] = new String(term, StandardCharsets.UTF_8);
+                counts[i] = data.getInt(position);
+                offsets[i] = data.getLong(position + 4);
+                position += 12;
+            }
+            return new DiskSegment(file, level, firstSeq, lastSeq, terms, counts, offsets, data);
+        }
+
+
+        @Override
+        public long[] postings(String term) {
+            int i = Arrays.binarySearch(terms, term);
+            if (i < 0) {
+                return new long[0];
+            }
+
+            // Absolute Zugriffe - mehrere Leser gleichzeitig brauchen keine Kopie des Puffers
+            long[] postings = new long[counts[i]];
+            int position = (int) offsets[i];
+            long previous = 0;
+            for (int k = 0; k < postings.length; k++) {
+                long value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data.get(position++);
+                    value |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += value;
+                postings[k] = previous;
+            }
+            return postings;
+        }
+
+
+        void delete() {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Wachsende Liste von Nummern ohne Boxing.
+     */
+    private static final class PostingList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Hängt die Nummern ab from an (more ist aufsteigend).
+         */
+        void addAll(long[] more, long from) {
+            int start = 0;
+            while (start < more.length && more[start] < from) {
+                start++;
+            }
+            int count = more.length - start;
+            if (size + count > values.length) {
+                values = Arrays.copyOf(values, Math.max(size * 2, size + count));
+            }
+            System.arraycopy(more, start, values, size, count);
+            size += count;
+        }
+
+        PostingList copy() {
+            PostingList copy = new PostingList();
+            copy.values = Arrays.copyOf(values, Math.max(size, 1));
+            copy.size = size;
+            return copy;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package server;
 
+import protocol.Command;
+import protocol.Protocol;
+
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Hauptklasse des Chat-Servers.
@@ -15,8 +24,51 @@ import java.util.List;
  */
 public class Server {
 
-    // Port auf dem der Server lauscht
-    private static final int PORT = 3143;
+    /**
+     * Verfügbare Server-Engines.
+     * Auswahl beim Start über die System-Property "chat.engine"
+     * (z.B. -Dchat.engine=nio) oder als Argument von main().
+     */
+    public enum Engine {
+        // Ein Thread pro Client (ClientHandler), blockierende Streams
+        BLOCKING,
+        // Wie BLOCKING, aber jeder ClientHandler läuft auf einem virtuellen Thread
+        VIRTUAL,
+        // Wenige Event-Loop-Threads mit Selector, nicht-blockierende Channels
+        NIO;
+
+        /**
+         * Liest die Engine aus der System-Property "chat.engine".
+         *
+         * @return Die gewählte Engine (Standard: BLOCKING)
+         */
+        public static Engine fromSystemProperty() {
+            return parse(System.getProperty("chat.engine"));
+        }
+
+        /**
+         * Wandelt einen Namen (z.B. "nio") in eine Engine um.
+         *
+         * @param name Name der Engine, kann null sein
+         * @return Die Engine (Standard: BLOCKING)
+         */
+        public static Engine parse(String name) {
+            if (name == null || name.isBlank()) {
+                return BLOCKING;
+            }
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    // Port auf dem der Server lauscht (für Benchmarks über "chat.port" änderbar)
+    private static final int PORT = Integer.getInteger("chat.port", 3143);
+
+    // Warteschlange für noch nicht angenommene Verbindungen (Standard von Java: 50)
+    private static final int BACKLOG = 1024;
+
+    // Anzahl der Event-Loop-Threads der NIO-Engine
+    private static final int NIO_LOOP_COUNT = Integer.getInteger("chat.nio.loops",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     // Pfad zur Log-Datei
     private static final String LOG_FILE = "server.log";
@@ -27,11 +79,27 @@ public class Server {
     // Flag für Server-Status
     private volatile boolean running;
 
+    // Gewählte Engine (BLOCKING oder NIO)
+    private final Engine engine;
+
+    // Event-Loops der NIO-Engine (leer bei BLOCKING)
+    private final List<NioEventLoop> eventLoops = new ArrayList<>();
+
     // Verwaltung der Benutzerkonten
     private final UserManager userManager;
 
-    // Liste aller verbundenen Clients
-    private final List<ClientHandler> clients;
+    // Sitzungs-Token zum Wiederanmelden ohne Datenbank (v8)
+    private final SessionTokens sessions;
+
+    // Alle verbundenen Clients (auch noch nicht angemeldete).
+    // Nebenläufiges Set statt Liste mit Sperre: Hinzufügen und Entfernen in O(1),
+    // Broadcasts laufen ohne Sperre über den aktuellen Stand.
+    private final Set<ClientHandler> clients;
+
+    // Angemeldete Clients nach Benutzername (beim Login eingetragen, bei close() entfernt),
+    // damit Kick/Warnung/Bann nicht alle Verbindungen durchsuchen müssen. Ein Name
+    // kann mehrmals angemeldet sein - Kick/Warnung/Bann treffen dann alle Verbindungen.
+    private final Map<String, Set<ClientHandler>> clientsByUsername = new ConcurrentHashMap<>();
 
     // Referenz zur GUI (kann null sein für Konsolen-Betrieb)
     private ServerGUI gui;
@@ -39,6 +107,9 @@ public class Server {
     // Verwaltung der Räume
     private RoomManager roomManager;
 
+    // Bündelt Betreten/Verlassen und Änderungen der Listen (siehe PresenceAggregator)
+    private final PresenceAggregator presence;
+
     // Writer für die Log-Datei
     private PrintWriter logWriter;
 
@@ -49,12 +120,26 @@ public class Server {
     /**
      * Konstruktor für den Server.
      * Initialisiert UserManager und Client-Liste.
+     * Die Engine wird aus der System-Property "chat.engine" gelesen.
      */
     public Server() {
+        this(Engine.fromSystemProperty());
+    }
+
+
+    /**
+     * Konstruktor mit expliziter Engine.
+     *
+     * @param engine Die zu verwendende Engine
+     */
+    public Server(Engine engine) {
+        this.engine = engine;
         this.running = false;
         this.userManager = new UserManager();
-        this.clients = new ArrayList<>();
+        this.sessions = new SessionTokens(userManager.getBannedUsernames());
+        this.clients = ConcurrentHashMap.newKeySet();
         this.gui = null;
+        this.presence = new PresenceAggregator(this, PresenceAggregator.WINDOW_MS);
         this.roomManager = new RoomManager(this);
     }
 
@@ -195,56 +280,141 @@ public class Server {
     }
 
 
+    /**
+     * Gibt den PresenceAggregator zurück (Betreten/Verlassen und Listen gebündelt melden).
+     */
+    PresenceAggregator getPresence() {
+        return presence;
+    }
+
+
+    /**
+     * Gibt die Sitzungs-Token zurück (Wiederanmelden mit LOGIN_TOKEN).
+     */
+    SessionTokens getSessions() {
+        return sessions;
+    }
+
+
     /**
      * Startet den Server und wartet auf eingehende Client-Verbindungen.
-     * Für jeden neuen Client wird ein eigener ClientHandler-Thread erstellt.
+     * Je nach Engine wird für jeden Client ein eigener Thread gestartet (BLOCKING)
+     * oder die Verbindung einer Event-Loop zugeteilt (NIO).
      */
     public void start() {
         try {
             // Log-Datei initialisieren
             initLogFile();
 
-            // ServerSocket auf dem definierten Port öffnen
-            serverSocket = new ServerSocket(PORT);
-            running = true;
+            switch (engine) {
+                case NIO -> startNio();
+                case VIRTUAL -> startBlocking(Thread.ofVirtual().name("ClientHandler-", 0));
+                default -> startBlocking(Thread.ofPlatform().name("ClientHandler-", 0));
+            }
+
+        } catch (IOException e) {
+            log("Server-Fehler: " + e.getMessage());
+        }
+    }
+
 
-            // Startmeldung ausgeben
-            log("=".repeat(50));
-            log("Chat-Server gestartet");
-            log("Port: " + PORT);
-            log("Log-Datei: " + LOG_FILE);
-            log("Registrierte User: " + userManager.getUserCount());
-            log("=".repeat(50));
+    /**
+     * Gibt die Startmeldung aus.
+     */
+    private void logStartup() {
+        log("=".repeat(50));
+        log("Chat-Server gestartet");
+        log("Port: " + PORT);
+        log("Engine: " + engine);
+        log("Log-Datei: " + LOG_FILE);
+        log("Registrierte User: " + userManager.getUserCount());
+        log("=".repeat(50));
+    }
 
-            // Endlosschleife: Warte auf neue Client-Verbindungen
-            while (running) {
-                try {
-                    // Blockiert bis ein Client sich verbindet
-                    Socket clientSocket = serverSocket.accept();
 
-                    // Neuen ClientHandler für diesen Client erstellen
-                    ClientHandler handler = new ClientHandler(clientSocket, userManager, this);
+    /**
+     * Blockierende Engine: Ein Thread pro Client.
+     * Ob Plattform- oder virtuelle Threads verwendet werden, entscheidet der Builder.
+     *
+     * @param threadBuilder Erzeugt die Threads für die ClientHandler
+     */
+    private void startBlocking(Thread.Builder threadBuilder) throws IOException {
+        // ServerSocket auf dem definierten Port öffnen (über einen Channel, damit
+        // jeder Socket einen SocketChannel hat - Downloads nutzen transferTo())
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT), BACKLOG);
+        serverSocket = serverChannel.socket();
+        running = true;
+
+        logStartup();
 
-                    // Handler zur Liste hinzufügen
-                    synchronized (clients) {
-                        clients.add(handler);
-                    }
+        // Endlosschleife: Warte auf neue Client-Verbindungen
+        while (running) {
+            try {
+                // Blockiert bis ein Client sich verbindet
+                Socket clientSocket = serverSocket.accept();
 
-                    // Handler-Thread starten
-                    handler.start();
+                // Neuen ClientHandler für diesen Client erstellen
+                ClientHandler handler = new ClientHandler(clientSocket, userManager, this);
 
-                    log("Neuer Client verbunden: " + clientSocket.getInetAddress());
+                // Handler zur Liste hinzufügen
+                clients.add(handler);
 
-                } catch (IOException e) {
-                    // Wenn Server gestoppt wurde, ist das normal
-                    if (running) {
-                        log("Fehler beim Akzeptieren: " + e.getMessage());
-                    }
+                // Handler-Thread starten
+                threadBuilder.start(handler);
+
+                log("Neuer Client verbunden: " + clientSocket.getInetAddress());
+
+            } catch (IOException e) {
+                // Wenn Server gestoppt wurde, ist das normal
+                if (running) {
+                    log("Fehler beim Akzeptieren: " + e.getMessage());
                 }
             }
+        }
+    }
 
-        } catch (IOException e) {
-            log("Server-Fehler: " + e.getMessage());
+
+    /**
+     * NIO-Engine: Wenige Event-Loops bedienen alle Clients.
+     * Dieser Thread nimmt nur Verbindungen an und verteilt sie reihum.
+     */
+    private void startNio() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT), BACKLOG);
+        serverSocket = serverChannel.socket();
+
+        for (int i = 0; i < NIO_LOOP_COUNT; i++) {
+            NioEventLoop loop = new NioEventLoop(this, userManager);
+            loop.start("NIO-Loop-" + i);
+            eventLoops.add(loop);
+        }
+        running = true;
+
+        logStartup();
+        log("Event-Loops: " + NIO_LOOP_COUNT);
+
+        int next = 0;
+        while (running) {
+            try {
+                // Blockiert bis ein Client sich verbindet
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+
+                // Reihum einer Event-Loop zuteilen
+                NioEventLoop loop = eventLoops.get(next++ % eventLoops.size());
+                ClientHandler handler = loop.register(channel);
+
+                clients.add(handler);
+
+                log("Neuer Client verbunden: " + channel.socket().getInetAddress());
+
+            } catch (IOException e) {
+                // Wenn Server gestoppt wurde, ist das normal
+                if (running) {
+                    log("Fehler beim Akzeptieren: " + e.getMessage());
+                }
+            }
         }
     }
 
@@ -256,66 +426,167 @@ public class Server {
      * @param message Die zu sendende Nachricht
      * @param sender Der ClientHandler, der die Nachricht gesendet hat (wird ausgeschlossen)
      */
-    public synchronized void broadcast(String message, ClientHandler sender) {
+    public void broadcast(String message, ClientHandler sender) {
+        broadcast(message, sender != null ? Set.of(sender) : Set.of());
+    }
+
+
+    /**
+     * Sendet eine Nachricht an alle angemeldeten Clients außer den genannten
+     * (z.B. gebündelte Betreten/Verlassen-Meldungen ohne die Betroffenen).
+     *
+     * @param message Die zu sendende Nachricht
+     * @param excluded Clients, die die Nachricht nicht bekommen
+     */
+    void broadcast(String message, Set<ClientHandler> excluded) {
         log("Broadcast: " + message);
 
+        // Nur einmal kodieren - alle Empfänger teilen sich denselben Frame
+        Frame frame = Frame.chat(message);
+
         // Liste für Clients, bei denen die Verbindung fehlgeschlagen ist
         List<ClientHandler> disconnectedClients = new ArrayList<>();
 
         // Durchlaufe alle verbundenen Clients
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                // Nachricht nicht an den Sender zurückschicken
-                if (client == sender) continue;
-
-                // Nur an Clients senden, die bereit für Chat sind
-                if (!client.isReadyForChat()) continue;
-
-                try {
-                    // Nachricht an Client senden
-                    client.sendMessage(message);
-                } catch (IOException e) {
-                    // Verbindung fehlgeschlagen, Client zur Löschliste hinzufügen
-                    log("Fehler beim Senden an " + client.getUsername() + ": " + e.getMessage());
-                    disconnectedClients.add(client);
-                }
+        for (ClientHandler client : clients) {
+            // Nachricht nicht an den Sender zurückschicken
+            if (excluded.contains(client)) continue;
+
+            // Nur an Clients senden, die bereit für Chat sind
+            if (!client.isReadyForChat()) continue;
+
+            try {
+                // Frame an Client senden
+                client.sendFrame(frame);
+            } catch (IOException e) {
+                // Verbindung fehlgeschlagen, Client zur Löschliste hinzufügen
+                log("Fehler beim Senden an " + client.getUsername() + ": " + e.getMessage());
+                disconnectedClients.add(client);
             }
-
-            // Getrennte Clients aus der Liste entfernen
-            clients.removeAll(disconnectedClients);
         }
+
+        // Getrennte Clients aus der Liste entfernen
+        clients.removeAll(disconnectedClients);
     }
 
 
     /**
      * Sendet eine Nachricht an ALLE verbundenen Clients (inkl. Sender).
-     * Wird verwendet für System-Nachrichten wie Raumlisten-Updates.
+     * Befehle wie ROOM_LIST gehen über broadcastToAll(Frame).
      *
      * @param message Die zu sendende Nachricht
      */
-    public synchronized void broadcastToAll(String message) {
+    public void broadcastToAll(String message) {
+        broadcastToAll(Frame.chat(message));
+    }
+
+
+    /**
+     * Sendet einen Frame an ALLE verbundenen Clients, z.B. ROOM_LIST.
+     * Kodiert wird höchstens einmal pro Protokoll-Version.
+     *
+     * @param frame Der Frame
+     */
+    void broadcastToAll(Frame frame) {
         // Liste für Clients, bei denen die Verbindung fehlgeschlagen ist
         List<ClientHandler> disconnectedClients = new ArrayList<>();
 
         // Durchlaufe alle verbundenen Clients
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                // Nur an Clients senden, die bereit für Chat sind
-                if (!client.isReadyForChat()) continue;
+        for (ClientHandler client : clients) {
+            // Nur an Clients senden, die bereit für Chat sind
+            if (!client.isReadyForChat()) continue;
+
+            try {
+                // Frame an Client senden
+                client.sendFrame(frame);
+            } catch (IOException e) {
+                // Verbindung fehlgeschlagen, Client zur Löschliste hinzufügen
+                log("Fehler beim Senden an " + client.getUsername() + ": " + e.getMessage());
+                disconnectedClients.add(client);
+            }
+        }
 
-                try {
-                    // Nachricht an Client senden
-                    client.sendMessage(message);
-                } catch (IOException e) {
-                    // Verbindung fehlgeschlagen, Client zur Löschliste hinzufügen
-                    log("Fehler beim Senden an " + client.getUsername() + ": " + e.getMessage());
-                    disconnectedClients.add(client);
+        // Getrennte Clients aus der Liste entfernen
+        clients.removeAll(disconnectedClients);
+    }
+
+
+    /**
+     * Meldet allen Clients neue und gelöschte Räume aus einem Fenster des
+     * PresenceAggregators. Jeder Client bekommt, was zu seiner Version passt
+     * (jede Variante höchstens einmal kodiert):
+     * - ab v5 jede Änderung einzeln (die Raumliste hat der Client nur seitenweise)
+     * - v4 die eine Änderung bzw. bei mehreren einen ROOM_SNAPSHOT
+     * - ältere Clients die ganze ROOM_LIST
+     *
+     * @param changes Die Änderungen (ROOM_ADDED/ROOM_REMOVED), nicht leer
+     */
+    void broadcastRoomChanges(List<PresenceAggregator.Change> changes) {
+        List<Frame> deltas = new ArrayList<>();
+        for (PresenceAggregator.Change change : changes) {
+            deltas.add(Frame.of(change.change(), String.valueOf(change.version()), change.name()));
+        }
+        Frame snapshot = null;
+        Frame list = null;
+
+        // Liste für Clients, bei denen die Verbindung fehlgeschlagen ist
+        List<ClientHandler> disconnectedClients = new ArrayList<>();
+
+        for (ClientHandler client : clients) {
+            // Nur an Clients senden, die bereit für Chat sind
+            if (!client.isReadyForChat()) continue;
+
+            try {
+                int version = client.getProtocolVersion();
+                if (version >= Protocol.VERSION_5 || (version == Protocol.VERSION_4 && deltas.size() == 1)) {
+                    for (Frame delta : deltas) {
+                        client.sendFrame(delta);
+                    }
+                } else if (version == Protocol.VERSION_4) {
+                    if (snapshot == null) {
+                        snapshot = Frame.of(Command.ROOM_SNAPSHOT, roomManager.getRoomSnapshot());
+                    }
+                    client.sendFrame(snapshot);
+                } else {
+                    if (list == null) {
+                        list = Frame.of(Command.ROOM_LIST, roomManager.getRoomNames());
+                    }
+                    client.sendFrame(list);
                 }
+            } catch (IOException e) {
+                log("Fehler beim Senden an " + client.getUsername() + ": " + e.getMessage());
+                disconnectedClients.add(client);
             }
-
-            // Getrennte Clients aus der Liste entfernen
-            clients.removeAll(disconnectedClients);
         }
+
+        // Getrennte Clients aus der Liste entfernen
+        clients.removeAll(disconnectedClients);
+    }
+
+
+    /**
+     * Trägt einen Client nach erfolgreichem Login unter seinem Benutzernamen ein.
+     * Ist derselbe Name schon angemeldet, stehen danach beide Verbindungen unter dem Namen.
+     *
+     * @param client Der angemeldete ClientHandler
+     */
+    void registerUsername(ClientHandler client) {
+        clientsByUsername.compute(client.getUsername(), (key, named) -> {
+            Set<ClientHandler> updated = named != null ? named : ConcurrentHashMap.newKeySet();
+            updated.add(client);
+            return updated;
+        });
+    }
+
+
+    /**
+     * Gibt alle Verbindungen zurück, die unter einem Namen angemeldet sind.
+     *
+     * @return Kopie (leer wenn niemand so angemeldet ist)
+     */
+    private List<ClientHandler> getClientsNamed(String username) {
+        Set<ClientHandler> named = clientsByUsername.get(username);
+        return named != null ? new ArrayList<>(named) : List.of();
     }
 
 
@@ -328,14 +599,24 @@ public class Server {
         // Client aus allen Räumen entfernen
         roomManager.removeClientFromAllRooms(client);
 
-        synchronized (clients) {
-            clients.remove(client);
-        }
+        clients.remove(client);
         String username = client.getUsername();
+        if (username == null) {
+            // Nie angemeldet
+            return;
+        }
+
+        // Nur den eigenen Eintrag (eine andere Sitzung mit demselben Namen bleibt)
+        boolean[] last = new boolean[1];
+        clientsByUsername.computeIfPresent(username, (key, named) -> {
+            named.remove(client);
+            last[0] = named.isEmpty();
+            return last[0] ? null : named;
+        });
         log("Client entfernt: " + username + " (Gesamt: " + clients.size() + ")");
 
-        // GUI informieren
-        if (username != null) {
+        // GUI informieren (erst wenn keine Verbindung mit dem Namen mehr da ist)
+        if (last[0]) {
             notifyUserLeft(username);
         }
     }
@@ -343,20 +624,22 @@ public class Server {
 
     /**
      * Entfernt einen Client anhand des Benutzernamens (für GUI "Nutzer entfernen").
+     * Ist der Name mehrmals angemeldet, werden alle Verbindungen getrennt.
      *
      * @param username Der Benutzername
      * @return true wenn erfolgreich, sonst false
      */
     public boolean removeClientByUsername(String username) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (username.equals(client.getUsername())) {
-                    client.disconnect("Du wurdest vom Server entfernt.");
-                    return true;
-                }
-            }
+        List<ClientHandler> named = getClientsNamed(username);
+        if (named.isEmpty()) {
+            return false;
+        }
+        // Sonst wäre er mit seinem Token gleich wieder da
+        sessions.revoke(username);
+        for (ClientHandler client : named) {
+            client.disconnect("Du wurdest vom Server entfernt.");
         }
-        return false;
+        return true;
     }
 
 
@@ -365,24 +648,20 @@ public class Server {
      *
      * @param username Der Benutzername
      * @param message Die Warnungsnachricht
-     * @return true wenn erfolgreich gesendet
+     * @return true wenn an mindestens eine Verbindung des Namens gesendet
      */
     public boolean warnUser(String username, String message) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (username.equals(client.getUsername())) {
-                    try {
-                        // Spezielle Warnnachricht senden
-                        client.sendMessage("WARNING:" + message);
-                        return true;
-                    } catch (IOException e) {
-                        log("Fehler beim Senden der Warnung: " + e.getMessage());
-                        return false;
-                    }
-                }
+        boolean sent = false;
+        for (ClientHandler client : getClientsNamed(username)) {
+            try {
+                // Spezielle Warnnachricht senden
+                client.sendMessage(Command.WARNING, message);
+                sent = true;
+            } catch (IOException e) {
+                log("Fehler beim Senden der Warnung: " + e.getMessage());
             }
         }
-        return false;
+        return sent;
     }
 
 
@@ -398,14 +677,12 @@ public class Server {
         boolean banned = userManager.banUser(username);
 
         if (banned) {
-            // Falls online, sofort trennen
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (username.equals(client.getUsername())) {
-                        client.disconnect("Du wurdest permanent vom Server gebannt.");
-                        break;
-                    }
-                }
+            // Auch für das Wiederanmelden mit Token (ohne Datenbank)
+            sessions.setBanned(username, true);
+
+            // Falls online, sofort trennen (jede Verbindung mit diesem Namen)
+            for (ClientHandler client : getClientsNamed(username)) {
+                client.disconnect("Du wurdest permanent vom Server gebannt.");
             }
         }
 
@@ -420,7 +697,11 @@ public class Server {
      * @return true wenn erfolgreich entbannt
      */
     public boolean unbanUser(String username) {
-        return userManager.unbanUser(username);
+        boolean unbanned = userManager.unbanUser(username);
+        if (unbanned) {
+            sessions.setBanned(username, false);
+        }
+        return unbanned;
     }
 
 
@@ -453,16 +734,15 @@ public class Server {
      *
      * @return Liste mit allen Benutzernamen
      */
-    public synchronized List<String> getConnectedUsernames() {
+    public List<String> getConnectedUsernames() {
         List<String> usernames = new ArrayList<>();
 
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                String username = client.getUsername();
-
-                // Nur authentifizierte Clients, die im Chat-Modus sind
-                if (username != null && client.isReadyForChat()) {
-                    usernames.add(username);
+        for (Map.Entry<String, Set<ClientHandler>> entry : clientsByUsername.entrySet()) {
+            // Nur Clients, die im Chat-Modus sind (jeder Name einmal)
+            for (ClientHandler client : entry.getValue()) {
+                if (client.isReadyForChat()) {
+                    usernames.add(entry.getKey());
+                    break;
                 }
             }
         }
@@ -477,9 +757,7 @@ public class Server {
      * @return Anzahl der Clients
      */
     public int getClientCount() {
-        synchronized (clients) {
-            return clients.size();
-        }
+        return clients.size();
     }
 
 
@@ -500,23 +778,36 @@ public class Server {
         try {
             running = false;
 
-            // Alle Clients trennen
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    try {
-                        client.disconnect("Server wird beendet.");
-                    } catch (Exception e) {
-                        // Ignorieren beim Herunterfahren
-                    }
+            // Alle Clients trennen (über eine Kopie: disconnect() entfernt
+            // den Client über removeClient() aus der Liste)
+            for (ClientHandler client : new ArrayList<>(clients)) {
+                try {
+                    client.disconnect("Server wird beendet.");
+                } catch (Exception e) {
+                    // Ignorieren beim Herunterfahren
                 }
-                clients.clear();
             }
+            clients.clear();
+            clientsByUsername.clear();
 
             // ServerSocket schließen
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
 
+            // Event-Loops der NIO-Engine beenden
+            for (NioEventLoop loop : eventLoops) {
+                loop.shutdown();
+            }
+            eventLoops.clear();
+
+            // Beobachtung der Dateiordner beenden
+            roomManager.close();
+            presence.close();
+
+            // Verbindungen zur Benutzer-Datenbank schließen
+            userManager.close();
+
             log("Server gestoppt");
 
             // Log-Datei schließen
@@ -536,10 +827,11 @@ public class Server {
     /**
      * Main-Methode zum Starten des Servers (Konsolen-Modus).
      *
-     * @param args Kommandozeilenargumente (nicht verwendet)
+     * @param args Optional: Name der Engine ("blocking", "virtual" oder "nio")
      */
     public static void main(String[] args) {
-        Server server = new Server();
+        Engine engine = args.length > 0 ? Engine.parse(args[0]) : Engine.fromSystemProperty();
+        Server server = new Server(engine);
         server.start();
     }
 }
\ No newline at end of file
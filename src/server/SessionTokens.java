@@ -0,0 +1,179 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sitzungs-Token zum Wiederanmelden ohne Datenbank (LOGIN_TOKEN, v8).
+ *
+ * Ein Login mit Passwort kostet drei Abfragen an SQLite (gibt es den Nutzer,
+ * ist er gebannt, stimmt das Passwort) und einen SHA-256. Nach einem
+ * Aussetzer des Servers melden sich alle Clients gleichzeitig wieder an -
+ * mit dem Token prüft der Server nur die Signatur, die Tabelle der Sitzungen
+ * und die gebannten Nutzer, alles im Speicher.
+ *
+ * Token: "id.ablauf.nutzer.signatur" (Base64, Signatur = HMAC-SHA256 über
+ * den Rest mit einem Schlüssel, der bei jedem Start neu erzeugt wird).
+ * Jedes Token gilt nur einmal - beim Wiederanmelden gibt es ein neues.
+ * Nach einem Neustart des Servers sind alle Token ungültig, dann meldet sich
+ * der Client einmal wieder mit Passwort an.
+ */
+final class SessionTokens {
+
+    // So lange gilt ein Token (Standard: 12 Stunden)
+    private static final long TTL_MS = Long.getLong("chat.session.ttlMs", 12 * 60 * 60 * 1000L);
+
+    // Nach so vielen neuen Token werden abgelaufene aus der Tabelle entfernt
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Eine offene Sitzung.
+     *
+     * @param username Der Nutzer
+     * @param expiresAt Ablauf (System.currentTimeMillis())
+     */
+    private record Session(String username, long expiresAt) {
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKeySpec key;
+
+    // ID -> Sitzung
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Gebannte Nutzer (beim Start aus der Datenbank, danach von Server.banUser())
+    private final Set<String> banned = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger issued = new AtomicInteger();
+
+
+    /**
+     * @param bannedUsers Die beim Start gebannten Nutzer
+     */
+    SessionTokens(Collection<String> bannedUsers) {
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+        banned.addAll(bannedUsers);
+    }
+
+
+    /**
+     * Erzeugt ein neues Token für einen angemeldeten Nutzer.
+     */
+    String issue(String username) {
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        String sessionId = encode(id);
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+
+        sessions.put(sessionId, new Session(username, expiresAt));
+        if (issued.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(session -> session.expiresAt() < now);
+        }
+
+        String payload = sessionId + "." + expiresAt + "." + encode(username.getBytes(StandardCharsets.UTF_8));
+        return payload + "." + encode(sign(payload));
+    }
+
+
+    /**
+     * Löst ein Token ein. Es ist danach verbraucht.
+     *
+     * @return Der Nutzer oder null wenn das Token ungültig, abgelaufen oder
+     *         schon benutzt ist (ob er gebannt ist, prüft isBanned())
+     */
+    String redeem(String token) {
+        int signatureStart = token.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        String[] parts = payload.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+
+        byte[] signature;
+        String username;
+        long expiresAt;
+        try {
+            signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+            username = new String(Base64.getUrlDecoder().decode(parts[2]), StandardCharsets.UTF_8);
+            expiresAt = Long.parseLong(parts[1]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Vergleich in konstanter Zeit
+        if (!MessageDigest.isEqual(signature, sign(payload))) {
+            return null;
+        }
+
+        Session session = sessions.remove(parts[0]);
+        if (session == null || !session.username().equals(username)
+                || session.expiresAt() != expiresAt || expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return username;
+    }
+
+
+    /**
+     * true wenn der Nutzer gebannt ist (ohne Datenbank).
+     */
+    boolean isBanned(String username) {
+        return banned.contains(username);
+    }
+
+
+    /**
+     * Macht alle Token eines Nutzers ungültig (Kick, Bann).
+     */
+    void revoke(String username) {
+        sessions.values().removeIf(session -> session.username().equals(username));
+    }
+
+
+    /**
+     * Trägt einen Bann ein oder aus. Beim Bann werden die Token ungültig.
+     */
+    void setBanned(String username, boolean isBanned) {
+        if (isBanned) {
+            banned.add(username);
+            revoke(username);
+        } else {
+            banned.remove(username);
+        }
+    }
+
+
+    private byte[] sign(String payload) {
+        try {
+            // Mac ist nicht thread-sicher - eine Instanz pro Aufruf
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 gibt es in jeder JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,326 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ein laufender Upload, der direkt auf die Platte geschrieben wird.
+ *
+ * Die Bytes landen stückweise (so wie sie vom Socket kommen) in einer
+ * versteckten Temp-Datei im Raumverzeichnis. Nebenbei wird der SHA-256
+ * berechnet; erst wenn alle Bytes da sind, kommt die Datei in einem Schritt
+ * in den BlobStore (bzw. wird verworfen, wenn es den Inhalt schon gibt) und
+ * ins Manifest des Raums - andere Clients sehen nie eine halbe Datei.
+ *
+ * Es wird nie die ganze Datei im Speicher gehalten.
+ *
+ * Fortsetzbare Uploads (Client hat die Größe angekündigt) schreiben in eine
+ * Teil-Datei mit festem Namen pro Nutzer, Datei und Größe. Bricht die
+ * Verbindung ab, bleibt sie liegen; beim nächsten Versuch meldet der Server
+ * mit "UPLOAD_RESUME", wie viele Bytes er schon hat, und der Client schickt
+ * nur noch den Rest. Nicht fortgesetzte Teile werden nach einem Tag gelöscht.
+ */
+final class UploadReceiver {
+
+    // Temp-Dateien beginnen mit '.', damit sie in der Dateiliste nicht auftauchen
+    static final String TEMP_PREFIX = ".upload-";
+    private static final String TEMP_SUFFIX = ".part";
+
+    // So lange bleiben abgebrochene Uploads zum Fortsetzen liegen
+    private static final long PARTIAL_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    // Teil-Dateien, in die gerade geschrieben wird (z.B. gleicher Nutzer zweimal angemeldet)
+    private static final Set<Path> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    private final String fileName;
+    private final RoomFiles target;
+    private final int size;
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final boolean resumable;
+    private final MessageDigest digest;
+    private int received;
+
+
+    private UploadReceiver(String fileName, RoomFiles target, int size, Path tempFile,
+                           FileChannel channel, MessageDigest digest, int received, boolean resumable) {
+        this.fileName = fileName;
+        this.target = target;
+        this.size = size;
+        this.tempFile = tempFile;
+        this.channel = channel;
+        this.digest = digest;
+        this.received = received;
+        this.resumable = resumable;
+    }
+
+
+    /**
+     * Legt die Temp-Datei für einen Upload an.
+     *
+     * @param target Dateien des Raums (Ziel)
+     * @param fileName Name der Datei im Raum
+     * @param size Anzahl der erwarteten Bytes
+     */
+    static UploadReceiver open(RoomFiles target, String fileName, int size) throws IOException {
+        Path tempFile = Files.createTempFile(target.getDirectory().toPath(), TEMP_PREFIX, TEMP_SUFFIX);
+        try {
+            FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+            return new UploadReceiver(fileName, target, size, tempFile, channel,
+                    BlobStore.newDigest(), 0, false);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Öffnet die Teil-Datei eines fortsetzbaren Uploads.
+     *
+     * Passt die Anzahl der Bytes, die der Client jetzt schickt, zum Rest der
+     * Teil-Datei, wird angehängt. Schickt er die ganze Datei (z.B. weil er
+     * nicht fortsetzen wollte), wird von vorne geschrieben. Bei allem anderen -
+     * oder wenn die Teil-Datei gerade von einer anderen Verbindung beschrieben
+     * wird - ist es ein normaler Upload mit eigener Temp-Datei.
+     *
+     * @param target Dateien des Raums (Ziel)
+     * @param owner Nutzer, der hochlädt
+     * @param fileName Name der Datei im Raum
+     * @param size Angekündigte Gesamtgröße
+     * @param count Anzahl der Bytes, die der Client jetzt schickt
+     */
+    static UploadReceiver openResumable(RoomFiles target, String owner, String fileName,
+                                        int size, int count) throws IOException {
+        Path partial = partialPath(target.getDirectory(), owner, fileName, size);
+        if (!ACTIVE.add(partial)) {
+            return open(target, fileName, count);
+        }
+        UploadReceiver receiver = openPartial(partial, target, fileName, size, count);
+        return receiver != null ? receiver : open(target, fileName, count);
+    }
+
+
+    /**
+     * Setzt einen Upload fort (v3): Was in der Teil-Datei liegt, bleibt;
+     * getReceived() sagt, ab wo der Client senden muss. Wird die Teil-Datei
+     * gerade von einer anderen Verbindung beschrieben, beginnt ein neuer Upload.
+     *
+     * @param target Dateien des Raums (Ziel)
+     * @param owner Nutzer, der hochlädt
+     * @param fileName Name der Datei im Raum
+     * @param size Angekündigte Gesamtgröße
+     */
+    static UploadReceiver resume(RoomFiles target, String owner, String fileName, int size) throws IOException {
+        Path partial = partialPath(target.getDirectory(), owner, fileName, size);
+        if (!ACTIVE.add(partial)) {
+            return open(target, fileName, size);
+        }
+        return openPartial(partial, target, fileName, size, -1);
+    }
+
+
+    /**
+     * Öffnet eine (schon reservierte) Teil-Datei. Die schon vorhandenen
+     * Bytes werden einmal gelesen, damit der Hash stimmt.
+     *
+     * @param count Anzahl der Bytes, die jetzt kommen (-1 = einfach den Rest)
+     * @return Der Upload oder null, wenn count weder zum Rest noch zur ganzen Datei passt
+     */
+    private static UploadReceiver openPartial(Path partial, RoomFiles target, String fileName,
+                                              int size, int count) throws IOException {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long held = channel.size();
+            int start;
+            if (held <= size && (count < 0 || count == size - held)) {
+                start = (int) held;
+            } else if (count < 0 || count == size) {
+                start = 0;
+            } else {
+                channel.close();
+                ACTIVE.remove(partial);
+                return null;
+            }
+
+            channel.truncate(start);
+            MessageDigest digest = BlobStore.newDigest();
+            digestExisting(partial, start, digest);
+            channel.position(start);
+            return new UploadReceiver(fileName, target, size, partial, channel, digest, start, true);
+        } catch (IOException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            ACTIVE.remove(partial);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Liest die ersten Bytes einer Teil-Datei in den Hash.
+     */
+    private static void digestExisting(Path partial, long length, MessageDigest digest) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel in = FileChannel.open(partial, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int count = in.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Teil-Datei wurde verkürzt");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += count;
+            }
+        }
+    }
+
+
+    /**
+     * Gibt zurück, wie viele Bytes eines fortsetzbaren Uploads schon da sind.
+     *
+     * @return Anzahl der Bytes (0 wenn es nichts fortzusetzen gibt)
+     */
+    static long getPartialLength(File roomDir, String owner, String fileName, int size) {
+        Path partial = partialPath(roomDir, owner, fileName, size);
+        if (ACTIVE.contains(partial)) {
+            return 0;
+        }
+        try {
+            long held = Files.size(partial);
+            return held <= size ? held : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Löscht Teil- und Temp-Dateien im Raum, die lange nicht fortgesetzt wurden.
+     */
+    static void deleteStalePartials(File roomDir) {
+        File[] files = roomDir.listFiles((dir, name) -> name.startsWith(TEMP_PREFIX));
+        if (files == null) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < limit && !ACTIVE.contains(file.toPath())) {
+                file.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Fester Name der Teil-Datei: gleicher Nutzer, gleiche Datei, gleiche
+     * Größe ergibt immer denselben Namen (ohne Zeichen aus dem Nutzernamen).
+     */
+    private static Path partialPath(File roomDir, String owner, String fileName, int size) {
+        String key = owner + "\0" + fileName + "\0" + size;
+        UUID id = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+        return new File(roomDir, TEMP_PREFIX + id + TEMP_SUFFIX).toPath();
+    }
+
+
+    /**
+     * Schreibt so viele Bytes aus dem Puffer, wie noch zum Upload gehören.
+     * Alles danach (z.B. der nächste Befehl) bleibt im Puffer stehen.
+     */
+    void write(ByteBuffer src) throws IOException {
+        int count = Math.min(src.remaining(), getRemaining());
+        ByteBuffer part = src.slice(src.position(), count);
+        digest.update(part.duplicate());
+        while (part.hasRemaining()) {
+            channel.write(part);
+        }
+        src.position(src.position() + count);
+        received += count;
+    }
+
+
+    int getRemaining() {
+        return size - received;
+    }
+
+
+    /**
+     * Anzahl der Bytes, die schon in der Temp-Datei liegen.
+     */
+    int getReceived() {
+        return received;
+    }
+
+
+    boolean isComplete() {
+        return received == size;
+    }
+
+
+    int getSize() {
+        return size;
+    }
+
+
+    String getFileName() {
+        return fileName;
+    }
+
+
+    /**
+     * Schließt die Temp-Datei und übernimmt sie unter ihrem Hash in den
+     * BlobStore und ins Manifest des Raums. Eine vorhandene Datei gleichen
+     * Namens wird ersetzt.
+     */
+    void commit() throws IOException {
+        channel.close();
+
+        try {
+            target.add(fileName, tempFile, BlobStore.toHex(digest));
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        if (resumable) {
+            ACTIVE.remove(tempFile);
+        }
+    }
+
+
+    /**
+     * Bricht den Upload ab (mehrfach aufrufbar). Die Temp-Datei wird gelöscht,
+     * die Teil-Datei eines fortsetzbaren Uploads bleibt für den nächsten Versuch.
+     */
+    void abort() {
+        try {
+            channel.close();
+            if (!resumable) {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            // Ignorieren - beim nächsten Aufräumen des Raums verschwindet sie
+        } finally {
+            if (resumable) {
+                ACTIVE.remove(tempFile);
+            }
+        }
+    }
+}
@@ -33,6 +33,18 @@ public class UserManager {
     private static final String DATABASE_URL = "jdbc:sqlite:" + DATABASE_FILE;
 
 
+    // ==================== VERBINDUNGEN ====================
+
+    /**
+     * Die offenen Verbindungen zur Datenbank (siehe ConnectionPool).
+     *
+     * Eine eigene Verbindung pro Methode wäre bei vielen gleichzeitigen
+     * Logins der teuerste Teil. Deshalb bleiben eine Verbindung zum Schreiben
+     * und einige zum Lesen offen, und jede Abfrage wird nur einmal übersetzt.
+     */
+    private final ConnectionPool db = new ConnectionPool(DATABASE_URL);
+
+
     // ==================== KONSTRUKTOR ====================
 
     /**
@@ -57,17 +69,37 @@ public class UserManager {
      */
     private void initializeDatabase() {
         /*
-         * try-with-resources: Die Verbindung wird automatisch geschlossen,
-         * auch wenn ein Fehler auftritt. Das ist wichtig, damit keine
-         * "offenen" Datenbankverbindungen zurückbleiben.
+         * Die Initialisierung läuft über die Schreib-Verbindung.
+         * Beim ersten Gebrauch wird sie geöffnet und stellt die Datenbank
+         * auf WAL um (siehe ConnectionPool.configure()).
          */
-        try (Connection conn = getConnection()) {
+        try {
+            db.write(conn -> {
+                initializeTables(conn.connection());
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println("Fehler bei Datenbank-Initialisierung: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-            /*
-             * Statement-Objekt zum Ausführen von SQL-Befehlen.
-             * Ein Statement kann beliebige SQL-Befehle ausführen.
-             */
-            Statement stmt = conn.createStatement();
+
+    /**
+     * Erstellt die Tabelle und die Test-Benutzer (siehe initializeDatabase()).
+     *
+     * @param conn Die Schreib-Verbindung
+     * @throws SQLException bei Datenbankfehlern
+     */
+    private void initializeTables(Connection conn) throws SQLException {
+        /*
+         * Statement-Objekt zum Ausführen von SQL-Befehlen.
+         * Ein Statement kann beliebige SQL-Befehle ausführen.
+         *
+         * try-with-resources: Das Statement wird automatisch geschlossen,
+         * die Verbindung selbst bleibt offen (sie gehört dem ConnectionPool).
+         */
+        try (Statement stmt = conn.createStatement()) {
 
             /*
              * SQL-Befehl zum Erstellen der users-Tabelle.
@@ -100,8 +132,11 @@ public class UserManager {
              * WICHTIG: Wir nutzen dieselbe Connection (conn), um SQLITE_BUSY zu vermeiden!
              * SQLite erlaubt nur eine schreibende Verbindung gleichzeitig.
              */
-            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users");
-            if (rs.next() && rs.getInt(1) == 0) {
+            int count;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users")) {
+                count = rs.next() ? rs.getInt(1) : -1;
+            }
+            if (count == 0) {
                 // Tabelle ist leer - Testbenutzer anlegen
                 System.out.println("Erstelle Standard-Benutzer...");
 
@@ -123,32 +158,15 @@ public class UserManager {
             }
 
             System.out.println("Datenbank initialisiert: " + DATABASE_FILE);
-
-        } catch (SQLException e) {
-            System.err.println("Fehler bei Datenbank-Initialisierung: " + e.getMessage());
-            e.printStackTrace();
         }
     }
 
 
     /**
-     * Stellt eine Verbindung zur SQLite-Datenbank her.
-     *
-     * WICHTIG: Der Aufrufer ist dafür verantwortlich, die Verbindung
-     * wieder zu schließen! Am besten mit try-with-resources.
-     *
-     * @return Connection-Objekt zur Datenbank
-     * @throws SQLException bei Verbindungsfehlern
+     * Schließt alle Verbindungen zur Datenbank (beim Stoppen des Servers).
      */
-    private Connection getConnection() throws SQLException {
-        /*
-         * DriverManager.getConnection() ist die Standard-Methode in JDBC,
-         * um eine Datenbankverbindung herzustellen.
-         *
-         * Bei SQLite wird die Datenbankdatei automatisch erstellt,
-         * falls sie noch nicht existiert.
-         */
-        return DriverManager.getConnection(DATABASE_URL);
+    public void close() {
+        db.close();
     }
 
 
@@ -232,6 +250,24 @@ public class UserManager {
      * @return true wenn der Benutzer existiert, sonst false
      */
     public boolean userExists(String username) {
+        try {
+            /*
+             * db.read() leiht sich eine freie Lese-Verbindung aus und gibt
+             * sie danach automatisch zurück (sie bleibt offen).
+             */
+            return db.read(conn -> userExists(conn, username));
+        } catch (SQLException e) {
+            System.err.println("Fehler bei userExists: " + e.getMessage());
+        }
+
+        return false;
+    }
+
+
+    /**
+     * userExists() auf einer bestimmten Verbindung (auch für registerUser()).
+     */
+    private boolean userExists(ConnectionPool.Handle conn, String username) throws SQLException {
         /*
          * SQL-Abfrage mit Parameter (das Fragezeichen ?).
          * Wir zählen, wie viele Benutzer mit diesem Namen existieren.
@@ -239,43 +275,38 @@ public class UserManager {
          */
         String sql = "SELECT COUNT(*) FROM users WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            /*
-             * PreparedStatement: Sicherer als normales Statement!
-             *
-             * Der Parameter (?) wird separat gesetzt. Dadurch wird
-             * SQL-Injection verhindert - ein Angreifer kann keine
-             * bösartigen SQL-Befehle einschleusen.
-             *
-             * Beispiel SQL-Injection (mit normalem Statement):
-             * username = "admin'; DROP TABLE users; --"
-             * → Würde die ganze Tabelle löschen!
-             *
-             * Mit PreparedStatement wird das als normaler Text behandelt.
-             */
-            pstmt.setString(1, username);  // Erstes ? mit username füllen
+        /*
+         * prepare() liefert das PreparedStatement dieser Verbindung.
+         * Beim ersten Aufruf wird das SQL übersetzt, danach wiederverwendet
+         * (deshalb wird es hier auch nicht geschlossen).
+         *
+         * PreparedStatement: Sicherer als normales Statement!
+         *
+         * Der Parameter (?) wird separat gesetzt. Dadurch wird
+         * SQL-Injection verhindert - ein Angreifer kann keine
+         * bösartigen SQL-Befehle einschleusen.
+         *
+         * Beispiel SQL-Injection (mit normalem Statement):
+         * username = "admin'; DROP TABLE users; --"
+         * → Würde die ganze Tabelle löschen!
+         *
+         * Mit PreparedStatement wird das als normaler Text behandelt.
+         */
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setString(1, username);  // Erstes ? mit username füllen
 
-            /*
-             * executeQuery() führt die SELECT-Abfrage aus und
-             * gibt ein ResultSet zurück - eine Art "Tabelle" mit den Ergebnissen.
-             */
-            ResultSet rs = pstmt.executeQuery();
+        /*
+         * executeQuery() führt die SELECT-Abfrage aus und
+         * gibt ein ResultSet zurück - eine Art "Tabelle" mit den Ergebnissen.
+         */
+        try (ResultSet rs = pstmt.executeQuery()) {
 
             /*
              * rs.next() springt zur ersten (und einzigen) Ergebnis-Zeile.
              * rs.getInt(1) holt den Wert der ersten Spalte (unsere COUNT-Zahl).
              */
-            if (rs.next()) {
-                return rs.getInt(1) > 0;  // true wenn COUNT > 0
-            }
-
-        } catch (SQLException e) {
-            System.err.println("Fehler bei userExists: " + e.getMessage());
+            return rs.next() && rs.getInt(1) > 0;  // true wenn COUNT > 0
         }
-
-        return false;
     }
 
 
@@ -290,11 +321,6 @@ public class UserManager {
      * @return true wenn Registrierung erfolgreich, false wenn Username schon vergeben
      */
     public boolean registerUser(String username, String password) {
-        // Prüfen ob Username schon existiert
-        if (userExists(username)) {
-            return false;
-        }
-
         /*
          * WICHTIG: Wir speichern NICHT das Passwort, sondern nur den Hash!
          *
@@ -309,18 +335,29 @@ public class UserManager {
 
         String sql = "INSERT INTO users (username, password_hash) VALUES (?, ?)";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);      // Erstes ? = username
-            pstmt.setString(2, passwordHash);  // Zweites ? = password_hash
-
+        try {
             /*
-             * executeUpdate() für INSERT, UPDATE, DELETE.
-             * Gibt die Anzahl der betroffenen Zeilen zurück (sollte 1 sein).
+             * Prüfen und Einfügen laufen beide auf der Schreib-Verbindung:
+             * Solange wir sie haben, kann kein anderer Thread denselben
+             * Namen dazwischen registrieren.
              */
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+            return db.write(conn -> {
+                // Prüfen ob Username schon existiert
+                if (userExists(conn, username)) {
+                    return false;
+                }
+
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);      // Erstes ? = username
+                pstmt.setString(2, passwordHash);  // Zweites ? = password_hash
+
+                /*
+                 * executeUpdate() für INSERT, UPDATE, DELETE.
+                 * Gibt die Anzahl der betroffenen Zeilen zurück (sollte 1 sein).
+                 */
+                int rowsAffected = pstmt.executeUpdate();
+                return rowsAffected > 0;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei registerUser: " + e.getMessage());
@@ -351,16 +388,21 @@ public class UserManager {
          */
         String sql = "SELECT password_hash FROM users WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                // Gespeicherten Hash aus der Datenbank holen
-                String storedHash = rs.getString("password_hash");
+        try {
+            // Gespeicherten Hash aus der Datenbank holen (null = unbekannt)
+            String storedHash = db.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString("password_hash") : null;
+                }
+            });
 
+            /*
+             * Gehasht wird erst danach - so muss die Lese-Verbindung nicht
+             * auf den SHA-256 warten.
+             */
+            if (storedHash != null) {
                 // Hash des eingegebenen Passworts berechnen
                 String inputHash = hashPassword(password);
 
@@ -395,13 +437,12 @@ public class UserManager {
     public int getUserCount() {
         String sql = "SELECT COUNT(*) FROM users";
 
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
+        try {
+            return db.read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei getUserCount: " + e.getMessage());
@@ -424,12 +465,13 @@ public class UserManager {
     public boolean banUser(String username) {
         String sql = "UPDATE users SET banned = 1 WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+        try {
+            return db.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                int rowsAffected = pstmt.executeUpdate();
+                return rowsAffected > 0;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei banUser: " + e.getMessage());
@@ -447,12 +489,13 @@ public class UserManager {
     public boolean unbanUser(String username) {
         String sql = "UPDATE users SET banned = 0 WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+        try {
+            return db.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                int rowsAffected = pstmt.executeUpdate();
+                return rowsAffected > 0;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei unbanUser: " + e.getMessage());
@@ -470,19 +513,18 @@ public class UserManager {
     public boolean isUserBanned(String username) {
         String sql = "SELECT banned FROM users WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                /*
-                 * banned ist 0 oder 1 in der Datenbank.
-                 * getInt() holt den Wert, == 1 prüft ob gebannt.
-                 */
-                return rs.getInt("banned") == 1;
-            }
+        try {
+            return db.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    /*
+                     * banned ist 0 oder 1 in der Datenbank.
+                     * getInt() holt den Wert, == 1 prüft ob gebannt.
+                     */
+                    return rs.next() && rs.getInt("banned") == 1;
+                }
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei isUserBanned: " + e.getMessage());
@@ -492,6 +534,37 @@ public class UserManager {
     }
 
 
+    /**
+     * Gibt die Namen aller gebannten Benutzer zurück.
+     *
+     * Der Server lädt sie einmal beim Start, damit das Wiederanmelden mit
+     * einem Sitzungs-Token die Datenbank nicht braucht.
+     *
+     * @return Liste mit Benutzernamen
+     */
+    public List<String> getBannedUsernames() {
+        List<String> usernames = new ArrayList<>();
+
+        String sql = "SELECT username FROM users WHERE banned = 1";
+
+        try {
+            db.read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        usernames.add(rs.getString("username"));
+                    }
+                }
+                return null;
+            });
+
+        } catch (SQLException e) {
+            System.err.println("Fehler bei getBannedUsernames: " + e.getMessage());
+        }
+
+        return usernames;
+    }
+
+
     // ==================== BENUTZER-ABFRAGEN ====================
 
     /**
@@ -506,27 +579,30 @@ public class UserManager {
 
         String sql = "SELECT username, created_at, banned FROM users ORDER BY username";
 
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            /*
-             * rs.next() iteriert durch alle Ergebnis-Zeilen.
-             * Für jeden Benutzer in der Datenbank wird eine Zeile zurückgegeben.
-             */
-            while (rs.next()) {
-                String username = rs.getString("username");
-                String createdAt = rs.getString("created_at");
-                boolean banned = rs.getInt("banned") == 1;
-
-                // Formatierte Ausgabe erstellen
-                String userInfo = username + " (erstellt: " + createdAt + ")";
-                if (banned) {
-                    userInfo += " [GEBANNT]";
+        try {
+            db.read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+
+                    /*
+                     * rs.next() iteriert durch alle Ergebnis-Zeilen.
+                     * Für jeden Benutzer in der Datenbank wird eine Zeile zurückgegeben.
+                     */
+                    while (rs.next()) {
+                        String username = rs.getString("username");
+                        String createdAt = rs.getString("created_at");
+                        boolean banned = rs.getInt("banned") == 1;
+
+                        // Formatierte Ausgabe erstellen
+                        String userInfo = username + " (erstellt: " + createdAt + ")";
+                        if (banned) {
+                            userInfo += " [GEBANNT]";
+                        }
+
+                        users.add(userInfo);
+                    }
                 }
-
-                users.add(userInfo);
-            }
+                return null;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei getAllUsers: " + e.getMessage());
@@ -546,13 +622,15 @@ public class UserManager {
 
         String sql = "SELECT username FROM users ORDER BY username";
 
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                usernames.add(rs.getString("username"));
-            }
+        try {
+            db.read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        usernames.add(rs.getString("username"));
+                    }
+                }
+                return null;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei getAllUsernames: " + e.getMessage());
@@ -573,12 +651,13 @@ public class UserManager {
     public boolean deleteUser(String username) {
         String sql = "DELETE FROM users WHERE username = ?";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+        try {
+            return db.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                int rowsAffected = pstmt.executeUpdate();
+                return rowsAffected > 0;
+            });
 
         } catch (SQLException e) {
             System.err.println("Fehler bei deleteUser: " + e.getMessage());
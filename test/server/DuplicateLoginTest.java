@@ -0,0 +1,182 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test: Derselbe Name zweimal (oder öfter) angemeldet, dann gebannt.
+ *
+ * Drei Verbindungen melden sich als "dup" an (v1-Text), die neueste trennt
+ * sich wieder. Danach muss der Name noch online sein, und banUser() muss
+ * beide übrigen Verbindungen trennen - auch die älteste, die der Index
+ * nach Benutzername früher nicht mehr kannte.
+ *
+ * Läuft in einer eigenen JVM mit eigenem Arbeitsverzeichnis (users.db,
+ * room_files) und eigenem Port. Bei einem Fehler endet der Test mit Exit-Code 1.
+ *
+ * Aufruf:
+ *   java -cp out server.DuplicateLoginTest
+ */
+public class DuplicateLoginTest {
+
+    private static final int TEST_PORT = 3147;
+    private static final String USER = "dup";
+    private static final String PASSWORD = "geheim";
+    private static final int TIMEOUT_MS = 5000;
+
+
+    /**
+     * Server ohne Log-Ausgabe.
+     */
+    private static class QuietServer extends Server {
+        QuietServer() {
+            super(Engine.BLOCKING);
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            System.exit(run() ? 0 : 1);
+        }
+
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        ProcessBuilder builder = new ProcessBuilder(javaBin,
+                "-Dchat.port=" + TEST_PORT,
+                "-cp", String.join(File.pathSeparator, classPath),
+                DuplicateLoginTest.class.getName(), "--run");
+
+        // Eigenes Arbeitsverzeichnis, damit server.log/users.db/room_files nicht im Projekt landen
+        builder.directory(Files.createTempDirectory("chat-test").toFile());
+        builder.inheritIO();
+        System.exit(builder.start().waitFor());
+    }
+
+
+    private static boolean run() throws Exception {
+        Server server = new QuietServer();
+        Thread serverThread = new Thread(server::start, "Server-Thread");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        boolean ok = true;
+        try {
+            Socket first = connect();
+            send(first, "REGISTER:" + USER + ":" + PASSWORD);
+            receive(first);
+
+            ok &= check(login(first), "Erste Anmeldung");
+            Socket second = connect();
+            ok &= check(login(second), "Zweite Anmeldung mit demselben Namen");
+            Socket third = connect();
+            ok &= check(login(third), "Dritte Anmeldung mit demselben Namen");
+
+            // Die neueste Verbindung geht wieder
+            third.close();
+            waitUntil(() -> server.getClientCount() == 2);
+            ok &= check(server.getConnectedUsernames().contains(USER), "Name nach dem Trennen der neuesten noch online");
+
+            ok &= check(server.banUser(USER), "banUser()");
+            ok &= check(disconnected(first), "Älteste Verbindung getrennt");
+            ok &= check(disconnected(second), "Zweite Verbindung getrennt");
+
+            waitUntil(() -> server.getClientCount() == 0);
+            ok &= check(!server.getConnectedUsernames().contains(USER), "Name nicht mehr online");
+            ok &= check(!server.removeClientByUsername(USER), "Keine Verbindung mehr unter dem Namen");
+        } finally {
+            server.unbanUser(USER);
+            server.stop();
+        }
+        return ok;
+    }
+
+
+    private static Socket connect() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", TEST_PORT);
+                socket.setSoTimeout(TIMEOUT_MS);
+                return socket;
+            } catch (IOException e) {
+                // Server startet noch
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+
+    private static boolean login(Socket socket) throws IOException {
+        send(socket, "LOGIN:" + USER + ":" + PASSWORD);
+        boolean success = receive(socket).startsWith("SUCCESS");
+        send(socket, "READY");
+        return success;
+    }
+
+
+    /**
+     * Liest bis DISCONNECT oder bis die Verbindung zu ist.
+     *
+     * @return false wenn die Verbindung nach TIMEOUT_MS noch offen ist
+     */
+    private static boolean disconnected(Socket socket) throws IOException {
+        try {
+            while (!receive(socket).startsWith("DISCONNECT")) {
+                // Chat-Nachrichten und Listen überspringen
+            }
+            return true;
+        } catch (EOFException e) {
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private static void send(Socket socket, String text) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(text);
+        out.flush();
+    }
+
+
+    private static String receive(Socket socket) throws IOException {
+        return new DataInputStream(socket.getInputStream()).readUTF();
+    }
+
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+
+    private static boolean check(boolean condition, String description) {
+        System.out.println((condition ? "OK      " : "FEHLER  ") + description);
+        return condition;
+    }
+}
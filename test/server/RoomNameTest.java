@@ -0,0 +1,112 @@
+package server;
+
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test: Räume dürfen nicht so heißen wie die Ordner des Servers.
+ *
+ * Ein Raum ".blobs" oder ".trash" würde beim Löschen den BlobStore bzw. den
+ * Papierkorb mitnehmen (der Reaper räumt den Raumordner weg). Geprüft wird,
+ * dass createRoom solche Namen ablehnt und dass Anlegen und Löschen eines
+ * normalen Raums die Dateiinhalte aller Räume stehen lässt.
+ *
+ * Läuft in einer eigenen JVM mit eigenem Arbeitsverzeichnis (room_files).
+ * Bei einem Fehler endet der Test mit Exit-Code 1.
+ *
+ * Aufruf:
+ *   java -cp out server.RoomNameTest
+ */
+public class RoomNameTest {
+
+    /**
+     * Server ohne Log-Ausgabe.
+     */
+    private static class QuietServer extends Server {
+        QuietServer() {
+            super(Engine.NIO);
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            System.exit(run() ? 0 : 1);
+        }
+
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        ProcessBuilder builder = new ProcessBuilder(javaBin,
+                "-cp", String.join(File.pathSeparator, classPath),
+                RoomNameTest.class.getName(), "--run");
+
+        // Eigenes Arbeitsverzeichnis, damit server.log/users.db/room_files nicht im Projekt landen
+        builder.directory(Files.createTempDirectory("chat-test").toFile());
+        builder.inheritIO();
+        System.exit(builder.start().waitFor());
+    }
+
+
+    private static boolean run() {
+        boolean ok = true;
+
+        for (String name : new String[] {".blobs", ".trash", ".", ".x", "..", "a/b", "a\\b", "a..b", "", " "}) {
+            ok &= check(!RoomManager.isValidRoomName(name), "Name abgelehnt: '" + name + "'");
+        }
+        for (String name : new String[] {"lobby", "Raum 1", "a.b", "x."}) {
+            ok &= check(RoomManager.isValidRoomName(name), "Name erlaubt: '" + name + "'");
+        }
+
+        Server server = new QuietServer();
+        RoomManager manager = server.getRoomManager();
+        try {
+            File blobs = new File("room_blobs");
+            File trash = new File("room_trash");
+            ok &= check(blobs.isDirectory(), "BlobStore liegt neben room_files/");
+            ok &= check(trash.isDirectory(), "Papierkorb liegt neben room_files/");
+
+            ok &= check(!manager.createRoom(".blobs", newClient(server)), "createRoom(\".blobs\") schlägt fehl");
+            ok &= check(!manager.createRoom(".trash", newClient(server)), "createRoom(\".trash\") schlägt fehl");
+            ok &= check(manager.getRoom(".blobs") == null && manager.getRoom(".trash") == null,
+                    "Kein Raum .blobs/.trash angelegt");
+
+            // Normaler Raum: anlegen und leer löschen lassen
+            ClientHandler creator = newClient(server);
+            ok &= check(manager.createRoom("lobby", creator), "createRoom(\"lobby\")");
+            manager.leaveRoom("lobby", creator);
+            ok &= check(manager.getRoom("lobby") == null, "Leerer Raum gelöscht");
+            ok &= check(!new File("room_files", "lobby").exists(), "Raumordner im Papierkorb");
+            ok &= check(blobs.isDirectory() && trash.isDirectory(), "BlobStore und Papierkorb nach dem Löschen noch da");
+
+            // Gleicher Name gleich wieder: neuer Ordner, der alte ist schon im Papierkorb
+            creator = newClient(server);
+            ok &= check(manager.createRoom("lobby", creator), "createRoom(\"lobby\") nach dem Löschen");
+            ok &= check(new File("room_files", "lobby").isDirectory(), "Neuer Raumordner angelegt");
+            manager.leaveRoom("lobby", creator);
+        } finally {
+            manager.close();
+        }
+        return ok;
+    }
+
+
+    private static boolean check(boolean condition, String description) {
+        System.out.println((condition ? "OK      " : "FEHLER  ") + description);
+        return condition;
+    }
+
+
+    private static ClientHandler newClient(Server server) {
+        return new ClientHandler((Socket) null, null, server);
+    }
+}